@@ -0,0 +1,116 @@
+package com.thirdplacemc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Training run for the AppCDS archive of the runtime image: starts the packaged
+// wrapper under the image's own java with -XX:ArchiveClassesAtExit, lets it go
+// through a full cold start (download, extraction, launch) against the stub
+// release server, waits for "Listening on:" and stops it so the JVM dumps
+// every class it loaded.
+//
+// Usage: CdsTrainingRun <image java> <wrapper jar> <archive file>
+public class CdsTrainingRun {
+  private static final long TIMEOUT_MS = 60_000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 3) {
+      throw new IllegalArgumentException("Usage: CdsTrainingRun <java> <jar> <archive>");
+    }
+    File imageJava = new File(args[0]).getAbsoluteFile();
+    File jar = new File(args[1]).getAbsoluteFile();
+    File archive = new File(args[2]).getAbsoluteFile();
+    archive.delete();
+
+    File workDir = Files.createTempDirectory("picolimbo-cds").toFile();
+    String stubJava = ProcessHandle.current().info().command().orElse("java");
+    String launcher = "#!/bin/sh\nexec '" + stubJava + "' -cp '" + System.getProperty("java.class.path") + "' "
+        + StubPicoLimbo.class.getName() + " \"$@\"\n";
+    StubReleaseServer releases = new StubReleaseServer(launcher);
+    releases.start();
+    try {
+      writeConfiguration(workDir, releases.getBaseUrl());
+      train(imageJava, jar, archive, workDir);
+    } finally {
+      releases.stop();
+      deleteRecursively(workDir);
+    }
+
+    if (!archive.isFile()) {
+      throw new IllegalStateException("JVM did not write " + archive);
+    }
+    System.out.println("AppCDS archive written to " + archive.getPath() + " (" + archive.length() / 1024 + " KB)");
+  }
+
+  private static void writeConfiguration(File workDir, String apiUrl) throws IOException {
+    File configs = new File(workDir, "configs");
+    configs.mkdirs();
+    Files.write(new File(configs, "training.toml").toPath(), "bind = \"127.0.0.1:30999\"\n".getBytes());
+    String properties = "github.repo=stub/picolimbo\n"
+        + "github.api.url=" + apiUrl + "\n"
+        + "instances=training\n"
+        + "instance.training.config=configs/training.toml\n"
+        + "logs.enabled=true\n";
+    Files.write(new File(workDir, "wrapper.properties").toPath(), properties.getBytes());
+  }
+
+  private static void train(File java, File jar, File archive, File workDir) throws Exception {
+    ProcessBuilder builder = new ProcessBuilder(java.getPath(), "-XX:ArchiveClassesAtExit=" + archive.getPath(),
+        "-jar", jar.getPath(), "--startup-timeline");
+    builder.directory(workDir);
+    builder.redirectErrorStream(true);
+    Process wrapper = builder.start();
+
+    // Kill a hung training run instead of blocking the build
+    Thread watchdog = new Thread(() -> {
+      try {
+        if (!wrapper.waitFor(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+          wrapper.destroyForcibly();
+        }
+      } catch (InterruptedException e) {
+        wrapper.destroyForcibly();
+      }
+    }, "Training-Watchdog");
+    watchdog.setDaemon(true);
+    watchdog.start();
+
+    boolean listening = false;
+    try (BufferedReader in = new BufferedReader(new InputStreamReader(wrapper.getInputStream()));
+        Writer commands = new OutputStreamWriter(wrapper.getOutputStream())) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        System.out.println(line);
+        if (!listening && line.contains("Listening on:")) {
+          listening = true;
+          // Exercise the console commands as well, then shut down cleanly
+          commands.write("status\nhelp\nstop\n");
+          commands.flush();
+        }
+      }
+    }
+
+    if (!wrapper.waitFor(15, TimeUnit.SECONDS)) {
+      wrapper.destroyForcibly();
+      throw new IllegalStateException("Wrapper did not stop after the training run");
+    }
+    if (!listening) {
+      throw new IllegalStateException("Wrapper never reported \"Listening on:\" during the training run");
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,412 @@
+package com.thirdplacemc;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// Runs the real wrapper against StubPicoLimbo and StubReleaseServer and measures
+// per-instance time-to-listening, crash-to-restart latency, restart downtime and
+// update downtime. With --detached it also restarts the wrapper itself and
+// checks that every instance is adopted without losing its listener. No
+// network access is needed.
+//
+// Options: --instances N (3), --rounds N (3), --listen-delay MS (200),
+//          --flood LINES (0), --detached, --output FILE, --verbose
+public class LifecycleLatencyDriver {
+  private static final Pattern ANSI = Pattern.compile("\u001B\\[[0-9;]*m");
+  private static final long TIMEOUT_MS = 30_000;
+
+  private final int instanceCount;
+  private final int rounds;
+  private final long listenDelay;
+  private final long floodLines;
+  private final boolean detached;
+  private final boolean verbose;
+
+  private final List<Long> lineTimes = new ArrayList<>();
+  private final List<String> lines = new ArrayList<>();
+  private final Map<String, Map<String, List<Double>>> results = new LinkedHashMap<>();
+
+  private File workDir;
+  private Process wrapper;
+  private long wrapperStarted;
+  private Writer wrapperInput;
+
+  public LifecycleLatencyDriver(int instanceCount, int rounds, long listenDelay, long floodLines, boolean detached,
+      boolean verbose) {
+    this.instanceCount = instanceCount;
+    this.rounds = rounds;
+    this.listenDelay = listenDelay;
+    this.floodLines = floodLines;
+    this.detached = detached;
+    this.verbose = verbose;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int instances = 3;
+    int rounds = 3;
+    long listenDelay = 200;
+    long flood = 0;
+    boolean detached = false;
+    boolean verbose = false;
+    String output = "build/reports/e2e/results.json";
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--instances":
+          instances = Integer.parseInt(args[++i]);
+          break;
+        case "--rounds":
+          rounds = Integer.parseInt(args[++i]);
+          break;
+        case "--listen-delay":
+          listenDelay = Long.parseLong(args[++i]);
+          break;
+        case "--flood":
+          flood = Long.parseLong(args[++i]);
+          break;
+        case "--detached":
+          detached = true;
+          break;
+        case "--output":
+          output = args[++i];
+          break;
+        case "--verbose":
+          verbose = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option: " + args[i]);
+      }
+    }
+
+    LifecycleLatencyDriver driver = new LifecycleLatencyDriver(instances, rounds, listenDelay, flood, detached,
+        verbose);
+    boolean success = false;
+    try {
+      driver.run();
+      success = true;
+    } catch (Exception e) {
+      System.err.println("E2E run failed: " + e.getMessage());
+      driver.dumpOutputTail();
+    } finally {
+      driver.shutdown();
+    }
+
+    driver.printReport();
+    driver.writeReport(new File(output));
+    System.exit(success ? 0 : 1);
+  }
+
+  private void run() throws Exception {
+    workDir = Files.createTempDirectory("picolimbo-e2e").toFile();
+    String java = ProcessHandle.current().info().command().orElse("java");
+    String stubClasspath = System.getProperty("java.class.path");
+    String wrapperClasspath = System.getProperty("e2e.wrapperClasspath", stubClasspath);
+
+    String launcher = "#!/bin/sh\nexec '" + java + "' -cp '" + stubClasspath + "' "
+        + StubPicoLimbo.class.getName() + " \"$@\"\n";
+    StubReleaseServer releases = new StubReleaseServer(launcher);
+    releases.start();
+    try {
+      writeConfiguration(releases.getBaseUrl());
+      startWrapper(java, wrapperClasspath);
+
+      // Cold start, including the first download from the stub release server
+      for (String name : instanceNames()) {
+        long listening = awaitLine(0, listeningPattern(name));
+        record(name, "timeToListeningMs", millis(wrapperStarted, listening));
+      }
+
+      for (int round = 0; round < rounds; round++) {
+        for (String name : instanceNames()) {
+          measureCrash(name);
+        }
+        for (String name : instanceNames()) {
+          measureRestart(name);
+        }
+      }
+
+      for (int round = 0; round < rounds; round++) {
+        releases.setTag("v0.0." + (round + 2) + "-stub");
+        measureUpdate();
+      }
+
+      if (detached) {
+        for (int round = 0; round < rounds; round++) {
+          measureWrapperRestart(java, wrapperClasspath);
+        }
+      }
+    } finally {
+      releases.stop();
+    }
+  }
+
+  private void writeConfiguration(String apiUrl) throws IOException {
+    File configs = new File(workDir, "configs");
+    configs.mkdirs();
+
+    StringBuilder properties = new StringBuilder();
+    properties.append("github.repo=stub/picolimbo\n");
+    properties.append("github.api.url=").append(apiUrl).append('\n');
+    properties.append("instances=").append(String.join(",", instanceNames())).append('\n');
+    properties.append("detached=").append(detached).append('\n');
+    for (int i = 0; i < instanceCount; i++) {
+      String name = "limbo" + i;
+      properties.append("instance.").append(name).append(".config=configs/").append(name).append(".toml\n");
+      Files.write(new File(configs, name + ".toml").toPath(),
+          ("bind = \"127.0.0.1:" + (30000 + i) + "\"\n").getBytes());
+    }
+    Files.write(new File(workDir, "wrapper.properties").toPath(), properties.toString().getBytes());
+  }
+
+  private void startWrapper(String java, String classpath) throws IOException {
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", classpath, PicoLimboWrapper.class.getName());
+    builder.directory(workDir);
+    builder.redirectErrorStream(true);
+    builder.environment().put("STUB_LISTEN_DELAY_MS", String.valueOf(listenDelay));
+    builder.environment().put("STUB_FLOOD_LINES", String.valueOf(floodLines));
+    wrapperStarted = System.nanoTime();
+    wrapper = builder.start();
+    wrapperInput = new OutputStreamWriter(wrapper.getOutputStream());
+
+    Thread reader = new Thread(() -> {
+      try (BufferedReader in = new BufferedReader(new InputStreamReader(wrapper.getInputStream()))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          long now = System.nanoTime();
+          String plain = ANSI.matcher(line).replaceAll("");
+          synchronized (lines) {
+            lines.add(plain);
+            lineTimes.add(now);
+            lines.notifyAll();
+          }
+          if (verbose) {
+            System.out.println(plain);
+          }
+        }
+      } catch (IOException e) {
+        // Wrapper exited
+      }
+    }, "Wrapper-Output");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void measureCrash(String name) throws Exception {
+    int mark = mark();
+    long triggered = System.nanoTime();
+    Files.write(new File(workDir, "configs/" + name + ".toml.crash").toPath(), new byte[0]);
+
+    long detected = awaitLine(mark, Pattern.compile("\\[" + name + "\\] Process crashed"));
+    long listening = awaitLine(mark, listeningPattern(name));
+    record(name, "crashDetectionMs", millis(triggered, detected));
+    record(name, "crashToListeningMs", millis(triggered, listening));
+  }
+
+  private void measureRestart(String name) throws Exception {
+    int mark = mark();
+    sendCommand("restart " + name);
+    long stopping = awaitLine(mark, Pattern.compile("\\[" + name + "\\] Stopping instance"));
+    long listening = awaitLine(mark, listeningPattern(name));
+    record(name, "restartDowntimeMs", millis(stopping, listening));
+  }
+
+  private void measureUpdate() throws Exception {
+    int mark = mark();
+    long command = System.nanoTime();
+    sendCommand("update");
+    for (String name : instanceNames()) {
+      long stopping = awaitLine(mark, Pattern.compile("\\[" + name + "\\] Stopping instance"));
+      long listening = awaitLine(mark, listeningPattern(name));
+      record(name, "updateDowntimeMs", millis(stopping, listening));
+      record(name, "updateTotalMs", millis(command, listening));
+    }
+  }
+
+  // Detaches the wrapper and starts a new one, which must adopt every instance
+  // while its listener stays up the whole time
+  private void measureWrapperRestart(String java, String classpath) throws Exception {
+    int mark = mark();
+    long command = System.nanoTime();
+    sendCommand("detach");
+    if (!wrapper.waitFor(15, TimeUnit.SECONDS)) {
+      throw new IllegalStateException("Wrapper did not exit after detach");
+    }
+    long exited = System.nanoTime();
+    checkListeners();
+
+    startWrapper(java, classpath);
+    for (String name : instanceNames()) {
+      long adopted = awaitLine(mark, Pattern.compile("\\[" + name + "\\] Adopted running instance"));
+      record(name, "wrapperRestartMs", millis(exited, adopted));
+      record(name, "detachToAdoptedMs", millis(command, adopted));
+    }
+    checkListeners();
+
+    synchronized (lines) {
+      for (int i = mark; i < lines.size(); i++) {
+        if (lines.get(i).contains("Launching instance")) {
+          throw new IllegalStateException("Instance relaunched instead of adopted: " + lines.get(i));
+        }
+      }
+    }
+  }
+
+  private void checkListeners() throws IOException {
+    for (int i = 0; i < instanceCount; i++) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("127.0.0.1", 30000 + i), 1000);
+      } catch (IOException e) {
+        throw new IOException("limbo" + i + " is not listening: " + e.getMessage());
+      }
+    }
+  }
+
+  private Pattern listeningPattern(String name) {
+    return Pattern.compile("^\\[" + name + "\\] .*Listening on:");
+  }
+
+  private List<String> instanceNames() {
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < instanceCount; i++) {
+      names.add("limbo" + i);
+    }
+    return names;
+  }
+
+  private int mark() {
+    synchronized (lines) {
+      return lines.size();
+    }
+  }
+
+  // Returns the receive time of the first line at or after fromIndex matching pattern
+  private long awaitLine(int fromIndex, Pattern pattern) throws Exception {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    synchronized (lines) {
+      int index = fromIndex;
+      while (true) {
+        for (; index < lines.size(); index++) {
+          if (pattern.matcher(lines.get(index)).find()) {
+            return lineTimes.get(index);
+          }
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0 || !wrapper.isAlive()) {
+          throw new IllegalStateException("Timed out waiting for output matching: " + pattern.pattern());
+        }
+        lines.wait(remaining);
+      }
+    }
+  }
+
+  private void sendCommand(String command) throws IOException {
+    wrapperInput.write(command + "\n");
+    wrapperInput.flush();
+  }
+
+  private void record(String instance, String metric, double value) {
+    results.computeIfAbsent(metric, k -> new LinkedHashMap<>())
+        .computeIfAbsent(instance, k -> new ArrayList<>())
+        .add(value);
+  }
+
+  private static double millis(long fromNanos, long toNanos) {
+    return (toNanos - fromNanos) / 1_000_000.0;
+  }
+
+  private void shutdown() {
+    if (wrapper != null) {
+      try {
+        sendCommand("stop");
+        if (!wrapper.waitFor(15, TimeUnit.SECONDS)) {
+          wrapper.destroyForcibly();
+        }
+      } catch (IOException | InterruptedException e) {
+        wrapper.destroyForcibly();
+      }
+    }
+    if (workDir != null) {
+      deleteRecursively(workDir);
+    }
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  private void dumpOutputTail() {
+    synchronized (lines) {
+      System.err.println("Last wrapper output:");
+      for (int i = Math.max(0, lines.size() - 40); i < lines.size(); i++) {
+        System.err.println("  " + lines.get(i));
+      }
+    }
+  }
+
+  private void printReport() {
+    System.out.println();
+    System.out.printf("%-22s %-10s %8s %8s %8s %8s%n", "metric", "instance", "n", "min", "avg", "max");
+    for (Map.Entry<String, Map<String, List<Double>>> metric : results.entrySet()) {
+      for (Map.Entry<String, List<Double>> instance : metric.getValue().entrySet()) {
+        List<Double> values = instance.getValue();
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double sum = 0;
+        for (double value : values) {
+          min = Math.min(min, value);
+          max = Math.max(max, value);
+          sum += value;
+        }
+        System.out.printf("%-22s %-10s %8d %8.1f %8.1f %8.1f%n", metric.getKey(), instance.getKey(),
+            values.size(), min, sum / values.size(), max);
+      }
+    }
+  }
+
+  private void writeReport(File output) throws IOException {
+    JsonObject root = new JsonObject();
+    root.addProperty("instances", instanceCount);
+    root.addProperty("rounds", rounds);
+    root.addProperty("listenDelayMs", listenDelay);
+    root.addProperty("floodLines", floodLines);
+    root.addProperty("detached", detached);
+    JsonObject metrics = new JsonObject();
+    for (Map.Entry<String, Map<String, List<Double>>> metric : results.entrySet()) {
+      JsonObject perInstance = new JsonObject();
+      for (Map.Entry<String, List<Double>> instance : metric.getValue().entrySet()) {
+        JsonArray samples = new JsonArray();
+        instance.getValue().forEach(samples::add);
+        perInstance.add(instance.getKey(), samples);
+      }
+      metrics.add(metric.getKey(), perInstance);
+    }
+    root.add("metrics", metrics);
+
+    File parent = output.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    Files.write(output.toPath(), new GsonBuilder().setPrettyPrinting().create().toJson(root).getBytes());
+    System.out.println("Results written to " + output.getPath());
+  }
+}
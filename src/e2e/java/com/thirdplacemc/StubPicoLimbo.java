@@ -0,0 +1,99 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stand-in for the pico_limbo binary. Behaviour is controlled through
+// environment variables inherited from the wrapper:
+//   STUB_LISTEN_DELAY_MS - delay before printing "Listening on:" (default 200)
+//   STUB_FLOOD_LINES     - lines to print right after listening (default 0)
+//   STUB_CRASH_AFTER_MS  - exit with code 1 after this long (default never)
+// Creating <config>.crash makes the stub exit with code 1 immediately. The
+// bind address from the config is really bound, connections are accepted and
+// closed right away.
+public class StubPicoLimbo {
+  private static final Pattern BIND_PATTERN = Pattern.compile("^\\s*bind\\s*=\\s*\"([^\"]+)\"");
+
+  public static void main(String[] args) throws Exception {
+    String configPath = null;
+    for (int i = 0; i < args.length - 1; i++) {
+      if (args[i].equals("-c")) {
+        configPath = args[i + 1];
+      }
+    }
+
+    long listenDelay = envLong("STUB_LISTEN_DELAY_MS", 200);
+    long floodLines = envLong("STUB_FLOOD_LINES", 0);
+    long crashAfter = envLong("STUB_CRASH_AFTER_MS", -1);
+    String bind = configPath != null ? readBind(new File(configPath)) : "0.0.0.0:25565";
+    File crashTrigger = configPath != null ? new File(configPath + ".crash") : null;
+
+    System.out.println("INFO pico_limbo: Starting stub PicoLimbo (pid " + ProcessHandle.current().pid() + ")");
+    Thread.sleep(listenDelay);
+    listen(bind);
+    System.out.println("INFO pico_limbo: Listening on: " + bind);
+
+    for (long i = 0; i < floodLines; i++) {
+      System.out.println("WARN pico_limbo: flood line " + i);
+    }
+    System.out.flush();
+
+    long started = System.currentTimeMillis();
+    while (true) {
+      if (crashTrigger != null && crashTrigger.exists()) {
+        crashTrigger.delete();
+        System.out.println("ERROR pico_limbo: crash requested");
+        System.exit(1);
+      }
+      if (crashAfter >= 0 && System.currentTimeMillis() - started >= crashAfter) {
+        System.out.println("ERROR pico_limbo: scheduled crash");
+        System.exit(1);
+      }
+      Thread.sleep(20);
+    }
+  }
+
+  private static void listen(String bind) {
+    int colon = bind.lastIndexOf(':');
+    try {
+      ServerSocket server = new ServerSocket();
+      server.setReuseAddress(true);
+      server.bind(new InetSocketAddress(bind.substring(0, colon), Integer.parseInt(bind.substring(colon + 1))));
+      Thread acceptor = new Thread(() -> {
+        while (true) {
+          try {
+            // Only the connection matters
+            server.accept().close();
+          } catch (IOException e) {
+            return;
+          }
+        }
+      }, "Stub-Acceptor");
+      acceptor.setDaemon(true);
+      acceptor.start();
+    } catch (IOException | RuntimeException e) {
+      // The update check runs the binary without a config, on the default port
+      System.out.println("WARN pico_limbo: could not bind " + bind + ": " + e.getMessage());
+    }
+  }
+
+  private static long envLong(String name, long defaultValue) {
+    String value = System.getenv(name);
+    return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value.trim());
+  }
+
+  private static String readBind(File config) throws IOException {
+    for (String line : Files.readAllLines(config.toPath())) {
+      Matcher matcher = BIND_PATTERN.matcher(line);
+      if (matcher.find()) {
+        return matcher.group(1);
+      }
+    }
+    return "0.0.0.0:25565";
+  }
+}
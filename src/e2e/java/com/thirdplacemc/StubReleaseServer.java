@@ -0,0 +1,140 @@
+package com.thirdplacemc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+// Local stand-in for the GitHub releases API and asset downloads. Every
+// platform archive name is answered with a .tar.gz holding a pico_limbo
+// launcher script that starts StubPicoLimbo.
+public class StubReleaseServer {
+  private final HttpServer server;
+  private final byte[] archive;
+  private final AtomicInteger apiRequests = new AtomicInteger();
+  private final AtomicInteger downloads = new AtomicInteger();
+  private volatile String tag = "v0.0.1-stub";
+
+  public StubReleaseServer(String launcherScript) throws IOException {
+    this.archive = createArchive(launcherScript);
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/repos/", this::handleApi);
+    server.createContext("/download/", this::handleDownload);
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+  }
+
+  public String getBaseUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  // Simulates a new upstream release
+  public void setTag(String tag) {
+    this.tag = tag;
+  }
+
+  public int getApiRequests() {
+    return apiRequests.get();
+  }
+
+  public int getDownloads() {
+    return downloads.get();
+  }
+
+  private void handleApi(HttpExchange exchange) throws IOException {
+    apiRequests.incrementAndGet();
+    // The latest release, or any tag asked for by name
+    String path = exchange.getRequestURI().getPath();
+    String releaseTag;
+    if (path.endsWith("/releases/latest")) {
+      releaseTag = tag;
+    } else if (path.contains("/releases/tags/")) {
+      releaseTag = path.substring(path.indexOf("/releases/tags/") + "/releases/tags/".length());
+    } else {
+      send(exchange, 404, new byte[0]);
+      return;
+    }
+
+    JsonArray assets = new JsonArray();
+    for (String name : new String[] {
+        "pico_limbo_linux-x86_64-musl.tar.gz",
+        "pico_limbo_linux-aarch64-musl.tar.gz",
+        "pico_limbo_macos-aarch64.tar.gz" }) {
+      JsonObject asset = new JsonObject();
+      asset.addProperty("name", name);
+      asset.addProperty("size", archive.length);
+      asset.addProperty("browser_download_url", getBaseUrl() + "/download/" + releaseTag + "/" + name);
+      assets.add(asset);
+    }
+    JsonObject release = new JsonObject();
+    release.addProperty("tag_name", releaseTag);
+    release.add("assets", assets);
+    send(exchange, 200, release.toString().getBytes());
+  }
+
+  private void handleDownload(HttpExchange exchange) throws IOException {
+    downloads.incrementAndGet();
+    send(exchange, 200, archive);
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static byte[] createArchive(String launcherScript) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new GZIPOutputStream(bytes)) {
+      writeTarEntry(out, "pico_limbo", launcherScript.getBytes());
+      out.write(new byte[1024]);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeTarEntry(OutputStream out, String name, byte[] data) throws IOException {
+    byte[] header = new byte[512];
+    putString(header, 0, name);
+    putString(header, 100, "0000755");
+    putString(header, 108, "0000000");
+    putString(header, 116, "0000000");
+    putString(header, 124, String.format("%011o", data.length));
+    putString(header, 136, String.format("%011o", System.currentTimeMillis() / 1000));
+    header[156] = '0';
+    putString(header, 257, "ustar");
+    putString(header, 263, "00");
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    int checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    putString(header, 148, String.format("%06o", checksum));
+    header[154] = 0;
+
+    out.write(header);
+    out.write(data);
+    out.write(new byte[(512 - (data.length % 512)) % 512]);
+  }
+
+  private static void putString(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes();
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+}
@@ -0,0 +1,123 @@
+package com.thirdplacemc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+final class BenchmarkSupport {
+  private BenchmarkSupport() {
+  }
+
+  // Console replacement that discards everything, so benchmarks measure the
+  // wrapper rather than the terminal
+  static PrintStream nullConsole() {
+    return new PrintStream(OutputStream.nullOutputStream(), false);
+  }
+
+  static byte[] randomBytes(int size, long seed) {
+    byte[] data = new byte[size];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+
+  static File createTempDirectory(String prefix) throws IOException {
+    return Files.createTempDirectory(prefix).toFile();
+  }
+
+  static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+
+  // Writes a release-like .tar.gz: a few small files around the binary entry
+  static void writeTarGz(File target, String binaryName, byte[] binary) throws IOException {
+    try (OutputStream out = new GZIPOutputStream(new FileOutputStream(target))) {
+      writeTarEntry(out, "LICENSE", "license text\n".getBytes());
+      writeTarEntry(out, "README.md", "readme\n".getBytes());
+      writeTarEntry(out, binaryName, binary);
+      out.write(new byte[1024]);
+    }
+  }
+
+  static void writeZip(File target, String binaryName, byte[] binary) throws IOException {
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target))) {
+      for (String name : new String[] { "LICENSE", "README.md" }) {
+        out.putNextEntry(new ZipEntry(name));
+        out.write((name + "\n").getBytes());
+        out.closeEntry();
+      }
+      out.putNextEntry(new ZipEntry(binaryName));
+      out.write(binary);
+      out.closeEntry();
+    }
+  }
+
+  private static void writeTarEntry(OutputStream out, String name, byte[] data) throws IOException {
+    byte[] header = new byte[512];
+    putString(header, 0, name);
+    putString(header, 100, "0000755");
+    putString(header, 108, "0000000");
+    putString(header, 116, "0000000");
+    putString(header, 124, String.format("%011o", data.length));
+    putString(header, 136, String.format("%011o", 0));
+    header[156] = '0';
+    putString(header, 257, "ustar");
+    putString(header, 263, "00");
+
+    // Checksum is computed with the checksum field set to spaces
+    for (int i = 148; i < 156; i++) {
+      header[i] = ' ';
+    }
+    int checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xFF;
+    }
+    putString(header, 148, String.format("%06o", checksum));
+    header[154] = 0;
+    header[155] = ' ';
+
+    out.write(header);
+    out.write(data);
+    int padding = (512 - (data.length % 512)) % 512;
+    out.write(new byte[padding]);
+  }
+
+  private static void putString(byte[] header, int offset, String value) {
+    byte[] bytes = value.getBytes();
+    System.arraycopy(bytes, 0, header, offset, bytes.length);
+  }
+
+  // Synthetic PicoLimbo-like output: mostly info lines with the occasional
+  // join, leave and error
+  static byte[] syntheticOutput(int lines) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(lines * 64);
+    for (int i = 0; i < lines; i++) {
+      String line;
+      if (i % 50 == 0) {
+        line = "2025-01-01T00:00:00.000000Z  INFO pico_limbo: Player" + i + " joined the game\n";
+      } else if (i % 50 == 25) {
+        line = "2025-01-01T00:00:00.000000Z  INFO pico_limbo: Player" + i + " left the game\n";
+      } else if (i % 500 == 7) {
+        line = "2025-01-01T00:00:00.000000Z ERROR pico_limbo: connection reset " + i + "\n";
+      } else {
+        line = "2025-01-01T00:00:00.000000Z  INFO pico_limbo: keep alive sent to client " + i + "\n";
+      }
+      byte[] bytes = line.getBytes();
+      out.write(bytes, 0, bytes.length);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,68 @@
+package com.thirdplacemc;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Download path against a local HTTP server serving a 16 MB archive
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DownloadBenchmark {
+  private static final int ARCHIVE_SIZE = 16 * 1024 * 1024;
+
+  private PrintStream originalOut;
+  private HttpServer server;
+  private File workDir;
+  private File target;
+  private String url;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    originalOut = System.out;
+    System.setOut(BenchmarkSupport.nullConsole());
+
+    byte[] archive = BenchmarkSupport.randomBytes(ARCHIVE_SIZE, 7);
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/archive.tar.gz", exchange -> {
+      exchange.sendResponseHeaders(200, archive.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(archive);
+      }
+    });
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/archive.tar.gz";
+
+    workDir = BenchmarkSupport.createTempDirectory("download-bench");
+    target = new File(workDir, "archive.tar.gz");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    server.stop(0);
+    BenchmarkSupport.deleteRecursively(workDir);
+    System.setOut(originalOut);
+  }
+
+  @Benchmark
+  public long downloadFromUrl() throws IOException {
+    PicoLimboWrapper.downloadFromUrl(url, target);
+    return target.length();
+  }
+}
@@ -0,0 +1,39 @@
+package com.thirdplacemc;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventMatcherBenchmark {
+  private OutputEventMatcher matcher;
+  private byte[] plainLine;
+  private byte[] joinLine;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    matcher = OutputEventMatcher.compile(new WrapperConfig(new Properties()).getEventPatterns());
+    plainLine = "2025-01-01T00:00:00.000000Z  INFO pico_limbo: keep alive sent to client 12345".getBytes();
+    joinLine = "2025-01-01T00:00:00.000000Z  INFO pico_limbo: Steve joined the game".getBytes();
+  }
+
+  @Benchmark
+  public int matchPlainLine() {
+    return matcher.match(plainLine, 0, plainLine.length);
+  }
+
+  @Benchmark
+  public int matchJoinLine() {
+    return matcher.match(joinLine, 0, joinLine.length);
+  }
+}
@@ -0,0 +1,64 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Extraction of generated release archives with an 8 MB incompressible binary
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractBenchmark {
+  private static final int BINARY_SIZE = 8 * 1024 * 1024;
+
+  private PrintStream originalOut;
+  private File workDir;
+  private File tarGz;
+  private File zip;
+  private File target;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    originalOut = System.out;
+    System.setOut(BenchmarkSupport.nullConsole());
+    workDir = BenchmarkSupport.createTempDirectory("extract-bench");
+    byte[] binary = BenchmarkSupport.randomBytes(BINARY_SIZE, 42);
+    tarGz = new File(workDir, "pico_limbo_linux-x86_64-musl.tar.gz");
+    zip = new File(workDir, "pico_limbo_windows-x86_64.zip");
+    BenchmarkSupport.writeTarGz(tarGz, "pico_limbo", binary);
+    BenchmarkSupport.writeZip(zip, "pico_limbo.exe", binary);
+  }
+
+  @Setup(Level.Invocation)
+  public void cleanOutput() {
+    target = new File(workDir, "out/pico_limbo");
+    target.delete();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.setOut(originalOut);
+    BenchmarkSupport.deleteRecursively(workDir);
+  }
+
+  @Benchmark
+  public long extractTarGz() throws IOException {
+    return ArchiveExtractor.extract(tarGz, "pico_limbo", target).getBytesWritten();
+  }
+
+  @Benchmark
+  public long extractZip() throws IOException {
+    return ArchiveExtractor.extract(zip, "pico_limbo.exe", target).getBytesWritten();
+  }
+}
@@ -0,0 +1,51 @@
+package com.thirdplacemc;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoggerBenchmark {
+  private PrintStream originalOut;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    originalOut = System.out;
+    System.setOut(BenchmarkSupport.nullConsole());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.setOut(originalOut);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void infoSingleThread() {
+    Logger.info("lobby", "Instance launched successfully");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void infoContended() {
+    Logger.info("lobby", "Instance launched successfully");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void warnContendedWithoutInstance() {
+    Logger.warn("Download progress: 50%");
+  }
+}
@@ -0,0 +1,84 @@
+package com.thirdplacemc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Forwarding cost per batch of output lines. The "sinks" parameter shows the
+// overhead each stage adds on top of plain console forwarding.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OutputForwardingBenchmark {
+  private static final int LINES = 100_000;
+
+  @Param({ "console", "events", "all" })
+  public String sinks;
+
+  private PrintStream originalOut;
+  private byte[] output;
+  private List<OutputSink> sinkList;
+  private OutputRateLimiter rateLimiter;
+  private String javaCommand;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    originalOut = System.out;
+    System.setOut(BenchmarkSupport.nullConsole());
+    output = BenchmarkSupport.syntheticOutput(LINES);
+    javaCommand = ProcessHandle.current().info().command().orElse("java");
+
+    InstanceInfo instance = new InstanceInfo("bench", "bench.toml", false);
+    WrapperConfig config = new WrapperConfig(new Properties());
+    sinkList = new ArrayList<>();
+    if (!sinks.equals("console")) {
+      sinkList.add(new OutputEventCounter(instance, OutputEventMatcher.compile(config.getEventPatterns())));
+    }
+    if (sinks.equals("all")) {
+      sinkList.add(new OutputRingBuffer(1024 * 1024));
+      // Unlimited buckets so every line still reaches the console
+      rateLimiter = new OutputRateLimiter(0, 0, true);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    System.setOut(originalOut);
+  }
+
+  @Benchmark
+  public void forwardInMemory() throws IOException {
+    new OutputForwarder("bench", sinkList, rateLimiter).forward(new ByteArrayInputStream(output));
+  }
+
+  // End to end including the pipe from a real child process; dominated by
+  // process start-up, useful to compare against forwardInMemory
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public int forwardChildProcess() throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(javaCommand, "-cp", System.getProperty("java.class.path"),
+        SyntheticOutputProcess.class.getName(), String.valueOf(LINES))
+        .redirectErrorStream(true)
+        .start();
+    try (InputStream in = process.getInputStream()) {
+      new OutputForwarder("bench", sinkList, rateLimiter).forward(in);
+    }
+    return process.waitFor();
+  }
+}
@@ -0,0 +1,17 @@
+package com.thirdplacemc;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Child process for the forwarding benchmark: writes synthetic output as fast
+// as possible and exits
+public class SyntheticOutputProcess {
+  public static void main(String[] args) throws IOException {
+    int lines = Integer.parseInt(args[0]);
+    byte[] output = BenchmarkSupport.syntheticOutput(lines);
+    try (OutputStream out = new BufferedOutputStream(System.out, 65536)) {
+      out.write(output);
+    }
+  }
+}
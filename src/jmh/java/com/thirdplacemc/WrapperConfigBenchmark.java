@@ -0,0 +1,61 @@
+package com.thirdplacemc;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WrapperConfigBenchmark {
+  private WrapperConfig config;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Properties properties = new Properties();
+    StringBuilder names = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      String name = "limbo" + i;
+      names.append(i == 0 ? "" : ",").append(name);
+      properties.setProperty("instance." + name + ".config", "configs/" + name + ".toml");
+      properties.setProperty("instance." + name + ".autoStart", String.valueOf(i % 2 == 0));
+    }
+    properties.setProperty("instances", names.toString());
+    properties.setProperty("instance.limbo3.output.linesPerSecond", "50");
+    config = new WrapperConfig(properties);
+  }
+
+  @Benchmark
+  public List<String> getInstances() {
+    return config.getInstances();
+  }
+
+  @Benchmark
+  public String getInstanceConfig() {
+    return config.getInstanceConfig("limbo7");
+  }
+
+  @Benchmark
+  public boolean shouldAutoStart() {
+    return config.shouldAutoStart("limbo7");
+  }
+
+  @Benchmark
+  public int getInstanceOverride() {
+    return config.getOutputLinesPerSecond("limbo3");
+  }
+
+  @Benchmark
+  public int getInstanceFallback() {
+    return config.getOutputLinesPerSecond("limbo4");
+  }
+}
@@ -0,0 +1,385 @@
+package com.thirdplacemc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Extracts a single entry from a release archive straight into a FileChannel.
+// Tar archives are streamed and parsed up to the first matching entry (ustar,
+// GNU long names and pax headers are understood); zip archives are read through
+// their central directory so only the matching entry is inflated.
+public class ArchiveExtractor {
+  private static final int BLOCK_SIZE = 512;
+
+  public static class Result {
+    private final String entryName;
+    private final long bytesWritten;
+    private final long elapsedNanos;
+
+    Result(String entryName, long bytesWritten, long elapsedNanos) {
+      this.entryName = entryName;
+      this.bytesWritten = bytesWritten;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    public String getEntryName() {
+      return entryName;
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedNanos / 1_000_000;
+    }
+  }
+
+  // Extracts the first entry matching entryGlob into target. A glob without
+  // '/' is matched against the entry's file name, otherwise against its full
+  // path ('*' stays within a path segment, '**' crosses segments).
+  public static Result extract(File archive, String entryGlob, File target) throws IOException {
+    long started = System.nanoTime();
+    String fileName = archive.getName().toLowerCase();
+    Pattern matcher = compileGlob(entryGlob);
+    boolean matchFullPath = entryGlob.contains("/");
+
+    Result result;
+    if (fileName.endsWith(".zip")) {
+      result = extractZip(archive, matcher, matchFullPath, target, started);
+    } else if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+      try (InputStream in = new GZIPInputStream(new FileInputStream(archive), 65536)) {
+        result = extractTar(in, matcher, matchFullPath, target, started);
+      }
+    } else if (fileName.endsWith(".tar")) {
+      try (InputStream in = new FileInputStream(archive)) {
+        result = extractTar(in, matcher, matchFullPath, target, started);
+      }
+    } else {
+      throw new IOException("Unsupported archive format: " + fileName);
+    }
+
+    if (result == null) {
+      throw new IOException("No entry matching '" + entryGlob + "' in " + archive.getName());
+    }
+    return result;
+  }
+
+  private static Result extractZip(File archive, Pattern matcher, boolean matchFullPath, File target,
+      long started) throws IOException {
+    try (ZipFile zip = new ZipFile(archive)) {
+      Enumeration<? extends ZipEntry> entries = zip.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        if (entry.isDirectory() || !matches(entry.getName(), matcher, matchFullPath)) {
+          continue;
+        }
+        checkEntryName(entry.getName());
+
+        try (InputStream in = zip.getInputStream(entry)) {
+          long written = writeEntry(in, entry.getSize(), target);
+          return new Result(entry.getName(), written, System.nanoTime() - started);
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Result extractTar(InputStream in, Pattern matcher, boolean matchFullPath, File target,
+      long started) throws IOException {
+    byte[] header = new byte[BLOCK_SIZE];
+    String longName = null;
+    String paxPath = null;
+    long paxSize = -1;
+
+    while (readBlock(in, header)) {
+      if (isZeroBlock(header)) {
+        break;
+      }
+      verifyChecksum(header);
+
+      long size = parseNumber(header, 124, 12);
+      char type = (char) header[156];
+
+      switch (type) {
+        case 'L':
+          // GNU long name: the data block holds the name of the next entry
+          longName = readString(in, size);
+          continue;
+        case 'x':
+          // pax extended header for the next entry
+          String records = readString(in, size);
+          paxPath = paxValue(records, "path");
+          String paxSizeValue = paxValue(records, "size");
+          paxSize = paxSizeValue != null ? parsePaxNumber(paxSizeValue, "size") : -1;
+          continue;
+        case 'g':
+        case 'K':
+          skipFully(in, padded(size));
+          continue;
+        default:
+          break;
+      }
+
+      String name = paxPath != null ? paxPath : longName != null ? longName : parseName(header);
+      if (paxSize >= 0) {
+        size = paxSize;
+      }
+      longName = null;
+      paxPath = null;
+      paxSize = -1;
+
+      boolean regularFile = type == '0' || type == '\0' || type == '7';
+      if (regularFile && !name.endsWith("/") && matches(name, matcher, matchFullPath)) {
+        checkEntryName(name);
+        long written = writeEntry(in, size, target);
+        // The rest of the archive is not needed
+        return new Result(name, written, System.nanoTime() - started);
+      }
+
+      skipFully(in, padded(size));
+    }
+    return null;
+  }
+
+  // Copies exactly expectedSize bytes (or everything, if unknown) to target
+  private static long writeEntry(InputStream in, long expectedSize, File target) throws IOException {
+    File parent = target.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+
+    ReadableByteChannel source = Channels.newChannel(in);
+    long position = 0;
+    try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      long chunk = 1 << 20;
+      while (expectedSize < 0 || position < expectedSize) {
+        long count = expectedSize < 0 ? chunk : Math.min(chunk, expectedSize - position);
+        long transferred = out.transferFrom(source, position, count);
+        if (transferred <= 0) {
+          break;
+        }
+        position += transferred;
+      }
+
+      if (expectedSize >= 0 && position != expectedSize) {
+        throw new EOFException("Archive entry truncated: wrote " + position + " of " + expectedSize + " bytes");
+      }
+      if (out.size() != position) {
+        throw new IOException("Size mismatch after extraction: " + out.size() + " != " + position);
+      }
+    } catch (IOException e) {
+      target.delete();
+      throw e;
+    }
+    return position;
+  }
+
+  private static boolean matches(String entryName, Pattern matcher, boolean matchFullPath) {
+    String name = entryName.replace('\\', '/');
+    if (!matchFullPath) {
+      int slash = name.lastIndexOf('/');
+      name = slash >= 0 ? name.substring(slash + 1) : name;
+    }
+    return matcher.matcher(name).matches();
+  }
+
+  private static void checkEntryName(String entryName) throws IOException {
+    String name = entryName.replace('\\', '/');
+    if (name.startsWith("/") || (name.length() > 1 && name.charAt(1) == ':')) {
+      throw new IOException("Refusing absolute archive entry: " + entryName);
+    }
+    for (String segment : name.split("/")) {
+      if (segment.equals("..")) {
+        throw new IOException("Refusing archive entry outside the target directory: " + entryName);
+      }
+    }
+  }
+
+  static Pattern compileGlob(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+          // '**/' also matches zero directories
+          if (i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+            regex.append("(?:.*/)?");
+            i += 2;
+          } else {
+            regex.append(".*");
+            i++;
+          }
+        } else {
+          regex.append("[^/]*");
+        }
+      } else if (c == '?') {
+        regex.append("[^/]");
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    return Pattern.compile(regex.toString());
+  }
+
+  private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+    int offset = 0;
+    while (offset < block.length) {
+      int read = in.read(block, offset, block.length - offset);
+      if (read < 0) {
+        if (offset == 0) {
+          return false;
+        }
+        throw new EOFException("Truncated tar header");
+      }
+      offset += read;
+    }
+    return true;
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0) {
+        // skip() may legitimately return 0, read() tells us whether we hit the end
+        if (in.read() < 0) {
+          throw new EOFException("Unexpected end of tar archive");
+        }
+        skipped = 1;
+      }
+      count -= skipped;
+    }
+  }
+
+  private static long padded(long size) {
+    return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+  }
+
+  private static String readString(InputStream in, long size) throws IOException {
+    if (size > 1 << 20) {
+      throw new IOException("Tar metadata entry too large: " + size + " bytes");
+    }
+    byte[] data = new byte[(int) padded(size)];
+    if (!readBlock(in, data) && data.length > 0) {
+      throw new EOFException("Unexpected end of tar archive");
+    }
+    int length = (int) size;
+    while (length > 0 && data[length - 1] == 0) {
+      length--;
+    }
+    return new String(data, 0, length, StandardCharsets.UTF_8);
+  }
+
+  // pax records are "<length> <key>=<value>\n"
+  private static String paxValue(String records, String key) throws IOException {
+    int position = 0;
+    while (position < records.length()) {
+      int space = records.indexOf(' ', position);
+      if (space < 0) {
+        break;
+      }
+      int length = (int) parsePaxNumber(records.substring(position, space), "record length");
+      if (length <= space - position) {
+        throw new IOException("Invalid pax header record length: " + length);
+      }
+      String record = records.substring(space + 1, Math.min(records.length(), position + length - 1));
+      if (record.startsWith(key + "=")) {
+        return record.substring(key.length() + 1);
+      }
+      position += length;
+    }
+    return null;
+  }
+
+  private static long parsePaxNumber(String value, String field) throws IOException {
+    try {
+      long number = Long.parseLong(value.trim());
+      if (number < 0 || number > Integer.MAX_VALUE && !field.equals("size")) {
+        throw new NumberFormatException(value);
+      }
+      return number;
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid pax header " + field + ": '" + value + "'");
+    }
+  }
+
+  private static String parseName(byte[] header) {
+    String name = parseString(header, 0, 100);
+    // ustar splits long paths into prefix and name
+    if (parseString(header, 257, 6).startsWith("ustar")) {
+      String prefix = parseString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        return prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  private static String parseString(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  // Octal ASCII, or GNU base-256 when the high bit of the first byte is set
+  private static long parseNumber(byte[] header, int offset, int length) throws IOException {
+    if ((header[offset] & 0x80) != 0) {
+      long value = header[offset] & 0x7F;
+      for (int i = offset + 1; i < offset + length; i++) {
+        value = (value << 8) | (header[i] & 0xFF);
+      }
+      return value;
+    }
+
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = header[i];
+      if (b == 0 || b == ' ') {
+        if (value > 0) {
+          break;
+        }
+        continue;
+      }
+      if (b < '0' || b > '7') {
+        throw new IOException("Invalid number in tar header");
+      }
+      value = (value << 3) + (b - '0');
+    }
+    return value;
+  }
+
+  private static void verifyChecksum(byte[] header) throws IOException {
+    long expected = parseNumber(header, 148, 8);
+    long actual = 0;
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      actual += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xFF);
+    }
+    if (actual != expected) {
+      throw new IOException("Corrupt tar header (checksum mismatch)");
+    }
+  }
+
+  private static boolean isZeroBlock(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,477 @@
+package com.thirdplacemc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// bsdiff-style binary patches between two PicoLimbo builds. A patch is a list
+// of (diff length, extra length, seek) controls: diff bytes are added to the
+// old binary byte by byte, extra bytes are copied as-is, then the old position
+// moves by seek. Between builds of the same program most of the diff block is
+// zeros, which compresses to almost nothing.
+//
+// Format: "PLDELTA1", SHA-256 of the old and of the new binary, new size,
+// compressed control and diff block lengths, then the deflated control, diff
+// and extra blocks.
+//
+// Patches are made with:
+//   java -cp PicoLimboWrapper.jar com.thirdplacemc.BinaryDelta diff <old> <new> <patch>
+public class BinaryDelta {
+  private static final byte[] MAGIC = "PLDELTA1".getBytes();
+  private static final int HEADER_SIZE = MAGIC.length + 32 + 32 + 8 * 3;
+
+  private BinaryDelta() {
+  }
+
+  public static class PatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PatchException(String message) {
+      super(message);
+    }
+  }
+
+  public static byte[] diff(byte[] oldData, byte[] newData) throws IOException {
+    int[] suffixes = suffixArray(oldData);
+
+    ByteArrayOutputStream controlBytes = new ByteArrayOutputStream();
+    DataOutputStream control = new DataOutputStream(controlBytes);
+    ByteArrayOutputStream diffBlock = new ByteArrayOutputStream();
+    ByteArrayOutputStream extraBlock = new ByteArrayOutputStream();
+
+    int oldSize = oldData.length;
+    int newSize = newData.length;
+    int scan = 0;
+    int len = 0;
+    int lastScan = 0;
+    int lastPos = 0;
+    int lastOffset = 0;
+    int[] pos = new int[1];
+    while (scan < newSize) {
+      int oldScore = 0;
+      int scsc = scan += len;
+      for (; scan < newSize; scan++) {
+        len = search(suffixes, oldData, newData, scan, 0, oldSize, pos);
+        for (; scsc < scan + len; scsc++) {
+          if (scsc + lastOffset < oldSize && oldData[scsc + lastOffset] == newData[scsc]) {
+            oldScore++;
+          }
+        }
+        if ((len == oldScore && len != 0) || len > oldScore + 8) {
+          break;
+        }
+        if (scan + lastOffset < oldSize && oldData[scan + lastOffset] == newData[scan]) {
+          oldScore--;
+        }
+      }
+
+      if (len != oldScore || scan == newSize) {
+        // Extend the previous match forwards and this one backwards
+        int s = 0;
+        int bestForward = 0;
+        int lenForward = 0;
+        for (int i = 0; lastScan + i < scan && lastPos + i < oldSize;) {
+          if (oldData[lastPos + i] == newData[lastScan + i]) {
+            s++;
+          }
+          i++;
+          if (s * 2 - i > bestForward * 2 - lenForward) {
+            bestForward = s;
+            lenForward = i;
+          }
+        }
+
+        int lenBack = 0;
+        if (scan < newSize) {
+          s = 0;
+          int bestBack = 0;
+          for (int i = 1; scan >= lastScan + i && pos[0] >= i; i++) {
+            if (oldData[pos[0] - i] == newData[scan - i]) {
+              s++;
+            }
+            if (s * 2 - i > bestBack * 2 - lenBack) {
+              bestBack = s;
+              lenBack = i;
+            }
+          }
+        }
+
+        if (lastScan + lenForward > scan - lenBack) {
+          // The extensions overlap, split where the old data fits best
+          int overlap = (lastScan + lenForward) - (scan - lenBack);
+          s = 0;
+          int bestSplit = 0;
+          int lenSplit = 0;
+          for (int i = 0; i < overlap; i++) {
+            if (newData[lastScan + lenForward - overlap + i] == oldData[lastPos + lenForward - overlap + i]) {
+              s++;
+            }
+            if (newData[scan - lenBack + i] == oldData[pos[0] - lenBack + i]) {
+              s--;
+            }
+            if (s > bestSplit) {
+              bestSplit = s;
+              lenSplit = i + 1;
+            }
+          }
+          lenForward += lenSplit - overlap;
+          lenBack -= lenSplit;
+        }
+
+        for (int i = 0; i < lenForward; i++) {
+          diffBlock.write(newData[lastScan + i] - oldData[lastPos + i]);
+        }
+        int extraLength = (scan - lenBack) - (lastScan + lenForward);
+        extraBlock.write(newData, lastScan + lenForward, extraLength);
+
+        control.writeLong(lenForward);
+        control.writeLong(extraLength);
+        control.writeLong((pos[0] - lenBack) - (lastPos + lenForward));
+
+        lastScan = scan - lenBack;
+        lastPos = pos[0] - lenBack;
+        lastOffset = pos[0] - scan;
+      }
+    }
+
+    byte[] compressedControl = deflate(controlBytes.toByteArray());
+    byte[] compressedDiff = deflate(diffBlock.toByteArray());
+    byte[] compressedExtra = deflate(extraBlock.toByteArray());
+
+    ByteArrayOutputStream patch = new ByteArrayOutputStream(
+        HEADER_SIZE + compressedControl.length + compressedDiff.length + compressedExtra.length);
+    DataOutputStream out = new DataOutputStream(patch);
+    out.write(MAGIC);
+    out.write(sha256(oldData));
+    out.write(sha256(newData));
+    out.writeLong(newSize);
+    out.writeLong(compressedControl.length);
+    out.writeLong(compressedDiff.length);
+    out.write(compressedControl);
+    out.write(compressedDiff);
+    out.write(compressedExtra);
+    out.flush();
+    return patch.toByteArray();
+  }
+
+  // Rebuilds the new binary. Both ends are checked against the hashes in the
+  // patch, so a patch for another base or a corrupted one never yields a
+  // binary.
+  public static byte[] apply(byte[] oldData, byte[] patch) throws IOException {
+    return apply(oldData, patch, null);
+  }
+
+  // As apply(oldData, patch), but the patch must also be for the binary with
+  // the SHA-256 expectedNewHash, which comes from a source other than the
+  // patch itself. Null skips that check.
+  public static byte[] apply(byte[] oldData, byte[] patch, byte[] expectedNewHash) throws IOException {
+    if (patch.length < HEADER_SIZE || !Arrays.equals(Arrays.copyOf(patch, MAGIC.length), MAGIC)) {
+      throw new PatchException("Not a PicoLimbo delta");
+    }
+    DataInputStream header = new DataInputStream(new ByteArrayInputStream(patch, MAGIC.length, HEADER_SIZE));
+    byte[] oldHash = new byte[32];
+    byte[] newHash = new byte[32];
+    header.readFully(oldHash);
+    header.readFully(newHash);
+    long newSize = header.readLong();
+    long controlLength = header.readLong();
+    long diffLength = header.readLong();
+    if (newSize < 0 || newSize > Integer.MAX_VALUE - 8 || controlLength < 0 || diffLength < 0
+        || HEADER_SIZE + controlLength + diffLength > patch.length) {
+      throw new PatchException("Corrupt delta header");
+    }
+    if (expectedNewHash != null && !MessageDigest.isEqual(newHash, expectedNewHash)) {
+      throw new PatchException("Delta does not produce the binary published for this release");
+    }
+    if (!MessageDigest.isEqual(oldHash, sha256(oldData))) {
+      throw new PatchException("Delta was made for a different base binary");
+    }
+
+    int diffStart = HEADER_SIZE + (int) controlLength;
+    int extraStart = diffStart + (int) diffLength;
+    byte[] newData = new byte[(int) newSize];
+    try (DataInputStream control = new DataInputStream(inflate(patch, HEADER_SIZE, (int) controlLength));
+        InputStream diff = inflate(patch, diffStart, (int) diffLength);
+        InputStream extra = inflate(patch, extraStart, patch.length - extraStart)) {
+      int oldPos = 0;
+      int newPos = 0;
+      while (newPos < newSize) {
+        long diffCount = control.readLong();
+        long extraCount = control.readLong();
+        long seek = control.readLong();
+        if (diffCount < 0 || extraCount < 0 || newPos + diffCount + extraCount > newSize) {
+          throw new PatchException("Corrupt delta control block");
+        }
+
+        readFully(diff, newData, newPos, (int) diffCount);
+        for (int i = 0; i < diffCount; i++) {
+          if (oldPos + i >= 0 && oldPos + i < oldData.length) {
+            newData[newPos + i] += oldData[oldPos + i];
+          }
+        }
+        newPos += diffCount;
+        oldPos += diffCount;
+
+        readFully(extra, newData, newPos, (int) extraCount);
+        newPos += extraCount;
+        oldPos += seek;
+      }
+    } catch (EOFException e) {
+      throw new PatchException("Delta ends early");
+    }
+
+    if (!MessageDigest.isEqual(newHash, sha256(newData))) {
+      throw new PatchException("Patched binary does not match the SHA-256 in the delta");
+    }
+    return newData;
+  }
+
+  public static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      int read = in.read(buffer, offset, length);
+      if (read < 0) {
+        throw new EOFException();
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+
+  private static byte[] deflate(byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+      out.write(data);
+    } finally {
+      deflater.end();
+    }
+    return bytes.toByteArray();
+  }
+
+  private static InputStream inflate(byte[] data, int offset, int length) {
+    return new InflaterInputStream(new ByteArrayInputStream(data, offset, length));
+  }
+
+  // Longest match of newData[newStart..] in oldData among the sorted suffixes
+  // start..end, with its old position in pos[0]
+  private static int search(int[] suffixes, byte[] oldData, byte[] newData, int newStart, int start, int end,
+      int[] pos) {
+    while (end - start >= 2) {
+      int middle = start + (end - start) / 2;
+      if (compare(oldData, suffixes[middle], newData, newStart) < 0) {
+        start = middle;
+      } else {
+        end = middle;
+      }
+    }
+    int startLength = matchLength(oldData, suffixes[start], newData, newStart);
+    int endLength = matchLength(oldData, suffixes[end], newData, newStart);
+    if (startLength > endLength) {
+      pos[0] = suffixes[start];
+      return startLength;
+    }
+    pos[0] = suffixes[end];
+    return endLength;
+  }
+
+  private static int matchLength(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+    int i = 0;
+    while (oldStart + i < oldData.length && newStart + i < newData.length
+        && oldData[oldStart + i] == newData[newStart + i]) {
+      i++;
+    }
+    return i;
+  }
+
+  // Unsigned comparison over the shorter of the two remainders
+  private static int compare(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+    int length = Math.min(oldData.length - oldStart, newData.length - newStart);
+    for (int i = 0; i < length; i++) {
+      int difference = (oldData[oldStart + i] & 0xFF) - (newData[newStart + i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return 0;
+  }
+
+  // Larsson-Sadakane suffix sorting as used by bsdiff. The result has
+  // oldData.length + 1 entries, the first being the empty suffix.
+  private static int[] suffixArray(byte[] oldData) {
+    int size = oldData.length;
+    int[] suffixes = new int[size + 1];
+    int[] ranks = new int[size + 1];
+
+    int[] buckets = new int[256];
+    for (byte b : oldData) {
+      buckets[b & 0xFF]++;
+    }
+    for (int i = 1; i < 256; i++) {
+      buckets[i] += buckets[i - 1];
+    }
+    for (int i = 255; i > 0; i--) {
+      buckets[i] = buckets[i - 1];
+    }
+    buckets[0] = 0;
+
+    for (int i = 0; i < size; i++) {
+      suffixes[++buckets[oldData[i] & 0xFF]] = i;
+    }
+    suffixes[0] = size;
+    for (int i = 0; i < size; i++) {
+      ranks[i] = buckets[oldData[i] & 0xFF];
+    }
+    ranks[size] = 0;
+    for (int i = 1; i < 256; i++) {
+      if (buckets[i] == buckets[i - 1] + 1) {
+        suffixes[buckets[i]] = -1;
+      }
+    }
+    suffixes[0] = -1;
+
+    for (int h = 1; suffixes[0] != -(size + 1); h += h) {
+      int len = 0;
+      int i = 0;
+      while (i < size + 1) {
+        if (suffixes[i] < 0) {
+          len -= suffixes[i];
+          i -= suffixes[i];
+        } else {
+          if (len != 0) {
+            suffixes[i - len] = -len;
+          }
+          len = ranks[suffixes[i]] + 1 - i;
+          split(suffixes, ranks, i, len, h);
+          i += len;
+          len = 0;
+        }
+      }
+      if (len != 0) {
+        suffixes[i - len] = -len;
+      }
+    }
+
+    for (int i = 0; i < size + 1; i++) {
+      suffixes[ranks[i]] = i;
+    }
+    return suffixes;
+  }
+
+  private static void split(int[] suffixes, int[] ranks, int start, int len, int h) {
+    if (len < 16) {
+      int j;
+      for (int k = start; k < start + len; k += j) {
+        j = 1;
+        int x = ranks[suffixes[k] + h];
+        for (int i = 1; k + i < start + len; i++) {
+          if (ranks[suffixes[k + i] + h] < x) {
+            x = ranks[suffixes[k + i] + h];
+            j = 0;
+          }
+          if (ranks[suffixes[k + i] + h] == x) {
+            swap(suffixes, k + j, k + i);
+            j++;
+          }
+        }
+        for (int i = 0; i < j; i++) {
+          ranks[suffixes[k + i]] = k + j - 1;
+        }
+        if (j == 1) {
+          suffixes[k] = -1;
+        }
+      }
+      return;
+    }
+
+    int x = ranks[suffixes[start + len / 2] + h];
+    int jj = 0;
+    int kk = 0;
+    for (int i = start; i < start + len; i++) {
+      if (ranks[suffixes[i] + h] < x) {
+        jj++;
+      }
+      if (ranks[suffixes[i] + h] == x) {
+        kk++;
+      }
+    }
+    jj += start;
+    kk += jj;
+
+    int i = start;
+    int j = 0;
+    int k = 0;
+    while (i < jj) {
+      if (ranks[suffixes[i] + h] < x) {
+        i++;
+      } else if (ranks[suffixes[i] + h] == x) {
+        swap(suffixes, i, jj + j);
+        j++;
+      } else {
+        swap(suffixes, i, kk + k);
+        k++;
+      }
+    }
+    while (jj + j < kk) {
+      if (ranks[suffixes[jj + j] + h] == x) {
+        j++;
+      } else {
+        swap(suffixes, jj + j, kk + k);
+        k++;
+      }
+    }
+
+    if (jj > start) {
+      split(suffixes, ranks, start, jj - start, h);
+    }
+    for (i = 0; i < kk - jj; i++) {
+      ranks[suffixes[jj + i]] = kk - 1;
+    }
+    if (jj == kk - 1) {
+      suffixes[jj] = -1;
+    }
+    if (start + len > kk) {
+      split(suffixes, ranks, kk, start + len - kk, h);
+    }
+  }
+
+  private static void swap(int[] array, int a, int b) {
+    int tmp = array[a];
+    array[a] = array[b];
+    array[b] = tmp;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 4 || !(args[0].equals("diff") || args[0].equals("apply"))) {
+      System.err.println("Usage: BinaryDelta diff <old> <new> <patch>");
+      System.err.println("       BinaryDelta apply <old> <patch> <new>");
+      System.exit(2);
+    }
+    byte[] oldData = Files.readAllBytes(new File(args[1]).toPath());
+    byte[] input = Files.readAllBytes(new File(args[2]).toPath());
+    long started = System.currentTimeMillis();
+    byte[] output = args[0].equals("diff") ? diff(oldData, input) : apply(oldData, input);
+    Files.write(new File(args[3]).toPath(), output);
+    System.out.println(args[3] + ": " + output.length + " bytes in " + (System.currentTimeMillis() - started)
+        + " ms");
+  }
+}
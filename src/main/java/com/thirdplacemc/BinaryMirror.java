@@ -0,0 +1,501 @@
+package com.thirdplacemc;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Shares installed PicoLimbo binaries between wrapper hosts. With
+// mirror.serve the store is served at /mirror/ on the HTTP port:
+//   GET /mirror/latest                  latest release tag, cached
+//   GET /mirror/<platform>/<tag>        the binary, with ETag and Range
+// A tag that is not installed yet is fetched from GitHub first if this
+// wrapper knows it (latest, default, pinned or canary), concurrent requests
+// for it wait for that one download. mirror.peers lists other wrappers to try
+// before GitHub; what they send must match the checksum published in the
+// release, as their own ETag proves nothing.
+public class BinaryMirror {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final BinaryStore store;
+  private final BinaryStore.Fetcher upstream;
+  // upstream, counting the downloads that really happen
+  private final BinaryStore.Fetcher pullThrough;
+  private final String platform;
+  private final ReleaseChecksums checksums;
+  private final boolean requireChecksum;
+  private final List<String> peers;
+  private final long latestCacheMillis;
+  private final Map<String, String> etags = new ConcurrentHashMap<>();
+  // Tags this wrapper is asking its peers for right now
+  private final Set<String> fetchingFromPeers = ConcurrentHashMap.newKeySet();
+  private String cachedLatest;
+  private long cachedLatestAt;
+
+  private final AtomicLong served = new AtomicLong();
+  private final AtomicLong servedBytes = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong rangeRequests = new AtomicLong();
+  private final AtomicLong pullThroughRequests = new AtomicLong();
+  private final AtomicLong upstreamFetches = new AtomicLong();
+  private final AtomicLong latestRequests = new AtomicLong();
+  private final AtomicLong latestUpstream = new AtomicLong();
+  private final AtomicLong peerHits = new AtomicLong();
+  private final AtomicLong peerBytes = new AtomicLong();
+  private final AtomicLong peerMisses = new AtomicLong();
+  private final AtomicLong pullThroughRefused = new AtomicLong();
+
+  private BinaryMirror(WrapperConfig config, BinaryStore store, BinaryStore.Fetcher upstream, String platform,
+      ReleaseChecksums checksums) {
+    this.store = store;
+    this.upstream = upstream;
+    this.platform = platform;
+    this.checksums = checksums;
+    this.requireChecksum = config.isMirrorChecksumRequired();
+    this.peers = config.getMirrorPeers();
+    this.latestCacheMillis = config.getMirrorLatestCacheMillis();
+    this.pullThrough = new BinaryStore.Fetcher() {
+      @Override
+      public String latestTag() throws IOException {
+        return upstream.latestTag();
+      }
+
+      @Override
+      public void download(String tag, File target) throws IOException {
+        Logger.info("Mirror: fetching " + tag + " for peers");
+        upstream.download(tag, target);
+        upstreamFetches.incrementAndGet();
+      }
+    };
+  }
+
+  // Returns null when this wrapper neither serves nor has peers. upstream
+  // fetches from GitHub only, never from peers. checksums is null when
+  // binaries do not come from GitHub releases.
+  public static BinaryMirror create(WrapperConfig config, BinaryStore store, BinaryStore.Fetcher upstream,
+      String archiveName, ReleaseChecksums checksums) {
+    if (!config.isMirrorServing() && config.getMirrorPeers().isEmpty()) {
+      return null;
+    }
+    return new BinaryMirror(config, store, upstream, DeltaSource.platformOf(archiveName), checksums);
+  }
+
+  public void register(WrapperHttpServer server) {
+    server.addHandler("/mirror/", this::handle);
+  }
+
+  public boolean hasPeers() {
+    return !peers.isEmpty();
+  }
+
+  // The latest tag from the first peer that answers, null when none does
+  public String latestTagFromPeers() {
+    for (String peer : peers) {
+      try {
+        HttpURLConnection connection = open(peer + "/mirror/latest");
+        if (connection.getResponseCode() == 200) {
+          try (BufferedReader reader = new BufferedReader(
+              new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            String tag = reader.readLine();
+            if (BinaryStore.isValidTag(tag)) {
+              return tag;
+            }
+          }
+        }
+        Logger.warn("Peer " + peer + " has no latest release (" + connection.getResponseCode() + ")");
+      } catch (IOException e) {
+        Logger.warn("Peer " + peer + " unreachable: " + e.getMessage());
+      }
+    }
+    return null;
+  }
+
+  // Downloads the binary of tag from the first peer that has it. False when
+  // none does; target is not written then.
+  public boolean downloadFromPeers(String tag, File target) {
+    if (peers.isEmpty()) {
+      return false;
+    }
+    String published = publishedDigest(tag);
+    if (published == null && requireChecksum) {
+      peerMisses.incrementAndGet();
+      return false;
+    }
+    fetchingFromPeers.add(tag);
+    try {
+      for (String peer : peers) {
+        String url = peer + "/mirror/" + platform + "/" + tag;
+        try {
+          long started = System.currentTimeMillis();
+          long bytes = download(url, target, published);
+          if (bytes >= 0) {
+            peerHits.incrementAndGet();
+            peerBytes.addAndGet(bytes);
+            Logger.info("Downloaded " + tag + " from peer " + peer + " in " + (System.currentTimeMillis() - started)
+                + " ms (" + DeltaSource.formatBytes(bytes) + ", " + (published != null
+                    ? "SHA-256 matches " + checksums.getAssetName() : "SHA-256 matches the peer's ETag only") + ")");
+            return true;
+          }
+        } catch (IOException e) {
+          Logger.warn("Peer " + peer + " failed for " + tag + ": " + e.getMessage());
+        }
+        target.delete();
+      }
+    } finally {
+      fetchingFromPeers.remove(tag);
+    }
+    peerMisses.incrementAndGet();
+    Logger.info("No peer has " + tag + ", downloading from GitHub");
+    return false;
+  }
+
+  // The checksum peers are checked against, null when the release publishes
+  // none or it could not be read
+  private String publishedDigest(String tag) {
+    String reason;
+    try {
+      String digest = checksums != null ? checksums.binaryDigest(tag) : null;
+      if (digest != null) {
+        return digest;
+      }
+      reason = checksums != null ? "release " + tag + " has no " + checksums.getAssetName() : "no release checksums";
+    } catch (IOException e) {
+      reason = "could not read " + checksums.getAssetName() + " of " + tag + ": " + e.getMessage();
+    }
+    if (requireChecksum) {
+      Logger.warn("Not downloading " + tag + " from peers, " + reason + " (mirror.requireChecksum)");
+    } else {
+      Logger.warn("Checking " + tag + " from peers against their own ETag only, " + reason);
+    }
+    return null;
+  }
+
+  public long getServed() {
+    return served.get();
+  }
+
+  public long getServedBytes() {
+    return servedBytes.get();
+  }
+
+  public long getNotModified() {
+    return notModified.get();
+  }
+
+  public long getRangeRequests() {
+    return rangeRequests.get();
+  }
+
+  public long getPullThroughRequests() {
+    return pullThroughRequests.get();
+  }
+
+  public long getPullThroughRefused() {
+    return pullThroughRefused.get();
+  }
+
+  public long getUpstreamFetches() {
+    return upstreamFetches.get();
+  }
+
+  public long getLatestRequests() {
+    return latestRequests.get();
+  }
+
+  public long getLatestUpstream() {
+    return latestUpstream.get();
+  }
+
+  public long getPeerHits() {
+    return peerHits.get();
+  }
+
+  public long getPeerBytes() {
+    return peerBytes.get();
+  }
+
+  public long getPeerMisses() {
+    return peerMisses.get();
+  }
+
+  // Bytes written, -1 when the peer does not have tag. A transfer that
+  // breaks off is resumed once with a Range request. The result must hash to
+  // published, or to the peer's ETag when that is null.
+  private long download(String url, File target, String published) throws IOException {
+    HttpURLConnection connection = open(url);
+    int responseCode = connection.getResponseCode();
+    if (responseCode == 404 || responseCode == 503) {
+      return -1;
+    }
+    if (responseCode != 200) {
+      throw new IOException("response code " + responseCode);
+    }
+    String etag = connection.getHeaderField("ETag");
+    if (etag == null) {
+      throw new IOException("no ETag");
+    }
+
+    MessageDigest digest = sha256();
+    WrapperEvents.DownloadMeter meter = new WrapperEvents.DownloadMeter(connection.getURL().getHost());
+    long written;
+    try (FileOutputStream out = new FileOutputStream(target)) {
+      try {
+        written = copy(connection.getInputStream(), out, digest, meter);
+      } catch (IOException e) {
+        written = target.length();
+        if (written == 0) {
+          throw e;
+        }
+        Logger.warn("Transfer from " + url + " broke off after " + DeltaSource.formatBytes(written) + ", resuming");
+        HttpURLConnection resumed = open(url);
+        resumed.setRequestProperty("Range", "bytes=" + written + "-");
+        resumed.setRequestProperty("If-Range", etag);
+        if (resumed.getResponseCode() != 206) {
+          throw new IOException("could not resume: response code " + resumed.getResponseCode());
+        }
+        written += copy(resumed.getInputStream(), out, digest, meter);
+      }
+    }
+    meter.finish();
+
+    String expected = published != null ? published : etag.replace("\"", "");
+    String actual = ReleaseChecksums.toHex(digest.digest());
+    if (!actual.equals(expected)) {
+      throw new IOException("SHA-256 mismatch, expected " + expected + " got " + actual);
+    }
+    return written;
+  }
+
+  private static long copy(InputStream input, OutputStream out, MessageDigest digest,
+      WrapperEvents.DownloadMeter meter) throws IOException {
+    long copied = 0;
+    try (InputStream in = input) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+        digest.update(buffer, 0, read);
+        meter.add(read);
+        copied += read;
+      }
+    }
+    return copied;
+  }
+
+  private static HttpURLConnection open(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestProperty("User-Agent", "PicoLimboWrapper");
+    connection.setConnectTimeout(3000);
+    connection.setReadTimeout(30000);
+    return connection;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    if (!method.equals("GET") && !method.equals("HEAD")) {
+      WrapperHttpServer.sendText(exchange, 405, "GET or HEAD only");
+      return;
+    }
+    String[] parts = exchange.getRequestURI().getPath().substring("/mirror/".length()).split("/");
+    if (parts.length == 1 && parts[0].equals("latest")) {
+      serveLatest(exchange);
+    } else if (parts.length == 2 && parts[0].equals(platform) && BinaryStore.isValidTag(parts[1])) {
+      serveBinary(exchange, parts[1]);
+    } else {
+      WrapperHttpServer.sendText(exchange, 404, "not found");
+    }
+  }
+
+  private void serveLatest(HttpExchange exchange) {
+    latestRequests.incrementAndGet();
+    String tag;
+    try {
+      tag = latestTag();
+    } catch (IOException e) {
+      WrapperHttpServer.sendText(exchange, 502, "upstream failed: " + e.getMessage());
+      return;
+    }
+    WrapperHttpServer.sendText(exchange, 200, tag + "\n");
+  }
+
+  // One GitHub call per mirror.latestCacheSeconds however many peers ask
+  private synchronized String latestTag() throws IOException {
+    long now = System.currentTimeMillis();
+    if (cachedLatest == null || now - cachedLatestAt >= latestCacheMillis) {
+      latestUpstream.incrementAndGet();
+      cachedLatest = upstream.latestTag();
+      cachedLatestAt = now;
+    }
+    return cachedLatest;
+  }
+
+  private void serveBinary(HttpExchange exchange, String tag) throws IOException {
+    File binary = store.binaryFile(tag);
+    if (!binary.isFile()) {
+      if (fetchingFromPeers.contains(tag)) {
+        // Asking our own peers for it, which may be the one asking us
+        WrapperHttpServer.sendText(exchange, 503, "fetching " + tag + " from peers");
+        return;
+      }
+      if (!isKnown(tag)) {
+        // Otherwise any client could keep the HTTP threads busy with GitHub
+        // downloads of arbitrary tags
+        pullThroughRefused.incrementAndGet();
+        WrapperHttpServer.sendText(exchange, 404, tag + " not available");
+        return;
+      }
+      try {
+        // Requests arriving during the download wait for it in ensure
+        pullThroughRequests.incrementAndGet();
+        binary = store.ensure(tag, pullThrough);
+      } catch (IOException e) {
+        WrapperHttpServer.sendText(exchange, 404, tag + " not available: " + e.getMessage());
+        return;
+      }
+    }
+
+    String etag = "\"" + etagOf(tag, binary) + "\"";
+    Headers request = exchange.getRequestHeaders();
+    Headers response = exchange.getResponseHeaders();
+    response.set("ETag", etag);
+    response.set("Accept-Ranges", "bytes");
+    response.set("Content-Type", "application/octet-stream");
+    // A tag's binary never changes
+    response.set("Cache-Control", "public, max-age=31536000, immutable");
+
+    if (etag.equals(request.getFirst("If-None-Match"))) {
+      notModified.incrementAndGet();
+      exchange.sendResponseHeaders(304, -1);
+      return;
+    }
+
+    long length = binary.length();
+    long start = 0;
+    long end = length - 1;
+    int status = 200;
+    String range = request.getFirst("Range");
+    String ifRange = request.getFirst("If-Range");
+    if (range != null && (ifRange == null || ifRange.equals(etag))) {
+      long[] bounds = parseRange(range, length);
+      if (bounds == null) {
+        response.set("Content-Range", "bytes */" + length);
+        exchange.sendResponseHeaders(416, -1);
+        return;
+      }
+      start = bounds[0];
+      end = bounds[1];
+      status = 206;
+      rangeRequests.incrementAndGet();
+      response.set("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
+
+    long count = end - start + 1;
+    if (exchange.getRequestMethod().equals("HEAD")) {
+      response.set("Content-Length", Long.toString(count));
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(status, count);
+    served.incrementAndGet();
+    try (RandomAccessFile file = new RandomAccessFile(binary, "r"); OutputStream out = exchange.getResponseBody()) {
+      file.seek(start);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      long left = count;
+      while (left > 0) {
+        int read = file.read(buffer, 0, (int) Math.min(buffer.length, left));
+        if (read < 0) {
+          break;
+        }
+        out.write(buffer, 0, read);
+        left -= read;
+        servedBytes.addAndGet(read);
+      }
+    }
+  }
+
+  // Tags worth fetching for peers: the latest release and what this wrapper
+  // runs itself
+  private boolean isKnown(String tag) {
+    if (store.knownVersions().contains(tag)) {
+      return true;
+    }
+    try {
+      return tag.equals(latestTag());
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  // A single range "bytes=a-b", "bytes=a-" or "bytes=-n", null when it is
+  // not satisfiable
+  private static long[] parseRange(String range, long length) {
+    if (!range.startsWith("bytes=") || range.contains(",")) {
+      return null;
+    }
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      String first = spec.substring(0, dash).trim();
+      String last = spec.substring(dash + 1).trim();
+      long start;
+      long end;
+      if (first.isEmpty()) {
+        long suffix = Long.parseLong(last);
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(first);
+        end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+      }
+      return start <= end && start < length ? new long[] {start, end} : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  // SHA-256 of the binary, computed once per tag
+  private String etagOf(String tag, File binary) throws IOException {
+    String etag = etags.get(tag);
+    if (etag == null) {
+      MessageDigest digest = sha256();
+      try (FileInputStream in = new FileInputStream(binary)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
+      }
+      etag = ReleaseChecksums.toHex(digest.digest());
+      etags.put(tag, etag);
+    }
+    return etag;
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+}
@@ -0,0 +1,337 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// PicoLimbo versions installed side by side as binaries/<tag>/pico_limbo.
+// Which version an instance runs is, in order: a canary override, its
+// instance.<name>.version pin, or the default version that 'update' moves.
+// The default, the previous default and canary overrides are kept in
+// binaries/versions.properties.
+public class BinaryStore {
+  private static final String STATE_FILE = "versions.properties";
+  private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+  // Gets release binaries, implemented on top of the GitHub API
+  public interface Fetcher {
+    String latestTag() throws IOException;
+
+    // Downloads the release archive of tag and extracts the binary to target
+    void download(String tag, File target) throws IOException;
+  }
+
+  private final File root;
+  private final String binaryName;
+  private final Map<String, String> pins;
+  private final Fetcher fetcher;
+  private final File stateFile;
+  private final Properties state = new Properties();
+  private final Map<String, Object> downloadLocks = new ConcurrentHashMap<>();
+
+  public BinaryStore(File root, String binaryName, Map<String, String> pins, Fetcher fetcher) {
+    this.root = root;
+    this.binaryName = binaryName;
+    this.pins = pins;
+    this.fetcher = fetcher;
+    this.stateFile = new File(root, STATE_FILE);
+  }
+
+  public synchronized void load() throws IOException {
+    root.mkdirs();
+    if (stateFile.exists()) {
+      try (FileInputStream in = new FileInputStream(stateFile)) {
+        state.load(in);
+      }
+    }
+  }
+
+  public File binaryFile(String tag) {
+    return new File(new File(root, tag), binaryName);
+  }
+
+  public boolean isInstalled(String tag) {
+    return binaryFile(tag).isFile();
+  }
+
+  // Null before the first version is installed
+  public synchronized String getDefaultVersion() {
+    return state.getProperty("default");
+  }
+
+  public synchronized String getPreviousVersion() {
+    return state.getProperty("previous");
+  }
+
+  // Canaries already on the new default are no longer canaries
+  public synchronized void setDefaultVersion(String tag) throws IOException {
+    String current = state.getProperty("default");
+    if (tag.equals(current)) {
+      return;
+    }
+    if (current != null) {
+      state.setProperty("previous", current);
+    }
+    state.setProperty("default", tag);
+    for (String key : state.stringPropertyNames()) {
+      if (key.startsWith("canary.") && state.getProperty(key).equals(tag)) {
+        state.remove(key);
+      }
+    }
+    save();
+  }
+
+  public synchronized String versionFor(String instanceName) {
+    String canary = state.getProperty("canary." + instanceName);
+    return canary != null ? canary : configuredVersionFor(instanceName);
+  }
+
+  // The version without canary overrides, what standby spares run
+  public synchronized String configuredVersionFor(String instanceName) {
+    String pin = pins.get(instanceName);
+    return pin != null ? pin : state.getProperty("default");
+  }
+
+  public File binaryFor(String instanceName) {
+    return binaryFile(versionFor(instanceName));
+  }
+
+  public synchronized boolean followsDefault(String instanceName) {
+    return !pins.containsKey(instanceName) && state.getProperty("canary." + instanceName) == null;
+  }
+
+  public boolean isPinned(String instanceName) {
+    return pins.containsKey(instanceName);
+  }
+
+  public synchronized String getCanaryVersion(String instanceName) {
+    return state.getProperty("canary." + instanceName);
+  }
+
+  // Instance name to canary version
+  public synchronized Map<String, String> getCanaries() {
+    Map<String, String> canaries = new LinkedHashMap<>();
+    for (String key : state.stringPropertyNames()) {
+      if (key.startsWith("canary.")) {
+        canaries.put(key.substring("canary.".length()), state.getProperty(key));
+      }
+    }
+    return canaries;
+  }
+
+  // The default version, pins and canaries: what this wrapper itself runs
+  // or is about to
+  public synchronized Set<String> knownVersions() {
+    Set<String> known = new LinkedHashSet<>();
+    String defaultVersion = state.getProperty("default");
+    if (defaultVersion != null) {
+      known.add(defaultVersion);
+    }
+    known.addAll(pins.values());
+    known.addAll(getCanaries().values());
+    return known;
+  }
+
+  public synchronized void setCanary(Collection<String> instanceNames, String tag) throws IOException {
+    for (String name : instanceNames) {
+      state.setProperty("canary." + name, tag);
+    }
+    save();
+  }
+
+  public synchronized void clearCanary(Collection<String> instanceNames) throws IOException {
+    for (String name : instanceNames) {
+      state.remove("canary." + name);
+    }
+    save();
+  }
+
+  // The version a binary path belongs to, null when it is not in the store
+  public String tagOf(String executable) {
+    File file = new File(executable).getAbsoluteFile();
+    File parent = file.getParentFile();
+    if (parent == null || !file.getName().equals(binaryName)
+        || !root.getAbsoluteFile().equals(parent.getParentFile())) {
+      return null;
+    }
+    return parent.getName();
+  }
+
+  public String latestTag() throws IOException {
+    return fetcher.latestTag();
+  }
+
+  // Downloads tag unless it is installed. Concurrent calls for the same tag
+  // share one download.
+  public File ensure(String tag) throws IOException {
+    return ensure(tag, fetcher);
+  }
+
+  // Same, downloading with source instead of the store's fetcher
+  public File ensure(String tag, Fetcher source) throws IOException {
+    if (!isValidTag(tag)) {
+      throw new IOException("Invalid version tag: " + tag);
+    }
+    synchronized (downloadLocks.computeIfAbsent(tag, key -> new Object())) {
+      File binary = binaryFile(tag);
+      if (binary.isFile()) {
+        return binary;
+      }
+
+      // Download next to the final place and move it in whole, so a failed
+      // download never looks installed
+      File partial = new File(root, "." + tag + ".partial");
+      deleteRecursively(partial);
+      partial.mkdirs();
+      try {
+        File target = new File(partial, binaryName);
+        source.download(tag, target);
+        if (!target.isFile()) {
+          throw new IOException("Binary not found after extraction: " + binaryName);
+        }
+        target.setExecutable(true, false);
+        Files.move(partial.toPath(), new File(root, tag).toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        deleteRecursively(partial);
+      }
+      Logger.info("Installed PicoLimbo " + tag);
+      return binary;
+    }
+  }
+
+  // Installs every missing tag, several at a time
+  public void ensureAll(Collection<String> tags) throws IOException {
+    List<String> missing = new ArrayList<>();
+    for (String tag : new LinkedHashSet<>(tags)) {
+      if (!isInstalled(tag)) {
+        missing.add(tag);
+      }
+    }
+    if (missing.isEmpty()) {
+      return;
+    }
+    if (missing.size() == 1) {
+      ensure(missing.get(0));
+      return;
+    }
+
+    Logger.info("Downloading " + missing.size() + " versions: " + String.join(", ", missing));
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(missing.size(), MAX_PARALLEL_DOWNLOADS),
+        runnable -> {
+          Thread thread = new Thread(runnable, "Download");
+          thread.setDaemon(true);
+          return thread;
+        });
+    try {
+      Map<String, Future<File>> downloads = new LinkedHashMap<>();
+      for (String tag : missing) {
+        downloads.put(tag, pool.submit(() -> ensure(tag)));
+      }
+      List<String> failures = new ArrayList<>();
+      for (Map.Entry<String, Future<File>> download : downloads.entrySet()) {
+        try {
+          download.getValue().get();
+        } catch (ExecutionException e) {
+          failures.add(download.getKey() + ": " + e.getCause().getMessage());
+        }
+      }
+      if (!failures.isEmpty()) {
+        throw new IOException("Could not install " + String.join("; ", failures));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while downloading");
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  // Moves a binary from before versions were kept side by side into the
+  // store and makes it the default
+  public void adoptLegacy(File legacyBinary, String tag) throws IOException {
+    File target = binaryFile(tag);
+    target.getParentFile().mkdirs();
+    Files.move(legacyBinary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    setDefaultVersion(tag);
+    Logger.info("Moved " + legacyBinary.getPath() + " to " + target.getPath());
+  }
+
+  public List<String> installedVersions() {
+    List<String> versions = new ArrayList<>();
+    File[] dirs = root.listFiles();
+    if (dirs != null) {
+      for (File dir : dirs) {
+        if (dir.isDirectory() && !dir.getName().startsWith(".") && new File(dir, binaryName).isFile()) {
+          versions.add(dir.getName());
+        }
+      }
+    }
+    Collections.sort(versions);
+    return versions;
+  }
+
+  // Deletes versions nothing refers to: not the default or the previous
+  // default (kept for a quick way back), not pinned, not a canary and not
+  // running (inUse)
+  public synchronized List<String> collectGarbage(Set<String> inUse) {
+    Set<String> keep = new HashSet<>(inUse);
+    keep.addAll(pins.values());
+    for (String key : state.stringPropertyNames()) {
+      keep.add(state.getProperty(key));
+    }
+
+    List<String> removed = new ArrayList<>();
+    for (String version : installedVersions()) {
+      if (!keep.contains(version)) {
+        deleteRecursively(new File(root, version));
+        removed.add(version);
+      }
+    }
+    if (!removed.isEmpty()) {
+      Logger.info("Removed unused PicoLimbo versions: " + String.join(", ", removed));
+    }
+    return removed;
+  }
+
+  private void save() throws IOException {
+    File temp = new File(root, STATE_FILE + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      state.store(out, "PicoLimbo versions, managed by the wrapper");
+    }
+    Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Tags become directory names
+  public static boolean isValidTag(String tag) {
+    return tag != null && !tag.isEmpty() && tag.matches("[A-Za-z0-9._+-]+") && !tag.startsWith(".");
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    file.delete();
+  }
+}
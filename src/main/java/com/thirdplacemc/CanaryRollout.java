@@ -0,0 +1,241 @@
+package com.thirdplacemc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Moves a few instances to a new PicoLimbo version before the rest. The
+// instances are restarted on the canary version one at a time, then watched
+// for canary.minutes: a crash, not becoming ready or more than
+// canary.maxErrors error lines rolls all of them back to the version they
+// ran before. A canary that stays healthy keeps running until 'update <tag>'
+// moves everyone else.
+public class CanaryRollout {
+  public enum State {
+    DEPLOYING("deploying"),
+    WATCHING("watching"),
+    PASSED("passed"),
+    ROLLED_BACK("rolled back");
+
+    private final String label;
+
+    State(String label) {
+      this.label = label;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final BinaryStore store;
+  private final Map<String, InstanceInfo> instances;
+  private final MemoryWatchdog.Restarter restarter;
+  // Records an UPDATE journal event: instance name, outcome
+  private final BiConsumer<String, String> journal;
+  private final String tag;
+  private final List<String> names;
+  private final long watchMillis;
+  private final int maxErrors;
+  private final long readyTimeoutMillis;
+  private final Map<String, Long> baselineErrors = new HashMap<>();
+  private volatile State state = State.DEPLOYING;
+  private volatile long watchUntil;
+  private volatile String rollbackReason;
+  private Thread thread;
+
+  public CanaryRollout(WrapperConfig config, BinaryStore store, Map<String, InstanceInfo> instances,
+      MemoryWatchdog.Restarter restarter, BiConsumer<String, String> journal, String tag, List<String> names) {
+    this.store = store;
+    this.instances = instances;
+    this.restarter = restarter;
+    this.journal = journal;
+    this.tag = tag;
+    this.names = new ArrayList<>(names);
+    this.watchMillis = config.getCanaryWatchMillis();
+    this.maxErrors = config.getCanaryMaxErrors();
+    this.readyTimeoutMillis = config.getRolloutReadyTimeoutMillis();
+  }
+
+  public void start() throws IOException {
+    store.setCanary(names, tag);
+    for (String name : names) {
+      journal.accept(name, "canary " + tag + " started");
+    }
+    thread = new Thread(this::run, "Canary");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public String getTag() {
+    return tag;
+  }
+
+  public List<String> getNames() {
+    return names;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public boolean isActive() {
+    return state == State.DEPLOYING || state == State.WATCHING;
+  }
+
+  public boolean isCanary(String instanceName) {
+    return names.contains(instanceName);
+  }
+
+  public synchronized long getErrors(String instanceName) {
+    Long baseline = baselineErrors.get(instanceName);
+    InstanceInfo instance = instances.get(instanceName);
+    if (baseline == null || instance == null || instance.getEventCounter() == null) {
+      return 0;
+    }
+    return instance.getEventCounter().getCount(OutputEventType.ERROR) - baseline;
+  }
+
+  public int getMaxErrors() {
+    return maxErrors;
+  }
+
+  // -1 unless watching
+  public long getMillisLeft() {
+    return state == State.WATCHING ? Math.max(0, watchUntil - System.currentTimeMillis()) : -1;
+  }
+
+  public String getRollbackReason() {
+    return rollbackReason;
+  }
+
+  // Called from the crash path before the instance is relaunched, so the
+  // relaunch already runs the previous version
+  public void onCrash(String instanceName) {
+    if (isActive() && isCanary(instanceName)) {
+      rollBack(instanceName + " crashed", instanceName);
+    }
+  }
+
+  // The canary passed by hand, e.g. 'update <tag>' made it the default
+  public synchronized void complete() {
+    if (isActive()) {
+      state = State.PASSED;
+      thread.interrupt();
+    }
+  }
+
+  public void abort() {
+    rollBack("aborted", null);
+  }
+
+  private void run() {
+    try {
+      for (String name : names) {
+        InstanceInfo instance = instances.get(name);
+        synchronized (this) {
+          baselineErrors.put(name, instance.getEventCounter() != null
+              ? instance.getEventCounter().getCount(OutputEventType.ERROR) : 0);
+        }
+        Logger.info(name, "Moving to canary version " + tag);
+        restarter.restart(name, "canary");
+        if (!isActive()) {
+          return;
+        }
+        if (!awaitReady(instance)) {
+          rollBack(name + " not ready after " + readyTimeoutMillis / 1000 + "s", null);
+          return;
+        }
+      }
+
+      watchUntil = System.currentTimeMillis() + watchMillis;
+      synchronized (this) {
+        if (!isActive()) {
+          return;
+        }
+        state = State.WATCHING;
+      }
+      Logger.info("Canary " + tag + " running on " + String.join(", ", names) + ", watching for "
+          + watchMillis / 60_000 + " minutes");
+
+      while (System.currentTimeMillis() < watchUntil) {
+        Thread.sleep(1000);
+        if (!isActive()) {
+          return;
+        }
+        for (String name : names) {
+          long errors = getErrors(name);
+          if (errors > maxErrors) {
+            rollBack(name + " logged " + errors + " errors", null);
+            return;
+          }
+        }
+      }
+
+      synchronized (this) {
+        if (!isActive()) {
+          return;
+        }
+        state = State.PASSED;
+      }
+      for (String name : names) {
+        journal.accept(name, "canary " + tag + " passed");
+      }
+      Logger.info("Canary " + tag + " stayed healthy, run 'update " + tag + "' to move the other instances");
+    } catch (InterruptedException e) {
+      // Completed or rolled back
+    }
+  }
+
+  private boolean awaitReady(InstanceInfo instance) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + readyTimeoutMillis;
+    while (System.currentTimeMillis() < deadline) {
+      if (instance.isRunning() && instance.isReady()) {
+        return true;
+      }
+      if (!isActive()) {
+        return false;
+      }
+      Thread.sleep(250);
+    }
+    return false;
+  }
+
+  // Clears the overrides and restarts every canary instance that is on the
+  // canary version, except crashed, which the crash path relaunches
+  private void rollBack(String reason, String crashed) {
+    synchronized (this) {
+      if (!isActive()) {
+        return;
+      }
+      state = State.ROLLED_BACK;
+      rollbackReason = reason;
+    }
+    try {
+      store.clearCanary(names);
+    } catch (IOException e) {
+      Logger.error("Could not clear canary versions: " + e.getMessage());
+    }
+    Logger.warn("Canary " + tag + " rolled back: " + reason);
+    for (String name : names) {
+      journal.accept(name, "canary " + tag + " rolled back: " + reason);
+    }
+    if (thread != null && thread != Thread.currentThread()) {
+      thread.interrupt();
+    }
+
+    Thread rollback = new Thread(() -> {
+      for (String name : names) {
+        InstanceInfo instance = instances.get(name);
+        if (!name.equals(crashed) && instance.isRunning() && tag.equals(instance.getVersion())) {
+          restarter.restart(name, "rollback");
+        }
+      }
+    }, "Canary-Rollback");
+    rollback.setDaemon(true);
+    rollback.start();
+  }
+}
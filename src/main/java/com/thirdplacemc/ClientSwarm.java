@@ -0,0 +1,542 @@
+package com.thirdplacemc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The load generator behind the 'loadtest' command: synthetic Minecraft
+// clients against the public ports of some instances, so through any relay
+// the wrapper runs. Every connection sends a handshake and a status request
+// (or a login start), waits for the first response packet and then stays
+// open until the test ends, so the open connections grow to the total. The
+// connection rate rises in STEPS equal steps and latency is recorded per
+// instance and per step: the step where it turns up is the capacity.
+public class ClientSwarm {
+  public enum Mode {
+    STATUS, LOGIN
+  }
+
+  private static final int STEPS = 5;
+  private static final long DISPATCH_MS = 10;
+  private static final long TIMEOUT_CHECK_NS = TimeUnit.MILLISECONDS.toNanos(250);
+
+  private static final class Target {
+    private final String name;
+    private final InstanceInfo instance;
+    private final InetSocketAddress address;
+    // Handshake and request, the same for every status connection
+    private final byte[] statusRequest;
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram responseLatency = new LatencyHistogram();
+    private final AtomicInteger started = new AtomicInteger();
+    private final AtomicInteger responded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger timedOut = new AtomicInteger();
+    private final AtomicInteger closedByServer = new AtomicInteger();
+    private volatile String firstError;
+    private long cpuAtStart;
+
+    Target(String name, InstanceInfo instance, InetSocketAddress address, byte[] statusRequest) {
+      this.name = name;
+      this.instance = instance;
+      this.address = address;
+      this.statusRequest = statusRequest;
+    }
+
+    void fail(String error) {
+      failed.incrementAndGet();
+      if (firstError == null) {
+        firstError = error;
+      }
+    }
+  }
+
+  private static final class Step {
+    private final LatencyHistogram responseLatency = new LatencyHistogram();
+    private final AtomicInteger failed = new AtomicInteger();
+    private int opened;
+    private double rate;
+  }
+
+  private static final class Connection {
+    private final Target target;
+    private final Step step;
+    private final int number;
+    private SocketChannel channel;
+    private long startedAt;
+    private long requestSentAt;
+    private ByteBuffer request;
+    private boolean responded;
+    // Length prefix of the first packet, read a byte at a time
+    private int lengthValue;
+    private int lengthShift;
+    private int lengthBytes;
+    private boolean lengthDone;
+    private long bodyLeft;
+
+    Connection(Target target, Step step, int number) {
+      this.target = target;
+      this.step = step;
+      this.number = number;
+    }
+  }
+
+  private final List<Target> targets;
+  private final Mode mode;
+  private final int connections;
+  private final long durationMillis;
+  private final int protocol;
+  private final long timeoutNanos;
+  private final Worker[] workers;
+  private final Step[] steps = new Step[STEPS];
+  private final AtomicInteger open = new AtomicInteger();
+  private final AtomicInteger peakOpen = new AtomicInteger();
+  private volatile boolean aborted;
+
+  private ClientSwarm(WrapperConfig config, List<Target> targets, Mode mode, int connections, long durationMillis) {
+    this.targets = targets;
+    this.mode = mode;
+    this.connections = connections;
+    this.durationMillis = durationMillis;
+    this.protocol = config.getLoadTestProtocol();
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLoadTestTimeoutMillis());
+    this.workers = new Worker[config.getLoadTestThreads()];
+    for (int i = 0; i < STEPS; i++) {
+      steps[i] = new Step();
+    }
+  }
+
+  // names are the instances to connect to, each on the address its config
+  // binds (loopback for a wildcard address)
+  public static ClientSwarm create(WrapperConfig config, Map<String, InstanceInfo> instances, List<String> names,
+      Mode mode, int connections, long durationMillis) throws IOException {
+    List<Target> targets = new ArrayList<>();
+    int protocol = config.getLoadTestProtocol();
+    for (String name : names) {
+      InstanceInfo instance = instances.get(name);
+      InetSocketAddress address = LimboToml.clientAddress(new File(instance.getConfigPath()));
+      targets.add(new Target(name, instance, address, statusRequest(protocol, address)));
+    }
+    return new ClientSwarm(config, targets, mode, connections, durationMillis);
+  }
+
+  public void abort() {
+    aborted = true;
+  }
+
+  // Runs the whole test on the calling thread and logs the results
+  public void run() throws IOException {
+    String names = String.join(", ", targets.stream().map(target -> target.name).toArray(String[]::new));
+    long stepMillis = Math.max(1, durationMillis / STEPS);
+    // Rates peak * 1/STEPS .. peak * STEPS/STEPS add up to the total
+    double peakRate = 2.0 * connections * 1000 / (stepMillis * (STEPS + 1.0));
+    Logger.info("Load test: " + connections + " " + mode.name().toLowerCase() + " connections to " + names
+        + " over " + durationMillis / 1000 + "s, rising to " + Math.round(peakRate) + "/s in " + STEPS + " steps");
+
+    for (Target target : targets) {
+      target.cpuAtStart = cpuMillis(target.instance.getProcessHandle());
+    }
+    long wrapperCpuAtStart = cpuMillis(ProcessHandle.current());
+    long linesAtStart = OutputForwarder.getForwardedLines();
+    long bytesAtStart = OutputForwarder.getForwardedBytes();
+    long forwardingAtStart = OutputForwarder.getForwardingNanos();
+
+    for (int i = 0; i < workers.length; i++) {
+      workers[i] = new Worker(i + 1);
+      workers[i].start();
+    }
+    long startedAt = System.nanoTime();
+    int dispatched = 0;
+    try {
+      for (int s = 0; s < STEPS && !aborted; s++) {
+        Step step = steps[s];
+        step.rate = peakRate * (s + 1) / STEPS;
+        int planned = s == STEPS - 1 ? connections - dispatched
+            : (int) Math.min(connections - dispatched, Math.round(step.rate * stepMillis / 1000.0));
+        long stepStartedAt = System.nanoTime();
+        while (step.opened < planned && !aborted) {
+          long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stepStartedAt);
+          int due = (int) Math.min(planned, (long) planned * elapsed / stepMillis);
+          for (; step.opened < due; step.opened++, dispatched++) {
+            Target target = targets.get(dispatched % targets.size());
+            workers[dispatched % workers.length].open(new Connection(target, step, dispatched));
+          }
+          sleep(DISPATCH_MS);
+        }
+      }
+
+      // Responses still on their way
+      long deadline = System.nanoTime() + timeoutNanos + TimeUnit.SECONDS.toNanos(1);
+      while (!aborted && pending() > 0 && System.nanoTime() < deadline) {
+        sleep(50);
+      }
+    } finally {
+      for (Worker worker : workers) {
+        worker.shutdown();
+      }
+    }
+
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+    report(elapsedMillis, wrapperCpuAtStart, linesAtStart, bytesAtStart, forwardingAtStart);
+  }
+
+  private int pending() {
+    int pending = 0;
+    for (Target target : targets) {
+      pending += target.started.get() - target.responded.get() - target.failed.get() - target.timedOut.get();
+    }
+    return pending;
+  }
+
+  private void report(long elapsedMillis, long wrapperCpuAtStart, long linesAtStart, long bytesAtStart,
+      long forwardingAtStart) {
+    Logger.info("Load test " + (aborted ? "stopped" : "finished") + " after " + elapsedMillis / 1000.0 + "s, peak "
+        + peakOpen.get() + " connections open");
+    for (int s = 0; s < STEPS; s++) {
+      Step step = steps[s];
+      if (step.opened == 0) {
+        continue;
+      }
+      Logger.info("  step " + (s + 1) + "/" + STEPS + ": " + Math.round(step.rate) + "/s, " + step.opened
+          + " opened, " + step.failed.get() + " failed, response " + step.responseLatency.describe());
+    }
+    for (Target target : targets) {
+      Logger.info(target.name, target.started.get() + " started, " + target.responded.get() + " responded, "
+          + target.failed.get() + " failed, " + target.timedOut.get() + " timed out, "
+          + target.closedByServer.get() + " closed by the server after responding");
+      Logger.info(target.name, "connect  " + target.connectLatency.describe());
+      Logger.info(target.name, "response " + target.responseLatency.describe());
+      if (target.firstError != null) {
+        Logger.warn(target.name, "First failure: " + target.firstError);
+      }
+      long cpu = cpuMillis(target.instance.getProcessHandle()) - target.cpuAtStart;
+      if (target.cpuAtStart >= 0 && cpu >= 0) {
+        Logger.info(target.name, "Instance CPU " + cpu + " ms (" + percentOf(cpu, elapsedMillis) + " of one core)");
+      }
+    }
+
+    long wrapperCpu = cpuMillis(ProcessHandle.current()) - wrapperCpuAtStart;
+    long forwardingMillis = TimeUnit.NANOSECONDS.toMillis(OutputForwarder.getForwardingNanos() - forwardingAtStart);
+    Logger.info("Wrapper CPU " + (wrapperCpuAtStart >= 0 ? wrapperCpu + " ms (" + percentOf(wrapperCpu, elapsedMillis)
+        + " of one core, including the load test)" : "unknown") + ", forwarded "
+        + (OutputForwarder.getForwardedLines() - linesAtStart) + " lines ("
+        + DeltaSource.formatBytes(OutputForwarder.getForwardedBytes() - bytesAtStart) + ") in " + forwardingMillis
+        + " ms of forwarding");
+  }
+
+  private static String percentOf(long millis, long elapsedMillis) {
+    return String.format("%.1f%%", 100.0 * millis / Math.max(1, elapsedMillis));
+  }
+
+  // -1 when the process is gone or the platform does not say
+  private static long cpuMillis(ProcessHandle process) {
+    if (process == null) {
+      return -1;
+    }
+    return process.info().totalCpuDuration().map(Duration::toMillis).orElse(-1L);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // One selector with its share of the connections
+  private final class Worker extends Thread {
+    private final Selector selector;
+    private final Queue<Connection> toOpen = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean running = true;
+    private long lastTimeoutCheck = System.nanoTime();
+
+    Worker(int number) throws IOException {
+      super("Loadtest-" + number);
+      setDaemon(true);
+      this.selector = Selector.open();
+    }
+
+    void open(Connection connection) {
+      toOpen.add(connection);
+      selector.wakeup();
+    }
+
+    void shutdown() {
+      running = false;
+      selector.wakeup();
+      try {
+        join(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (running) {
+          selector.select(50);
+          Connection connection;
+          while ((connection = toOpen.poll()) != null) {
+            connect(connection);
+          }
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            handle(key);
+          }
+          if (System.nanoTime() - lastTimeoutCheck >= TIMEOUT_CHECK_NS) {
+            expire();
+            lastTimeoutCheck = System.nanoTime();
+          }
+        }
+      } catch (IOException e) {
+        Logger.error("Load test selector failed: " + e.getMessage());
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          close((Connection) key.attachment());
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          // Nothing left to do
+        }
+      }
+    }
+
+    private void connect(Connection connection) {
+      Target target = connection.target;
+      target.started.incrementAndGet();
+      connection.startedAt = System.nanoTime();
+      try {
+        SocketChannel channel = SocketChannel.open();
+        connection.channel = channel;
+        int opened = open.incrementAndGet();
+        peakOpen.accumulateAndGet(opened, Math::max);
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (channel.connect(target.address)) {
+          onConnected(channel.register(selector, 0, connection));
+        } else {
+          channel.register(selector, SelectionKey.OP_CONNECT, connection);
+        }
+      } catch (IOException e) {
+        fail(connection, "connect: " + e.getMessage());
+      }
+    }
+
+    private void handle(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      try {
+        if (!key.isValid()) {
+          return;
+        }
+        if (key.isConnectable()) {
+          connection.channel.finishConnect();
+          onConnected(key);
+        } else if (key.isWritable()) {
+          write(key);
+        } else if (key.isReadable()) {
+          read(key);
+        }
+      } catch (IOException e) {
+        if (connection.responded) {
+          connection.target.closedByServer.incrementAndGet();
+          close(connection);
+        } else {
+          fail(connection, e.getMessage());
+        }
+      }
+    }
+
+    private void onConnected(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      connection.target.connectLatency.record(micros(System.nanoTime() - connection.startedAt));
+      connection.request = ByteBuffer.wrap(mode == Mode.STATUS ? connection.target.statusRequest
+          : loginRequest(connection));
+      write(key);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      connection.channel.write(connection.request);
+      if (connection.request.hasRemaining()) {
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      connection.request = null;
+      connection.requestSentAt = System.nanoTime();
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      scratch.clear();
+      int read = connection.channel.read(scratch);
+      if (read < 0) {
+        if (connection.responded) {
+          connection.target.closedByServer.incrementAndGet();
+          close(connection);
+        } else {
+          fail(connection, "closed without a response");
+        }
+        return;
+      }
+      if (connection.responded) {
+        // Anything after the first packet is not looked at
+        return;
+      }
+      scratch.flip();
+      while (scratch.hasRemaining() && !connection.lengthDone) {
+        byte b = scratch.get();
+        connection.lengthValue |= (b & 0x7F) << connection.lengthShift;
+        connection.lengthShift += 7;
+        connection.lengthBytes++;
+        if ((b & 0x80) == 0) {
+          connection.lengthDone = true;
+          connection.bodyLeft = connection.lengthValue;
+        } else if (connection.lengthBytes == 5) {
+          fail(connection, "invalid packet length");
+          return;
+        }
+      }
+      if (connection.lengthDone) {
+        connection.bodyLeft -= scratch.remaining();
+        if (connection.bodyLeft <= 0) {
+          connection.responded = true;
+          long latency = micros(System.nanoTime() - connection.requestSentAt);
+          connection.target.responseLatency.record(latency);
+          connection.step.responseLatency.record(latency);
+          connection.target.responded.incrementAndGet();
+        }
+      }
+    }
+
+    private void expire() {
+      long now = System.nanoTime();
+      for (SelectionKey key : selector.keys()) {
+        Connection connection = (Connection) key.attachment();
+        if (!connection.responded && now - connection.startedAt > timeoutNanos) {
+          connection.target.timedOut.incrementAndGet();
+          connection.step.failed.incrementAndGet();
+          close(connection);
+        }
+      }
+    }
+
+    private void fail(Connection connection, String error) {
+      connection.target.fail(error);
+      connection.step.failed.incrementAndGet();
+      close(connection);
+    }
+
+    private void close(Connection connection) {
+      SocketChannel channel = connection.channel;
+      if (channel == null || !channel.isOpen()) {
+        return;
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Closed anyway
+      }
+      open.decrementAndGet();
+    }
+  }
+
+  // Handshake and status request in one write, also used by MetricHistory
+  static byte[] statusRequest(int protocol, InetSocketAddress address) {
+    return concat(handshake(protocol, address, 1), packet(new byte[] { 0x00 }));
+  }
+
+  private byte[] loginRequest(Connection connection) {
+    String name = "Swarm" + Integer.toString(connection.number, 36);
+    UUID uuid = UUID.nameUUIDFromBytes(("OfflinePlayer:" + name).getBytes(StandardCharsets.UTF_8));
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(0x00);
+    writeString(body, name);
+    // Login start grew a signature and then a UUID over 1.19 to 1.20.2
+    if (protocol >= 764) {
+      writeUuid(body, uuid);
+    } else if (protocol >= 761) {
+      body.write(1);
+      writeUuid(body, uuid);
+    } else if (protocol == 760) {
+      body.write(0);
+      body.write(1);
+      writeUuid(body, uuid);
+    } else if (protocol == 759) {
+      body.write(0);
+    }
+    return concat(handshake(protocol, connection.target.address, 2), packet(body.toByteArray()));
+  }
+
+  private static byte[] handshake(int protocol, InetSocketAddress address, int nextState) {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    body.write(0x00);
+    writeVarInt(body, protocol);
+    writeString(body, address.getHostString());
+    body.write((address.getPort() >> 8) & 0xFF);
+    body.write(address.getPort() & 0xFF);
+    writeVarInt(body, nextState);
+    return packet(body.toByteArray());
+  }
+
+  private static byte[] packet(byte[] body) {
+    ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    writeVarInt(packet, body.length);
+    packet.write(body, 0, body.length);
+    return packet.toByteArray();
+  }
+
+  private static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeUuid(ByteArrayOutputStream out, UUID uuid) {
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    out.write(buffer.array(), 0, 16);
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] both = new byte[first.length + second.length];
+    System.arraycopy(first, 0, both, 0, first.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  private static long micros(long nanos) {
+    return nanos / 1000;
+  }
+}
@@ -0,0 +1,642 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Cluster mode: wrappers sharing cluster.dir share one set of instances, and
+// each instance runs on the node holding its lease.
+//
+//   <cluster.dir>/nodes/<node>.properties        heartbeat, capacity, owned instances
+//   <cluster.dir>/leases/<instance>/<epoch>.lease  owner of the instance
+//
+// The lease with the highest epoch is the current one. Its owner rewrites it
+// every heartbeat; taking an instance over means creating epoch + 1, which
+// only one node can do (a hard link fails when the file exists). A lease or
+// node counts as dead when its content has not changed for cluster.leaseSeconds
+// as seen by the observer's own clock, so node clocks need not agree. An
+// owner that finds a newer epoch than its own stops the instance.
+public class ClusterNode {
+  private static final long FORGET_DEAD_NODE_PERIODS = 20;
+
+  // A lease or node file as last read, and when its content last changed
+  private static class Observed {
+    private String value;
+    private long changedAt;
+  }
+
+  private static class Lease {
+    private final long epoch;
+    private final String node;
+    private final String session;
+    private final long renewals;
+    private final boolean released;
+
+    Lease(long epoch, Properties properties) {
+      this.epoch = epoch;
+      this.node = properties.getProperty("node", "");
+      this.session = properties.getProperty("session", "");
+      this.renewals = Long.parseLong(properties.getProperty("renewals", "0"));
+      this.released = Boolean.parseBoolean(properties.getProperty("released", "false"));
+    }
+  }
+
+  public static class NodeState {
+    private final String name;
+    private final double capacity;
+    private final List<String> instances;
+    private final boolean live;
+    private final long silentMillis;
+
+    NodeState(String name, double capacity, List<String> instances, boolean live, long silentMillis) {
+      this.name = name;
+      this.capacity = capacity;
+      this.instances = instances;
+      this.live = live;
+      this.silentMillis = silentMillis;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public double getCapacity() {
+      return capacity;
+    }
+
+    public List<String> getInstances() {
+      return instances;
+    }
+
+    public boolean isLive() {
+      return live;
+    }
+
+    public long getSilentMillis() {
+      return silentMillis;
+    }
+  }
+
+  private final File nodesDir;
+  private final File leasesDir;
+  private final String node;
+  private final String session = UUID.randomUUID().toString();
+  private final double capacity;
+  private final long heartbeatMillis;
+  private final long leaseMillis;
+  private final long rebalanceMillis;
+  // Instances the cluster places, in configuration order
+  private final List<String> placed;
+  private final Consumer<String> launcher;
+  private final Consumer<String> stopper;
+  private final Predicate<String> gaveUp;
+
+  // Epoch of every lease this node holds
+  private final Map<String, Long> owned = new ConcurrentHashMap<>();
+  // Owned instances being stopped to hand them over
+  private final Set<String> handingOver = ConcurrentHashMap.newKeySet();
+  private final Map<String, Long> renewals = new HashMap<>();
+  private final Map<String, Observed> observed = new HashMap<>();
+  // Instances this node gave away and should not take straight back
+  private final Map<String, Long> declinedUntil = new HashMap<>();
+  private long heartbeat;
+  private long ticks;
+  private long lastRebalanceAt = System.currentTimeMillis();
+  private boolean duplicateWarned;
+
+  private volatile List<NodeState> nodes = Collections.emptyList();
+  private volatile Map<String, String> owners = Collections.emptyMap();
+  private volatile long claims;
+  private volatile long takeovers;
+  private volatile long lastTakeoverMillis = -1;
+  private volatile long handovers;
+  private volatile long lostLeases;
+
+  private ScheduledExecutorService ticker;
+  // Launches and stops, so the heartbeat never waits for a process
+  private ExecutorService actions;
+
+  private ClusterNode(WrapperConfig config, List<String> placed, Consumer<String> launcher,
+      Consumer<String> stopper, Predicate<String> gaveUp) {
+    File dir = new File(config.getClusterDirectory());
+    this.nodesDir = new File(dir, "nodes");
+    this.leasesDir = new File(dir, "leases");
+    this.node = config.getClusterNode();
+    this.capacity = config.getClusterCapacity();
+    this.heartbeatMillis = config.getClusterHeartbeatMillis();
+    this.leaseMillis = config.getClusterLeaseMillis();
+    this.rebalanceMillis = config.getClusterRebalanceMillis();
+    this.placed = placed;
+    this.launcher = launcher;
+    this.stopper = stopper;
+    this.gaveUp = gaveUp;
+  }
+
+  // Returns null when cluster.dir is not set. placed are the instances the
+  // cluster starts somewhere; launcher and stopper run on their own thread.
+  public static ClusterNode create(WrapperConfig config, List<String> placed, Consumer<String> launcher,
+      Consumer<String> stopper, Predicate<String> gaveUp) throws IOException {
+    if (config.getClusterDirectory().isEmpty()) {
+      return null;
+    }
+    if (!config.getClusterNode().matches("[A-Za-z0-9._-]+")) {
+      throw new IOException("Invalid cluster.node: '" + config.getClusterNode() + "'");
+    }
+    ClusterNode cluster = new ClusterNode(config, placed, launcher, stopper, gaveUp);
+    cluster.nodesDir.mkdirs();
+    cluster.leasesDir.mkdirs();
+    if (!cluster.nodesDir.isDirectory() || !cluster.leasesDir.isDirectory()) {
+      throw new IOException("Cannot use cluster.dir " + config.getClusterDirectory());
+    }
+    return cluster;
+  }
+
+  public void start() {
+    actions = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Cluster-Action");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Cluster");
+      thread.setDaemon(true);
+      return thread;
+    });
+    ticker.scheduleWithFixedDelay(() -> {
+      try {
+        tick();
+      } catch (IOException | RuntimeException e) {
+        Logger.error("Cluster heartbeat failed: " + e.getMessage());
+      }
+    }, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    Logger.info("Cluster node " + node + " joined (capacity " + capacity + "), placing "
+        + String.join(", ", placed));
+  }
+
+  public String getNode() {
+    return node;
+  }
+
+  public boolean owns(String instanceName) {
+    return owned.containsKey(instanceName);
+  }
+
+  // Node running instanceName as of the last heartbeat, null when none
+  public String ownerOf(String instanceName) {
+    return owners.get(instanceName);
+  }
+
+  public List<NodeState> getNodes() {
+    return nodes;
+  }
+
+  public long getClaims() {
+    return claims;
+  }
+
+  public long getTakeovers() {
+    return takeovers;
+  }
+
+  // From the last renewal this node saw to its claim, -1 before the first
+  public long getLastTakeoverMillis() {
+    return lastTakeoverMillis;
+  }
+
+  public long getHandovers() {
+    return handovers;
+  }
+
+  public long getLostLeases() {
+    return lostLeases;
+  }
+
+  // True when this node holds the lease of instanceName or could take it, so
+  // it may launch it. Used for launches by hand and after crashes.
+  public synchronized boolean acquire(String instanceName) {
+    if (owned.containsKey(instanceName)) {
+      return true;
+    }
+    try {
+      Lease lease = readLease(instanceName);
+      if (lease != null && !lease.released && !isExpired("lease:" + instanceName, leaseValue(lease))
+          && !isPreviousRun(lease)) {
+        Logger.warn(instanceName, "Running on cluster node " + lease.node + ", not launching here");
+        return false;
+      }
+      return claim(instanceName, lease);
+    } catch (IOException e) {
+      Logger.error(instanceName, "Could not take the cluster lease: " + e.getMessage());
+      return false;
+    }
+  }
+
+  // Hands instanceName to whichever node the cluster picks
+  public void release(String instanceName) {
+    if (!owned.containsKey(instanceName)) {
+      Logger.warn(instanceName, "Not held by this node");
+      return;
+    }
+    handOver(instanceName, "released by hand");
+  }
+
+  // Stops the heartbeat, instances keep their leases until leave()
+  public void stop() {
+    if (ticker != null) {
+      ticker.shutdownNow();
+    }
+    if (actions != null) {
+      actions.shutdownNow();
+    }
+  }
+
+  // Gives up every lease at once and removes this node, once its instances
+  // have stopped, so other nodes start them without waiting for expiry
+  public synchronized void leave() {
+    for (String name : new ArrayList<>(owned.keySet())) {
+      try {
+        markReleased(name);
+      } catch (IOException e) {
+        Logger.warn(name, "Could not release the cluster lease: " + e.getMessage());
+      }
+    }
+    owned.clear();
+    new File(nodesDir, node + ".properties").delete();
+    Logger.info("Left the cluster, leases released");
+  }
+
+  private synchronized void tick() throws IOException {
+    ticks++;
+    writeNodeFile();
+    long now = System.currentTimeMillis();
+
+    // Who is alive, by whether their heartbeat still changes
+    Map<String, Double> capacities = new TreeMap<>();
+    List<NodeState> nodeStates = new ArrayList<>();
+    Map<String, List<String>> nodeInstances = new HashMap<>();
+    File[] files = nodesDir.listFiles((dir, name) -> name.endsWith(".properties"));
+    for (File file : files != null ? files : new File[0]) {
+      String name = file.getName().substring(0, file.getName().length() - ".properties".length());
+      Properties properties = readProperties(file);
+      if (properties == null) {
+        continue;
+      }
+      String value = properties.getProperty("session", "") + ":" + properties.getProperty("heartbeat", "");
+      boolean me = name.equals(node);
+      boolean live = me || !isExpired("node:" + name, value);
+      if (!live && now - observed.get("node:" + name).changedAt > FORGET_DEAD_NODE_PERIODS * leaseMillis) {
+        file.delete();
+        observed.remove("node:" + name);
+        continue;
+      }
+      double nodeCapacity = parseCapacity(properties.getProperty("capacity"));
+      if (live) {
+        capacities.put(name, nodeCapacity);
+      }
+      List<String> list = new ArrayList<>();
+      nodeInstances.put(name, list);
+      nodeStates.add(new NodeState(name, nodeCapacity, list, live,
+          me ? 0 : now - observed.get("node:" + name).changedAt));
+    }
+
+    // Renew what this node holds, note who holds the rest
+    Map<String, String> currentOwners = new LinkedHashMap<>();
+    Map<String, Integer> counts = new HashMap<>();
+    Map<String, Lease> orphans = new LinkedHashMap<>();
+    Map<String, Long> silentFor = new HashMap<>();
+    List<String> names = new ArrayList<>(placed);
+    for (String name : owned.keySet()) {
+      if (!names.contains(name)) {
+        names.add(name);
+      }
+    }
+    for (String name : names) {
+      Lease lease = readLease(name);
+      Long epoch = owned.get(name);
+      if (epoch != null) {
+        if (lease == null || lease.epoch != epoch || !lease.session.equals(session)) {
+          lostLease(name, lease);
+        } else {
+          renew(name, lease);
+          currentOwners.put(name, node);
+          counts.merge(node, 1, Integer::sum);
+          if (capacities.size() > 1 && !handingOver.contains(name) && gaveUp.test(name)) {
+            // Crash looping here, another node may do better
+            handOver(name, "gave up after repeated crashes");
+          }
+          continue;
+        }
+      }
+      if (lease == null || lease.released) {
+        if (placed.contains(name) && !handingOver.contains(name)) {
+          orphans.put(name, lease);
+        }
+        continue;
+      }
+      String key = "lease:" + name;
+      if (isExpired(key, leaseValue(lease)) || !capacities.containsKey(lease.node) || isPreviousRun(lease)) {
+        if (placed.contains(name)) {
+          orphans.put(name, lease);
+          silentFor.put(name, now - observed.get(key).changedAt);
+        }
+        continue;
+      }
+      currentOwners.put(name, lease.node);
+      counts.merge(lease.node, 1, Integer::sum);
+    }
+    for (Map.Entry<String, String> owner : currentOwners.entrySet()) {
+      List<String> list = nodeInstances.get(owner.getValue());
+      if (list != null) {
+        list.add(owner.getKey());
+      }
+    }
+    nodes = nodeStates;
+    owners = currentOwners;
+
+    // The first heartbeat only announces this node, so nodes starting
+    // together see each other before placing anything
+    if (ticks < 2) {
+      return;
+    }
+
+    // Every node runs the same placement on the same files, each claims
+    // what lands on it: the least loaded live node gets the next instance
+    declinedUntil.values().removeIf(until -> until < now);
+    for (Map.Entry<String, Lease> orphan : orphans.entrySet()) {
+      String name = orphan.getKey();
+      String chosen = leastLoaded(capacities, counts, declinedUntil.containsKey(name) ? node : null);
+      if (chosen == null) {
+        continue;
+      }
+      counts.merge(chosen, 1, Integer::sum);
+      if (chosen.equals(node) && claim(name, orphan.getValue())) {
+        Lease previous = orphan.getValue();
+        if (previous != null && !previous.released && !previous.node.equals(node)) {
+          long silent = silentFor.getOrDefault(name, -1L);
+          takeovers++;
+          lastTakeoverMillis = silent;
+          Logger.warn(name, "Taking over from cluster node " + previous.node + ", no lease renewal for "
+              + silent + " ms");
+        }
+        actions.submit(() -> launcher.accept(name));
+      }
+    }
+
+    // Move one instance at a time towards a node that would still be less
+    // loaded than this one after taking it
+    if (rebalanceMillis > 0 && orphans.isEmpty() && now - lastRebalanceAt >= rebalanceMillis) {
+      int mine = counts.getOrDefault(node, 0);
+      String lightest = leastLoaded(capacities, counts, node);
+      if (mine > 0 && lightest != null
+          && (counts.getOrDefault(lightest, 0) + 1) / capacities.get(lightest) < mine / capacity) {
+        String name = null;
+        for (String candidate : placed) {
+          if (owned.containsKey(candidate) && !handingOver.contains(candidate)) {
+            name = candidate;
+          }
+        }
+        if (name != null) {
+          lastRebalanceAt = now;
+          handOver(name, "rebalancing towards " + lightest);
+        }
+      }
+    }
+  }
+
+  // Lowest (instances + 1) / capacity, ties by name; skip is left out
+  private static String leastLoaded(Map<String, Double> capacities, Map<String, Integer> counts, String skip) {
+    String best = null;
+    double bestLoad = Double.MAX_VALUE;
+    for (Map.Entry<String, Double> entry : capacities.entrySet()) {
+      if (entry.getKey().equals(skip)) {
+        continue;
+      }
+      double load = (counts.getOrDefault(entry.getKey(), 0) + 1) / entry.getValue();
+      if (load < bestLoad) {
+        best = entry.getKey();
+        bestLoad = load;
+      }
+    }
+    return best;
+  }
+
+  // Stops the instance, then marks the lease released for the others
+  private void handOver(String name, String reason) {
+    if (!handingOver.add(name)) {
+      return;
+    }
+    Logger.info(name, "Handing over to the cluster: " + reason);
+    Runnable handOver = () -> {
+      try {
+        stopper.accept(name);
+        synchronized (this) {
+          if (owned.containsKey(name)) {
+            markReleased(name);
+            owned.remove(name);
+            handovers++;
+            declinedUntil.put(name, System.currentTimeMillis() + 2 * leaseMillis);
+          }
+        }
+      } catch (IOException e) {
+        Logger.error(name, "Could not release the cluster lease: " + e.getMessage());
+      } finally {
+        handingOver.remove(name);
+      }
+    };
+    if (actions != null) {
+      actions.submit(handOver);
+    } else {
+      handOver.run();
+    }
+  }
+
+  private void lostLease(String name, Lease lease) {
+    owned.remove(name);
+    lostLeases++;
+    Logger.warn(name, "Cluster lease taken over by " + (lease != null ? "node " + lease.node : "nobody")
+        + ", stopping");
+    actions.submit(() -> stopper.accept(name));
+  }
+
+  // Creates the next epoch's lease, false when another node was faster
+  private boolean claim(String name, Lease previous) throws IOException {
+    long epoch = previous != null ? previous.epoch + 1 : 1;
+    File dir = new File(leasesDir, name);
+    dir.mkdirs();
+    File temp = writeTemp(dir, leaseProperties(0, false));
+    try {
+      Files.createLink(new File(dir, epoch + ".lease").toPath(), temp.toPath());
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    } finally {
+      temp.delete();
+    }
+    owned.put(name, epoch);
+    renewals.put(name, 0L);
+    claims++;
+    Logger.info(name, "Cluster lease taken (epoch " + epoch + ")");
+
+    // Older epochs are of no use to anyone now
+    File[] stale = dir.listFiles((d, file) -> file.endsWith(".lease"));
+    for (File file : stale != null ? stale : new File[0]) {
+      Long fileEpoch = epochOf(file);
+      if (fileEpoch != null && fileEpoch < epoch) {
+        file.delete();
+      }
+    }
+    return true;
+  }
+
+  private void renew(String name, Lease lease) throws IOException {
+    long count = renewals.merge(name, 1L, Long::sum);
+    File dir = new File(leasesDir, name);
+    File temp = writeTemp(dir, leaseProperties(count, false));
+    Files.move(temp.toPath(), new File(dir, lease.epoch + ".lease").toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void markReleased(String name) throws IOException {
+    Long epoch = owned.get(name);
+    File dir = new File(leasesDir, name);
+    File temp = writeTemp(dir, leaseProperties(renewals.getOrDefault(name, 0L) + 1, true));
+    Files.move(temp.toPath(), new File(dir, epoch + ".lease").toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Properties leaseProperties(long count, boolean released) {
+    Properties properties = new Properties();
+    properties.setProperty("node", node);
+    properties.setProperty("session", session);
+    properties.setProperty("renewals", Long.toString(count));
+    properties.setProperty("released", Boolean.toString(released));
+    return properties;
+  }
+
+  private void writeNodeFile() throws IOException {
+    File file = new File(nodesDir, node + ".properties");
+    Properties existing = readProperties(file);
+    if (existing != null && !session.equals(existing.getProperty("session")) && heartbeat > 0
+        && !duplicateWarned) {
+      duplicateWarned = true;
+      Logger.error("Another wrapper uses cluster.node=" + node + ", give every node its own name");
+    }
+    heartbeat++;
+    Properties properties = new Properties();
+    properties.setProperty("session", session);
+    properties.setProperty("heartbeat", Long.toString(heartbeat));
+    properties.setProperty("capacity", Double.toString(capacity));
+    properties.setProperty("instances", String.join(",", owned.keySet()));
+    File temp = writeTemp(nodesDir, properties);
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // The current lease, null when there is none
+  private Lease readLease(String name) throws IOException {
+    File[] files = new File(leasesDir, name).listFiles((d, file) -> file.endsWith(".lease"));
+    File newest = null;
+    long newestEpoch = -1;
+    for (File file : files != null ? files : new File[0]) {
+      Long epoch = epochOf(file);
+      if (epoch != null && epoch > newestEpoch) {
+        newest = file;
+        newestEpoch = epoch;
+      }
+    }
+    if (newest == null) {
+      return null;
+    }
+    Properties properties = readProperties(newest);
+    if (properties == null) {
+      throw new IOException("Cannot read " + newest);
+    }
+    try {
+      return new Lease(newestEpoch, properties);
+    } catch (NumberFormatException e) {
+      throw new IOException("Damaged lease " + newest);
+    }
+  }
+
+  // Held by this node before the wrapper restarted, nobody runs it
+  private boolean isPreviousRun(Lease lease) {
+    return lease.node.equals(node) && !lease.session.equals(session);
+  }
+
+  private static String leaseValue(Lease lease) {
+    return lease.epoch + ":" + lease.session + ":" + lease.renewals + ":" + lease.released;
+  }
+
+  // Records value under key and tells whether it stayed the same for a
+  // whole lease period. Something seen for the first time is not expired.
+  private boolean isExpired(String key, String value) {
+    long now = System.currentTimeMillis();
+    Observed seen = observed.get(key);
+    if (seen == null || !seen.value.equals(value)) {
+      seen = seen != null ? seen : new Observed();
+      seen.value = value;
+      seen.changedAt = now;
+      observed.put(key, seen);
+      return false;
+    }
+    return now - seen.changedAt >= leaseMillis;
+  }
+
+  private File writeTemp(File dir, Properties properties) throws IOException {
+    File temp = new File(dir, "." + node + "-" + Thread.currentThread().getId() + ".tmp");
+    try (OutputStream out = new FileOutputStream(temp)) {
+      properties.store(out, null);
+    }
+    return temp;
+  }
+
+  private static Properties readProperties(File file) {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      properties.load(in);
+      return properties;
+    } catch (IOException e) {
+      // Gone or replaced in between
+      return null;
+    }
+  }
+
+  private static Long epochOf(File file) {
+    String name = file.getName();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - ".lease".length()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static double parseCapacity(String value) {
+    try {
+      double capacity = Double.parseDouble(value);
+      return capacity > 0 ? capacity : 1;
+    } catch (NullPointerException | NumberFormatException e) {
+      return 1;
+    }
+  }
+}
@@ -0,0 +1,181 @@
+package com.thirdplacemc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Delta patches between PicoLimbo versions, from delta.dir or delta.url. A
+// patch is named <platform>-<from>-<to>.delta, platform being the release
+// archive name without its extension, e.g.
+// pico_limbo_linux-x86_64-musl-v1.3.0-v1.4.0.delta. Anything that does not
+// produce the exact binary the patch describes means a full download instead.
+// The patch names the hash of its result itself, so when the release
+// publishes a checksum for the binary the patch must match that as well.
+public class DeltaSource {
+  private static final long MAX_PATCH_BYTES = 64L * 1024 * 1024;
+
+  private final String baseUrl;
+  private final File directory;
+  private final String platform;
+  private final ReleaseChecksums checksums;
+  private final AtomicLong applied = new AtomicLong();
+  private final AtomicLong fallbacks = new AtomicLong();
+  private final AtomicLong patchBytes = new AtomicLong();
+  private final AtomicLong savedBytes = new AtomicLong();
+
+  private DeltaSource(String baseUrl, File directory, String platform, ReleaseChecksums checksums) {
+    this.baseUrl = baseUrl;
+    this.directory = directory;
+    this.platform = platform;
+    this.checksums = checksums;
+  }
+
+  // Returns null when neither delta.dir nor delta.url is set. checksums is
+  // null when binaries do not come from GitHub releases.
+  public static DeltaSource create(WrapperConfig config, String archiveName, ReleaseChecksums checksums) {
+    String url = config.getDeltaUrl();
+    String dir = config.getDeltaDirectory();
+    if (url.isEmpty() && dir.isEmpty()) {
+      return null;
+    }
+    return new DeltaSource(url.isEmpty() ? null : url.endsWith("/") ? url : url + "/",
+        dir.isEmpty() ? null : new File(dir), platformOf(archiveName), checksums);
+  }
+
+  // The release archive name without its extension
+  public static String platformOf(String archiveName) {
+    return archiveName.replaceFirst("\\.(zip|tar\\.gz|tgz)$", "");
+  }
+
+  public String patchName(String fromTag, String toTag) {
+    return platform + "-" + fromTag + "-" + toTag + ".delta";
+  }
+
+  // Writes the binary of toTag to target by patching base, the binary of
+  // fromTag. fullBytes is what the full download would have cost, -1 when
+  // unknown. False when there is no delta or it did not apply, target is
+  // not written then.
+  public boolean patch(String fromTag, File base, String toTag, File target, long fullBytes) {
+    String name = patchName(fromTag, toTag);
+    byte[] patch;
+    String source;
+    try {
+      File local = directory != null ? new File(directory, name) : null;
+      if (local != null && local.isFile()) {
+        patch = Files.readAllBytes(local.toPath());
+        source = local.getPath();
+      } else if (baseUrl != null) {
+        source = baseUrl + name;
+        patch = fetch(source);
+      } else {
+        patch = null;
+        source = null;
+      }
+    } catch (IOException e) {
+      Logger.warn("Could not get delta " + name + ": " + e.getMessage() + ", downloading the full archive");
+      fallbacks.incrementAndGet();
+      return false;
+    }
+    if (patch == null) {
+      Logger.info("No delta from " + fromTag + " to " + toTag + ", downloading the full archive");
+      return false;
+    }
+
+    String published;
+    try {
+      published = checksums != null ? checksums.binaryDigest(toTag) : null;
+    } catch (IOException e) {
+      // Applying it unchecked would let a blocked lookup skip the check
+      Logger.warn("Could not read " + checksums.getAssetName() + " of " + toTag + ": " + e.getMessage()
+          + ", downloading the full archive");
+      fallbacks.incrementAndGet();
+      return false;
+    }
+
+    try {
+      long started = System.currentTimeMillis();
+      byte[] binary = BinaryDelta.apply(Files.readAllBytes(base.toPath()), patch,
+          published != null ? ReleaseChecksums.fromHex(published) : null);
+      Files.write(target.toPath(), binary);
+
+      long full = fullBytes > 0 ? fullBytes : binary.length;
+      long saved = Math.max(0, full - patch.length);
+      applied.incrementAndGet();
+      patchBytes.addAndGet(patch.length);
+      savedBytes.addAndGet(saved);
+      Logger.info("Patched " + fromTag + " -> " + toTag + " from " + source + " in "
+          + (System.currentTimeMillis() - started) + " ms: " + formatBytes(patch.length) + " instead of "
+          + formatBytes(full) + (fullBytes > 0 ? "" : " (binary size)") + ", saved " + formatBytes(saved)
+          + String.format(" (%.0f%%), ", 100.0 * saved / Math.max(1, full))
+          + (published != null ? "SHA-256 matches " + checksums.getAssetName()
+              : "no published checksum, checked against the delta's own hash only"));
+      return true;
+    } catch (IOException e) {
+      target.delete();
+      fallbacks.incrementAndGet();
+      Logger.warn("Delta " + name + " failed: " + e.getMessage() + ", downloading the full archive");
+      return false;
+    }
+  }
+
+  public long getApplied() {
+    return applied.get();
+  }
+
+  public long getFallbacks() {
+    return fallbacks.get();
+  }
+
+  public long getPatchBytes() {
+    return patchBytes.get();
+  }
+
+  public long getSavedBytes() {
+    return savedBytes.get();
+  }
+
+  // Null on 404, deltas are optional
+  private static byte[] fetch(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestProperty("User-Agent", "PicoLimboWrapper");
+    connection.setConnectTimeout(10000);
+    connection.setReadTimeout(30000);
+    int responseCode = connection.getResponseCode();
+    if (responseCode == 404) {
+      return null;
+    }
+    if (responseCode != 200) {
+      throw new IOException("response code " + responseCode);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    WrapperEvents.DownloadMeter meter = new WrapperEvents.DownloadMeter(connection.getURL().getHost());
+    try (InputStream in = connection.getInputStream()) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, read);
+        meter.add(read);
+        if (bytes.size() > MAX_PATCH_BYTES) {
+          throw new IOException("larger than " + formatBytes(MAX_PATCH_BYTES));
+        }
+      }
+    }
+    meter.finish();
+    return bytes.toByteArray();
+  }
+
+  public static String formatBytes(long bytes) {
+    if (bytes < 1024) {
+      return bytes + " B";
+    } else if (bytes < 1024 * 1024) {
+      return String.format("%.1f KB", bytes / 1024.0);
+    }
+    return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+  }
+}
@@ -0,0 +1,117 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// State of detached instances that survives a wrapper restart: for each
+// running instance its pid, process start time (to tell a reused pid apart)
+// and how far its output file has been read. Lives next to the output files
+// in the detached directory and is replaced atomically on every save.
+public class DetachedState {
+  private static final String STATE_FILE = "wrapper-state.properties";
+
+  public static class Entry {
+    private final long pid;
+    private final long startedMillis;
+    private final long offset;
+
+    public Entry(long pid, long startedMillis, long offset) {
+      this.pid = pid;
+      this.startedMillis = startedMillis;
+      this.offset = offset;
+    }
+
+    public long getPid() {
+      return pid;
+    }
+
+    public long getStartedMillis() {
+      return startedMillis;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+  }
+
+  private final File directory;
+  private final File stateFile;
+  private Properties lastSaved;
+
+  public DetachedState(File directory) {
+    this.directory = directory;
+    this.stateFile = new File(directory, STATE_FILE);
+  }
+
+  public File getOutputFile(String instanceName) {
+    return new File(directory, instanceName + ".out");
+  }
+
+  public Map<String, Entry> load() {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    if (!stateFile.exists()) {
+      return entries;
+    }
+
+    Properties properties = new Properties();
+    try (FileInputStream in = new FileInputStream(stateFile)) {
+      properties.load(in);
+    } catch (IOException e) {
+      Logger.warn("Could not read " + stateFile.getPath() + ": " + e.getMessage());
+      return entries;
+    }
+
+    for (String key : properties.stringPropertyNames()) {
+      if (!key.endsWith(".pid")) {
+        continue;
+      }
+      String name = key.substring(0, key.length() - ".pid".length());
+      try {
+        entries.put(name, new Entry(
+            Long.parseLong(properties.getProperty(key).trim()),
+            Long.parseLong(properties.getProperty(name + ".started", "0").trim()),
+            Long.parseLong(properties.getProperty(name + ".offset", "0").trim())));
+      } catch (NumberFormatException e) {
+        Logger.warn("Ignoring invalid state for instance '" + name + "'");
+      }
+    }
+    return entries;
+  }
+
+  public void save(Map<String, Entry> entries) throws IOException {
+    directory.mkdirs();
+    Properties properties = new Properties();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      String name = entry.getKey();
+      properties.setProperty(name + ".pid", String.valueOf(entry.getValue().getPid()));
+      properties.setProperty(name + ".started", String.valueOf(entry.getValue().getStartedMillis()));
+      properties.setProperty(name + ".offset", String.valueOf(entry.getValue().getOffset()));
+    }
+
+    // Saved every second, only touch the disk when something changed
+    if (properties.equals(lastSaved)) {
+      return;
+    }
+
+    File temp = new File(directory, STATE_FILE + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(temp)) {
+      properties.store(out, "Detached PicoLimbo instances, managed by the wrapper");
+      out.getFD().sync();
+    }
+    Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    lastSaved = properties;
+  }
+
+  // Start time of a process in epoch millis, 0 when the platform does not report it
+  public static long startedMillis(ProcessHandle process) {
+    return process.info().startInstant().map(instant -> instant.toEpochMilli()).orElse(0L);
+  }
+}
@@ -0,0 +1,127 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Follows the output file of a detached instance like 'tail -f', ending once
+// the process has exited and the file is drained. Reads only hand out complete
+// lines while the process runs, so getPosition() is always a line boundary the
+// next wrapper can resume from.
+//
+// The child appends with O_APPEND, so once the file is read to the end and
+// past maxBytes it is truncated and the next write lands at offset 0 again.
+// A write landing between the size check and the truncation is lost; the
+// window is a few microseconds once per maxBytes of output, and getTruncations()
+// counts how often it was open. While nothing follows the file (between a
+// detach and the next wrapper) it grows without limit.
+public class FollowingInputStream extends InputStream {
+  private static final long POLL_INTERVAL_MS = 20;
+
+  private final File file;
+  private final FileChannel channel;
+  private final ProcessHandle process;
+  private final long maxBytes;
+  private volatile long position;
+  private volatile long truncations;
+  private volatile boolean closed = false;
+
+  public FollowingInputStream(File file, ProcessHandle process, long position, long maxBytes) throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    this.process = process;
+    this.maxBytes = maxBytes;
+    this.position = Math.min(position, channel.size());
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (!closed) {
+      // Check liveness first so nothing written before the exit is missed
+      boolean alive = process.isAlive();
+      int read = channel.read(ByteBuffer.wrap(buffer, offset, length), position);
+
+      if (read > 0) {
+        int usable = alive ? completeLines(buffer, offset, read) : read;
+        // A single line longer than the buffer is handed out in pieces
+        if (usable == 0 && read == length) {
+          usable = read;
+        }
+        if (usable > 0) {
+          position += usable;
+          return usable;
+        }
+      } else if (alive) {
+        truncateIfDrained();
+      }
+
+      if (!alive) {
+        return -1;
+      }
+      sleep();
+    }
+    return -1;
+  }
+
+  private static int completeLines(byte[] buffer, int offset, int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      if (buffer[i] == '\n') {
+        return i - offset + 1;
+      }
+    }
+    return 0;
+  }
+
+  private void truncateIfDrained() throws IOException {
+    long size = channel.size();
+    if (size < position) {
+      // Truncated by someone else, start over
+      Logger.warn("Output file " + file.getName() + " shrank below the read offset, following from the start");
+      position = 0;
+    } else if (position >= maxBytes && size == position) {
+      channel.truncate(0);
+      position = 0;
+      truncations++;
+    }
+  }
+
+  private void sleep() throws IOException {
+    try {
+      Thread.sleep(POLL_INTERVAL_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while following output");
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  // Offset of the first byte not yet handed out
+  public long getPosition() {
+    return position;
+  }
+
+  public long getTruncations() {
+    return truncations;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+}
@@ -1,15 +1,28 @@
 package com.thirdplacemc;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class InstanceInfo {
   private final String name;
   private final String configPath;
   private final boolean autoStart;
   private Process process;
+  private ProcessHandle processHandle;
+  private FollowingInputStream outputFollower;
   private Thread outputThread;
   private int restartCount;
+  private volatile long launchedAt;
+  // PicoLimbo version the running process was started from
+  private volatile String version;
   private boolean shouldRestart;
+  private final List<OutputSink> outputSinks = new CopyOnWriteArrayList<>();
+  private InstanceLogWriter logWriter;
+  private OutputRingBuffer outputBuffer;
+  private OutputEventCounter eventCounter;
+  private OutputRateLimiter rateLimiter;
+  private volatile boolean ready;
 
   public InstanceInfo(String name, String configPath, boolean autoStart) {
     this.name = name;
@@ -39,6 +52,25 @@ public class InstanceInfo {
 
   public void setProcess(Process process) {
     this.process = process;
+    this.processHandle = process != null ? process.toHandle() : null;
+  }
+
+  public ProcessHandle getProcessHandle() {
+    return processHandle;
+  }
+
+  // An adopted process from a previous wrapper run, there is no Process for it
+  public void adoptProcess(ProcessHandle processHandle) {
+    this.process = null;
+    this.processHandle = processHandle;
+  }
+
+  public FollowingInputStream getOutputFollower() {
+    return outputFollower;
+  }
+
+  public void setOutputFollower(FollowingInputStream outputFollower) {
+    this.outputFollower = outputFollower;
   }
 
   public Thread getOutputThread() {
@@ -61,6 +93,26 @@ public class InstanceInfo {
     this.restartCount = 0;
   }
 
+  public void setRestartCount(int restartCount) {
+    this.restartCount = restartCount;
+  }
+
+  public long getLaunchedAt() {
+    return launchedAt;
+  }
+
+  public void setLaunchedAt(long launchedAt) {
+    this.launchedAt = launchedAt;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public void setVersion(String version) {
+    this.version = version;
+  }
+
   public boolean shouldRestart() {
     return shouldRestart;
   }
@@ -69,8 +121,59 @@ public class InstanceInfo {
     this.shouldRestart = shouldRestart;
   }
 
+  public List<OutputSink> getOutputSinks() {
+    return outputSinks;
+  }
+
+  public void addOutputSink(OutputSink sink) {
+    outputSinks.add(sink);
+  }
+
+  public InstanceLogWriter getLogWriter() {
+    return logWriter;
+  }
+
+  public void setLogWriter(InstanceLogWriter logWriter) {
+    this.logWriter = logWriter;
+    addOutputSink(logWriter);
+  }
+
+  public OutputRingBuffer getOutputBuffer() {
+    return outputBuffer;
+  }
+
+  public void setOutputBuffer(OutputRingBuffer outputBuffer) {
+    this.outputBuffer = outputBuffer;
+    addOutputSink(outputBuffer);
+  }
+
+  public OutputEventCounter getEventCounter() {
+    return eventCounter;
+  }
+
+  public void setEventCounter(OutputEventCounter eventCounter) {
+    this.eventCounter = eventCounter;
+    addOutputSink(eventCounter);
+  }
+
+  public OutputRateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
+  public void setRateLimiter(OutputRateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public void setReady(boolean ready) {
+    this.ready = ready;
+  }
+
   public boolean isRunning() {
-    return process != null && process.isAlive();
+    return processHandle != null && processHandle.isAlive();
   }
 
   public boolean configFileExists() {
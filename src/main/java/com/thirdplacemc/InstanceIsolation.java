@@ -0,0 +1,441 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps instances from competing with each other: pins them to CPUs with
+// taskset and gives each its own cgroup v2 group with cpu.max / memory.max.
+// Linux only. Whatever the wrapper lacks the tooling or permission for is
+// logged once and skipped, the instance then runs without it.
+public class InstanceIsolation {
+  private static final File CGROUP_ROOT = new File("/sys/fs/cgroup");
+  private static final String GROUP_PREFIX = "picolimbo-";
+  // Leaf the wrapper moves itself into, a cgroup with processes cannot hand
+  // controllers to its children
+  private static final String WRAPPER_GROUP = "picolimbo-wrapper";
+  private static final long CPU_PERIOD_USEC = 100_000;
+  private static final long MIN_CPU_QUOTA_USEC = 1_000;
+
+  private static class Settings {
+    private String cpus = "";
+    private long cpuQuotaUsec;
+    private long memoryMaxBytes;
+
+    private boolean hasLimits() {
+      return cpuQuotaUsec > 0 || memoryMaxBytes > 0;
+    }
+  }
+
+  // Resource usage of an instance's cgroup, fields are -1 when not reported
+  public static class Usage {
+    private final long cpuQuotaUsec;
+    private final long cpuUsageUsec;
+    private final long periods;
+    private final long throttledPeriods;
+    private final long throttledUsec;
+    private final long memoryBytes;
+    private final long memoryMaxBytes;
+    private final long oomKills;
+
+    Usage(long cpuQuotaUsec, Map<String, Long> cpuStat, long memoryBytes, long memoryMaxBytes,
+        Map<String, Long> memoryEvents) {
+      this.cpuQuotaUsec = cpuQuotaUsec;
+      this.cpuUsageUsec = cpuStat.getOrDefault("usage_usec", -1L);
+      this.periods = cpuStat.getOrDefault("nr_periods", -1L);
+      this.throttledPeriods = cpuStat.getOrDefault("nr_throttled", -1L);
+      this.throttledUsec = cpuStat.getOrDefault("throttled_usec", -1L);
+      this.memoryBytes = memoryBytes;
+      this.memoryMaxBytes = memoryMaxBytes;
+      this.oomKills = memoryEvents.getOrDefault("oom_kill", -1L);
+    }
+
+    // Cores allowed by cpu.max, 0 when unlimited
+    public double getCpuLimit() {
+      return cpuQuotaUsec > 0 ? (double) cpuQuotaUsec / CPU_PERIOD_USEC : 0;
+    }
+
+    public long getCpuUsageUsec() {
+      return cpuUsageUsec;
+    }
+
+    public long getPeriods() {
+      return periods;
+    }
+
+    public long getThrottledPeriods() {
+      return throttledPeriods;
+    }
+
+    public long getThrottledUsec() {
+      return throttledUsec;
+    }
+
+    public long getMemoryBytes() {
+      return memoryBytes;
+    }
+
+    // -1 when unlimited
+    public long getMemoryMaxBytes() {
+      return memoryMaxBytes;
+    }
+
+    public long getOomKills() {
+      return oomKills;
+    }
+  }
+
+  private final Map<String, Settings> settings = new HashMap<>();
+  private String taskset;
+  private File base;
+
+  private InstanceIsolation() {
+  }
+
+  // Returns null when no instance asks for pinning or limits
+  public static InstanceIsolation create(WrapperConfig config, List<String> instanceNames) {
+    InstanceIsolation isolation = new InstanceIsolation();
+    List<Integer> allowedCpus = null;
+    boolean pinning = false;
+    boolean limits = false;
+
+    for (int i = 0; i < instanceNames.size(); i++) {
+      String name = instanceNames.get(i);
+      Settings instance = new Settings();
+
+      String cpus = config.getCpuAffinity(name);
+      if (cpus.equalsIgnoreCase("auto")) {
+        if (allowedCpus == null) {
+          allowedCpus = allowedCpus();
+        }
+        // One core each in configuration order, wrapping around when there
+        // are more instances than cores
+        instance.cpus = String.valueOf(allowedCpus.get(i % allowedCpus.size()));
+      } else if (!cpus.isEmpty()) {
+        if (parseCpuList(cpus) == null) {
+          Logger.warn(name, "Invalid cpus list: " + cpus + ", not pinning");
+        } else {
+          instance.cpus = cpus;
+        }
+      }
+
+      double cpuLimit = config.getCpuLimit(name);
+      if (cpuLimit > 0) {
+        instance.cpuQuotaUsec = Math.max(MIN_CPU_QUOTA_USEC, Math.round(cpuLimit * CPU_PERIOD_USEC));
+      }
+      instance.memoryMaxBytes = config.getMemoryLimitBytes(name);
+
+      pinning |= !instance.cpus.isEmpty();
+      limits |= instance.hasLimits();
+      isolation.settings.put(name, instance);
+    }
+
+    if (!pinning && !limits) {
+      return null;
+    }
+    if (!System.getProperty("os.name").toLowerCase().contains("linux")) {
+      Logger.warn("CPU pinning and resource limits are only supported on Linux, ignoring them");
+      return null;
+    }
+
+    if (pinning) {
+      isolation.taskset = findTaskset();
+      if (isolation.taskset == null) {
+        Logger.warn("taskset not found (util-linux), instances will not be pinned to CPUs");
+      }
+    }
+    if (limits) {
+      isolation.base = isolation.prepareBase(config.getCgroupPath());
+    }
+    return isolation;
+  }
+
+  // Prepended to the launch command, taskset sets the affinity and execs the
+  // binary so the pid stays the same
+  public List<String> commandPrefix(String instanceName) {
+    Settings instance = settings.get(instanceName);
+    if (taskset == null || instance == null || instance.cpus.isEmpty()) {
+      return new ArrayList<>();
+    }
+    return new ArrayList<>(Arrays.asList(taskset, "-c", instance.cpus));
+  }
+
+  public String getCpus(String instanceName) {
+    Settings instance = settings.get(instanceName);
+    return instance != null ? instance.cpus : "";
+  }
+
+  public boolean isPinned(String instanceName) {
+    return taskset != null && !getCpus(instanceName).isEmpty();
+  }
+
+  // Creates the instance's group with its limits and moves the process into
+  // it, right after it started
+  public synchronized void attach(String instanceName, long pid) {
+    Settings instance = settings.get(instanceName);
+    if (base == null || instance == null || !instance.hasLimits()) {
+      return;
+    }
+
+    File group = groupOf(instanceName);
+    try {
+      if (!group.isDirectory() && !group.mkdir()) {
+        throw new IOException("could not create " + group.getPath());
+      }
+      // Only the controllers in use are enabled, so only their files exist
+      if (instance.cpuQuotaUsec > 0) {
+        write(new File(group, "cpu.max"), instance.cpuQuotaUsec + " " + CPU_PERIOD_USEC);
+      }
+      if (instance.memoryMaxBytes > 0) {
+        write(new File(group, "memory.max"), String.valueOf(instance.memoryMaxBytes));
+      }
+      write(new File(group, "cgroup.procs"), String.valueOf(pid));
+    } catch (IOException e) {
+      Logger.warn(instanceName, "Could not apply resource limits: " + e.getMessage());
+    }
+  }
+
+  // Removes the group once its process has exited, the next launch recreates it
+  public synchronized void release(String instanceName) {
+    if (base == null) {
+      return;
+    }
+    File group = groupOf(instanceName);
+    if (!group.isDirectory()) {
+      return;
+    }
+    try {
+      // rmdir is all a cgroup needs, its control files go with it
+      Files.delete(group.toPath());
+    } catch (IOException e) {
+      Logger.warn(instanceName, "Could not remove cgroup " + group.getPath() + ": " + e.getMessage());
+    }
+  }
+
+  // Null when the instance has no group of its own
+  public Usage readUsage(String instanceName) {
+    if (base == null) {
+      return null;
+    }
+    File group = groupOf(instanceName);
+    if (!group.isDirectory()) {
+      return null;
+    }
+
+    String cpuMax = read(new File(group, "cpu.max"));
+    long quota = 0;
+    if (cpuMax != null && !cpuMax.startsWith("max")) {
+      quota = parseLong(cpuMax.split("\\s+")[0]);
+    }
+    String memoryMax = read(new File(group, "memory.max"));
+    long memoryMaxBytes = memoryMax == null || memoryMax.equals("max") ? -1 : parseLong(memoryMax);
+    String memoryCurrent = read(new File(group, "memory.current"));
+
+    return new Usage(quota, readKeyed(new File(group, "cpu.stat")),
+        memoryCurrent != null ? parseLong(memoryCurrent) : -1, memoryMaxBytes,
+        readKeyed(new File(group, "memory.events")));
+  }
+
+  // Affinity the kernel reports for a running process, which also covers
+  // adopted instances
+  public static String readAffinity(long pid) {
+    String status = read(new File("/proc/" + pid + "/status"));
+    if (status == null) {
+      return null;
+    }
+    for (String line : status.split("\n")) {
+      if (line.startsWith("Cpus_allowed_list:")) {
+        return line.substring("Cpus_allowed_list:".length()).trim();
+      }
+    }
+    return null;
+  }
+
+  private File groupOf(String instanceName) {
+    return new File(base, GROUP_PREFIX + instanceName);
+  }
+
+  // Finds the cgroup to create instance groups under and enables the cpu and
+  // memory controllers for its children, null when that is not possible
+  private File prepareBase(String configuredPath) {
+    File dir;
+    if (!configuredPath.isEmpty()) {
+      // Either a full path or one relative to the cgroup mount
+      dir = configuredPath.startsWith(CGROUP_ROOT.getPath() + "/")
+          ? new File(configuredPath)
+          : new File(CGROUP_ROOT, configuredPath);
+    } else {
+      String own = ownCgroup();
+      if (own == null) {
+        Logger.warn("cgroup v2 is not in use, resource limits are disabled");
+        return null;
+      }
+      dir = new File(CGROUP_ROOT, own);
+    }
+
+    String controllers = read(new File(dir, "cgroup.controllers"));
+    if (controllers == null) {
+      Logger.warn("No cgroup v2 hierarchy at " + dir.getPath() + ", resource limits are disabled");
+      return null;
+    }
+
+    Set<String> wanted = new LinkedHashSet<>();
+    for (Settings instance : settings.values()) {
+      if (instance.cpuQuotaUsec > 0) {
+        wanted.add("cpu");
+      }
+      if (instance.memoryMaxBytes > 0) {
+        wanted.add("memory");
+      }
+    }
+    Set<String> available = new LinkedHashSet<>(Arrays.asList(controllers.split("\\s+")));
+    if (!available.containsAll(wanted)) {
+      Logger.warn("cgroup " + dir.getPath() + " does not delegate the " + String.join(" and ", wanted)
+          + " controllers (has: " + controllers + "), resource limits are disabled");
+      return null;
+    }
+
+    String subtree = read(new File(dir, "cgroup.subtree_control"));
+    Set<String> enabled = new LinkedHashSet<>(Arrays.asList((subtree == null ? "" : subtree).split("\\s+")));
+    if (enabled.containsAll(wanted)) {
+      return dir;
+    }
+
+    try {
+      vacate(dir);
+      StringBuilder enable = new StringBuilder();
+      for (String controller : wanted) {
+        enable.append(enable.length() > 0 ? " " : "").append('+').append(controller);
+      }
+      write(new File(dir, "cgroup.subtree_control"), enable.toString());
+    } catch (IOException e) {
+      Logger.warn("Could not enable cgroup controllers in " + dir.getPath() + ": " + e.getMessage()
+          + ", resource limits are disabled (run with a delegated cgroup, e.g. systemd Delegate=yes)");
+      return null;
+    }
+    Logger.info("Instance resource limits use cgroup " + dir.getPath());
+    return dir;
+  }
+
+  // Moves the wrapper out of a cgroup it would otherwise share with the
+  // instance groups, fails when other processes live there too
+  private static void vacate(File dir) throws IOException {
+    String procs = read(new File(dir, "cgroup.procs"));
+    if (procs == null || procs.isEmpty()) {
+      return;
+    }
+    String self = String.valueOf(ProcessHandle.current().pid());
+    for (String pid : procs.split("\\s+")) {
+      if (!pid.equals(self)) {
+        throw new IOException("it also holds other processes (pid " + pid + ")");
+      }
+    }
+    File leaf = new File(dir, WRAPPER_GROUP);
+    if (!leaf.isDirectory() && !leaf.mkdir()) {
+      throw new IOException("could not create " + leaf.getPath());
+    }
+    write(new File(leaf, "cgroup.procs"), self);
+  }
+
+  // Path of the wrapper's cgroup v2 group relative to the mount, null on
+  // cgroup v1 or hybrid systems without the unified hierarchy
+  private static String ownCgroup() {
+    String cgroups = read(new File("/proc/self/cgroup"));
+    if (cgroups == null || !new File(CGROUP_ROOT, "cgroup.controllers").exists()) {
+      return null;
+    }
+    for (String line : cgroups.split("\n")) {
+      if (line.startsWith("0::")) {
+        return line.substring(3);
+      }
+    }
+    return null;
+  }
+
+  private static List<Integer> allowedCpus() {
+    String allowed = readAffinity(ProcessHandle.current().pid());
+    List<Integer> cpus = allowed != null ? parseCpuList(allowed) : null;
+    if (cpus == null || cpus.isEmpty()) {
+      cpus = new ArrayList<>();
+      for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+        cpus.add(i);
+      }
+    }
+    return cpus;
+  }
+
+  // Parses the kernel list format (0,2-3), null when malformed
+  static List<Integer> parseCpuList(String list) {
+    List<Integer> cpus = new ArrayList<>();
+    for (String part : list.split(",")) {
+      String range = part.trim();
+      if (!range.matches("\\d+(-\\d+)?")) {
+        return null;
+      }
+      int dash = range.indexOf('-');
+      int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+      int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+      if (last < first) {
+        return null;
+      }
+      for (int cpu = first; cpu <= last; cpu++) {
+        cpus.add(cpu);
+      }
+    }
+    return cpus;
+  }
+
+  private static String findTaskset() {
+    for (String path : new String[] { "/usr/bin/taskset", "/bin/taskset" }) {
+      if (new File(path).canExecute()) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  private static Map<String, Long> readKeyed(File file) {
+    Map<String, Long> values = new HashMap<>();
+    String content = read(file);
+    if (content == null) {
+      return values;
+    }
+    for (String line : content.split("\n")) {
+      String[] parts = line.trim().split("\\s+");
+      if (parts.length == 2) {
+        values.put(parts[0], parseLong(parts[1]));
+      }
+    }
+    return values;
+  }
+
+  private static long parseLong(String value) {
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static String read(File file) {
+    try {
+      return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  // cgroup files take a single write without truncation or creation
+  private static void write(File file, String value) throws IOException {
+    Files.write(file.toPath(), value.getBytes(StandardCharsets.UTF_8), StandardOpenOption.WRITE);
+  }
+}
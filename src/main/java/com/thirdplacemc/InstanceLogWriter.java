@@ -0,0 +1,241 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+// Writes an instance's output to <dir>/<name>.log. The output thread only copies
+// lines into a staging buffer; a shared writer thread swaps it out and writes the
+// whole batch through a FileChannel once per flush interval (group commit), so the
+// console never waits on the disk. Lines that do not fit the staging buffer are
+// dropped and counted.
+public class InstanceLogWriter implements OutputSink {
+  private static final DateTimeFormatter ROTATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+  private static final ScheduledExecutorService writerExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Log-Writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final ExecutorService compressorExecutor = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "Log-Compressor");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    return thread;
+  });
+
+  private final String instanceName;
+  private final File directory;
+  private final File logFile;
+  private final long maxBytes;
+  private final long rotateMillis;
+  private final boolean compress;
+
+  // Guarded by this: the output thread appends to active, the writer thread swaps
+  private byte[] active;
+  private int activeLength;
+  private long droppedLines;
+  private long droppedBytes;
+
+  // Only touched by the writer thread
+  private byte[] flushing;
+  private FileChannel channel;
+  private long fileSize;
+  private long openedAt;
+  private ScheduledFuture<?> flushTask;
+
+  private volatile long writtenBytes;
+  private volatile int rotations;
+  private volatile int writeErrors;
+
+  public InstanceLogWriter(String instanceName, File directory, long maxBytes, long rotateMillis,
+      int bufferBytes, boolean compress) {
+    this.instanceName = instanceName;
+    this.directory = directory;
+    this.logFile = new File(directory, instanceName + ".log");
+    this.maxBytes = maxBytes;
+    this.rotateMillis = rotateMillis;
+    this.compress = compress;
+    this.active = new byte[bufferBytes];
+    this.flushing = new byte[bufferBytes];
+  }
+
+  public void start(long flushIntervalMillis) throws IOException {
+    directory.mkdirs();
+    openChannel();
+    flushTask = writerExecutor.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void onLine(byte[] buffer, int offset, int length) {
+    synchronized (this) {
+      if (activeLength + length + 1 > active.length) {
+        droppedLines++;
+        droppedBytes += length + 1;
+        return;
+      }
+      System.arraycopy(buffer, offset, active, activeLength, length);
+      activeLength += length;
+      active[activeLength++] = '\n';
+    }
+  }
+
+  private void flush() {
+    int length;
+    byte[] batch;
+    synchronized (this) {
+      batch = active;
+      length = activeLength;
+      active = flushing;
+      activeLength = 0;
+    }
+    flushing = batch;
+
+    try {
+      if (channel == null) {
+        openChannel();
+      }
+
+      boolean sizeExceeded = fileSize > 0 && maxBytes > 0 && fileSize + length > maxBytes;
+      boolean ageExceeded = fileSize > 0 && rotateMillis > 0 && System.currentTimeMillis() - openedAt >= rotateMillis;
+      if (sizeExceeded || ageExceeded) {
+        rotate();
+      }
+
+      if (length > 0) {
+        ByteBuffer buffer = ByteBuffer.wrap(batch, 0, length);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+        fileSize += length;
+        writtenBytes += length;
+      }
+    } catch (IOException e) {
+      writeErrors++;
+      synchronized (this) {
+        droppedBytes += length;
+      }
+      Logger.warn(instanceName, "Failed to write log file: " + e.getMessage());
+      closeChannel();
+    }
+  }
+
+  private void openChannel() throws IOException {
+    channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    fileSize = channel.size();
+    openedAt = System.currentTimeMillis();
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // Ignore
+      }
+      channel = null;
+    }
+  }
+
+  private void rotate() throws IOException {
+    closeChannel();
+
+    String stamp = LocalDateTime.now().format(ROTATE_FORMAT);
+    File rotated = new File(directory, instanceName + "-" + stamp + ".log");
+    for (int i = 1; rotated.exists() || new File(rotated.getPath() + ".gz").exists(); i++) {
+      rotated = new File(directory, instanceName + "-" + stamp + "-" + i + ".log");
+    }
+
+    if (logFile.renameTo(rotated)) {
+      rotations++;
+      if (compress) {
+        File toCompress = rotated;
+        compressorExecutor.execute(() -> compressFile(toCompress));
+      }
+    } else {
+      Logger.warn(instanceName, "Could not rotate log file " + logFile.getPath());
+    }
+
+    openChannel();
+  }
+
+  private void compressFile(File file) {
+    File target = new File(file.getPath() + ".gz");
+    try (InputStream in = new FileInputStream(file);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(target))) {
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } catch (IOException e) {
+      Logger.warn(instanceName, "Failed to compress " + file.getName() + ": " + e.getMessage());
+      target.delete();
+      return;
+    }
+
+    try {
+      Files.delete(file.toPath());
+    } catch (IOException e) {
+      Logger.warn(instanceName, "Failed to remove " + file.getName() + " after compression: " + e.getMessage());
+    }
+  }
+
+  // Writes whatever is still staged and closes the file. Safe to call from the
+  // shutdown hook.
+  public void close() {
+    if (flushTask != null) {
+      flushTask.cancel(false);
+    }
+    try {
+      writerExecutor.submit(() -> {
+        flush();
+        closeChannel();
+      }).get(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      Logger.warn(instanceName, "Failed to flush log file on shutdown: " + e.getMessage());
+    }
+  }
+
+  public File getLogFile() {
+    return logFile;
+  }
+
+  public synchronized long getDroppedLines() {
+    return droppedLines;
+  }
+
+  public synchronized long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  public long getWrittenBytes() {
+    return writtenBytes;
+  }
+
+  public int getRotations() {
+    return rotations;
+  }
+
+  public int getWriteErrors() {
+    return writeErrors;
+  }
+}
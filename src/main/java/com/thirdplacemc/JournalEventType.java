@@ -0,0 +1,53 @@
+package com.thirdplacemc;
+
+// Lifecycle events recorded in the supervisor journal. The code is what is
+// stored on disk, so existing codes must never change.
+public enum JournalEventType {
+  // value: pid, detail: why it was launched (autostart, start, restart, crash, update,
+  // memory, scheduled, canary, rollback, activation, cluster)
+  LAUNCH(1, "launch"),
+  // value: pid of a process left running by a previous wrapper
+  ADOPT(2, "adopt"),
+  // value: milliseconds from launch to "Listening on:"
+  READY(3, "ready"),
+  // value: exit code, extra: uptime in milliseconds
+  EXIT(4, "exit"),
+  // value: exit code, extra: uptime in milliseconds, detail: last output line
+  CRASH(5, "crash"),
+  // value: consecutive restart attempt
+  RESTART(6, "restart"),
+  // value: attempts made before giving up
+  GIVE_UP(7, "give up"),
+  // detail: outcome of the update, recorded for every instance, or of a canary
+  // for the canary instances
+  UPDATE(8, "update"),
+  // value: launches, extra: crashes, both before the first event kept by compaction
+  SUMMARY(9, "summary"),
+  // value: milliseconds from crash to the spare serving the port, extra: pid of the spare
+  FAILOVER(10, "failover");
+
+  private final int code;
+  private final String label;
+
+  JournalEventType(int code, String label) {
+    this.code = code;
+    this.label = label;
+  }
+
+  public int getCode() {
+    return code;
+  }
+
+  public String getLabel() {
+    return label;
+  }
+
+  public static JournalEventType fromCode(int code) {
+    for (JournalEventType type : values()) {
+      if (type.code == code) {
+        return type;
+      }
+    }
+    return null;
+  }
+}
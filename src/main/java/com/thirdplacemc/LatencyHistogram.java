@@ -0,0 +1,99 @@
+package com.thirdplacemc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Microsecond latencies in log-linear buckets: exact below 16 us, then 16
+// buckets per power of two (within about 6%), up to about 12 days. Recording
+// is one atomic increment, from any number of threads.
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int BUCKETS = SUB_BUCKETS + (40 - SUB_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long micros) {
+    long value = Math.max(0, micros);
+    counts.incrementAndGet(indexOf(value));
+    total.incrementAndGet();
+    sum.addAndGet(value);
+    long previous;
+    while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+      // Lost to another thread, try again
+    }
+  }
+
+  public long getCount() {
+    return total.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getMean() {
+    long count = total.get();
+    return count > 0 ? sum.get() / count : 0;
+  }
+
+  // Upper bound of the bucket holding the given percentile (0-100), 0 when empty
+  public long getPercentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  // "p50 1.2 ms, p90 3.4 ms, p99 9.1 ms, max 20 ms"
+  public String describe() {
+    if (getCount() == 0) {
+      return "none";
+    }
+    return "p50 " + format(getPercentile(50)) + ", p90 " + format(getPercentile(90)) + ", p99 "
+        + format(getPercentile(99)) + ", max " + format(getMax());
+  }
+
+  public static String format(long micros) {
+    if (micros < 1000) {
+      return micros + " us";
+    }
+    if (micros < 10_000) {
+      return String.format("%.2f ms", micros / 1000.0);
+    }
+    if (micros < 1_000_000) {
+      return String.format("%.1f ms", micros / 1000.0);
+    }
+    return String.format("%.2f s", micros / 1_000_000.0);
+  }
+
+  private static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub);
+  }
+
+  private static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+    int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+}
@@ -0,0 +1,107 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Reads and rewrites the listen address of a PicoLimbo server.toml, the only
+// setting the wrapper needs to change to run a config on another port
+public class LimboToml {
+  // PicoLimbo's default when the config has no bind
+  public static final String DEFAULT_BIND = "0.0.0.0:25565";
+  private static final Pattern BIND = Pattern.compile("^\\s*bind\\s*=\\s*\"([^\"]*)\"");
+  private static final Pattern TABLE = Pattern.compile("^\\s*\\[");
+
+  private LimboToml() {
+  }
+
+  public static String readBind(File config) throws IOException {
+    for (String line : Files.readAllLines(config.toPath(), StandardCharsets.UTF_8)) {
+      if (TABLE.matcher(line).find()) {
+        break;
+      }
+      Matcher matcher = BIND.matcher(line);
+      if (matcher.find()) {
+        return matcher.group(1);
+      }
+    }
+    return DEFAULT_BIND;
+  }
+
+  // The config's lines without its top-level bind, equal for two configs
+  // that only differ in their listen address
+  public static List<String> linesWithoutBind(File config) throws IOException {
+    List<String> lines = new ArrayList<>(Files.readAllLines(config.toPath(), StandardCharsets.UTF_8));
+    for (int i = 0; i < lines.size(); i++) {
+      if (TABLE.matcher(lines.get(i)).find()) {
+        break;
+      }
+      if (BIND.matcher(lines.get(i)).find()) {
+        lines.remove(i);
+        break;
+      }
+    }
+    return lines;
+  }
+
+  // Copies template to target with bind replaced, or added in front of the
+  // first table when the template has none
+  public static void writeWithBind(File template, File target, String bind) throws IOException {
+    List<String> lines = new ArrayList<>(Files.readAllLines(template.toPath(), StandardCharsets.UTF_8));
+    String bindLine = "bind = \"" + bind + "\"";
+    int insertAt = lines.size();
+    boolean replaced = false;
+    for (int i = 0; i < lines.size(); i++) {
+      if (TABLE.matcher(lines.get(i)).find()) {
+        insertAt = i;
+        break;
+      }
+      if (BIND.matcher(lines.get(i)).find()) {
+        lines.set(i, bindLine);
+        replaced = true;
+        break;
+      }
+    }
+    if (!replaced) {
+      lines.add(insertAt, bindLine);
+    }
+
+    File parent = target.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    File temp = new File(parent, target.getName() + ".tmp");
+    Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  // host:port, with [v6]:port brackets allowed
+  public static InetSocketAddress parseAddress(String bind) {
+    int colon = bind.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Missing port in bind address: " + bind);
+    }
+    String host = bind.substring(0, colon).replace("[", "").replace("]", "");
+    return new InetSocketAddress(host, Integer.parseInt(bind.substring(colon + 1)));
+  }
+
+  // Where a client on this host reaches the config's bind address, loopback
+  // for a wildcard address
+  public static InetSocketAddress clientAddress(File config) throws IOException {
+    InetSocketAddress bind = parseAddress(readBind(config));
+    InetAddress host = bind.getAddress();
+    if (host == null) {
+      throw new IOException("Cannot resolve " + bind.getHostString() + " in " + config.getPath());
+    }
+    if (host.isAnyLocalAddress()) {
+      host = InetAddress.getLoopbackAddress();
+    }
+    return new InetSocketAddress(host, bind.getPort());
+  }
+}
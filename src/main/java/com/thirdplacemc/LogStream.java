@@ -0,0 +1,359 @@
+package com.thirdplacemc;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Instance output as Server-Sent Events on http.port: /logs/<instance> for
+// one instance, /logs for all of them with every line prefixed by
+// "[<instance>] ". A line is encoded once per form however many clients
+// follow it, and the same immutable frame is queued for each. Every client
+// has a bounded queue that loses its oldest lines when the client falls
+// behind, and a thread of its own writing to it, so a stalled client never
+// holds up the Output-<name> thread. Without logs.stream.token only clients
+// on this host may connect, with it every client must send the token.
+public class LogStream {
+  private static final String PATH = "/logs";
+  private static final long KEEPALIVE_MS = 15_000;
+  private static final byte[] DATA = "data: ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final Map<String, Channel> channels = new LinkedHashMap<>();
+  private final List<Subscriber> everything = new CopyOnWriteArrayList<>();
+  private final Map<String, InstanceInfo> instances;
+  private final int bufferLines;
+  private final int maxClients;
+  private final byte[] token;
+  private final AtomicInteger clients = new AtomicInteger();
+  private final AtomicInteger sequence = new AtomicInteger();
+  private final AtomicLong framesSent = new AtomicLong();
+  private final AtomicLong framesDropped = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+  private final AtomicLong unauthorized = new AtomicLong();
+  private volatile boolean stopped;
+
+  // Receives one instance's output, on its Output-<name> thread
+  private final class Channel implements OutputSink {
+    private final byte[] prefix;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    Channel(String name) {
+      this.prefix = ("data: [" + name + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void onLine(byte[] buffer, int offset, int length) {
+      if (!subscribers.isEmpty()) {
+        byte[] frame = frame(DATA, buffer, offset, length);
+        for (Subscriber subscriber : subscribers) {
+          subscriber.offer(frame);
+        }
+      }
+      if (!everything.isEmpty()) {
+        byte[] frame = frame(prefix, buffer, offset, length);
+        for (Subscriber subscriber : everything) {
+          subscriber.offer(frame);
+        }
+      }
+    }
+  }
+
+  // One client's queue of frames, drained by its writer thread
+  private final class Subscriber {
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private long dropped;
+    private boolean closed;
+
+    synchronized void offer(byte[] frame) {
+      if (closed) {
+        return;
+      }
+      if (queue.size() >= bufferLines) {
+        queue.pollFirst();
+        dropped++;
+        framesDropped.incrementAndGet();
+      }
+      queue.addLast(frame);
+      // The writer only waits on an empty queue
+      if (queue.size() == 1) {
+        notifyAll();
+      }
+    }
+
+    // Moves the queued frames to batch, waiting up to timeoutMillis for the
+    // first. Returns the frames lost since the last call, -1 once closed.
+    synchronized long drainTo(List<byte[]> batch, long timeoutMillis) throws InterruptedException {
+      if (queue.isEmpty() && !closed) {
+        wait(timeoutMillis);
+      }
+      if (closed) {
+        return -1;
+      }
+      batch.addAll(queue);
+      queue.clear();
+      long lost = dropped;
+      dropped = 0;
+      return lost;
+    }
+
+    synchronized void close() {
+      closed = true;
+      queue.clear();
+      notifyAll();
+    }
+  }
+
+  private LogStream(WrapperConfig config, Map<String, InstanceInfo> instances) {
+    this.instances = instances;
+    this.bufferLines = config.getLogStreamBufferLines();
+    this.maxClients = config.getLogStreamMaxClients();
+    String configured = config.getLogStreamToken();
+    this.token = configured.isEmpty() ? null : configured.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Adds a sink to every instance, clients connect once registered
+  public static LogStream create(WrapperConfig config, Map<String, InstanceInfo> instances) {
+    LogStream stream = new LogStream(config, instances);
+    for (InstanceInfo instance : instances.values()) {
+      Channel channel = stream.new Channel(instance.getName());
+      stream.channels.put(instance.getName(), channel);
+      instance.addOutputSink(channel);
+    }
+    return stream;
+  }
+
+  public void register(WrapperHttpServer server) {
+    server.addStreamHandler(PATH, this::handle);
+  }
+
+  public int getClients() {
+    return clients.get();
+  }
+
+  public long getFramesSent() {
+    return framesSent.get();
+  }
+
+  public long getFramesDropped() {
+    return framesDropped.get();
+  }
+
+  public long getRefused() {
+    return refused.get();
+  }
+
+  public long getUnauthorized() {
+    return unauthorized.get();
+  }
+
+  // Ends every stream
+  public void stop() {
+    stopped = true;
+    for (Channel channel : channels.values()) {
+      for (Subscriber subscriber : channel.subscribers) {
+        subscriber.close();
+      }
+    }
+    for (Subscriber subscriber : everything) {
+      subscriber.close();
+    }
+  }
+
+  // "data: " prefix, the line with any CR (a line break to SSE) replaced and
+  // the blank line ending the event
+  private static byte[] frame(byte[] prefix, byte[] buffer, int offset, int length) {
+    byte[] frame = new byte[prefix.length + length + 2];
+    System.arraycopy(prefix, 0, frame, 0, prefix.length);
+    System.arraycopy(buffer, offset, frame, prefix.length, length);
+    for (int i = prefix.length; i < prefix.length + length; i++) {
+      if (frame[i] == '\r') {
+        frame[i] = ' ';
+      }
+    }
+    frame[frame.length - 2] = '\n';
+    frame[frame.length - 1] = '\n';
+    return frame;
+  }
+
+  // Runs on an HTTP thread, the stream itself on a thread of its own
+  private void handle(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET")) {
+      WrapperHttpServer.sendText(exchange, 405, "GET only");
+      exchange.close();
+      return;
+    }
+    String path = exchange.getRequestURI().getPath();
+    String name = path.length() > PATH.length() + 1 ? path.substring(PATH.length() + 1) : null;
+    if (!isAuthorized(exchange)) {
+      unauthorized.incrementAndGet();
+      WrapperHttpServer.sendText(exchange, token != null ? 401 : 403,
+          token != null ? "missing or wrong token" : "set logs.stream.token to stream logs to other hosts");
+      exchange.close();
+      return;
+    }
+    if (!path.equals(PATH) && !path.startsWith(PATH + "/") || name != null && !channels.containsKey(name)) {
+      WrapperHttpServer.sendText(exchange, 404, "not found");
+      exchange.close();
+      return;
+    }
+    if (stopped) {
+      WrapperHttpServer.sendText(exchange, 503, "shutting down");
+      exchange.close();
+      return;
+    }
+    if (clients.incrementAndGet() > maxClients) {
+      clients.decrementAndGet();
+      refused.incrementAndGet();
+      WrapperHttpServer.sendText(exchange, 503, "too many log stream clients");
+      exchange.close();
+      return;
+    }
+
+    List<byte[]> backlog = tail(name, parseTail(exchange.getRequestURI().getRawQuery()));
+    Subscriber subscriber = new Subscriber();
+    List<Subscriber> subscribers = name != null ? channels.get(name).subscribers : everything;
+    subscribers.add(subscriber);
+
+    exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+    exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+    // Keeps proxies such as nginx from buffering the stream
+    exchange.getResponseHeaders().set("X-Accel-Buffering", "no");
+    try {
+      exchange.sendResponseHeaders(200, 0);
+    } catch (IOException e) {
+      subscribers.remove(subscriber);
+      clients.decrementAndGet();
+      throw e;
+    }
+
+    Thread writer = new Thread(() -> stream(exchange, subscriber, subscribers, backlog),
+        "Logs-" + sequence.incrementAndGet());
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  private void stream(HttpExchange exchange, Subscriber subscriber, List<Subscriber> subscribers,
+      List<byte[]> backlog) {
+    List<byte[]> batch = new ArrayList<>();
+    try (OutputStream out = exchange.getResponseBody()) {
+      for (byte[] frame : backlog) {
+        out.write(frame);
+      }
+      out.write(KEEPALIVE);
+      out.flush();
+
+      while (true) {
+        batch.clear();
+        long lost = subscriber.drainTo(batch, KEEPALIVE_MS);
+        if (lost < 0) {
+          break;
+        }
+        if (lost > 0) {
+          out.write(("event: dropped\ndata: " + lost + "\n\n").getBytes(StandardCharsets.UTF_8));
+        } else if (batch.isEmpty()) {
+          // Finds clients that went away while nothing was logged
+          out.write(KEEPALIVE);
+        }
+        for (byte[] frame : batch) {
+          out.write(frame);
+        }
+        out.flush();
+        framesSent.addAndGet(batch.size());
+      }
+    } catch (IOException e) {
+      // Client went away
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      subscribers.remove(subscriber);
+      subscriber.close();
+      clients.decrementAndGet();
+      exchange.close();
+    }
+  }
+
+  // ?tail=<n> replays the last n buffered lines of each instance first
+  private int parseTail(String query) {
+    String tail = queryParameter(query, "tail");
+    if (tail == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Math.min(bufferLines, Integer.parseInt(tail)));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  // The token as "Authorization: Bearer <token>", or as ?token=<token> for
+  // EventSource, which cannot set headers. Without a token, loopback only.
+  private boolean isAuthorized(HttpExchange exchange) {
+    if (token == null) {
+      return exchange.getRemoteAddress().getAddress().isLoopbackAddress();
+    }
+    String presented;
+    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+    if (authorization != null && authorization.startsWith("Bearer ")) {
+      presented = authorization.substring("Bearer ".length()).trim();
+    } else {
+      presented = queryParameter(exchange.getRequestURI().getRawQuery(), "token");
+    }
+    return presented != null && MessageDigest.isEqual(token, presented.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String queryParameter(String query, String key) {
+    if (query == null) {
+      return null;
+    }
+    for (String parameter : query.split("&")) {
+      if (parameter.startsWith(key + "=")) {
+        try {
+          return URLDecoder.decode(parameter.substring(key.length() + 1), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private List<byte[]> tail(String name, int lines) {
+    List<byte[]> frames = new ArrayList<>();
+    if (lines == 0) {
+      return frames;
+    }
+    for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+      OutputRingBuffer buffer = instances.get(entry.getKey()).getOutputBuffer();
+      if (name != null && !name.equals(entry.getKey()) || buffer == null) {
+        continue;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      PrintStream out = new PrintStream(bytes);
+      buffer.tail(lines, out);
+      out.flush();
+      byte[] prefix = name != null ? DATA : entry.getValue().prefix;
+      byte[] data = bytes.toByteArray();
+      int start = 0;
+      for (int i = 0; i < data.length; i++) {
+        if (data[i] == '\n') {
+          frames.add(frame(prefix, data, start, i - start));
+          start = i + 1;
+        }
+      }
+    }
+    return frames;
+  }
+}
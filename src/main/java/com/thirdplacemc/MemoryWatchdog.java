@@ -0,0 +1,336 @@
+package com.thirdplacemc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+// Samples the resident memory of every instance and restarts an instance
+// before it becomes a problem: past a memory threshold, when memory keeps
+// growing faster than allowed, or after a scheduled maintenance uptime.
+// Restarts run one at a time per group, the next only once the previous
+// instance is ready again, so a group never loses all its instances at once.
+public class MemoryWatchdog {
+  // Fewer samples than this, or covering less than half the window, say
+  // nothing reliable about growth
+  private static final int MIN_GROWTH_SAMPLES = 5;
+  private static final long READY_POLL_MS = 100;
+
+  public interface Restarter {
+    void restart(String instanceName, String reason);
+  }
+
+  private static class Policy {
+    private String group;
+    private long restartBytes;
+    private double growthMbPerHour;
+    private long maintenanceMillis;
+
+    private boolean isEnabled() {
+      return restartBytes > 0 || growthMbPerHour > 0 || maintenanceMillis > 0;
+    }
+  }
+
+  private static class Samples {
+    private final Deque<long[]> window = new ArrayDeque<>();
+    private long launchedAt;
+    private volatile long lastRss = -1;
+  }
+
+  private final Map<String, InstanceInfo> instances;
+  private final Restarter restarter;
+  private final BooleanSupplier paused;
+  private final long intervalMillis;
+  private final long windowMillis;
+  private final long readyTimeoutMillis;
+  private final long minUptimeMillis;
+  private final Map<String, Policy> policies = new HashMap<>();
+  private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+  private final Map<String, ExecutorService> groupWorkers = new ConcurrentHashMap<>();
+  private final Set<String> pending = ConcurrentHashMap.newKeySet();
+  private ScheduledExecutorService sampler;
+
+  private MemoryWatchdog(WrapperConfig config, Map<String, InstanceInfo> instances, Restarter restarter,
+      BooleanSupplier paused) {
+    this.instances = instances;
+    this.restarter = restarter;
+    this.paused = paused;
+    this.intervalMillis = config.getWatchdogIntervalMillis();
+    this.windowMillis = config.getWatchdogGrowthWindowMillis();
+    this.readyTimeoutMillis = config.getWatchdogReadyTimeoutMillis();
+    this.minUptimeMillis = config.getWatchdogMinUptimeMillis();
+  }
+
+  // Returns null when no instance has a restart policy. paused is checked
+  // before every restart, e.g. while an update restarts everything anyway.
+  public static MemoryWatchdog create(WrapperConfig config, Map<String, InstanceInfo> instances,
+      Restarter restarter, BooleanSupplier paused) {
+    MemoryWatchdog watchdog = new MemoryWatchdog(config, instances, restarter, paused);
+    for (String name : instances.keySet()) {
+      Policy policy = new Policy();
+      policy.group = config.getInstanceGroup(name);
+      policy.restartBytes = config.getRestartMemoryBytes(name);
+      policy.growthMbPerHour = config.getRestartGrowthMbPerHour(name);
+      policy.maintenanceMillis = config.getMaintenanceRestartMillis(name);
+      if (policy.isEnabled()) {
+        watchdog.policies.put(name, policy);
+      }
+    }
+    if (watchdog.policies.isEmpty()) {
+      return null;
+    }
+    if (System.getProperty("os.name").toLowerCase().startsWith("windows")) {
+      Logger.warn("The memory watchdog is not supported on Windows, instances will not be restarted proactively");
+      return null;
+    }
+    return watchdog;
+  }
+
+  public void start() {
+    sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Watchdog");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sampler.scheduleWithFixedDelay(this::sampleAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    Logger.info("Memory watchdog watching " + policies.size() + " instance(s) every " + intervalMillis / 1000 + "s");
+  }
+
+  public void stop() {
+    if (sampler != null) {
+      sampler.shutdownNow();
+    }
+    for (ExecutorService worker : groupWorkers.values()) {
+      worker.shutdownNow();
+    }
+  }
+
+  // Last sampled resident memory, -1 before the first sample
+  public long getRss(String instanceName) {
+    Samples instance = samples.get(instanceName);
+    return instance != null ? instance.lastRss : -1;
+  }
+
+  // Growth over the window in MB per hour, NaN until there are enough samples
+  public double getGrowthMbPerHour(String instanceName) {
+    Samples instance = samples.get(instanceName);
+    if (instance == null) {
+      return Double.NaN;
+    }
+    synchronized (instance) {
+      return growthMbPerHour(instance.window);
+    }
+  }
+
+  // Uptime left until the scheduled restart, -1 when there is none
+  public long getMillisUntilMaintenance(String instanceName) {
+    Policy policy = policies.get(instanceName);
+    InstanceInfo instance = instances.get(instanceName);
+    if (policy == null || policy.maintenanceMillis <= 0 || instance == null || !instance.isRunning()) {
+      return -1;
+    }
+    return Math.max(0, instance.getLaunchedAt() + policy.maintenanceMillis - System.currentTimeMillis());
+  }
+
+  public boolean isWatched(String instanceName) {
+    return policies.containsKey(instanceName);
+  }
+
+  private void sampleAll() {
+    try {
+      for (Map.Entry<String, Policy> entry : policies.entrySet()) {
+        sample(entry.getKey(), entry.getValue());
+      }
+    } catch (RuntimeException e) {
+      // Keep the schedule alive, a failed run only skips one sample
+      Logger.error("Memory watchdog failed: " + e.getMessage());
+    }
+  }
+
+  private void sample(String name, Policy policy) {
+    InstanceInfo instance = instances.get(name);
+    if (instance == null || !instance.isRunning() || !instance.isReady()) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    long launchedAt = instance.getLaunchedAt();
+    long rss = readRss(instance.getProcessHandle().pid());
+    if (rss < 0) {
+      return;
+    }
+
+    Samples history = samples.computeIfAbsent(name, key -> new Samples());
+    double growth;
+    synchronized (history) {
+      // A new process starts a new series
+      if (history.launchedAt != launchedAt) {
+        history.window.clear();
+        history.launchedAt = launchedAt;
+      }
+      history.window.addLast(new long[] { now, rss });
+      while (now - history.window.peekFirst()[0] > windowMillis) {
+        history.window.removeFirst();
+      }
+      history.lastRss = rss;
+      growth = growthMbPerHour(history.window);
+    }
+
+    // A limit set below what a fresh instance needs would restart it forever
+    boolean settled = now - launchedAt >= minUptimeMillis;
+    String reason = null;
+    if (settled && policy.restartBytes > 0 && rss > policy.restartBytes) {
+      reason = "memory " + toMb(rss) + " MB over limit " + toMb(policy.restartBytes) + " MB";
+    } else if (settled && policy.growthMbPerHour > 0 && growth > policy.growthMbPerHour) {
+      reason = String.format("memory growing %.1f MB/h, limit %.1f MB/h", growth, policy.growthMbPerHour);
+    } else if (policy.maintenanceMillis > 0 && now - launchedAt >= policy.maintenanceMillis) {
+      reason = "scheduled after " + formatHours(now - launchedAt) + " uptime";
+    }
+
+    if (reason != null && pending.add(name)) {
+      String trigger = reason;
+      String launch = trigger.startsWith("scheduled") ? "scheduled" : "memory";
+      Logger.info(name, "Watchdog queued a restart (" + trigger + ") in group '" + policy.group + "'");
+      worker(policy.group).execute(() -> {
+        try {
+          restart(name, launchedAt, launch, trigger);
+        } finally {
+          pending.remove(name);
+        }
+      });
+    }
+  }
+
+  private ExecutorService worker(String group) {
+    return groupWorkers.computeIfAbsent(group, key -> Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Watchdog-" + key);
+      thread.setDaemon(true);
+      return thread;
+    }));
+  }
+
+  // Runs on the group's worker, so at most one instance per group is in here
+  private void restart(String name, long launchedAt, String launchReason, String trigger) {
+    InstanceInfo instance = instances.get(name);
+    // Restarted, stopped or crashed since it was queued, nothing left to do
+    if (instance == null || !instance.isRunning() || instance.getLaunchedAt() != launchedAt) {
+      return;
+    }
+    if (paused.getAsBoolean()) {
+      Logger.info(name, "Watchdog restart skipped, the wrapper is busy");
+      return;
+    }
+
+    long before = readRss(instance.getProcessHandle().pid());
+    Logger.warn(name, "Watchdog restarting instance (" + trigger + "), memory before: " + toMb(before) + " MB");
+    long started = System.currentTimeMillis();
+    restarter.restart(name, launchReason);
+
+    // Hold the group until this instance serves players again
+    try {
+      long deadline = started + readyTimeoutMillis;
+      while (!(instance.isRunning() && instance.isReady()) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(READY_POLL_MS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    long readyMillis = System.currentTimeMillis() - started;
+    if (!instance.isRunning() || !instance.isReady()) {
+      Logger.error(name, "Watchdog restart did not become ready within " + readyTimeoutMillis / 1000
+          + "s, continuing with the group");
+      return;
+    }
+    long after = readRss(instance.getProcessHandle().pid());
+    Logger.info(name, "Watchdog restart done in " + readyMillis + " ms, memory " + toMb(before) + " MB -> "
+        + toMb(after) + " MB");
+    Policy policy = policies.get(name);
+    if (policy.restartBytes > 0 && after > policy.restartBytes) {
+      Logger.warn(name, "Memory right after the restart is already over memory.restartMb ("
+          + toMb(policy.restartBytes) + " MB), the limit is likely too low");
+    }
+  }
+
+  // Least-squares slope of the samples, in MB per hour
+  private double growthMbPerHour(Deque<long[]> window) {
+    int count = window.size();
+    if (count < MIN_GROWTH_SAMPLES) {
+      return Double.NaN;
+    }
+    long firstTime = window.peekFirst()[0];
+    long lastTime = window.peekLast()[0];
+    if (lastTime - firstTime < windowMillis / 2) {
+      return Double.NaN;
+    }
+
+    double sumX = 0;
+    double sumY = 0;
+    double sumXY = 0;
+    double sumXX = 0;
+    for (long[] sample : window) {
+      double x = (sample[0] - firstTime) / 3_600_000.0;
+      double y = sample[1] / (1024.0 * 1024.0);
+      sumX += x;
+      sumY += y;
+      sumXY += x * y;
+      sumXX += x * x;
+    }
+    double denominator = count * sumXX - sumX * sumX;
+    return denominator == 0 ? Double.NaN : (count * sumXY - sumX * sumY) / denominator;
+  }
+
+  // Resident set size in bytes from /proc, or ps where there is no /proc
+  // (macOS), -1 when the process is gone
+  public static long readRss(long pid) {
+    File status = new File("/proc/" + pid + "/status");
+    if (new File("/proc/self").exists()) {
+      try {
+        for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+          if (line.startsWith("VmRSS:")) {
+            return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+          }
+        }
+      } catch (IOException | NumberFormatException e) {
+        // Gone
+      }
+      return -1;
+    }
+
+    try {
+      Process ps = new ProcessBuilder("ps", "-o", "rss=", "-p", String.valueOf(pid)).start();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(ps.getInputStream()))) {
+        String line = reader.readLine();
+        ps.waitFor(5, TimeUnit.SECONDS);
+        return line != null ? Long.parseLong(line.trim()) * 1024 : -1;
+      }
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return -1;
+    }
+  }
+
+  private static long toMb(long bytes) {
+    return bytes < 0 ? -1 : bytes / (1024 * 1024);
+  }
+
+  private static String formatHours(long millis) {
+    return String.format("%.1fh", millis / 3_600_000.0);
+  }
+}
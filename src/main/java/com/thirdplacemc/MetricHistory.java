@@ -0,0 +1,406 @@
+package com.thirdplacemc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Samples every instance each history.intervalSeconds into a MetricStore:
+// resident memory, CPU, restarts and the round trip of a status ping to the
+// instance's address. Queried by 'history <instance> <metric> [duration]'
+// and at /history/<instance>/<metric> on http.port, both downsampled to a
+// fixed number of points however long the range.
+public class MetricHistory {
+  private static final String PATH = "/history";
+  private static final int PING_TIMEOUT_MS = 2000;
+  private static final int PING_PROTOCOL = 769;
+  private static final int MAX_POINTS = 2000;
+
+  public enum Metric {
+    MEMORY(1, "memory", "MB", false),
+    CPU(2, "cpu", "%", false),
+    RESTARTS(3, "restarts", "", true),
+    PING(4, "ping", "ms", false);
+
+    private final int code;
+    private final String label;
+    private final String unit;
+    private final boolean counter;
+
+    Metric(int code, String label, String unit, boolean counter) {
+      this.code = code;
+      this.label = label;
+      this.unit = unit;
+      this.counter = counter;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+
+    public String getUnit() {
+      return unit;
+    }
+
+    // Counters add up in a downsampled bucket, the others are averaged
+    public boolean isCounter() {
+      return counter;
+    }
+
+    public static Metric fromLabel(String label) {
+      for (Metric metric : values()) {
+        if (metric.label.equals(label)) {
+          return metric;
+        }
+      }
+      return null;
+    }
+  }
+
+  // One point of a downsampled series, the bucket's start and its values
+  public static class Bucket {
+    private final long second;
+    private double min = Double.MAX_VALUE;
+    private double max = -Double.MAX_VALUE;
+    private double sum;
+    private int count;
+
+    Bucket(long second) {
+      this.second = second;
+    }
+
+    void add(double value) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+      count++;
+    }
+
+    public long getSecond() {
+      return second;
+    }
+
+    public double getMin() {
+      return min;
+    }
+
+    public double getMax() {
+      return max;
+    }
+
+    public double getAverage() {
+      return sum / count;
+    }
+
+    public double getSum() {
+      return sum;
+    }
+  }
+
+  private static class Previous {
+    private long pid = -1;
+    private long cpuMillis;
+    private long sampledAt;
+  }
+
+  private final Map<String, InstanceInfo> instances;
+  private final MetricStore store;
+  private final long intervalMillis;
+  private final Map<String, Boolean> pinged = new HashMap<>();
+  private final Map<String, Previous> previous = new HashMap<>();
+  private final Map<String, AtomicInteger> restarts = new ConcurrentHashMap<>();
+  private volatile long points;
+  private volatile long failedWrites;
+  private ScheduledExecutorService sampler;
+
+  private MetricHistory(WrapperConfig config, Map<String, InstanceInfo> instances) {
+    this.instances = instances;
+    this.store = new MetricStore(new File(config.getHistoryDirectory()), config.getHistoryRetentionDays());
+    this.intervalMillis = config.getHistoryIntervalMillis();
+    for (InstanceInfo instance : instances.values()) {
+      // Pinging a lazy instance would keep it awake
+      pinged.put(instance.getName(), !config.isLazy(instance.getName()));
+      previous.put(instance.getName(), new Previous());
+      restarts.put(instance.getName(), new AtomicInteger());
+    }
+  }
+
+  public static MetricHistory create(WrapperConfig config, Map<String, InstanceInfo> instances) {
+    return new MetricHistory(config, instances);
+  }
+
+  public void start() {
+    store.expire();
+    sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "History");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Half a second past a whole second, so jitter does not move the
+    // sample to another second and cost bits in the delta-of-delta
+    long delay = intervalMillis + 500 - System.currentTimeMillis() % 1000;
+    sampler.scheduleAtFixedRate(this::sampleAll, delay, intervalMillis, TimeUnit.MILLISECONDS);
+    sampler.scheduleAtFixedRate(store::expire, 1, 1, TimeUnit.HOURS);
+  }
+
+  public void stop() {
+    if (sampler != null) {
+      sampler.shutdownNow();
+      try {
+        sampler.awaitTermination(PING_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    store.close();
+  }
+
+  public void register(WrapperHttpServer server) {
+    server.addHandler(PATH, this::handle);
+  }
+
+  // Sees every journal event: a crash restart, failed over or not, and a
+  // launch replacing a running instance count as restarts
+  public void onEvent(JournalEventType type, String instanceName, String detail) {
+    boolean restart = type == JournalEventType.RESTART || type == JournalEventType.LAUNCH
+        && (detail.equals("restart") || detail.equals("update") || detail.equals("memory")
+            || detail.equals("scheduled") || detail.equals("canary") || detail.equals("rollback"));
+    AtomicInteger count = restarts.get(instanceName);
+    if (restart && count != null) {
+      count.incrementAndGet();
+    }
+  }
+
+  public String describe() {
+    List<File> segments = store.segments();
+    return points + " points every " + intervalMillis / 1000 + "s in " + segments.size() + " segments ("
+        + DeltaSource.formatBytes(store.getDiskBytes()) + ")" + (failedWrites > 0 ? ", " + failedWrites
+            + " failed writes" : "");
+  }
+
+  // Buckets of the range's points, at whole multiples of their width so
+  // hourly buckets start on the hour. Empty buckets are left out.
+  public List<Bucket> query(String instanceName, Metric metric, long fromSecond, long toSecond, int buckets)
+      throws IOException {
+    long width = Math.max(intervalMillis / 1000, (toSecond - fromSecond + buckets - 1) / buckets);
+    Map<Long, Bucket> byStart = new HashMap<>();
+    List<Bucket> result = new ArrayList<>();
+    store.read(instanceName, metric.code, fromSecond, toSecond, (second, value) -> {
+      long start = second / width * width;
+      Bucket bucket = byStart.get(start);
+      if (bucket == null) {
+        bucket = new Bucket(start);
+        byStart.put(start, bucket);
+        result.add(bucket);
+      }
+      bucket.add(value);
+    });
+    result.sort((a, b) -> Long.compare(a.second, b.second));
+    return result;
+  }
+
+  private void sampleAll() {
+    long second = System.currentTimeMillis() / 1000;
+    for (InstanceInfo instance : instances.values()) {
+      try {
+        sample(instance, second);
+      } catch (IOException e) {
+        // Keep sampling, the disk may have room again next time
+        if (failedWrites++ == 0) {
+          Logger.error("Could not write metric history: " + e.getMessage());
+        }
+      } catch (RuntimeException e) {
+        Logger.error(instance.getName(), "Metric sample failed: " + e);
+      }
+    }
+  }
+
+  private void sample(InstanceInfo instance, long second) throws IOException {
+    String name = instance.getName();
+    // Restarts are recorded while stopped too, so a crash loop shows up
+    append(name, Metric.RESTARTS, second, restarts.get(name).getAndSet(0));
+    if (!instance.isRunning()) {
+      return;
+    }
+
+    ProcessHandle process = instance.getProcessHandle();
+    long rss = MemoryWatchdog.readRss(process.pid());
+    if (rss >= 0) {
+      // Kilobytes as binary fractions of a MB are exact, and XOR well
+      append(name, Metric.MEMORY, second, rss / 1024 / 1024.0);
+    }
+
+    Previous last = previous.get(name);
+    long cpuMillis = process.info().totalCpuDuration().map(Duration::toMillis).orElse(-1L);
+    long now = System.nanoTime();
+    if (cpuMillis >= 0 && last.pid == process.pid() && cpuMillis >= last.cpuMillis) {
+      double percent = 100.0 * (cpuMillis - last.cpuMillis) / Math.max(1, (now - last.sampledAt) / 1_000_000);
+      append(name, Metric.CPU, second, round(percent, 16));
+    }
+    last.pid = process.pid();
+    last.cpuMillis = cpuMillis;
+    last.sampledAt = now;
+
+    if (pinged.get(name) && instance.isReady()) {
+      double ping = ping(instance);
+      if (ping >= 0) {
+        append(name, Metric.PING, second, round(ping, 64));
+      }
+    }
+  }
+
+  private void append(String name, Metric metric, long second, double value) throws IOException {
+    store.append(name, metric.code, second, value);
+    points++;
+  }
+
+  // Round trip of a status request in ms, from connecting to the whole
+  // response, -1 when the instance does not answer
+  private static double ping(InstanceInfo instance) {
+    long started = System.nanoTime();
+    try (Socket socket = new Socket()) {
+      InetSocketAddress address = LimboToml.clientAddress(new File(instance.getConfigPath()));
+      socket.connect(address, PING_TIMEOUT_MS);
+      socket.setSoTimeout(PING_TIMEOUT_MS);
+      socket.setTcpNoDelay(true);
+      OutputStream out = socket.getOutputStream();
+      out.write(ClientSwarm.statusRequest(PING_PROTOCOL, address));
+      out.flush();
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      in.readFully(new byte[readVarInt(in)]);
+      return (System.nanoTime() - started) / 1_000_000.0;
+    } catch (IOException | IllegalArgumentException e) {
+      return -1;
+    }
+  }
+
+  private static int readVarInt(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        throw new IOException("Closed without a response");
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Invalid packet length");
+  }
+
+  // To the nearest 1/steps: binary fractions keep the low bits of the
+  // value zero, which the XOR encoding stores for free
+  private static double round(double value, int steps) {
+    return Math.round(value * steps) / (double) steps;
+  }
+
+  // /history/<instance>/<metric>?duration=<24h>&points=<300>
+  private void handle(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET")) {
+      WrapperHttpServer.sendText(exchange, 405, "GET only");
+      return;
+    }
+    String[] path = exchange.getRequestURI().getPath().substring(PATH.length()).split("/");
+    if (path.length != 3 || !path[0].isEmpty() || !instances.containsKey(path[1])) {
+      WrapperHttpServer.sendText(exchange, 404, "not found, use /history/<instance>/<metric>");
+      return;
+    }
+    Metric metric = Metric.fromLabel(path[2]);
+    if (metric == null) {
+      WrapperHttpServer.sendText(exchange, 404, "unknown metric, use memory, cpu, restarts or ping");
+      return;
+    }
+
+    long duration = 24 * 3600;
+    int buckets = 300;
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String parameter : query.split("&")) {
+        try {
+          if (parameter.startsWith("duration=")) {
+            duration = parseDuration(parameter.substring("duration=".length()));
+          } else if (parameter.startsWith("points=")) {
+            buckets = Integer.parseInt(parameter.substring("points=".length()));
+          }
+        } catch (IllegalArgumentException e) {
+          WrapperHttpServer.sendText(exchange, 400, "invalid " + parameter);
+          return;
+        }
+      }
+    }
+    buckets = Math.max(1, Math.min(MAX_POINTS, buckets));
+
+    long to = System.currentTimeMillis() / 1000;
+    long from = to - duration;
+    JsonArray points = new JsonArray();
+    for (Bucket bucket : query(path[1], metric, from, to, buckets)) {
+      JsonArray point = new JsonArray();
+      point.add(bucket.getSecond());
+      if (metric.isCounter()) {
+        point.add(bucket.getSum());
+      } else {
+        point.add(bucket.getMin());
+        point.add(bucket.getAverage());
+        point.add(bucket.getMax());
+      }
+      points.add(point);
+    }
+    JsonObject body = new JsonObject();
+    body.addProperty("instance", path[1]);
+    body.addProperty("metric", metric.getLabel());
+    body.addProperty("unit", metric.getUnit());
+    body.addProperty("from", from);
+    body.addProperty("to", to);
+    body.addProperty("step", Math.max(intervalMillis / 1000, (duration + buckets - 1) / buckets));
+    body.addProperty("columns", metric.isCounter() ? "time,sum" : "time,min,avg,max");
+    body.add("points", points);
+
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  // 90s, 30m, 6h or 7d, in seconds
+  public static long parseDuration(String value) {
+    if (value.length() < 2) {
+      throw new IllegalArgumentException("Invalid duration: " + value);
+    }
+    long amount = Long.parseLong(value.substring(0, value.length() - 1));
+    if (amount <= 0) {
+      throw new IllegalArgumentException("Invalid duration: " + value);
+    }
+    switch (value.charAt(value.length() - 1)) {
+      case 's':
+        return amount;
+      case 'm':
+        return amount * 60;
+      case 'h':
+        return amount * 3600;
+      case 'd':
+        return amount * 86_400;
+      default:
+        throw new IllegalArgumentException("Invalid duration: " + value);
+    }
+  }
+}
@@ -0,0 +1,414 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compressed time series on disk, the storage behind MetricHistory. Points
+// are (second, double) pairs encoded as in Facebook's Gorilla: timestamps as
+// delta-of-delta, a single bit for the usual fixed interval, and values as
+// the XOR with the previous value, a single bit when unchanged and otherwise
+// only the bits that differ. Regular samples take a few bytes a point.
+//
+// Each UTC day has a segment file, metrics-<yyyyMMdd>.seg, of 4 KB pages.
+// A page holds one series (instance and metric) and is memory-mapped while
+// it is being filled, so a point is written straight into the page cache
+// and survives the wrapper crashing. The header is updated after the bits,
+// so a reader only decodes complete points. Segments past the retention are
+// deleted whole.
+//
+// Page layout: [int magic][byte metric][byte name length][48 bytes name]
+// [short unused][int points][int bits][long first second][long last second]
+// followed by the bit stream, which starts with the first value's 64 bits.
+public class MetricStore {
+  public interface PointConsumer {
+    void accept(long second, double value);
+  }
+
+  static final int PAGE_SIZE = 4096;
+  private static final int MAGIC = 0x504C4D31; // "PLM1"
+  private static final int MAX_NAME_BYTES = 48;
+  private static final int POINTS_OFFSET = 56;
+  private static final int BITS_OFFSET = 60;
+  private static final int FIRST_OFFSET = 64;
+  private static final int LAST_OFFSET = 72;
+  private static final int DATA_OFFSET = 80;
+  private static final int DATA_BITS = (PAGE_SIZE - DATA_OFFSET) * 8;
+  // Largest point: a 32-bit delta-of-delta and a value with new bounds
+  private static final int MAX_POINT_BITS = 4 + 32 + 2 + 5 + 6 + 64;
+  private static final String PREFIX = "metrics-";
+  private static final String SUFFIX = ".seg";
+  private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+  // The page a series is currently filling, with the encoder state
+  private static final class Page {
+    private final MappedByteBuffer buffer;
+    private int points;
+    private int bits;
+    private long lastSecond;
+    private long lastDelta;
+    private long lastValue;
+    private int leading = -1;
+    private int trailing;
+
+    Page(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    boolean hasRoom() {
+      return bits + MAX_POINT_BITS <= DATA_BITS;
+    }
+
+    void writeBits(long value, int count) {
+      while (count > 0) {
+        int index = DATA_OFFSET + (bits >>> 3);
+        int free = 8 - (bits & 7);
+        int take = Math.min(free, count);
+        int chunk = (int) (value >>> (count - take)) & ((1 << take) - 1);
+        buffer.put(index, (byte) (buffer.get(index) | chunk << (free - take)));
+        bits += take;
+        count -= take;
+      }
+    }
+  }
+
+  // Reads a page's bit stream back
+  private static final class PageReader {
+    private final ByteBuffer buffer;
+    private final int base;
+    private int bits;
+
+    PageReader(ByteBuffer buffer, int base) {
+      this.buffer = buffer;
+      this.base = base;
+    }
+
+    long readBits(int count) {
+      long value = 0;
+      while (count > 0) {
+        int current = buffer.get(base + DATA_OFFSET + (bits >>> 3)) & 0xFF;
+        int available = 8 - (bits & 7);
+        int take = Math.min(available, count);
+        value = value << take | (current >>> (available - take)) & ((1 << take) - 1);
+        bits += take;
+        count -= take;
+      }
+      return value;
+    }
+  }
+
+  private final File directory;
+  private final int retentionDays;
+  private final Map<String, Page> pages = new HashMap<>();
+  private LocalDate day;
+  private FileChannel channel;
+  private long nextPage;
+
+  public MetricStore(File directory, int retentionDays) {
+    this.directory = directory;
+    this.retentionDays = retentionDays;
+  }
+
+  public synchronized void append(String instance, int metric, long second, double value) throws IOException {
+    LocalDate pointDay = dayOf(second);
+    if (!pointDay.equals(day)) {
+      openSegment(pointDay);
+    }
+    String key = instance + '\0' + metric;
+    Page page = pages.get(key);
+    long delta = page != null ? second - page.lastSecond : 0;
+    long deltaOfDelta = page != null ? delta - page.lastDelta : 0;
+    // A clock jump too far for the encoding starts a new page
+    if (page == null || !page.hasRoom() || deltaOfDelta != (int) deltaOfDelta) {
+      page = newPage(instance, metric);
+      pages.put(key, page);
+    }
+
+    long valueBits = Double.doubleToRawLongBits(value);
+    if (page.points == 0) {
+      page.buffer.putLong(FIRST_OFFSET, second);
+      page.writeBits(valueBits, 64);
+    } else {
+      delta = second - page.lastSecond;
+      writeDeltaOfDelta(page, delta - page.lastDelta);
+      writeValue(page, valueBits ^ page.lastValue);
+      page.lastDelta = delta;
+    }
+    page.lastSecond = second;
+    page.lastValue = valueBits;
+    page.points++;
+    page.buffer.putLong(LAST_OFFSET, second);
+    page.buffer.putInt(BITS_OFFSET, page.bits);
+    page.buffer.putInt(POINTS_OFFSET, page.points);
+  }
+
+  // Calls consumer with the series' points from fromSecond to toSecond, in order
+  public void read(String instance, int metric, long fromSecond, long toSecond, PointConsumer consumer)
+      throws IOException {
+    byte[] name = nameBytes(instance);
+    for (File segment : segments()) {
+      LocalDate segmentDay = parseDay(segment);
+      long start = segmentDay.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+      if (start > toSecond || start + 86_400 <= fromSecond) {
+        continue;
+      }
+      ByteBuffer buffer = load(segment);
+      for (int base = 0; base + PAGE_SIZE <= buffer.limit(); base += PAGE_SIZE) {
+        if (buffer.getInt(base) != MAGIC || buffer.get(base + 4) != metric || !hasName(buffer, base, name)
+            || buffer.getLong(base + LAST_OFFSET) < fromSecond || buffer.getLong(base + FIRST_OFFSET) > toSecond) {
+          continue;
+        }
+        decode(buffer, base, fromSecond, toSecond, consumer);
+      }
+    }
+  }
+
+  // Segment files oldest first
+  public List<File> segments() {
+    File[] files = directory.listFiles((dir, file) -> file.startsWith(PREFIX) && file.endsWith(SUFFIX));
+    if (files == null) {
+      return new ArrayList<>();
+    }
+    List<File> segments = new ArrayList<>();
+    for (File file : files) {
+      if (parseDay(file) != null) {
+        segments.add(file);
+      }
+    }
+    segments.sort((a, b) -> a.getName().compareTo(b.getName()));
+    return segments;
+  }
+
+  public long getDiskBytes() {
+    long bytes = 0;
+    for (File segment : segments()) {
+      bytes += segment.length();
+    }
+    return bytes;
+  }
+
+  // Deletes the segments of days before the retention
+  public void expire() {
+    LocalDate oldest = LocalDate.now(ZoneOffset.UTC).minusDays(retentionDays - 1L);
+    for (File segment : segments()) {
+      LocalDate segmentDay = parseDay(segment);
+      if (segmentDay.isBefore(oldest) && !segment.equals(currentSegment())) {
+        if (segment.delete()) {
+          Logger.info("Deleted metric history " + segment.getName() + ", older than " + retentionDays + " days");
+        } else {
+          // Still mapped on Windows, tried again tomorrow
+          Logger.warn("Could not delete old metric history " + segment.getPath());
+        }
+      }
+    }
+  }
+
+  // Writes the pages being filled to disk, they survive a crash of the
+  // wrapper anyway but not one of the host
+  public synchronized void close() {
+    for (Page page : pages.values()) {
+      page.buffer.force();
+    }
+    pages.clear();
+    closeChannel();
+    day = null;
+  }
+
+  private synchronized File currentSegment() {
+    return day != null ? segmentFile(day) : null;
+  }
+
+  private void openSegment(LocalDate newDay) throws IOException {
+    for (Page page : pages.values()) {
+      page.buffer.force();
+    }
+    pages.clear();
+    closeChannel();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory.getPath());
+    }
+    File file = segmentFile(newDay);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    // A segment of an earlier run today is continued with new pages
+    nextPage = (channel.size() + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    day = newDay;
+  }
+
+  private Page newPage(String instance, int metric) throws IOException {
+    // Mapping past the end grows the file, with the new page zeroed
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, nextPage, PAGE_SIZE);
+    nextPage += PAGE_SIZE;
+    byte[] name = nameBytes(instance);
+    buffer.put(4, (byte) metric);
+    buffer.put(5, (byte) name.length);
+    for (int i = 0; i < name.length; i++) {
+      buffer.put(6 + i, name[i]);
+    }
+    buffer.putInt(0, MAGIC);
+    return new Page(buffer);
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // The mappings stay valid
+      }
+      channel = null;
+    }
+  }
+
+  // Delta-of-delta in 1, 9, 12, 16 or 36 bits
+  private static void writeDeltaOfDelta(Page page, long deltaOfDelta) {
+    if (deltaOfDelta == 0) {
+      page.writeBits(0, 1);
+    } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+      page.writeBits(0b10, 2);
+      page.writeBits(deltaOfDelta + 63, 7);
+    } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+      page.writeBits(0b110, 3);
+      page.writeBits(deltaOfDelta + 255, 9);
+    } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+      page.writeBits(0b1110, 4);
+      page.writeBits(deltaOfDelta + 2047, 12);
+    } else {
+      page.writeBits(0b1111, 4);
+      page.writeBits(deltaOfDelta & 0xFFFFFFFFL, 32);
+    }
+  }
+
+  // XOR with the previous value: 0 when equal, 10 and the bits within the
+  // previous bounds, or 11, 5 bits of leading zeros, 6 bits of length and
+  // the bits themselves
+  private static void writeValue(Page page, long xor) {
+    if (xor == 0) {
+      page.writeBits(0, 1);
+      return;
+    }
+    int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+    int trailing = Long.numberOfTrailingZeros(xor);
+    if (page.leading >= 0 && leading >= page.leading && trailing >= page.trailing) {
+      page.writeBits(0b10, 2);
+      page.writeBits(xor >>> page.trailing, 64 - page.leading - page.trailing);
+      return;
+    }
+    int length = 64 - leading - trailing;
+    page.writeBits(0b11, 2);
+    page.writeBits(leading, 5);
+    // 64 does not fit in 6 bits, and 0 never happens
+    page.writeBits(length == 64 ? 0 : length, 6);
+    page.writeBits(xor >>> trailing, length);
+    page.leading = leading;
+    page.trailing = trailing;
+  }
+
+  private static void decode(ByteBuffer buffer, int base, long fromSecond, long toSecond, PointConsumer consumer) {
+    int points = buffer.getInt(base + POINTS_OFFSET);
+    PageReader reader = new PageReader(buffer, base);
+    long second = buffer.getLong(base + FIRST_OFFSET);
+    long valueBits = reader.readBits(64);
+    long delta = 0;
+    int leading = 0;
+    int trailing = 0;
+    for (int i = 0; i < points; i++) {
+      if (i > 0) {
+        delta += readDeltaOfDelta(reader);
+        second += delta;
+        if (reader.readBits(1) == 1) {
+          if (reader.readBits(1) == 1) {
+            leading = (int) reader.readBits(5);
+            int length = (int) reader.readBits(6);
+            trailing = 64 - leading - (length == 0 ? 64 : length);
+          }
+          valueBits ^= reader.readBits(64 - leading - trailing) << trailing;
+        }
+      }
+      if (second > toSecond) {
+        return;
+      }
+      if (second >= fromSecond) {
+        consumer.accept(second, Double.longBitsToDouble(valueBits));
+      }
+    }
+  }
+
+  private static long readDeltaOfDelta(PageReader reader) {
+    if (reader.readBits(1) == 0) {
+      return 0;
+    }
+    if (reader.readBits(1) == 0) {
+      return reader.readBits(7) - 63;
+    }
+    if (reader.readBits(1) == 0) {
+      return reader.readBits(9) - 255;
+    }
+    if (reader.readBits(1) == 0) {
+      return reader.readBits(12) - 2047;
+    }
+    return (int) reader.readBits(32);
+  }
+
+  // The whole file, copied under the lock so no point is half written
+  private synchronized ByteBuffer load(File segment) throws IOException {
+    try (FileChannel in = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(in.size(), Integer.MAX_VALUE));
+      while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+        // Keep reading
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  private static boolean hasName(ByteBuffer buffer, int base, byte[] name) {
+    if (buffer.get(base + 5) != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (buffer.get(base + 6 + i) != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Names longer than the header holds are cut, still unique in practice
+  private static byte[] nameBytes(String instance) {
+    byte[] name = instance.getBytes(StandardCharsets.UTF_8);
+    return name.length <= MAX_NAME_BYTES ? name : Arrays.copyOf(name, MAX_NAME_BYTES);
+  }
+
+  private File segmentFile(LocalDate segmentDay) {
+    return new File(directory, PREFIX + segmentDay.format(DAY) + SUFFIX);
+  }
+
+  private static LocalDate dayOf(long second) {
+    return Instant.ofEpochSecond(second).atZone(ZoneOffset.UTC).toLocalDate();
+  }
+
+  // null for files that only look like segments
+  private static LocalDate parseDay(File segment) {
+    String name = segment.getName();
+    try {
+      return LocalDate.parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), DAY);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.thirdplacemc;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts OutputEventType occurrences in an instance's output and notifies
+// listeners. Each event type is counted at most once per line.
+public class OutputEventCounter implements OutputSink {
+  private static final OutputEventType[] TYPES = OutputEventType.values();
+
+  private final InstanceInfo instance;
+  private final OutputEventMatcher matcher;
+  private final AtomicLongArray counts = new AtomicLongArray(TYPES.length);
+  private final List<OutputEventListener> listeners = new CopyOnWriteArrayList<>();
+
+  public OutputEventCounter(InstanceInfo instance, OutputEventMatcher matcher) {
+    this.instance = instance;
+    this.matcher = matcher;
+  }
+
+  public void addListener(OutputEventListener listener) {
+    listeners.add(listener);
+  }
+
+  @Override
+  public void onLine(byte[] buffer, int offset, int length) {
+    int found = matcher.match(buffer, offset, length);
+    if (found == 0) {
+      return;
+    }
+
+    for (OutputEventType type : TYPES) {
+      if ((found & type.mask()) != 0) {
+        counts.incrementAndGet(type.ordinal());
+        for (int i = 0; i < listeners.size(); i++) {
+          listeners.get(i).onEvent(instance, type);
+        }
+      }
+    }
+  }
+
+  public long getCount(OutputEventType type) {
+    return counts.get(type.ordinal());
+  }
+}
@@ -0,0 +1,5 @@
+package com.thirdplacemc;
+
+public interface OutputEventListener {
+  void onEvent(InstanceInfo instance, OutputEventType type);
+}
@@ -0,0 +1,108 @@
+package com.thirdplacemc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Aho-Corasick automaton over raw bytes. All event patterns are compiled into a
+// single DFA so each line is scanned exactly once, one table lookup per byte,
+// regardless of how many patterns are configured.
+public class OutputEventMatcher {
+  private static final int ALPHABET = 256;
+
+  private final int[] transitions;
+  private final int[] outputs;
+
+  private OutputEventMatcher(int[] transitions, int[] outputs) {
+    this.transitions = transitions;
+    this.outputs = outputs;
+  }
+
+  public static OutputEventMatcher compile(Map<OutputEventType, List<String>> patterns) {
+    // Build the trie, -1 marks a missing edge
+    List<int[]> trie = new ArrayList<>();
+    List<Integer> stateOutputs = new ArrayList<>();
+    trie.add(newNode());
+    stateOutputs.add(0);
+
+    for (Map.Entry<OutputEventType, List<String>> entry : patterns.entrySet()) {
+      for (String pattern : entry.getValue()) {
+        byte[] bytes = pattern.getBytes();
+        if (bytes.length == 0) {
+          continue;
+        }
+        int state = 0;
+        for (byte b : bytes) {
+          int next = trie.get(state)[b & 0xFF];
+          if (next == -1) {
+            next = trie.size();
+            trie.add(newNode());
+            stateOutputs.add(0);
+            trie.get(state)[b & 0xFF] = next;
+          }
+          state = next;
+        }
+        stateOutputs.set(state, stateOutputs.get(state) | entry.getKey().mask());
+      }
+    }
+
+    // Breadth-first pass turns the trie into a complete DFA, following failure
+    // links for missing edges and merging outputs of suffix states
+    int states = trie.size();
+    int[] transitions = new int[states * ALPHABET];
+    int[] outputs = new int[states];
+    int[] fail = new int[states];
+    for (int i = 0; i < states; i++) {
+      outputs[i] = stateOutputs.get(i);
+    }
+
+    ArrayDeque<Integer> queue = new ArrayDeque<>();
+    for (int c = 0; c < ALPHABET; c++) {
+      int child = trie.get(0)[c];
+      if (child == -1) {
+        transitions[c] = 0;
+      } else {
+        transitions[c] = child;
+        fail[child] = 0;
+        queue.add(child);
+      }
+    }
+
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      outputs[state] |= outputs[fail[state]];
+      for (int c = 0; c < ALPHABET; c++) {
+        int child = trie.get(state)[c];
+        if (child == -1) {
+          transitions[state * ALPHABET + c] = transitions[fail[state] * ALPHABET + c];
+        } else {
+          transitions[state * ALPHABET + c] = child;
+          fail[child] = transitions[fail[state] * ALPHABET + c];
+          queue.add(child);
+        }
+      }
+    }
+
+    return new OutputEventMatcher(transitions, outputs);
+  }
+
+  private static int[] newNode() {
+    int[] node = new int[ALPHABET];
+    Arrays.fill(node, -1);
+    return node;
+  }
+
+  // Returns the OutputEventType masks of every pattern found in the range
+  public int match(byte[] buffer, int offset, int length) {
+    int state = 0;
+    int found = 0;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      state = transitions[(state << 8) | (buffer[i] & 0xFF)];
+      found |= outputs[state];
+    }
+    return found;
+  }
+}
@@ -0,0 +1,31 @@
+package com.thirdplacemc;
+
+// Events recognised in instance output. The default patterns can be replaced
+// with events.<key>=pattern1|pattern2 in wrapper.properties.
+public enum OutputEventType {
+  PLAYER_JOIN("join", "joined the game"),
+  PLAYER_LEAVE("leave", "left the game"),
+  ERROR("error", "ERROR"),
+  WARNING("warn", " WARN "),
+  READY("ready", "Listening on:");
+
+  private final String key;
+  private final String defaultPatterns;
+
+  OutputEventType(String key, String defaultPatterns) {
+    this.key = key;
+    this.defaultPatterns = defaultPatterns;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getDefaultPatterns() {
+    return defaultPatterns;
+  }
+
+  public int mask() {
+    return 1 << ordinal();
+  }
+}
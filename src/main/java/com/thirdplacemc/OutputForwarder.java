@@ -0,0 +1,147 @@
+package com.thirdplacemc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutputForwarder {
+  private static final int READ_BUFFER_SIZE = 8192;
+  private static final int MAX_LINE_LENGTH = 16384;
+  private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();
+
+  // Totals over every forwarder since the wrapper started, updated once per read
+  private static final AtomicLong forwardedLines = new AtomicLong();
+  private static final AtomicLong forwardedBytes = new AtomicLong();
+  private static final AtomicLong forwardingNanos = new AtomicLong();
+
+  private final List<OutputSink> sinks;
+  private final OutputRateLimiter rateLimiter;
+  private final String instanceName;
+  private final byte[] prefix;
+  private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+  private byte[] lineBuffer = new byte[1024];
+  private int lineLength = 0;
+  private byte[] consoleBuffer;
+
+  public OutputForwarder(String instanceName, List<OutputSink> sinks, OutputRateLimiter rateLimiter) {
+    this.instanceName = instanceName;
+    this.sinks = sinks;
+    this.rateLimiter = rateLimiter;
+    this.prefix = ("\u001B[36m[" + instanceName + "]\u001B[0m ").getBytes();
+    this.consoleBuffer = new byte[prefix.length + lineBuffer.length + LINE_SEPARATOR.length];
+    System.arraycopy(prefix, 0, consoleBuffer, 0, prefix.length);
+  }
+
+  // Reads raw bytes until end of stream, forwarding each complete line to the
+  // console and every sink without decoding it into a String
+  public void forward(InputStream in) throws IOException {
+    try {
+      int read;
+      while ((read = in.read(readBuffer)) != -1) {
+        // Times the forwarding only, not the wait for output
+        long startedAt = System.nanoTime();
+        WrapperEvents.ForwardBatch batch = new WrapperEvents.ForwardBatch();
+        batch.begin();
+        int lines = 0;
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+          if (readBuffer[i] == '\n') {
+            appendToLine(readBuffer, start, i - start);
+            emitLine();
+            lines++;
+            start = i + 1;
+          }
+        }
+        appendToLine(readBuffer, start, read - start);
+        forwardedLines.addAndGet(lines);
+        forwardedBytes.addAndGet(read);
+        forwardingNanos.addAndGet(System.nanoTime() - startedAt);
+        batch.end();
+        if (batch.shouldCommit()) {
+          batch.instance = instanceName;
+          batch.lines = lines;
+          batch.bytes = read;
+          batch.commit();
+        }
+      }
+    } finally {
+      // Flush a trailing line without newline
+      if (lineLength > 0) {
+        emitLine();
+      }
+      if (rateLimiter != null) {
+        rateLimiter.finish(this);
+      }
+    }
+  }
+
+  public static long getForwardedLines() {
+    return forwardedLines.get();
+  }
+
+  public static long getForwardedBytes() {
+    return forwardedBytes.get();
+  }
+
+  // Time spent forwarding, without the time waiting for output
+  public static long getForwardingNanos() {
+    return forwardingNanos.get();
+  }
+
+  private void appendToLine(byte[] src, int offset, int length) {
+    while (length > 0) {
+      if (lineLength == MAX_LINE_LENGTH) {
+        // Split overlong lines rather than growing without bound
+        emitLine();
+      }
+      if (lineLength + length > lineBuffer.length && lineBuffer.length < MAX_LINE_LENGTH) {
+        growLineBuffer(Math.min(MAX_LINE_LENGTH, Math.max(lineBuffer.length * 2, lineLength + length)));
+      }
+      int chunk = Math.min(length, lineBuffer.length - lineLength);
+      System.arraycopy(src, offset, lineBuffer, lineLength, chunk);
+      lineLength += chunk;
+      offset += chunk;
+      length -= chunk;
+    }
+  }
+
+  private void growLineBuffer(int size) {
+    byte[] grown = new byte[size];
+    System.arraycopy(lineBuffer, 0, grown, 0, lineLength);
+    lineBuffer = grown;
+
+    byte[] grownConsole = new byte[prefix.length + size + LINE_SEPARATOR.length];
+    System.arraycopy(prefix, 0, grownConsole, 0, prefix.length);
+    consoleBuffer = grownConsole;
+  }
+
+  private void emitLine() {
+    int length = lineLength;
+    if (length > 0 && lineBuffer[length - 1] == '\r') {
+      length--;
+    }
+    lineLength = 0;
+
+    // Only the console is rate limited, sinks always see every line
+    if (rateLimiter != null) {
+      rateLimiter.forward(lineBuffer, 0, length, this);
+    } else {
+      writeToConsole(lineBuffer, 0, length);
+    }
+
+    for (int i = 0; i < sinks.size(); i++) {
+      sinks.get(i).onLine(lineBuffer, 0, length);
+    }
+  }
+
+  void writeToConsole(byte[] buffer, int offset, int length) {
+    // Assemble prefix, line and separator so the console sees a single write
+    // and lines from different instances never interleave
+    System.arraycopy(buffer, offset, consoleBuffer, prefix.length, length);
+    System.arraycopy(LINE_SEPARATOR, 0, consoleBuffer, prefix.length + length, LINE_SEPARATOR.length);
+    PrintStream out = System.out;
+    out.write(consoleBuffer, 0, prefix.length + length + LINE_SEPARATOR.length);
+  }
+}
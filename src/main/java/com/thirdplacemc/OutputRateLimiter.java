@@ -0,0 +1,224 @@
+package com.thirdplacemc;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Protects the shared console from a single flooding instance. Consecutive
+// identical lines are collapsed into one "repeated N times" notice, and two
+// token buckets (lines/sec and bytes/sec, each with one second of burst) decide
+// whether the remaining lines reach the console. Everything works on
+// preallocated buffers so the steady state does not allocate. Notices still
+// pending when the output goes quiet are written by a timer within a second.
+public class OutputRateLimiter {
+  private static final int MAX_LINE_LENGTH = 16384;
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+  private static final byte[] REPEATED_PREFIX = "\u001B[33m... last line repeated ".getBytes();
+  private static final byte[] REPEATED_SUFFIX = " more times\u001B[0m".getBytes();
+  private static final byte[] SUPPRESSED_PREFIX = "\u001B[33m... suppressed ".getBytes();
+  private static final byte[] SUPPRESSED_MIDDLE = " lines (".getBytes();
+  private static final byte[] SUPPRESSED_SUFFIX = " bytes) over the output rate limit\u001B[0m".getBytes();
+
+  // Shared by every limiter, only started once a limiter exists
+  private static final ScheduledExecutorService NOTICES = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "Output-Notices");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final int linesPerSecond;
+  private final int bytesPerSecond;
+  private final boolean collapseRepeats;
+
+  private final byte[] previousLine = new byte[MAX_LINE_LENGTH];
+  private int previousLength = -1;
+  private long repeatCount;
+
+  private double lineTokens;
+  private double byteTokens;
+  private long lastRefill;
+  private long pendingSuppressedLines;
+  private long pendingSuppressedBytes;
+  private long lastSuppressedNotice;
+
+  private final byte[] notice = new byte[128];
+  private int noticeLength;
+
+  // Where the last line went, for the notices the timer writes
+  private OutputForwarder console;
+  private long lastForward;
+
+  private volatile long suppressedLines;
+  private volatile long suppressedBytes;
+  private volatile long collapsedLines;
+
+  public OutputRateLimiter(int linesPerSecond, int bytesPerSecond, boolean collapseRepeats) {
+    this.linesPerSecond = linesPerSecond;
+    this.bytesPerSecond = bytesPerSecond;
+    this.collapseRepeats = collapseRepeats;
+    this.lineTokens = linesPerSecond;
+    this.byteTokens = bytesPerSecond;
+    this.lastRefill = System.nanoTime();
+    this.lastSuppressedNotice = lastRefill - NANOS_PER_SECOND;
+    NOTICES.scheduleWithFixedDelay(this::flushPending, 1, 1, TimeUnit.SECONDS);
+  }
+
+  // Writes the line to the console unless it is a repeat or over the limit
+  public synchronized void forward(byte[] buffer, int offset, int length, OutputForwarder console) {
+    this.console = console;
+    lastForward = System.nanoTime();
+    if (collapseRepeats && isRepeat(buffer, offset, length)) {
+      repeatCount++;
+      collapsedLines++;
+      return;
+    }
+    flushRepeats(console);
+    if (collapseRepeats) {
+      rememberLine(buffer, offset, length);
+    }
+
+    if (!tryAcquire(length)) {
+      pendingSuppressedLines++;
+      pendingSuppressedBytes += length;
+      suppressedLines++;
+      suppressedBytes += length;
+      return;
+    }
+    // Report suppressed output at most once per second while flooding
+    if (lastRefill - lastSuppressedNotice >= NANOS_PER_SECOND) {
+      flushSuppressed(console);
+    }
+    console.writeToConsole(buffer, offset, length);
+  }
+
+  // Emits outstanding notices, called when the output stream ends
+  public synchronized void finish(OutputForwarder console) {
+    flushRepeats(console);
+    flushSuppressed(console);
+    previousLength = -1;
+  }
+
+  // Runs on the timer: a flood followed by silence is reported too. Repeats
+  // wait for a quiet second, as the next line may still be the same.
+  private synchronized void flushPending() {
+    if (console == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (now - lastForward >= NANOS_PER_SECOND) {
+      flushRepeats(console);
+    }
+    if (now - lastSuppressedNotice >= NANOS_PER_SECOND) {
+      flushSuppressed(console);
+    }
+  }
+
+  private boolean isRepeat(byte[] buffer, int offset, int length) {
+    if (length != previousLength) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer[offset + i] != previousLine[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rememberLine(byte[] buffer, int offset, int length) {
+    if (length > previousLine.length) {
+      previousLength = -1;
+      return;
+    }
+    System.arraycopy(buffer, offset, previousLine, 0, length);
+    previousLength = length;
+  }
+
+  private boolean tryAcquire(int length) {
+    long now = System.nanoTime();
+    double elapsedSeconds = (double) (now - lastRefill) / NANOS_PER_SECOND;
+    lastRefill = now;
+
+    if (linesPerSecond > 0) {
+      lineTokens = Math.min(linesPerSecond, lineTokens + elapsedSeconds * linesPerSecond);
+      if (lineTokens < 1) {
+        return false;
+      }
+    }
+    if (bytesPerSecond > 0) {
+      byteTokens = Math.min(bytesPerSecond, byteTokens + elapsedSeconds * bytesPerSecond);
+      // A line larger than the whole bucket passes once the bucket is full
+      if (byteTokens < Math.min(length, bytesPerSecond)) {
+        return false;
+      }
+    }
+
+    if (linesPerSecond > 0) {
+      lineTokens -= 1;
+    }
+    if (bytesPerSecond > 0) {
+      byteTokens -= length;
+    }
+    return true;
+  }
+
+  private void flushRepeats(OutputForwarder console) {
+    if (repeatCount == 0) {
+      return;
+    }
+    noticeLength = 0;
+    appendNotice(REPEATED_PREFIX);
+    appendNumber(repeatCount);
+    appendNotice(REPEATED_SUFFIX);
+    console.writeToConsole(notice, 0, noticeLength);
+    repeatCount = 0;
+  }
+
+  private void flushSuppressed(OutputForwarder console) {
+    if (pendingSuppressedLines == 0) {
+      return;
+    }
+    noticeLength = 0;
+    appendNotice(SUPPRESSED_PREFIX);
+    appendNumber(pendingSuppressedLines);
+    appendNotice(SUPPRESSED_MIDDLE);
+    appendNumber(pendingSuppressedBytes);
+    appendNotice(SUPPRESSED_SUFFIX);
+    console.writeToConsole(notice, 0, noticeLength);
+    lastSuppressedNotice = System.nanoTime();
+    pendingSuppressedLines = 0;
+    pendingSuppressedBytes = 0;
+  }
+
+  private void appendNotice(byte[] bytes) {
+    System.arraycopy(bytes, 0, notice, noticeLength, bytes.length);
+    noticeLength += bytes.length;
+  }
+
+  private void appendNumber(long value) {
+    int start = noticeLength;
+    do {
+      notice[noticeLength++] = (byte) ('0' + (value % 10));
+      value /= 10;
+    } while (value > 0);
+    // Digits were written least significant first
+    for (int i = start, j = noticeLength - 1; i < j; i++, j--) {
+      byte tmp = notice[i];
+      notice[i] = notice[j];
+      notice[j] = tmp;
+    }
+  }
+
+  public long getSuppressedLines() {
+    return suppressedLines;
+  }
+
+  public long getSuppressedBytes() {
+    return suppressedBytes;
+  }
+
+  public long getCollapsedLines() {
+    return collapsedLines;
+  }
+}
@@ -0,0 +1,168 @@
+package com.thirdplacemc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Keeps the most recent output of an instance in one fixed byte array, lines
+// separated by '\n'. Positions are absolute byte counts since creation; the
+// array index is the position masked by the (power of two) capacity. Searches
+// run directly over the array, nothing is decoded or copied.
+public class OutputRingBuffer implements OutputSink {
+  private final byte[] buffer;
+  private final int mask;
+  private long head = 0;
+
+  public OutputRingBuffer(int capacityBytes) {
+    int capacity = Integer.highestOneBit(Math.max(1024, capacityBytes));
+    if (capacity < capacityBytes) {
+      capacity <<= 1;
+    }
+    this.buffer = new byte[capacity];
+    this.mask = capacity - 1;
+  }
+
+  @Override
+  public synchronized void onLine(byte[] src, int offset, int length) {
+    // Keep only the tail of lines that are larger than the whole buffer
+    if (length >= buffer.length) {
+      offset += length - (buffer.length - 1);
+      length = buffer.length - 1;
+    }
+
+    int index = (int) (head & mask);
+    int first = Math.min(length, buffer.length - index);
+    System.arraycopy(src, offset, buffer, index, first);
+    if (first < length) {
+      System.arraycopy(src, offset + first, buffer, 0, length - first);
+    }
+    head += length;
+    buffer[(int) (head & mask)] = '\n';
+    head++;
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  public synchronized long getBytesWritten() {
+    return head;
+  }
+
+  // Prints the last n lines to out, returns the number of lines printed
+  public synchronized int tail(int lines, PrintStream out) {
+    if (lines <= 0) {
+      return 0;
+    }
+    long start = firstLineStart();
+    long position = head - 1;
+    int found = 0;
+    while (position > start && found < lines) {
+      position--;
+      if (buffer[(int) (position & mask)] == '\n') {
+        found++;
+      }
+    }
+    long from = found == lines ? position + 1 : start;
+
+    int printed = 0;
+    synchronized (out) {
+      long lineStart = from;
+      for (long p = from; p < head; p++) {
+        if (buffer[(int) (p & mask)] == '\n') {
+          writeRange(out, lineStart, p + 1);
+          lineStart = p + 1;
+          printed++;
+        }
+      }
+    }
+    return printed;
+  }
+
+  // Prints every buffered line containing pattern (a plain byte sequence) to
+  // out, up to maxMatches, and returns the total number of matching lines
+  public synchronized int grep(byte[] pattern, int maxMatches, PrintStream out) {
+    if (pattern.length == 0) {
+      return 0;
+    }
+
+    int matches = 0;
+    synchronized (out) {
+      long lineStart = firstLineStart();
+      for (long p = lineStart; p < head; p++) {
+        if (buffer[(int) (p & mask)] != '\n') {
+          continue;
+        }
+        if (contains(lineStart, p, pattern)) {
+          if (matches < maxMatches) {
+            writeRange(out, lineStart, p + 1);
+          }
+          matches++;
+        }
+        lineStart = p + 1;
+      }
+    }
+    return matches;
+  }
+
+  // Writes the buffered lines, oldest first, to the channel. Returns bytes written.
+  public synchronized long dumpTo(FileChannel channel) throws IOException {
+    long start = firstLineStart();
+    long written = 0;
+    int startIndex = (int) (start & mask);
+    int length = (int) (head - start);
+    int first = Math.min(length, buffer.length - startIndex);
+
+    ByteBuffer[] segments = {
+        ByteBuffer.wrap(buffer, startIndex, first),
+        ByteBuffer.wrap(buffer, 0, length - first)
+    };
+    while (segments[0].hasRemaining() || segments[1].hasRemaining()) {
+      written += channel.write(segments);
+    }
+    return written;
+  }
+
+  // Oldest position that starts a complete line
+  private long firstLineStart() {
+    if (head <= buffer.length) {
+      return 0;
+    }
+    long oldest = head - buffer.length;
+    for (long p = oldest; p < head; p++) {
+      if (buffer[(int) (p & mask)] == '\n') {
+        return p + 1;
+      }
+    }
+    return head;
+  }
+
+  private boolean contains(long from, long to, byte[] pattern) {
+    long last = to - pattern.length;
+    byte firstByte = pattern[0];
+    for (long p = from; p <= last; p++) {
+      if (buffer[(int) (p & mask)] != firstByte) {
+        continue;
+      }
+      int i = 1;
+      while (i < pattern.length && buffer[(int) ((p + i) & mask)] == pattern[i]) {
+        i++;
+      }
+      if (i == pattern.length) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeRange(PrintStream out, long from, long to) {
+    int startIndex = (int) (from & mask);
+    int length = (int) (to - from);
+    int first = Math.min(length, buffer.length - startIndex);
+    out.write(buffer, startIndex, first);
+    if (first < length) {
+      out.write(buffer, 0, length - first);
+    }
+  }
+}
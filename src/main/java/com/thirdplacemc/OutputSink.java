@@ -0,0 +1,7 @@
+package com.thirdplacemc;
+
+// Receives every line forwarded from an instance's output. The bytes are only
+// valid for the duration of the call, implementations must copy what they keep.
+public interface OutputSink {
+  void onLine(byte[] buffer, int offset, int length);
+}
@@ -6,52 +6,101 @@ import com.google.gson.JsonParser;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Optional;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.LinkedHashSet;
 
 public class PicoLimboWrapper {
   private static final String BINARIES_DIR = "binaries";
   private static final int MAX_RESTART_COUNT = 5;
+  // A crash after this much uptime does not count towards a crash loop
+  private static final long STABLE_UPTIME_MS = 60_000;
+  // Rows of a 'history <instance> <metric>' chart
+  private static final int HISTORY_ROWS = 24;
 
   private static Map<String, InstanceInfo> instances = new ConcurrentHashMap<>();
   private static WrapperConfig config;
+  private static DetachedState detachedState;
+  private static SupervisorJournal journal;
+  private static MetricHistory metricHistory;
+  private static InstanceIsolation isolation;
+  private static MemoryWatchdog watchdog;
+  private static StandbyPool standby;
+  private static SocketActivator lazy;
+  private static ClusterNode cluster;
+  private static BinaryStore binaryStore;
+  private static ReleaseChecksums checksums;
+  private static DeltaSource deltas;
+  private static BinaryMirror mirror;
+  private static WrapperHttpServer httpServer;
+  private static LogStream logStream;
+  private static WrapperRecorder recorder;
+  private static volatile CanaryRollout rollout;
+  private static volatile ClientSwarm loadTest;
   private static String currentArchiveName;
-  private static File currentBinaryFile;
   private static volatile boolean shouldExit = false;
+  private static volatile boolean stopRequested = false;
   private static volatile boolean isUpdating = false;
   private static final Object updateLock = new Object();
 
   public static void main(String[] args) {
     try {
+      StartupTimeline.setEnabled(Arrays.asList(args).contains("--startup-timeline"));
       Logger.info("Starting PicoLimbo Wrapper...");
 
       // Load configuration
       config = new WrapperConfig();
+      if (config.isStartupTimelineEnabled()) {
+        StartupTimeline.setEnabled(true);
+      }
+      StartupTimeline.mark("load configuration");
+
+      recorder = new WrapperRecorder(config);
+      if (config.isJfrRecording()) {
+        try {
+          recorder.start(config.getJfrSettings());
+        } catch (IOException e) {
+          Logger.error("Could not start the flight recording: " + e.getMessage());
+        }
+      }
 
       // Detect OS and architecture
       currentArchiveName = detectBinaryName();
       Logger.info("Detected OS: " + getOSInfo());
+      StartupTimeline.mark("detect platform");
 
-      // Ensure binary exists (download if needed)
-      currentBinaryFile = ensureBinaryExists(currentArchiveName);
+      // Ensure every version the instances run is installed (download if needed)
+      openBinaryStore(config.getInstances());
+      StartupTimeline.mark("ensure binary");
 
-      // Set executable permissions on Unix systems
-      if (!isWindows()) {
-        currentBinaryFile.setExecutable(true, false);
-        Logger.info("Set executable permissions");
+      httpServer = WrapperHttpServer.create(config);
+      if (mirror != null && config.isMirrorServing()) {
+        if (httpServer != null) {
+          mirror.register(httpServer);
+        } else {
+          Logger.warn("mirror.serve needs http.port, not serving binaries");
+        }
+      }
+      if (httpServer != null) {
+        httpServer.start();
       }
 
       // Load and validate instances
@@ -63,9 +112,117 @@ public class PicoLimboWrapper {
         instances.put(name, instance);
       }
 
+      // Open per-instance log files and output buffers where enabled
+      OutputEventMatcher eventMatcher = OutputEventMatcher.compile(config.getEventPatterns());
+      for (InstanceInfo instance : instances.values()) {
+        OutputEventCounter eventCounter = new OutputEventCounter(instance, eventMatcher);
+        eventCounter.addListener(PicoLimboWrapper::onOutputEvent);
+        instance.setEventCounter(eventCounter);
+
+        String name = instance.getName();
+        int linesPerSecond = config.getOutputLinesPerSecond(name);
+        int bytesPerSecond = config.getOutputBytesPerSecond(name);
+        boolean collapseRepeats = config.shouldCollapseRepeats(name);
+        if (linesPerSecond > 0 || bytesPerSecond > 0 || collapseRepeats) {
+          instance.setRateLimiter(new OutputRateLimiter(linesPerSecond, bytesPerSecond, collapseRepeats));
+        }
+
+        int bufferBytes = config.getOutputBufferBytes(name);
+        if (bufferBytes > 0) {
+          instance.setOutputBuffer(new OutputRingBuffer(bufferBytes));
+        }
+        if (config.isInstanceLogEnabled(name)) {
+          openInstanceLog(instance);
+        }
+      }
+
+      // Output as Server-Sent Events for remote viewers
+      if (config.isLogStreamEnabled()) {
+        if (httpServer != null) {
+          logStream = LogStream.create(config, instances);
+          logStream.register(httpServer);
+        } else {
+          Logger.warn("logs.stream needs http.port, not streaming output");
+        }
+      }
+
+      // Memory, CPU, restart and ping trends of every instance
+      if (config.isHistoryEnabled()) {
+        metricHistory = MetricHistory.create(config, instances);
+        if (httpServer != null) {
+          metricHistory.register(httpServer);
+        }
+      }
+
       // Validate instance configurations
       config.validateInstances();
 
+      // CPU pinning and cgroup limits, where configured
+      isolation = InstanceIsolation.create(config, instanceNames);
+      watchdog = MemoryWatchdog.create(config, instances, PicoLimboWrapper::restartInstance,
+          () -> isUpdating || shouldExit);
+
+      if (config.isDetachedMode()) {
+        if (isWindows()) {
+          Logger.warn("Detached mode is not supported on Windows, instances will stop with the wrapper");
+        } else {
+          detachedState = new DetachedState(new File(config.getDetachedDirectory()));
+        }
+      }
+
+      // Auto-start instances spread over the wrappers sharing cluster.dir
+      if (!config.getClusterDirectory().isEmpty() && detachedState != null) {
+        // Leases expire while the wrapper is gone, another node would start
+        // a second copy of every detached instance
+        Logger.warn("Cluster mode is not supported in detached mode, ignoring cluster.dir");
+      } else {
+        List<String> placed = new ArrayList<>();
+        for (InstanceInfo instance : instances.values()) {
+          if (instance.shouldAutoStart()) {
+            placed.add(instance.getName());
+          }
+        }
+        cluster = ClusterNode.create(config, placed, name -> launchInstance(name, "cluster"),
+            name -> stopInstance(name, false), name -> {
+              InstanceInfo instance = instances.get(name);
+              return !instance.isRunning() && !instance.shouldRestart()
+                  && instance.getRestartCount() >= MAX_RESTART_COUNT;
+            });
+      }
+
+      // Warm spares behind port relays for groups with standby enabled
+      standby = StandbyPool.create(config, instances,
+          name -> binaryStore.binaryFile(binaryStore.configuredVersionFor(name)), eventMatcher);
+      if (standby != null && detachedState != null) {
+        // The relays live in the wrapper, detached instances would be
+        // unreachable while it is gone
+        Logger.warn("Standby groups are not supported in detached mode, ignoring group.<name>.standby");
+        standby = null;
+      }
+      if (standby != null && cluster != null) {
+        // Every node would bind the ports of instances running elsewhere
+        Logger.warn("Standby groups are not supported in cluster mode, ignoring group.<name>.standby");
+        standby = null;
+      }
+      if (standby != null) {
+        standby.start();
+      }
+
+      // Lazy instances start on their first connection
+      lazy = SocketActivator.create(config, instances, name -> launchInstance(name, "activation"),
+          name -> stopInstance(name, false), () -> isUpdating || shouldExit);
+      if (lazy != null && detachedState != null) {
+        Logger.warn("Lazy instances are not supported in detached mode, ignoring instance.<name>.lazy");
+        lazy = null;
+      }
+      if (lazy != null && cluster != null) {
+        Logger.warn("Lazy instances are not supported in cluster mode, ignoring instance.<name>.lazy");
+        lazy = null;
+      }
+      if (lazy != null) {
+        lazy.start();
+      }
+
       if (config.isLegacyMode()) {
         Logger.info("Running in legacy single-instance mode");
       } else {
@@ -74,13 +231,41 @@ public class PicoLimboWrapper {
 
       // Register shutdown hook
       registerShutdownHook();
+      StartupTimeline.mark("load instances");
 
-      // Start instances that are configured for auto-start
+      // Restore restart counters and crash-loop state from the journal
+      if (config.isJournalEnabled()) {
+        openJournal();
+        StartupTimeline.mark("replay journal");
+      }
+
+      // Take over instances left running by a previous wrapper
+      if (detachedState != null) {
+        adoptInstances();
+        StartupTimeline.mark("adopt instances");
+      }
+
+      // Start instances that are configured for auto-start, in cluster mode
+      // the cluster places them instead
       for (InstanceInfo instance : instances.values()) {
-        if (instance.shouldAutoStart()) {
-          launchInstance(instance.getName());
+        if (cluster == null && instance.shouldAutoStart() && !instance.isRunning() && !hasGivenUp(instance)
+            && (lazy == null || !lazy.isLazy(instance.getName()))) {
+          launchInstance(instance.getName(), "autostart");
+          StartupTimeline.mark("launch " + instance.getName());
         }
       }
+      if (cluster != null) {
+        cluster.start();
+      }
+      if (watchdog != null) {
+        watchdog.start();
+      }
+      if (metricHistory != null) {
+        metricHistory.start();
+      }
+      if (standby != null) {
+        standby.fillAll();
+      }
 
       // Start input monitoring thread
       Thread inputThread = new Thread(() -> {
@@ -99,6 +284,7 @@ public class PicoLimboWrapper {
               } else {
                 // Stop all and exit
                 Logger.info("Received stop command, shutting down all instances...");
+                stopRequested = true;
                 shouldExit = true;
                 for (InstanceInfo instance : instances.values()) {
                   if (instance.isRunning()) {
@@ -110,24 +296,110 @@ public class PicoLimboWrapper {
             }
             // Start instance command
             else if (command.equals("start") && parts.length > 1) {
-              launchInstance(parts[1]);
+              launchInstance(parts[1], "start");
             }
             // Restart instance command
             else if (command.equals("restart") && parts.length > 1) {
-              restartInstance(parts[1]);
+              restartInstance(parts[1], "restart");
             }
             // Status command
             else if (command.equals("status")) {
               showStatus();
             }
+            // Tail instance output command
+            else if (command.equals("tail") && parts.length > 1) {
+              String[] commandArgs = parts[1].split("\\s+");
+              int lines = 20;
+              if (commandArgs.length > 1) {
+                try {
+                  lines = Integer.parseInt(commandArgs[1]);
+                } catch (NumberFormatException e) {
+                  lines = 0;
+                }
+                if (lines <= 0) {
+                  Logger.warn("Invalid line count: " + commandArgs[1] + ". Usage: tail <instance> [n]");
+                  continue;
+                }
+              }
+              tailInstance(commandArgs[0], lines);
+            }
+            // Grep instance output command
+            else if (command.equals("grep") && parts.length > 1) {
+              String[] commandArgs = parts[1].split("\\s+", 2);
+              if (commandArgs.length < 2) {
+                Logger.warn("Usage: grep <instance> <text>");
+              } else {
+                grepInstance(commandArgs[0], commandArgs[1]);
+              }
+            }
+            // Lifecycle history command
+            else if (command.equals("history") && parts.length > 1) {
+              String[] commandArgs = parts[1].split("\\s+");
+              if (commandArgs.length > 1 && MetricHistory.Metric.fromLabel(commandArgs[1]) != null) {
+                showMetricHistory(commandArgs);
+                continue;
+              }
+              int events = 20;
+              if (commandArgs.length > 1) {
+                try {
+                  events = Integer.parseInt(commandArgs[1]);
+                } catch (NumberFormatException e) {
+                  Logger.warn("Invalid event count or metric: " + commandArgs[1]
+                      + " (memory, cpu, restarts or ping)");
+                  continue;
+                }
+              }
+              showHistory(commandArgs[0], events);
+            }
+            // Detach command, exits leaving detached instances running
+            else if (command.equals("detach")) {
+              if (detachedState == null) {
+                Logger.warn("Detached mode is disabled (set detached=true in wrapper.properties)");
+              } else {
+                Logger.info("Detaching, instances keep running...");
+                shouldExit = true;
+                break;
+              }
+            }
             // Help command
             else if (command.equals("help")) {
               showHelp();
             }
-            // Update command
+            // Update command, to the latest release or a given tag
             else if (command.equals("update") || command.equals("reload")) {
-              Logger.info("Received update command, downloading latest version...");
-              handleUpdate();
+              String tag = parts.length > 1 ? parts[1] : null;
+              Logger.info("Received update command, " + (tag != null ? "installing " + tag : "checking latest version")
+                  + "...");
+              handleUpdate(tag);
+            }
+            // Canary command, moves some instances to a version first
+            else if (command.equals("canary") && parts.length > 1) {
+              handleCanary(parts[1].split("\\s+"));
+            }
+            // Installed versions command
+            else if (command.equals("versions")) {
+              showVersions();
+            }
+            // Cluster overview and hand-over command
+            else if (command.equals("cluster")) {
+              String[] commandArgs = parts.length > 1 ? parts[1].split("\\s+") : new String[0];
+              if (cluster == null) {
+                Logger.warn("Cluster mode is off (set cluster.dir in wrapper.properties)");
+              } else if (commandArgs.length == 0) {
+                showCluster();
+              } else if (commandArgs[0].equals("release") && commandArgs.length == 2) {
+                cluster.release(commandArgs[1]);
+              } else {
+                Logger.warn("Usage: cluster [release <instance>]");
+              }
+            }
+            // Flight recording command
+            else if (command.equals("jfr")) {
+              handleJfr(parts.length > 1 ? parts[1].split("\\s+") : new String[0]);
+            }
+            // Synthetic client load command
+            else if (command.equals("loadtest")) {
+              handleLoadTest(parts.length > 1 ? parts[1].split("\\s+") : new String[0]);
             } else if (!input.isEmpty()) {
               Logger.warn("Unknown command: " + input + " (type 'help' for available commands)");
             }
@@ -143,6 +415,7 @@ public class PicoLimboWrapper {
       while (!shouldExit) {
         try {
           Thread.sleep(1000);
+          saveDetachedState();
 
           // Wait for update to complete if in progress
           synchronized (updateLock) {
@@ -166,7 +439,9 @@ public class PicoLimboWrapper {
     }
   }
 
-  private static void launchInstance(String instanceName) {
+  // reason is recorded in the journal: autostart, start, restart, crash, update,
+  // memory, scheduled, canary, rollback, activation or cluster
+  private static void launchInstance(String instanceName, String reason) {
     InstanceInfo instance = instances.get(instanceName);
     if (instance == null) {
       Logger.error("Instance '" + instanceName + "' not found");
@@ -178,60 +453,646 @@ public class PicoLimboWrapper {
       return;
     }
 
+    // A crash or watchdog restart that was underway when the wrapper began
+    // shutting down
+    if (shouldExit) {
+      Logger.info(instanceName, "Wrapper is shutting down, not launching");
+      return;
+    }
+
+    // Another node may be running it
+    if (cluster != null && !cluster.acquire(instanceName)) {
+      return;
+    }
+
+    if (SupervisorJournal.isUserLaunch(reason)) {
+      instance.resetRestartCount();
+      instance.setShouldRestart(true);
+    }
+
+    WrapperEvents.InstanceLaunch launchEvent = new WrapperEvents.InstanceLaunch();
+    launchEvent.begin();
     try {
       Logger.info(instanceName, "Launching instance...");
 
       String configPath = instance.getConfigPath();
+      if (standby != null && standby.isStandbyInstance(instanceName)) {
+        configPath = standby.prepareLaunch(instanceName);
+      } else if (lazy != null && lazy.isLazy(instanceName)) {
+        configPath = lazy.prepareLaunch(instanceName);
+      }
+      // Usually installed already, a pin added since startup is fetched here
+      String version = binaryStore.versionFor(instanceName);
+      File binary = binaryStore.ensure(version);
       ProcessBuilder processBuilder = new ProcessBuilder(
-          currentBinaryFile.getAbsolutePath(),
+          binary.getAbsolutePath(),
           "-c", configPath);
       processBuilder.directory(new File(System.getProperty("user.dir")));
       processBuilder.redirectErrorStream(true);
+      if (isolation != null) {
+        processBuilder.command().addAll(0, isolation.commandPrefix(instanceName));
+      }
+
+      File outputFile = null;
+      if (detachedState != null) {
+        // Output goes to a file the next wrapper can pick up, and in its own
+        // session the child does not get the terminal's signals either
+        outputFile = detachedState.getOutputFile(instanceName);
+        outputFile.getAbsoluteFile().getParentFile().mkdirs();
+        Files.write(outputFile.toPath(), new byte[0]);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(outputFile));
+        processBuilder.redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")));
+        String setsid = findSetsid();
+        if (setsid != null) {
+          processBuilder.command().add(0, setsid);
+        }
+      }
 
+      instance.setReady(false);
       Process process = processBuilder.start();
+      if (isolation != null) {
+        isolation.attach(instanceName, process.pid());
+      }
       instance.setProcess(process);
+      instance.setLaunchedAt(System.currentTimeMillis());
+      instance.setVersion(version);
+      recordEvent(JournalEventType.LAUNCH, instanceName, process.pid(), 0, reason);
+      launchEvent.end();
+      if (launchEvent.shouldCommit()) {
+        launchEvent.instance = instanceName;
+        launchEvent.reason = reason;
+        launchEvent.version = version;
+        launchEvent.pid = process.pid();
+        launchEvent.commit();
+      }
 
-      // Forward output from this instance to console with instance name prefix
-      Thread outputThread = new Thread(() -> {
-        try (BufferedReader reader = new BufferedReader(
-            new InputStreamReader(process.getInputStream()))) {
-          String line;
-          while ((line = reader.readLine()) != null) {
-            // Forward PicoLimbo output with instance prefix
-            System.out.println("\u001B[36m[" + instanceName + "]\u001B[0m " + line);
+      if (outputFile != null) {
+        FollowingInputStream follower = new FollowingInputStream(outputFile, process.toHandle(), 0,
+            config.getDetachedMaxOutputBytes());
+        instance.setOutputFollower(follower);
+        startOutputThread(instance, follower, process);
+        saveDetachedState();
+      } else {
+        instance.setOutputFollower(null);
+        startOutputThread(instance, process.getInputStream(), process);
+      }
+
+      Logger.info(instanceName, "Instance launched successfully (PicoLimbo " + version + ")");
+
+    } catch (IOException e) {
+      Logger.error(instanceName, "Failed to launch: " + e.getMessage());
+      e.printStackTrace();
+    }
+  }
+
+  // Forwards the instance's output until it ends, then restarts a crashed
+  // instance. process is null for adopted instances.
+  private static void startOutputThread(InstanceInfo instance, InputStream output, Process process) {
+    String instanceName = instance.getName();
+
+    // Forward output from this instance to console with instance name prefix
+    OutputForwarder forwarder = new OutputForwarder(instanceName, instance.getOutputSinks(),
+        instance.getRateLimiter());
+    Thread outputThread = new Thread(() -> {
+      try (InputStream in = output) {
+        forwarder.forward(in);
+      } catch (IOException e) {
+        // Process ended, this is normal
+      }
+      long endedAt = System.currentTimeMillis();
+
+      // Only stopped following a detached instance, it keeps running
+      ProcessHandle handle = instance.getProcessHandle();
+      if (shouldExit && detachedState != null && handle != null && handle.isAlive()) {
+        return;
+      }
+
+      long exitCode = exitCodeOf(process);
+      long uptime = endedAt - instance.getLaunchedAt();
+      WrapperEvents.InstanceExit exitEvent = new WrapperEvents.InstanceExit();
+      if (exitEvent.shouldCommit()) {
+        exitEvent.instance = instanceName;
+        exitEvent.exitCode = exitCode;
+        exitEvent.uptime = uptime;
+        exitEvent.crashed = instance.shouldRestart() && !shouldExit;
+        exitEvent.commit();
+      }
+      if (lazy != null) {
+        lazy.onExit(instanceName);
+      }
+      if (isolation != null) {
+        isolation.release(instanceName);
+      }
+      // Output files only outlive the process in detached mode
+      if (detachedState == null && output instanceof FollowingInputStream) {
+        ((FollowingInputStream) output).getFile().delete();
+      }
+      if (standby != null) {
+        standby.release(instanceName);
+      }
+
+      // Process ended, check if should auto-restart
+      if (instance.shouldRestart() && !shouldExit) {
+        recordEvent(JournalEventType.CRASH, instanceName, exitCode, uptime, lastOutputLine(instance));
+        writeCrashDump(instance, exitCode);
+
+        // An instance that ran for a while before crashing is not crash looping
+        if (uptime >= STABLE_UPTIME_MS) {
+          instance.resetRestartCount();
+        }
+        if (instance.getRestartCount() < MAX_RESTART_COUNT) {
+          instance.incrementRestartCount();
+          recordEvent(JournalEventType.RESTART, instanceName, instance.getRestartCount(), 0, "");
+          // A crashing canary goes back to the previous version before it is relaunched
+          CanaryRollout canary = rollout;
+          if (canary != null) {
+            canary.onCrash(instanceName);
           }
-        } catch (IOException e) {
-          // Process ended, this is normal
-        }
-
-        // Process ended, check if should auto-restart
-        if (instance.shouldRestart() && !shouldExit) {
-          if (instance.getRestartCount() < MAX_RESTART_COUNT) {
-            instance.incrementRestartCount();
-            Logger.warn(instanceName, "Process crashed, restarting... (attempt " + instance.getRestartCount() + "/"
-                + MAX_RESTART_COUNT + ")");
-            try {
-              Thread.sleep(1000); // Wait before restart
-              launchInstance(instanceName);
-            } catch (InterruptedException e) {
-              Thread.currentThread().interrupt();
+          if (standby != null && failOver(instance, endedAt)) {
+            return;
+          }
+          Logger.warn(instanceName, "Process crashed, restarting... (attempt " + instance.getRestartCount() + "/"
+              + MAX_RESTART_COUNT + ")");
+          try {
+            WrapperEvents.RestartBackoff backoff = new WrapperEvents.RestartBackoff();
+            backoff.begin();
+            Thread.sleep(1000); // Wait before restart
+            backoff.end();
+            if (backoff.shouldCommit()) {
+              backoff.instance = instanceName;
+              backoff.attempt = instance.getRestartCount();
+              backoff.commit();
             }
-          } else {
-            Logger.error(instanceName, "Max restart attempts reached, giving up");
-            instance.setShouldRestart(false);
+            launchInstance(instanceName, "crash");
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
           }
+        } else {
+          Logger.error(instanceName, "Max restart attempts reached, giving up");
+          instance.setShouldRestart(false);
+          recordEvent(JournalEventType.GIVE_UP, instanceName, instance.getRestartCount(), 0, "");
         }
-      }, "Output-" + instanceName);
-      outputThread.setDaemon(false);
-      outputThread.start();
-      instance.setOutputThread(outputThread);
+      } else {
+        recordEvent(JournalEventType.EXIT, instanceName, exitCode, uptime, "");
+      }
+    }, "Output-" + instanceName);
+    outputThread.setDaemon(false);
+    outputThread.start();
+    instance.setOutputThread(outputThread);
+  }
 
-      instance.resetRestartCount();
-      Logger.info(instanceName, "Instance launched successfully");
+  // Puts the group's warm spare in place of a crashed instance, false when
+  // there is no ready spare and the instance has to be relaunched
+  private static boolean failOver(InstanceInfo instance, long crashedAt) {
+    String instanceName = instance.getName();
+    StandbyPool.Spare spare = standby.promote(instanceName, binaryStore.binaryFor(instanceName));
+    if (spare == null) {
+      return false;
+    }
 
+    Process process = spare.getProcess();
+    FollowingInputStream follower;
+    try {
+      follower = new FollowingInputStream(spare.getOutputFile(), process.toHandle(), spare.getOutputPosition(),
+          config.getDetachedMaxOutputBytes());
     } catch (IOException e) {
-      Logger.error(instanceName, "Failed to launch: " + e.getMessage());
-      e.printStackTrace();
+      Logger.error(instanceName, "Could not take over standby output: " + e.getMessage());
+      process.destroyForcibly();
+      standby.fill(instanceName);
+      return false;
+    }
+
+    instance.setProcess(process);
+    instance.setLaunchedAt(spare.getLaunchedAt());
+    instance.setVersion(binaryStore.versionFor(instanceName));
+    instance.setReady(true);
+    instance.setOutputFollower(follower);
+    startOutputThread(instance, follower, process);
+    if (isolation != null) {
+      isolation.attach(instanceName, process.pid());
+    }
+
+    long latency = System.currentTimeMillis() - crashedAt;
+    standby.recordFailover(instanceName, latency);
+    recordEvent(JournalEventType.FAILOVER, instanceName, latency, process.pid(), "");
+    Logger.warn(instanceName, "Process crashed, failed over to standby (pid " + process.pid() + ") in " + latency
+        + " ms (attempt " + instance.getRestartCount() + "/" + MAX_RESTART_COUNT + ")");
+    standby.fill(instanceName);
+    return true;
+  }
+
+  // Re-attaches to the instances a previous wrapper left running in detached
+  // mode and resumes their output where it stopped reading
+  private static void adoptInstances() {
+    for (Map.Entry<String, DetachedState.Entry> entry : detachedState.load().entrySet()) {
+      String name = entry.getKey();
+      DetachedState.Entry state = entry.getValue();
+      Optional<ProcessHandle> found = ProcessHandle.of(state.getPid())
+          .filter(process -> process.isAlive() && isSameProcess(process, state));
+      if (!found.isPresent()) {
+        Logger.info(name, "Previous process (pid " + state.getPid() + ") is gone");
+        continue;
+      }
+
+      ProcessHandle process = found.get();
+      InstanceInfo instance = instances.get(name);
+      if (instance == null) {
+        Logger.warn("Instance '" + name + "' (pid " + state.getPid() + ") is no longer configured, stopping it");
+        process.destroy();
+        continue;
+      }
+
+      try {
+        FollowingInputStream follower = new FollowingInputStream(detachedState.getOutputFile(name), process,
+            state.getOffset(), config.getDetachedMaxOutputBytes());
+        instance.adoptProcess(process);
+        instance.setVersion(process.info().command().map(binaryStore::tagOf).orElse(null));
+        long started = DetachedState.startedMillis(process);
+        instance.setLaunchedAt(started > 0 ? started : System.currentTimeMillis());
+        recordEvent(JournalEventType.ADOPT, name, state.getPid(), 0, "");
+        instance.setOutputFollower(follower);
+        // It was past startup when the previous wrapper detached
+        instance.setReady(true);
+        startOutputThread(instance, follower, null);
+        Logger.info(name, "Adopted running instance (pid " + state.getPid() + ")");
+      } catch (IOException e) {
+        Logger.error(name, "Could not follow output of pid " + state.getPid() + ": " + e.getMessage());
+      }
+    }
+    saveDetachedState();
+  }
+
+  private static void openJournal() {
+    SupervisorJournal opened = new SupervisorJournal(new File(config.getJournalFile()), config.getJournalMaxBytes(),
+        config.getJournalKeepEvents());
+    try {
+      opened.open(config.getJournalCommitIntervalMillis());
+    } catch (IOException e) {
+      Logger.error("Could not open journal " + config.getJournalFile() + ": " + e.getMessage());
+      return;
+    }
+    journal = opened;
+    if (journal.getReplayedEvents() > 0) {
+      Logger.info("Replayed " + journal.getReplayedEvents() + " journal events in " + journal.getReplayMillis()
+          + " ms");
+    }
+
+    for (InstanceInfo instance : instances.values()) {
+      SupervisorJournal.History history = journal.getHistory(instance.getName());
+      if (history == null) {
+        continue;
+      }
+      instance.setRestartCount(history.getRestartAttempts());
+      if (history.hasGivenUp() && instance.shouldAutoStart()) {
+        Logger.warn(instance.getName(), "Gave up after " + history.getRestartAttempts()
+            + " restarts before the wrapper stopped, not starting it automatically (use 'start "
+            + instance.getName() + "')");
+      }
+    }
+  }
+
+  private static boolean hasGivenUp(InstanceInfo instance) {
+    SupervisorJournal.History history = journal != null ? journal.getHistory(instance.getName()) : null;
+    return history != null && history.hasGivenUp();
+  }
+
+  private static void recordEvent(JournalEventType type, String instanceName, long value, long extra,
+      String detail) {
+    if (journal != null) {
+      journal.append(type, instanceName, value, extra, detail);
+    }
+    if (metricHistory != null) {
+      metricHistory.onEvent(type, instanceName, detail);
+    }
+  }
+
+  // Waits briefly for the exit code, which is not available for adopted processes
+  private static long exitCodeOf(Process process) {
+    try {
+      if (process != null && process.waitFor(1, TimeUnit.SECONDS)) {
+        return process.exitValue();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return SupervisorJournal.UNKNOWN_EXIT;
+  }
+
+  private static String lastOutputLine(InstanceInfo instance) {
+    OutputRingBuffer buffer = instance.getOutputBuffer();
+    if (buffer == null) {
+      return "";
+    }
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    buffer.tail(1, new PrintStream(line));
+    return line.toString().trim();
+  }
+
+  private static void showHistory(String instanceName, int count) {
+    if (!instances.containsKey(instanceName)) {
+      Logger.error("Instance '" + instanceName + "' not found");
+      return;
+    }
+    if (journal == null) {
+      Logger.warn("The journal is disabled (journal.enabled=false)");
+      return;
+    }
+
+    List<SupervisorJournal.Event> events;
+    try {
+      events = journal.readEvents(instanceName);
+    } catch (IOException e) {
+      Logger.error("Could not read journal: " + e.getMessage());
+      return;
+    }
+
+    SupervisorJournal.History history = journal.getHistory(instanceName);
+    if (history != null) {
+      Logger.info(instanceName, history.getLaunches() + " launches, " + history.getCrashes() + " crashes"
+          + (history.getLastFailure().isEmpty() ? "" : ", last failure: " + history.getLastFailure()));
+    }
+
+    DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    for (int i = Math.max(0, events.size() - count); i < events.size(); i++) {
+      SupervisorJournal.Event event = events.get(i);
+      String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(event.getTime()), ZoneId.systemDefault())
+          .format(format);
+      System.out.printf("  \u001B[90m%s\u001B[0m  %-8s %s%n", time, event.getType().getLabel(),
+          describeEvent(event));
+    }
+  }
+
+  // history <instance> <metric> [duration] draws the metric over the
+  // duration (default 24h) in HISTORY_ROWS rows
+  private static void showMetricHistory(String[] args) {
+    String instanceName = args[0];
+    MetricHistory.Metric metric = MetricHistory.Metric.fromLabel(args[1]);
+    if (!instances.containsKey(instanceName)) {
+      Logger.error("Instance '" + instanceName + "' not found");
+      return;
+    }
+    if (metricHistory == null) {
+      Logger.warn("The metric history is disabled (history.enabled=false)");
+      return;
+    }
+    String range = args.length > 2 ? args[2] : "24h";
+    long duration;
+    try {
+      duration = MetricHistory.parseDuration(range);
+    } catch (IllegalArgumentException e) {
+      Logger.warn("Invalid duration: " + range + " (e.g. 90m, 6h or 7d)");
+      return;
+    }
+
+    long to = System.currentTimeMillis() / 1000;
+    List<MetricHistory.Bucket> buckets;
+    try {
+      buckets = metricHistory.query(instanceName, metric, to - duration, to, HISTORY_ROWS);
+    } catch (IOException e) {
+      Logger.error("Could not read metric history: " + e.getMessage());
+      return;
+    }
+    if (buckets.isEmpty()) {
+      Logger.info(instanceName, "No " + metric.getLabel() + " samples in the last " + range);
+      return;
+    }
+
+    // Counters are drawn from zero, the others over the range they cover
+    double low = metric.isCounter() ? 0 : Double.MAX_VALUE;
+    double high = 0;
+    for (MetricHistory.Bucket bucket : buckets) {
+      low = Math.min(low, metric.isCounter() ? 0 : bucket.getMin());
+      high = Math.max(high, metric.isCounter() ? bucket.getSum() : bucket.getMax());
+    }
+    Logger.info(instanceName, metric.getLabel() + " over the last " + range
+        + (metric.isCounter() ? "" : " (average, min - max)"));
+    DateTimeFormatter format = DateTimeFormatter.ofPattern(duration > 86_400 ? "MM-dd HH:mm"
+        : duration > 3600 ? "HH:mm" : "HH:mm:ss");
+    String unit = metric.getUnit().isEmpty() ? "" : " " + metric.getUnit();
+    for (MetricHistory.Bucket bucket : buckets) {
+      String time = LocalDateTime.ofInstant(Instant.ofEpochSecond(bucket.getSecond()), ZoneId.systemDefault())
+          .format(format);
+      double value = metric.isCounter() ? bucket.getSum() : bucket.getAverage();
+      String values = metric.isCounter() ? String.format("%6.0f", value)
+          : String.format("%8.1f%s  \u001B[90m%.1f - %.1f\u001B[0m", value, unit, bucket.getMin(), bucket.getMax());
+      int width;
+      if (high <= low) {
+        width = high > 0 ? 30 : 0;
+      } else if (metric.isCounter()) {
+        width = (int) Math.round(value / high * 30);
+      } else {
+        width = (int) Math.round((value - low) / (high - low) * 29) + 1;
+      }
+      System.out.printf("  \u001B[90m%s\u001B[0m  \u001B[36m%-30s\u001B[0m %s%n", time, "#".repeat(width), values);
+    }
+  }
+
+  private static String describeEvent(SupervisorJournal.Event event) {
+    switch (event.getType()) {
+      case LAUNCH:
+        return "pid " + event.getValue() + " (" + event.getDetail() + ")";
+      case ADOPT:
+        return "pid " + event.getValue();
+      case READY:
+        return "after " + event.getValue() + " ms";
+      case EXIT:
+      case CRASH:
+        String code = event.getValue() == SupervisorJournal.UNKNOWN_EXIT ? "unknown" : String.valueOf(event.getValue());
+        String description = "exit code " + code + " after " + formatDuration(event.getExtra());
+        return event.getDetail().isEmpty() ? description : description + ": " + event.getDetail();
+      case RESTART:
+        return "attempt " + event.getValue() + "/" + MAX_RESTART_COUNT;
+      case GIVE_UP:
+        return "after " + event.getValue() + " attempts";
+      case SUMMARY:
+        return event.getValue() + " earlier launches, " + event.getExtra() + " earlier crashes";
+      case FAILOVER:
+        return "to standby pid " + event.getExtra() + " in " + event.getValue() + " ms";
+      default:
+        return event.getDetail();
+    }
+  }
+
+  private static String formatDuration(long millis) {
+    long seconds = millis / 1000;
+    if (seconds < 60) {
+      return seconds + "s";
+    } else if (seconds < 3600) {
+      return (seconds / 60) + "m " + (seconds % 60) + "s";
+    }
+    return (seconds / 3600) + "h " + (seconds / 60 % 60) + "m";
+  }
+
+  // Guards against the pid having been reused by an unrelated process
+  private static boolean isSameProcess(ProcessHandle process, DetachedState.Entry state) {
+    long started = DetachedState.startedMillis(process);
+    return state.getStartedMillis() == 0 || started == 0 || Math.abs(started - state.getStartedMillis()) < 1000;
+  }
+
+  private static synchronized void saveDetachedState() {
+    if (detachedState == null) {
+      return;
+    }
+
+    Map<String, DetachedState.Entry> entries = new LinkedHashMap<>();
+    for (InstanceInfo instance : instances.values()) {
+      ProcessHandle process = instance.getProcessHandle();
+      FollowingInputStream follower = instance.getOutputFollower();
+      if (process != null && process.isAlive() && follower != null) {
+        entries.put(instance.getName(), new DetachedState.Entry(process.pid(), DetachedState.startedMillis(process),
+            follower.getPosition()));
+      }
+    }
+    try {
+      detachedState.save(entries);
+    } catch (IOException e) {
+      Logger.error("Could not save detached state: " + e.getMessage());
+    }
+  }
+
+  // Stops following detached output and records where the next wrapper
+  // resumes, returns how many instances are left running
+  private static int detachInstances() {
+    for (InstanceInfo instance : instances.values()) {
+      FollowingInputStream follower = instance.getOutputFollower();
+      if (follower == null) {
+        continue;
+      }
+      try {
+        follower.close();
+        Thread outputThread = instance.getOutputThread();
+        if (outputThread != null) {
+          outputThread.join(1000);
+        }
+      } catch (IOException e) {
+        // Already closed
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    saveDetachedState();
+
+    int running = 0;
+    for (InstanceInfo instance : instances.values()) {
+      if (instance.isRunning()) {
+        running++;
+      }
+    }
+    return running;
+  }
+
+  private static String findSetsid() {
+    for (String path : new String[] { "/usr/bin/setsid", "/bin/setsid" }) {
+      if (new File(path).canExecute()) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  // Waits for a process, which need not be a child of this JVM, to exit
+  private static boolean waitForExit(ProcessHandle process, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (process.isAlive()) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      Thread.sleep(50);
+    }
+    return true;
+  }
+
+  private static void openInstanceLog(InstanceInfo instance) {
+    InstanceLogWriter writer = new InstanceLogWriter(
+        instance.getName(),
+        new File(config.getLogDirectory()),
+        config.getLogMaxBytes(),
+        config.getLogRotateMillis(),
+        config.getLogBufferBytes(),
+        config.shouldCompressLogs());
+    try {
+      writer.start(config.getLogFlushIntervalMillis());
+      instance.setLogWriter(writer);
+      Logger.info(instance.getName(), "Writing output to " + writer.getLogFile().getPath());
+    } catch (IOException e) {
+      Logger.error(instance.getName(), "Could not open log file: " + e.getMessage());
+    }
+  }
+
+  private static void onOutputEvent(InstanceInfo instance, OutputEventType type) {
+    if (type == OutputEventType.READY) {
+      instance.setReady(true);
+      WrapperEvents.InstanceReady readyEvent = new WrapperEvents.InstanceReady();
+      if (readyEvent.shouldCommit()) {
+        readyEvent.instance = instance.getName();
+        readyEvent.startup = System.currentTimeMillis() - instance.getLaunchedAt();
+        readyEvent.commit();
+      }
+      recordEvent(JournalEventType.READY, instance.getName(), System.currentTimeMillis() - instance.getLaunchedAt(), 0,
+          "");
+      StartupTimeline.finish(instance.getName());
+      if (lazy != null) {
+        lazy.onReady(instance.getName());
+      }
+    }
+  }
+
+  private static void writeCrashDump(InstanceInfo instance, long exitValue) {
+    OutputRingBuffer buffer = instance.getOutputBuffer();
+    if (buffer == null) {
+      return;
+    }
+
+    String exitCode = exitValue == SupervisorJournal.UNKNOWN_EXIT ? "unknown" : String.valueOf(exitValue);
+
+    File crashDir = new File(config.getCrashDirectory());
+    crashDir.mkdirs();
+    String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    File dumpFile = new File(crashDir, instance.getName() + "-" + stamp + ".log");
+
+    try (FileChannel channel = FileChannel.open(dumpFile.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      String header = "# Instance '" + instance.getName() + "' exited unexpectedly (exit code: " + exitCode + ")\n";
+      channel.write(ByteBuffer.wrap(header.getBytes()));
+      long bytes = buffer.dumpTo(channel);
+      Logger.warn(instance.getName(), "Wrote last " + bytes + " bytes of output to " + dumpFile.getPath());
+    } catch (IOException e) {
+      Logger.error(instance.getName(), "Failed to write crash dump: " + e.getMessage());
+    }
+  }
+
+  private static void tailInstance(String instanceName, int lines) {
+    InstanceInfo instance = instances.get(instanceName);
+    if (instance == null) {
+      Logger.error("Instance '" + instanceName + "' not found");
+      return;
+    }
+    if (instance.getOutputBuffer() == null) {
+      Logger.warn(instanceName, "Output buffer is disabled (output.bufferMb=0)");
+      return;
+    }
+
+    Logger.info(instanceName, "Last " + lines + " lines:");
+    instance.getOutputBuffer().tail(lines, System.out);
+  }
+
+  private static void grepInstance(String instanceName, String text) {
+    InstanceInfo instance = instances.get(instanceName);
+    if (instance == null) {
+      Logger.error("Instance '" + instanceName + "' not found");
+      return;
+    }
+    if (instance.getOutputBuffer() == null) {
+      Logger.warn(instanceName, "Output buffer is disabled (output.bufferMb=0)");
+      return;
+    }
+
+    int maxMatches = 200;
+    int matches = instance.getOutputBuffer().grep(text.getBytes(), maxMatches, System.out);
+    if (matches > maxMatches) {
+      Logger.info(instanceName, matches + " matching lines, showing the first " + maxMatches);
+    } else {
+      Logger.info(instanceName, matches + " matching lines");
     }
   }
 
@@ -251,20 +1112,22 @@ public class PicoLimboWrapper {
       Logger.info(instanceName, "Stopping instance...");
       instance.setShouldRestart(setShouldRestart);
 
-      Process process = instance.getProcess();
+      ProcessHandle process = instance.getProcessHandle();
       process.destroy();
-      if (!process.waitFor(5, TimeUnit.SECONDS)) {
+      if (!waitForExit(process, 5000)) {
         process.destroyForcibly();
       }
 
       Logger.info(instanceName, "Instance stopped");
     } catch (InterruptedException e) {
       Logger.error(instanceName, "Error stopping instance: " + e.getMessage());
-      instance.getProcess().destroyForcibly();
+      instance.getProcessHandle().destroyForcibly();
     }
   }
 
-  private static void restartInstance(String instanceName) {
+  // reason is the journal's launch reason: restart, or memory / scheduled
+  // for the watchdog
+  private static void restartInstance(String instanceName, String reason) {
     InstanceInfo instance = instances.get(instanceName);
     if (instance == null) {
       Logger.error("Instance '" + instanceName + "' not found");
@@ -281,8 +1144,7 @@ public class PicoLimboWrapper {
       }
     }
 
-    instance.setShouldRestart(true);
-    launchInstance(instanceName);
+    launchInstance(instanceName, reason);
   }
 
   private static void showStatus() {
@@ -294,17 +1156,164 @@ public class PicoLimboWrapper {
     for (Map.Entry<String, InstanceInfo> entry : instances.entrySet()) {
       String name = entry.getKey();
       InstanceInfo instance = entry.getValue();
-      String status = instance.isRunning() ? "\u001B[32m● RUNNING\u001B[0m" : "\u001B[90m○ STOPPED\u001B[0m";
+      String status;
+      if (!instance.isRunning()) {
+        status = "\u001B[90m○ STOPPED\u001B[0m";
+      } else if (instance.isReady()) {
+        status = "\u001B[32m● RUNNING\u001B[0m";
+      } else {
+        status = "\u001B[33m◐ STARTING\u001B[0m";
+      }
       String config = instance.getConfigPath();
       String restarts = instance.getRestartCount() > 0 ? " \u001B[33m↻" + instance.getRestartCount() + "\u001B[0m" : "";
+      String version = "";
+      if (instance.isRunning() && instance.getVersion() != null) {
+        boolean canary = instance.getVersion().equals(binaryStore.getCanaryVersion(name));
+        version = (canary ? " \u001B[33m" : " \u001B[90m") + instance.getVersion() + (canary ? " (canary)" : "")
+            + "\u001B[0m";
+      }
+
+      System.out.printf("\u001B[36m║\u001B[0m  \u001B[1m%-15s\u001B[0m %s %s%s%s\n",
+          name, status, config, version, restarts);
+
+      OutputEventCounter events = instance.getEventCounter();
+      if (events != null) {
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90mjoins %d, leaves %d, errors %d, warnings %d\u001B[0m\n",
+            events.getCount(OutputEventType.PLAYER_JOIN), events.getCount(OutputEventType.PLAYER_LEAVE),
+            events.getCount(OutputEventType.ERROR), events.getCount(OutputEventType.WARNING));
+      }
+
+      OutputRateLimiter rateLimiter = instance.getRateLimiter();
+      if (rateLimiter != null && (rateLimiter.getSuppressedLines() > 0 || rateLimiter.getCollapsedLines() > 0)) {
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[33msuppressed %d lines (%d bytes), collapsed %d repeats\u001B[0m\n",
+            rateLimiter.getSuppressedLines(), rateLimiter.getSuppressedBytes(), rateLimiter.getCollapsedLines());
+      }
+
+      if (isolation != null && instance.isRunning()) {
+        showResources(instance);
+      }
+      if (watchdog != null && watchdog.isWatched(name) && instance.isRunning()) {
+        showWatchdog(name);
+      }
+      PortRelay relay = standby != null ? standby.getRelay(name) : null;
+      if (relay == null && lazy != null) {
+        relay = lazy.getRelay(name);
+      }
+      if (relay != null) {
+        InetSocketAddress backend = relay.getBackend();
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90mrelay :%d -> %s, %d connections (%d open)\u001B[0m\n",
+            relay.getListenAddress().getPort(), backend != null ? ":" + backend.getPort() : "-",
+            relay.getConnections(), relay.getActive());
+      }
+      if (cluster != null) {
+        String owner = cluster.ownerOf(name);
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90mcluster: %s\u001B[0m\n",
+            cluster.owns(name) ? "held by this node (" + cluster.getNode() + ")"
+                : owner != null ? "on node " + owner : instance.shouldAutoStart() ? "waiting for a node" : "not placed");
+      }
+      if (lazy != null && lazy.isLazy(name)) {
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90m%s\u001B[0m\n", lazy.describe(name));
+      }
+
+      InstanceLogWriter logWriter = instance.getLogWriter();
+      if (logWriter != null) {
+        String dropped = logWriter.getDroppedLines() > 0 ? "\u001B[33m" : "\u001B[90m";
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90mlog %s, %d rotations,\u001B[0m %sdropped %d lines (%d bytes)\u001B[0m\n",
+            logWriter.getLogFile().getPath(), logWriter.getRotations(), dropped,
+            logWriter.getDroppedLines(), logWriter.getDroppedBytes());
+      }
+      FollowingInputStream follower = instance.getOutputFollower();
+      if (follower != null && follower.getTruncations() > 0) {
+        System.out.printf("\u001B[36m║\u001B[0m    \u001B[90moutput %s, truncated %d times\u001B[0m\n",
+            follower.getFile().getPath(), follower.getTruncations());
+      }
+    }
 
-      System.out.printf("\u001B[36m║\u001B[0m  \u001B[1m%-15s\u001B[0m %s %s%s\n",
-          name, status, config, restarts);
+    if (standby != null) {
+      for (String group : standby.getGroups()) {
+        System.out.printf("\u001B[36m║\u001B[0m  \u001B[1m%-15s\u001B[0m \u001B[90mstandby: %s\u001B[0m\n", group,
+            standby.describe(group));
+      }
+    }
+    if (metricHistory != null) {
+      System.out.printf("\u001B[36m║\u001B[0m  \u001B[90mhistory: %s\u001B[0m\n", metricHistory.describe());
+    }
+    if (logStream != null) {
+      String dropped = logStream.getFramesDropped() > 0 ? "\u001B[33m" : "\u001B[90m";
+      System.out.printf("\u001B[36m║\u001B[0m  \u001B[90mlog stream: %d clients, %d lines sent,\u001B[0m %s%d dropped\u001B[0m"
+          + "\u001B[90m, %d refused, %d unauthorized\u001B[0m\n", logStream.getClients(), logStream.getFramesSent(),
+          dropped, logStream.getFramesDropped(), logStream.getRefused(), logStream.getUnauthorized());
+    }
+
+    CanaryRollout canary = rollout;
+    if (canary != null && canary.isActive()) {
+      List<String> parts = new ArrayList<>();
+      for (String name : canary.getNames()) {
+        parts.add(name + " " + canary.getErrors(name) + "/" + canary.getMaxErrors() + " errors");
+      }
+      long left = canary.getMillisLeft();
+      System.out.printf("\u001B[36m║\u001B[0m  \u001B[1m%-15s\u001B[0m \u001B[33m%s %s%s, %s\u001B[0m\n", "canary",
+          canary.getTag(), canary.getState().getLabel(), left >= 0 ? " (" + formatDuration(left) + " left)" : "",
+          String.join(", ", parts));
     }
 
     System.out.println("\u001B[36m╚════════════════════════════════════════════════════════════════╝\u001B[0m\n");
   }
 
+  private static void showResources(InstanceInfo instance) {
+    String name = instance.getName();
+    List<String> parts = new ArrayList<>();
+    if (isolation.isPinned(name)) {
+      String affinity = InstanceIsolation.readAffinity(instance.getProcessHandle().pid());
+      parts.add("cpus " + (affinity != null ? affinity : isolation.getCpus(name)));
+    }
+
+    InstanceIsolation.Usage usage = isolation.readUsage(name);
+    if (usage != null) {
+      if (usage.getCpuLimit() > 0) {
+        parts.add(String.format("cpu.max %.2f cores", usage.getCpuLimit()));
+      }
+      if (usage.getCpuUsageUsec() >= 0) {
+        parts.add(String.format("cpu %.1fs", usage.getCpuUsageUsec() / 1_000_000.0));
+      }
+      if (usage.getThrottledPeriods() >= 0) {
+        parts.add(String.format("throttled %d/%d periods (%.1fs)", usage.getThrottledPeriods(), usage.getPeriods(),
+            usage.getThrottledUsec() / 1_000_000.0));
+      }
+      if (usage.getMemoryBytes() >= 0) {
+        String max = usage.getMemoryMaxBytes() > 0 ? " / " + usage.getMemoryMaxBytes() / (1024 * 1024) + " MB" : " MB";
+        parts.add("memory " + usage.getMemoryBytes() / (1024 * 1024) + max);
+      }
+      if (usage.getOomKills() > 0) {
+        parts.add("oom kills " + usage.getOomKills());
+      }
+    }
+
+    if (!parts.isEmpty()) {
+      String color = usage != null && usage.getThrottledPeriods() > 0 ? "\u001B[33m" : "\u001B[90m";
+      System.out.printf("\u001B[36m║\u001B[0m    %s%s\u001B[0m\n", color, String.join(", ", parts));
+    }
+  }
+
+  private static void showWatchdog(String name) {
+    List<String> parts = new ArrayList<>();
+    long rss = watchdog.getRss(name);
+    if (rss >= 0) {
+      parts.add("rss " + rss / (1024 * 1024) + " MB");
+    }
+    double growth = watchdog.getGrowthMbPerHour(name);
+    if (!Double.isNaN(growth)) {
+      parts.add(String.format("%+.1f MB/h", growth));
+    }
+    long maintenance = watchdog.getMillisUntilMaintenance(name);
+    if (maintenance >= 0) {
+      parts.add("scheduled restart in " + formatDuration(maintenance));
+    }
+    if (!parts.isEmpty()) {
+      System.out.printf("\u001B[36m║\u001B[0m    \u001B[90m%s\u001B[0m\n", String.join(", ", parts));
+    }
+  }
+
   private static void showHelp() {
     Logger.info("Available commands:");
     Logger.info("  \u001B[33mstop\u001B[0m                 - Stop all instances and exit wrapper");
@@ -312,118 +1321,268 @@ public class PicoLimboWrapper {
     Logger.info("  \u001B[33mstart <instance>\u001B[0m     - Start a specific instance");
     Logger.info("  \u001B[33mrestart <instance>\u001B[0m   - Restart a specific instance");
     Logger.info(
-        "  \u001B[33mupdate\u001B[0m               - Update PicoLimbo binary and restart all running instances");
+        "  \u001B[33mupdate [tag]\u001B[0m         - Update PicoLimbo (latest or tag) and restart instances one by one");
+    Logger.info("  \u001B[33mcanary <tag> <instance...>\u001B[0m - Move some instances to tag first, rolled back on regressions");
+    Logger.info("  \u001B[33mcanary abort\u001B[0m         - Roll the canary instances back to their previous version");
+    Logger.info("  \u001B[33mversions\u001B[0m             - Show installed PicoLimbo versions and who runs them");
+    Logger.info("  \u001B[33mcluster\u001B[0m              - Show cluster nodes and where each instance runs");
+    Logger.info("  \u001B[33mcluster release <instance>\u001B[0m - Stop an instance here and let another node take it");
+    Logger.info("  \u001B[33mjfr start [profile]\u001B[0m  - Start a flight recording with the wrapper's events");
+    Logger.info("  \u001B[33mjfr dump\u001B[0m / \u001B[33mjfr stop\u001B[0m  - Write the flight recording to jfr.dir, stop ends it");
+    Logger.info("  \u001B[33mloadtest <instance|all> <connections> [seconds] [status|login]\u001B[0m - Connect synthetic clients, ramping up");
+    Logger.info("  \u001B[33mloadtest stop\u001B[0m        - Stop the running load test");
     Logger.info("  \u001B[33mstatus\u001B[0m               - Show status of all instances");
+    Logger.info("  \u001B[33mtail <instance> [n]\u001B[0m  - Show the last n buffered output lines (default 20)");
+    Logger.info("  \u001B[33mgrep <instance> <text>\u001B[0m - Show buffered output lines containing text");
+    Logger.info("  \u001B[33mhistory <instance> [n]\u001B[0m - Show the last n lifecycle events (default 20)");
+    Logger.info("  \u001B[33mhistory <instance> <memory|cpu|restarts|ping> [24h]\u001B[0m - Show a metric's trend");
+    Logger.info("  \u001B[33mdetach\u001B[0m               - Exit the wrapper and leave instances running (detached mode)");
     Logger.info("  \u001B[33mhelp\u001B[0m                 - Show this help message");
     Logger.info("  \u001B[33mexit/quit/end\u001B[0m        - Stop all instances and exit wrapper");
   }
 
-  private static void handleUpdate() {
+  // jfr shows the recording, jfr start [settings] / dump / stop control it
+  private static void handleJfr(String[] args) {
+    try {
+      if (args.length == 0) {
+        Logger.info(recorder.describe());
+      } else if (args[0].equals("start") && args.length <= 2) {
+        recorder.start(args.length == 2 ? args[1] : config.getJfrSettings());
+      } else if (args[0].equals("dump") && args.length == 1) {
+        recorder.dump();
+      } else if (args[0].equals("stop") && args.length == 1) {
+        recorder.stop();
+      } else {
+        Logger.warn("Usage: jfr [start [default|profile] | dump | stop]");
+      }
+    } catch (IOException e) {
+      Logger.error("Flight recording failed: " + e.getMessage());
+    }
+  }
+
+  // loadtest <instance|all> <connections> [seconds] [status|login] runs a
+  // load test on a thread of its own, loadtest stop ends it early
+  private static void handleLoadTest(String[] args) {
+    ClientSwarm current = loadTest;
+    if (args.length == 1 && args[0].equals("stop")) {
+      if (current != null) {
+        current.abort();
+      } else {
+        Logger.warn("No load test is running");
+      }
+      return;
+    }
+    if (args.length < 2 || args.length > 4) {
+      Logger.warn("Usage: loadtest <instance|all> <connections> [seconds] [status|login] or loadtest stop");
+      return;
+    }
+    if (current != null) {
+      Logger.warn("A load test is already running, 'loadtest stop' first");
+      return;
+    }
+
+    List<String> names = new ArrayList<>();
+    if (args[0].equals("all")) {
+      for (InstanceInfo instance : instances.values()) {
+        if (instance.isRunning()) {
+          names.add(instance.getName());
+        }
+      }
+      if (names.isEmpty()) {
+        Logger.warn("No instance is running");
+        return;
+      }
+    } else {
+      InstanceInfo instance = instances.get(args[0]);
+      if (instance == null) {
+        Logger.error("Instance '" + args[0] + "' not found");
+        return;
+      }
+      names.add(args[0]);
+    }
+
+    int connections;
+    int seconds = 20;
+    ClientSwarm.Mode mode = ClientSwarm.Mode.STATUS;
+    try {
+      connections = Integer.parseInt(args[1]);
+      if (args.length > 2) {
+        seconds = Integer.parseInt(args[2]);
+      }
+    } catch (NumberFormatException e) {
+      Logger.warn("Usage: loadtest <instance|all> <connections> [seconds] [status|login]");
+      return;
+    }
+    if (args.length > 3) {
+      if (!args[3].equals("status") && !args[3].equals("login")) {
+        Logger.warn("Unknown load test mode: " + args[3] + " (status or login)");
+        return;
+      }
+      mode = args[3].equals("login") ? ClientSwarm.Mode.LOGIN : ClientSwarm.Mode.STATUS;
+    }
+    if (connections < 1 || seconds < 1) {
+      Logger.warn("A load test needs at least one connection and one second");
+      return;
+    }
+
+    ClientSwarm swarm;
+    try {
+      swarm = ClientSwarm.create(config, instances, names, mode, connections, seconds * 1000L);
+    } catch (IOException e) {
+      Logger.error("Load test failed: " + e.getMessage());
+      return;
+    }
+    loadTest = swarm;
+    Thread thread = new Thread(() -> {
+      try {
+        swarm.run();
+      } catch (IOException e) {
+        Logger.error("Load test failed: " + e.getMessage());
+      } finally {
+        loadTest = null;
+      }
+    }, "Loadtest");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Installs tag (the latest release when null) next to the running version,
+  // makes it the default and restarts the instances following the default one
+  // at a time, so the others keep serving. Nothing is replaced in place, a
+  // failed update leaves everything as it was.
+  private static void handleUpdate(String requestedTag) {
     synchronized (updateLock) {
       isUpdating = true;
     }
 
-    // Track which instances were running before the update
-    Set<String> runningInstances = new HashSet<>();
-    for (InstanceInfo instance : instances.values()) {
-      if (instance.isRunning()) {
-        runningInstances.add(instance.getName());
-      }
-    }
-
-    File backupBinary = null;
     try {
-      // Download new version
-      File archiveFile = new File(BINARIES_DIR, currentArchiveName);
-
-      Logger.info("Downloading latest version...");
-      downloadArchive(currentArchiveName, archiveFile);
-
-      // Extract to temporary directory
-      Logger.info("Extracting new version...");
-      File tempDir = new File(BINARIES_DIR, "update_temp");
-      if (tempDir.exists()) {
-        deleteDirectory(tempDir);
+      String tag = requestedTag != null ? requestedTag : binaryStore.latestTag();
+      CanaryRollout canary = rollout;
+      if (canary != null && canary.isActive()) {
+        if (!canary.getTag().equals(tag)) {
+          Logger.warn("Canary " + canary.getTag() + " is in progress, wait for it or use 'canary abort' first");
+          return;
+        }
+        // Rolling out the canary version to everyone ends the canary
+        canary.complete();
       }
-      tempDir.mkdirs();
-
-      extractArchive(archiveFile, tempDir);
-
-      // Find the extracted binary in temp directory
-      String binaryName = isWindows() ? "pico_limbo.exe" : "pico_limbo";
-      File newBinary = new File(tempDir, binaryName);
-
-      if (!newBinary.exists()) {
-        throw new IOException("Extracted binary not found: " + newBinary.getPath());
+      if (tag.equals(binaryStore.getDefaultVersion()) && findOutdated(tag).isEmpty()) {
+        Logger.info("Already up to date (PicoLimbo " + tag + ")");
+        return;
       }
 
-      // Set executable permissions on Unix
-      if (!isWindows()) {
-        newBinary.setExecutable(true, false);
+      // Downloaded and extracted here unless installed already
+      File binary = binaryStore.ensure(tag);
+      Logger.info("Verifying PicoLimbo " + tag + "...");
+      WrapperEvents.UpdatePhase phase = WrapperEvents.UpdatePhase.start(tag, "verify", null);
+      verifyBinary(binary);
+      phase.finish();
+      phase = WrapperEvents.UpdatePhase.start(tag, "swap", null);
+      binaryStore.setDefaultVersion(tag);
+      phase.finish();
+      recordUpdate("installed " + tag);
+
+      List<String> outdated = findOutdated(tag);
+      Logger.info("Verification successful! PicoLimbo " + tag + " is now the default, restarting " + outdated.size()
+          + " instance(s)...");
+      for (InstanceInfo instance : instances.values()) {
+        if (instance.isRunning() && binaryStore.isPinned(instance.getName())) {
+          Logger.info(instance.getName(), "Pinned to PicoLimbo " + binaryStore.versionFor(instance.getName())
+              + ", not updating");
+        }
+      }
+      if (standby != null) {
+        standby.stopSpares();
       }
 
-      Logger.info("Stopping all running instances...");
-
-      // Stop all running instances
-      for (String instanceName : runningInstances) {
-        stopInstance(instanceName, false);
+      // One at a time, the next only once the previous is serving again
+      for (String instanceName : outdated) {
+        InstanceInfo instance = instances.get(instanceName);
+        Logger.info(instanceName, "Restarting instance...");
+        if (instance.isRunning()) {
+          phase = WrapperEvents.UpdatePhase.start(tag, "stop", instanceName);
+          stopInstance(instanceName, false);
+          Thread.sleep(500); // Brief pause before restart
+          phase.finish();
+        }
+        phase = WrapperEvents.UpdatePhase.start(tag, "relaunch", instanceName);
+        launchInstance(instanceName, "update");
+        boolean ready = awaitReady(instance, config.getRolloutReadyTimeoutMillis());
+        phase.finish();
+        if (!ready) {
+          Logger.error(instanceName, "Not ready on PicoLimbo " + tag + ", stopping the update here (use 'update "
+              + binaryStore.getPreviousVersion() + "' to go back)");
+          recordUpdate("stopped: " + instanceName + " not ready on " + tag);
+          break;
+        }
       }
 
-      // Small delay to ensure file handles are released
-      Thread.sleep(500);
+    } catch (Exception e) {
+      Logger.error("Update failed: " + e.getMessage());
+      e.printStackTrace();
+      recordUpdate("failed: " + e.getMessage());
 
-      // Backup old binary
-      backupBinary = new File(BINARIES_DIR, binaryName + ".backup");
-      if (backupBinary.exists()) {
-        backupBinary.delete();
-      }
-      if (currentBinaryFile.exists()) {
-        currentBinaryFile.renameTo(backupBinary);
+    } finally {
+      // Always clear the updating flag and notify waiting threads
+      synchronized (updateLock) {
+        isUpdating = false;
+        updateLock.notifyAll();
       }
-
-      // Move new binary to final location
-      Logger.info("Installing new binary...");
-      if (!newBinary.renameTo(currentBinaryFile)) {
-        // If rename fails (cross-device link), try copy
-        Files.copy(newBinary.toPath(), currentBinaryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        newBinary.delete();
+      collectGarbage();
+      // Spares on whichever version is the default now
+      if (standby != null) {
+        standby.fillAll();
       }
+    }
+  }
 
-      // Set executable permissions again on Unix (in case copy was used)
-      if (!isWindows()) {
-        currentBinaryFile.setExecutable(true, false);
+  // Running instances that follow the default version but are not on tag
+  private static List<String> findOutdated(String tag) {
+    List<String> outdated = new ArrayList<>();
+    for (InstanceInfo instance : instances.values()) {
+      String name = instance.getName();
+      if (instance.isRunning() && binaryStore.followsDefault(name) && !tag.equals(instance.getVersion())) {
+        outdated.add(name);
       }
+    }
+    return outdated;
+  }
 
-      // Clean up temp dir and archive
-      deleteDirectory(tempDir);
-      if (archiveFile.exists()) {
-        archiveFile.delete();
+  private static boolean awaitReady(InstanceInfo instance, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (System.currentTimeMillis() < deadline) {
+      if (instance.isRunning() && instance.isReady()) {
+        return true;
       }
+      Thread.sleep(250);
+    }
+    return false;
+  }
 
-      // Verify the new binary by attempting to start it and checking for "Listening"
-      // message
-      Logger.info("Verifying new binary...");
-      ProcessBuilder verifyBuilder = new ProcessBuilder(currentBinaryFile.getAbsolutePath());
-      verifyBuilder.redirectErrorStream(true);
-      Process verifyProcess = verifyBuilder.start();
-
-      // Read output and look for "Listening" message
-      final boolean[] foundListening = { false };
-      Thread outputReader = new Thread(() -> {
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(verifyProcess.getInputStream()))) {
-          String line;
-          while ((line = reader.readLine()) != null) {
-            if (line.contains("Listening on:")) {
-              foundListening[0] = true;
-              break;
-            }
+  // Starts the binary without a config and waits for "Listening on:"
+  private static void verifyBinary(File binary) throws IOException, InterruptedException {
+    ProcessBuilder verifyBuilder = new ProcessBuilder(binary.getAbsolutePath());
+    verifyBuilder.redirectErrorStream(true);
+    Process verifyProcess = verifyBuilder.start();
+
+    // Read output and look for "Listening" message
+    final boolean[] foundListening = { false };
+    Thread outputReader = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(verifyProcess.getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.contains("Listening on:")) {
+            foundListening[0] = true;
+            break;
           }
-        } catch (IOException e) {
-          // Ignore
         }
-      });
-      outputReader.start();
+      } catch (IOException e) {
+        // Ignore
+      }
+    });
+    outputReader.start();
 
+    try {
       // Wait up to 5 seconds for the "Listening" message
       for (int i = 0; i < 50; i++) {
         if (foundListening[0]) {
@@ -435,82 +1594,184 @@ public class PicoLimboWrapper {
         }
         Thread.sleep(100);
       }
-
+    } finally {
       // Kill the test process
       verifyProcess.destroy();
       if (!verifyProcess.waitFor(5, TimeUnit.SECONDS)) {
         verifyProcess.destroyForcibly();
       }
+    }
 
-      if (!foundListening[0]) {
-        throw new IOException("New binary verification failed: did not see 'Listening' message within 5 seconds");
-      }
-
-      Logger.info("Verification successful! Update complete, restarting instances...");
+    if (!foundListening[0]) {
+      throw new IOException("New binary verification failed: did not see 'Listening' message within 5 seconds");
+    }
+  }
 
-      // Delete backup since update was successful
-      if (backupBinary != null && backupBinary.exists()) {
-        backupBinary.delete();
+  // Verifies tag and moves the given instances to it under a CanaryRollout
+  private static void handleCanary(String[] args) {
+    CanaryRollout current = rollout;
+    if (args[0].equals("abort")) {
+      if (current != null && current.isActive()) {
+        current.abort();
+      } else {
+        abortLeftoverCanaries();
       }
+      return;
+    }
+    if (args.length < 2) {
+      Logger.warn("Usage: canary <tag> <instance...> or canary abort");
+      return;
+    }
+    if (current != null && current.isActive()) {
+      Logger.warn("Canary " + current.getTag() + " is already in progress");
+      return;
+    }
+    if (isUpdating) {
+      Logger.warn("An update is in progress");
+      return;
+    }
 
-      // Restart instances that were running before the update
-      for (String instanceName : runningInstances) {
-        Logger.info("Restarting instance: " + instanceName);
-        launchInstance(instanceName);
+    String tag = args[0];
+    List<String> names = Arrays.asList(args).subList(1, args.length);
+    for (String name : names) {
+      InstanceInfo instance = instances.get(name);
+      if (instance == null) {
+        Logger.error("Instance '" + name + "' not found");
+        return;
       }
+      if (!instance.isRunning()) {
+        Logger.warn(name, "Instance is not running, a canary needs running instances");
+        return;
+      }
+    }
 
-    } catch (Exception e) {
-      Logger.error("Update failed: " + e.getMessage());
-      e.printStackTrace();
+    try {
+      File binary = binaryStore.ensure(tag);
+      Logger.info("Verifying PicoLimbo " + tag + "...");
+      verifyBinary(binary);
+      CanaryRollout started = new CanaryRollout(config, binaryStore, instances, PicoLimboWrapper::restartInstance,
+          (name, outcome) -> recordEvent(JournalEventType.UPDATE, name, 0, 0, outcome), tag, names);
+      rollout = started;
+      started.start();
+    } catch (IOException e) {
+      Logger.error("Canary failed: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 
-      // Clean up temporary files
-      File tempDir = new File(BINARIES_DIR, "update_temp");
-      if (tempDir.exists()) {
-        deleteDirectory(tempDir);
+  // Canary versions survive a wrapper restart, their rollout does not
+  private static void abortLeftoverCanaries() {
+    Map<String, String> canaries = binaryStore.getCanaries();
+    if (canaries.isEmpty()) {
+      Logger.warn("No canary in progress");
+      return;
+    }
+    try {
+      binaryStore.clearCanary(canaries.keySet());
+    } catch (IOException e) {
+      Logger.error("Could not clear canary versions: " + e.getMessage());
+      return;
+    }
+    for (String name : canaries.keySet()) {
+      InstanceInfo instance = instances.get(name);
+      if (instance != null && instance.isRunning()) {
+        restartInstance(name, "rollback");
       }
+    }
+  }
 
-      // Restore backup if it exists
-      if (backupBinary != null && backupBinary.exists()) {
-        Logger.info("Restoring previous version...");
-        if (currentBinaryFile.exists()) {
-          currentBinaryFile.delete();
-        }
-        backupBinary.renameTo(currentBinaryFile);
+  private static void showCluster() {
+    Logger.info("Cluster nodes (this node: " + cluster.getNode() + "):");
+    for (ClusterNode.NodeState node : cluster.getNodes()) {
+      String instancesText = node.getInstances().isEmpty() ? "no instances" : String.join(", ", node.getInstances());
+      Logger.info("  " + node.getName() + " - " + (node.isLive() ? "live" : "silent for "
+          + node.getSilentMillis() / 1000 + "s") + ", capacity " + node.getCapacity() + ", " + instancesText);
+    }
+    List<String> waiting = new ArrayList<>();
+    for (InstanceInfo instance : instances.values()) {
+      if (instance.shouldAutoStart() && cluster.ownerOf(instance.getName()) == null) {
+        waiting.add(instance.getName());
+      }
+    }
+    if (!waiting.isEmpty()) {
+      Logger.info("  waiting for a node: " + String.join(", ", waiting));
+    }
+    Logger.info("This node: " + cluster.getClaims() + " leases taken, " + cluster.getTakeovers() + " takeovers"
+        + (cluster.getLastTakeoverMillis() >= 0 ? " (last after " + cluster.getLastTakeoverMillis() + " ms silence)" : "")
+        + ", " + cluster.getHandovers() + " handed over, " + cluster.getLostLeases() + " lost");
+  }
 
-        // Set executable permissions on Unix
-        if (!isWindows()) {
-          currentBinaryFile.setExecutable(true, false);
+  private static void showVersions() {
+    String defaultVersion = binaryStore.getDefaultVersion();
+    String previousVersion = binaryStore.getPreviousVersion();
+    Map<String, String> pins = config.getInstanceVersions();
+    Map<String, String> canaries = binaryStore.getCanaries();
+
+    Logger.info("Installed PicoLimbo versions:");
+    for (String version : binaryStore.installedVersions()) {
+      List<String> notes = new ArrayList<>();
+      if (version.equals(defaultVersion)) {
+        notes.add("default");
+      }
+      if (version.equals(previousVersion)) {
+        notes.add("previous");
+      }
+      List<String> running = new ArrayList<>();
+      for (InstanceInfo instance : instances.values()) {
+        if (instance.isRunning() && version.equals(instance.getVersion())) {
+          running.add(instance.getName());
         }
-
-        // Restart instances with the old binary
-        for (String instanceName : runningInstances) {
-          Logger.info("Restarting instance with previous version: " + instanceName);
-          launchInstance(instanceName);
+      }
+      if (!running.isEmpty()) {
+        notes.add("running on " + String.join(", ", running));
+      }
+      for (Map.Entry<String, String> pin : pins.entrySet()) {
+        if (version.equals(pin.getValue())) {
+          notes.add("pinned by " + pin.getKey());
         }
       }
-
-    } finally {
-      // Always clear the updating flag and notify waiting threads
-      synchronized (updateLock) {
-        isUpdating = false;
-        updateLock.notifyAll();
+      for (Map.Entry<String, String> canary : canaries.entrySet()) {
+        if (version.equals(canary.getValue())) {
+          notes.add("canary on " + canary.getKey());
+        }
+      }
+      Logger.info("  " + version + (notes.isEmpty() ? "" : " - " + String.join(", ", notes)));
+    }
+    if (deltas != null) {
+      Logger.info("Delta updates: " + deltas.getApplied() + " applied (" + DeltaSource.formatBytes(deltas.getPatchBytes())
+          + "), " + deltas.getFallbacks() + " fell back to a full download, saved "
+          + DeltaSource.formatBytes(deltas.getSavedBytes()));
+    }
+    if (mirror != null) {
+      if (mirror.hasPeers()) {
+        Logger.info("Peer downloads: " + mirror.getPeerHits() + " (" + DeltaSource.formatBytes(mirror.getPeerBytes())
+            + "), " + mirror.getPeerMisses() + " went to GitHub");
+      }
+      if (config.isMirrorServing()) {
+        Logger.info("Mirror: served " + mirror.getServed() + " downloads (" + DeltaSource.formatBytes(mirror.getServedBytes())
+            + "), " + mirror.getRangeRequests() + " ranges, " + mirror.getNotModified() + " not modified, "
+            + mirror.getUpstreamFetches() + " fetched from GitHub for " + mirror.getPullThroughRequests()
+            + " requests, " + mirror.getPullThroughRefused() + " unknown tags refused; " + mirror.getLatestRequests()
+            + " latest lookups, " + mirror.getLatestUpstream() + " from GitHub");
       }
     }
   }
 
-  private static void deleteDirectory(File directory) {
-    if (directory.exists()) {
-      File[] files = directory.listFiles();
-      if (files != null) {
-        for (File file : files) {
-          if (file.isDirectory()) {
-            deleteDirectory(file);
-          } else {
-            file.delete();
-          }
-        }
+  // Removes versions no instance runs or refers to
+  private static void collectGarbage() {
+    Set<String> inUse = new HashSet<>();
+    for (InstanceInfo instance : instances.values()) {
+      if (instance.isRunning() && instance.getVersion() != null) {
+        inUse.add(instance.getVersion());
       }
-      directory.delete();
+    }
+    binaryStore.collectGarbage(inUse);
+  }
+
+  private static void recordUpdate(String outcome) {
+    for (String instanceName : instances.keySet()) {
+      recordEvent(JournalEventType.UPDATE, instanceName, 0, 0, outcome);
     }
   }
 
@@ -543,62 +1804,137 @@ public class PicoLimboWrapper {
     return System.getProperty("os.name").toLowerCase().contains("win");
   }
 
-  private static File ensureBinaryExists(String archiveName) throws IOException {
-    // Create binaries directory if it doesn't exist
-    Path binariesPath = Paths.get(BINARIES_DIR);
-    if (!Files.exists(binariesPath)) {
-      Files.createDirectories(binariesPath);
+  // Opens binaries/ and installs what the instances need: the default
+  // version (the latest release on first start), pinned versions and
+  // canaries, several at a time when more than one is missing
+  private static void openBinaryStore(List<String> instanceNames) throws IOException {
+    String binaryName = isWindows() ? "pico_limbo.exe" : "pico_limbo";
+    binaryStore = new BinaryStore(new File(BINARIES_DIR), binaryName, config.getInstanceVersions(),
+        new ReleaseFetcher(true));
+    binaryStore.load();
+    // Without GitHub releases there is nothing to check against
+    checksums = config.hasCustomDownloadUrl() ? null : new ReleaseChecksums(PicoLimboWrapper::fetchRelease,
+        config.getChecksumAsset(), DeltaSource.platformOf(currentArchiveName), binaryName);
+    deltas = DeltaSource.create(config, currentArchiveName, checksums);
+    mirror = BinaryMirror.create(config, binaryStore, new ReleaseFetcher(false), currentArchiveName, checksums);
+
+    if (binaryStore.getDefaultVersion() == null) {
+      File legacyBinary = new File(BINARIES_DIR, binaryName);
+      if (legacyBinary.isFile()) {
+        // Installed before versions were kept side by side
+        binaryStore.adoptLegacy(legacyBinary, "local");
+      } else {
+        // Installed below together with the other versions
+        Logger.info("Binary not found, fetching latest release...");
+        binaryStore.setDefaultVersion(binaryStore.latestTag());
+      }
     }
 
-    // Determine the expected binary name after extraction
-    String binaryName = getBinaryNameFromArchive(archiveName);
-    File binaryFile = new File(BINARIES_DIR, binaryName);
-
-    // Check if binary already exists
-    if (binaryFile.exists()) {
-      Logger.info("Binary found: " + binaryName);
-      return binaryFile;
+    Set<String> needed = new LinkedHashSet<>();
+    for (String name : instanceNames) {
+      needed.add(binaryStore.versionFor(name));
+      needed.add(binaryStore.configuredVersionFor(name));
+    }
+    binaryStore.ensureAll(needed);
+
+    Logger.info("Using PicoLimbo " + binaryStore.getDefaultVersion() + " (" + binaryStore.installedVersions().size()
+        + " versions installed)");
+    Map<String, String> canaries = binaryStore.getCanaries();
+    if (!canaries.isEmpty()) {
+      Logger.warn("Canary versions left from the previous run " + canaries
+          + ", use 'update <tag>' to keep them or 'canary abort'");
     }
+  }
 
-    // Download and extract archive from GitHub releases
-    Logger.info("Binary not found, fetching latest release...");
-    File archiveFile = new File(BINARIES_DIR, archiveName);
-    downloadArchive(archiveName, archiveFile);
-    extractArchive(archiveFile, binariesPath.toFile());
+  // Releases from the GitHub API, or the archive at download.url. With
+  // usePeers, mirror.peers are asked first.
+  private static class ReleaseFetcher implements BinaryStore.Fetcher {
+    private final boolean usePeers;
 
-    // Delete archive after extraction
-    if (archiveFile.exists()) {
-      archiveFile.delete();
+    ReleaseFetcher(boolean usePeers) {
+      this.usePeers = usePeers;
     }
 
-    // Verify binary was extracted
-    if (!binaryFile.exists()) {
-      throw new IOException("Binary not found after extraction: " + binaryName);
+    @Override
+    public String latestTag() throws IOException {
+      if (config.hasCustomDownloadUrl()) {
+        // No release info to compare, every update fetches the URL again
+        return "custom-" + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMddHHmmss"));
+      }
+      if (usePeers && mirror != null && mirror.hasPeers()) {
+        String tag = mirror.latestTagFromPeers();
+        if (tag != null) {
+          return tag;
+        }
+      }
+      JsonObject release = fetchRelease("latest");
+      if (!release.has("tag_name")) {
+        throw new IOException("Latest release has no tag_name");
+      }
+      return release.get("tag_name").getAsString();
     }
 
-    return binaryFile;
+    @Override
+    public void download(String tag, File target) throws IOException {
+      WrapperEvents.UpdatePhase phase = WrapperEvents.UpdatePhase.start(tag, "download", null);
+      if (deltas != null && patchFromDefault(tag, target)) {
+        phase.finish();
+        return;
+      }
+      if (usePeers && mirror != null && mirror.downloadFromPeers(tag, target)) {
+        phase.finish();
+        return;
+      }
+      File archiveFile = new File(target.getParentFile(), currentArchiveName);
+      try {
+        if (config.hasCustomDownloadUrl()) {
+          Logger.info("Using custom download URL");
+          downloadFromUrl(config.getDownloadUrl(), archiveFile);
+        } else {
+          downloadArchive(currentArchiveName, tag, archiveFile);
+        }
+        phase.finish();
+        phase = WrapperEvents.UpdatePhase.start(tag, "extract", null);
+        extractBinary(archiveFile, target.getName(), target);
+        phase.finish();
+      } finally {
+        archiveFile.delete();
+      }
+    }
   }
 
-  private static String getBinaryNameFromArchive(String archiveName) {
-    // Extract binary name based on OS
-    if (isWindows()) {
-      return "pico_limbo.exe";
-    } else {
-      return "pico_limbo";
+  // Builds tag from the installed default version when a delta between the
+  // two is published
+  private static boolean patchFromDefault(String tag, File target) {
+    String base = binaryStore.getDefaultVersion();
+    if (base == null || base.equals(tag) || !binaryStore.isInstalled(base)) {
+      return false;
     }
+    return deltas.patch(base, binaryStore.binaryFile(base), tag, target, archiveSize(tag));
   }
 
-  private static void downloadArchive(String archiveName, File targetFile) throws IOException {
-    // Check if custom download URL is provided
+  // Size of the release archive for tag, -1 when unknown
+  private static long archiveSize(String tag) {
     if (config.hasCustomDownloadUrl()) {
-      String customUrl = config.getDownloadUrl();
-      Logger.info("Using custom download URL");
-      downloadFromUrl(customUrl, targetFile);
-      return;
+      return -1;
+    }
+    try {
+      JsonArray assets = fetchRelease("tags/" + tag).getAsJsonArray("assets");
+      for (int i = 0; assets != null && i < assets.size(); i++) {
+        JsonObject asset = assets.get(i).getAsJsonObject();
+        if (asset.get("name").getAsString().equals(currentArchiveName) && asset.has("size")) {
+          return asset.get("size").getAsLong();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      // Only used for reporting
     }
+    return -1;
+  }
 
-    // Get latest release info from GitHub API
-    String apiUrl = "https://api.github.com/repos/" + config.getGitHubRepo() + "/releases/latest";
+  // release is "latest" or "tags/<tag>"
+  private static JsonObject fetchRelease(String release) throws IOException {
+    String apiUrl = config.getGitHubApiUrl() + "/repos/" + config.getGitHubRepo() + "/releases/" + release;
     HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl).openConnection();
     connection.setRequestMethod("GET");
     connection.setRequestProperty("User-Agent", "PicoLimboWrapper");
@@ -606,6 +1942,9 @@ public class PicoLimboWrapper {
     connection.setReadTimeout(10000);
 
     int responseCode = connection.getResponseCode();
+    if (responseCode == 404) {
+      throw new IOException("Release not found: " + release);
+    }
     if (responseCode != 200) {
       throw new IOException("Failed to fetch release info from GitHub API. Response code: " + responseCode);
     }
@@ -620,48 +1959,25 @@ public class PicoLimboWrapper {
       }
       jsonResponse = response.toString();
     }
+    try {
+      return JsonParser.parseString(jsonResponse).getAsJsonObject();
+    } catch (RuntimeException e) {
+      throw new IOException("Error parsing GitHub API response: " + e.getMessage());
+    }
+  }
 
+  private static void downloadArchive(String archiveName, String tag, File targetFile) throws IOException {
     // Find the download URL for our archive
-    String downloadUrl = extractDownloadUrl(jsonResponse, archiveName);
+    String downloadUrl = extractDownloadUrl(fetchRelease("tags/" + tag), archiveName);
     if (downloadUrl == null) {
-      throw new IOException("Could not find archive '" + archiveName + "' in latest release");
-    }
-
-    // Download the archive
-    Logger.info("Downloading " + archiveName + "...");
-    HttpURLConnection downloadConnection = (HttpURLConnection) new URL(downloadUrl).openConnection();
-    downloadConnection.setRequestProperty("User-Agent", "PicoLimboWrapper");
-    downloadConnection.setConnectTimeout(10000);
-    downloadConnection.setReadTimeout(30000);
-
-    long fileSize = downloadConnection.getContentLengthLong();
-    long downloadedSize = 0;
-    int lastProgress = 0;
-
-    try (InputStream in = new BufferedInputStream(downloadConnection.getInputStream());
-        FileOutputStream out = new FileOutputStream(targetFile)) {
-
-      byte[] buffer = new byte[8192];
-      int bytesRead;
-      while ((bytesRead = in.read(buffer)) != -1) {
-        out.write(buffer, 0, bytesRead);
-        downloadedSize += bytesRead;
-
-        // Show progress every 10%
-        if (fileSize > 0) {
-          int progress = (int) ((downloadedSize * 100) / fileSize);
-          if (progress >= lastProgress + 10) {
-            Logger.info("Download progress: " + progress + "%");
-            lastProgress = progress;
-          }
-        }
-      }
+      throw new IOException("Could not find archive '" + archiveName + "' in release " + tag);
     }
 
-    Logger.info("Download complete");
+    Logger.info("Downloading " + archiveName + " (" + tag + ")...");
+    downloadFromUrl(downloadUrl, targetFile);
   }
 
-  private static void downloadFromUrl(String downloadUrl, File targetFile) throws IOException {
+  static void downloadFromUrl(String downloadUrl, File targetFile) throws IOException {
     Logger.info("Downloading from " + downloadUrl + "...");
     HttpURLConnection downloadConnection = (HttpURLConnection) new URL(downloadUrl).openConnection();
     downloadConnection.setRequestProperty("User-Agent", "PicoLimboWrapper");
@@ -671,6 +1987,7 @@ public class PicoLimboWrapper {
     long fileSize = downloadConnection.getContentLengthLong();
     long downloadedSize = 0;
     int lastProgress = 0;
+    WrapperEvents.DownloadMeter meter = new WrapperEvents.DownloadMeter(downloadConnection.getURL().getHost());
 
     try (
         InputStream in = new BufferedInputStream(downloadConnection.getInputStream());
@@ -680,6 +1997,7 @@ public class PicoLimboWrapper {
       while ((bytesRead = in.read(buffer)) != -1) {
         out.write(buffer, 0, bytesRead);
         downloadedSize += bytesRead;
+        meter.add(bytesRead);
 
         // Show progress every 10%
         if (fileSize > 0) {
@@ -691,204 +2009,68 @@ public class PicoLimboWrapper {
         }
       }
     }
+    meter.finish();
 
     Logger.info("Download complete");
   }
 
-  private static void extractArchive(File archiveFile, File destinationDir) throws IOException {
-    String fileName = archiveFile.getName().toLowerCase();
-
-    if (fileName.endsWith(".zip")) {
-      extractZip(archiveFile, destinationDir);
-    } else if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
-      extractTarGz(archiveFile, destinationDir);
-    } else {
-      throw new IOException("Unsupported archive format: " + fileName);
-    }
-
-    Logger.info("Extraction complete");
-  }
-
-  private static void extractZip(File zipFile, File destinationDir) throws IOException {
-    Logger.info("Extracting ZIP archive...");
-
-    try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile))) {
-      ZipEntry entry;
-      while ((entry = zis.getNextEntry()) != null) {
-        File outputFile = new File(destinationDir, entry.getName());
-
-        if (entry.isDirectory()) {
-          outputFile.mkdirs();
-        } else {
-          // Ensure parent directories exist
-          outputFile.getParentFile().mkdirs();
-
-          // Extract file
-          try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            byte[] buffer = new byte[8192];
-            int len;
-            while ((len = zis.read(buffer)) > 0) {
-              fos.write(buffer, 0, len);
-            }
-          }
-        }
-        zis.closeEntry();
-      }
-    }
+  private static void extractBinary(File archiveFile, String binaryName, File targetFile) throws IOException {
+    Logger.info("Extracting " + archiveFile.getName() + "...");
+    ArchiveExtractor.Result result = ArchiveExtractor.extract(archiveFile, config.getBinaryEntryGlob(binaryName),
+        targetFile);
+    Logger.info("Extracted " + result.getEntryName() + " (" + result.getBytesWritten() + " bytes) in "
+        + result.getElapsedMillis() + " ms");
   }
 
-  private static void extractTarGz(File tarGzFile, File destinationDir) throws IOException {
-    Logger.info("Extracting TAR.GZ archive...");
-
-    try (GZIPInputStream gzis = new GZIPInputStream(new FileInputStream(tarGzFile))) {
-      extractTar(gzis, destinationDir);
+  private static String extractDownloadUrl(JsonObject release, String archiveName) {
+    JsonArray assets = release.getAsJsonArray("assets");
+    if (assets == null) {
+      return null;
     }
-  }
-
-  private static void extractTar(InputStream tarInputStream, File destinationDir) throws IOException {
-    byte[] buffer = new byte[8192];
-
-    while (true) {
-      // Read TAR header (512 bytes)
-      byte[] header = new byte[512];
-      int bytesRead = readFully(tarInputStream, header);
-      if (bytesRead < 512) {
-        break; // End of archive
-      }
-
-      // Check if we've reached the end (two consecutive zero blocks)
-      if (isZeroBlock(header)) {
-        break;
-      }
-
-      // Parse TAR header
-      String fileName = parseTarFileName(header);
-      long fileSize = parseTarFileSize(header);
-      char typeFlag = (char) header[156];
-
-      if (fileName.isEmpty()) {
-        break;
-      }
-
-      File outputFile = new File(destinationDir, fileName);
-
-      // Handle directories (type '5') and regular files (type '0' or '\0')
-      if (typeFlag == '5' || fileName.endsWith("/")) {
-        outputFile.mkdirs();
-      } else if (typeFlag == '0' || typeFlag == '\0') {
-        // Ensure parent directories exist
-        outputFile.getParentFile().mkdirs();
-
-        // Extract file
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-          long remaining = fileSize;
-          while (remaining > 0) {
-            int toRead = (int) Math.min(buffer.length, remaining);
-            int read = tarInputStream.read(buffer, 0, toRead);
-            if (read <= 0) {
-              break;
-            }
-            fos.write(buffer, 0, read);
-            remaining -= read;
-          }
-        }
-
-        // Skip padding to next 512-byte boundary
-        long padding = (512 - (fileSize % 512)) % 512;
-        if (padding > 0) {
-          tarInputStream.skip(padding);
-        }
-      } else {
-        // Skip this entry
-        long totalSize = fileSize + ((512 - (fileSize % 512)) % 512);
-        tarInputStream.skip(totalSize);
+    for (int i = 0; i < assets.size(); i++) {
+      JsonObject asset = assets.get(i).getAsJsonObject();
+      String name = asset.get("name").getAsString();
+      if (name.equals(archiveName)) {
+        return asset.get("browser_download_url").getAsString();
       }
     }
+    return null;
   }
 
-  private static int readFully(InputStream in, byte[] buffer) throws IOException {
-    int offset = 0;
-    int remaining = buffer.length;
-
-    while (remaining > 0) {
-      int read = in.read(buffer, offset, remaining);
-      if (read <= 0) {
-        return offset;
+  private static void registerShutdownHook() {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      // Detached instances outlive the wrapper unless it was told to stop them,
+      // the next wrapper adopts them
+      boolean detach = detachedState != null && !stopRequested;
+      // Instances stopped from here on are not crashes
+      shouldExit = true;
+      if (watchdog != null) {
+        watchdog.stop();
       }
-      offset += read;
-      remaining -= read;
-    }
-
-    return offset;
-  }
-
-  private static boolean isZeroBlock(byte[] block) {
-    for (byte b : block) {
-      if (b != 0) {
-        return false;
+      if (metricHistory != null) {
+        metricHistory.stop();
       }
-    }
-    return true;
-  }
-
-  private static String parseTarFileName(byte[] header) {
-    // File name is at offset 0, max 100 bytes
-    StringBuilder name = new StringBuilder();
-    for (int i = 0; i < 100; i++) {
-      if (header[i] == 0) {
-        break;
+      if (cluster != null) {
+        cluster.stop();
       }
-      name.append((char) header[i]);
-    }
-    return name.toString().trim();
-  }
-
-  private static long parseTarFileSize(byte[] header) {
-    // File size is at offset 124, 12 bytes, in octal ASCII
-    String sizeStr = new String(header, 124, 12).trim();
-    if (sizeStr.isEmpty()) {
-      return 0;
-    }
-    try {
-      // Remove any trailing spaces or null characters
-      sizeStr = sizeStr.replace("\0", "").trim();
-      return Long.parseLong(sizeStr, 8); // Parse as octal
-    } catch (NumberFormatException e) {
-      return 0;
-    }
-  }
-
-  private static String extractDownloadUrl(String jsonResponse, String archiveName) {
-    try {
-      JsonObject jsonObject = JsonParser.parseString(jsonResponse).getAsJsonObject();
-      JsonArray assets = jsonObject.getAsJsonArray("assets");
-
-      for (int i = 0; i < assets.size(); i++) {
-        JsonObject asset = assets.get(i).getAsJsonObject();
-        String name = asset.get("name").getAsString();
-        if (name.equals(archiveName)) {
-          return asset.get("browser_download_url").getAsString();
+      if (detach) {
+        int running = detachInstances();
+        if (running > 0) {
+          Logger.info("Leaving " + running + " instance(s) running for the next wrapper to adopt");
         }
+      } else {
+        Logger.info("Shutting down all instances...");
       }
-    } catch (Exception e) {
-      Logger.error("Error parsing GitHub API response: " + e.getMessage());
-    }
-    return null;
-  }
-
-  private static void registerShutdownHook() {
-    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-      Logger.info("Shutting down all instances...");
 
       for (InstanceInfo instance : instances.values()) {
-        if (instance.isRunning()) {
-          Process process = instance.getProcess();
+        if (instance.isRunning() && !detach) {
+          ProcessHandle process = instance.getProcessHandle();
           Logger.info("Stopping instance: " + instance.getName());
           process.destroy();
 
           try {
             // Wait up to 5 seconds for graceful shutdown
-            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+            if (!waitForExit(process, 5000)) {
               Logger.warn("Force killing instance: " + instance.getName());
               process.destroyForcibly();
             }
@@ -898,6 +2080,48 @@ public class PicoLimboWrapper {
         }
       }
 
+      if (!detach) {
+        saveDetachedState();
+      }
+      // Instances are down, other nodes may start them right away
+      if (cluster != null) {
+        cluster.leave();
+      }
+      if (standby != null) {
+        standby.close();
+      }
+      if (lazy != null) {
+        lazy.stop();
+      }
+      if (logStream != null) {
+        logStream.stop();
+      }
+      if (httpServer != null) {
+        httpServer.stop();
+      }
+
+      // Let the output threads record the exits before the journal closes
+      for (InstanceInfo instance : instances.values()) {
+        Thread outputThread = instance.getOutputThread();
+        if (outputThread != null && outputThread != Thread.currentThread()) {
+          try {
+            outputThread.join(2000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+      if (journal != null) {
+        journal.close();
+      }
+
+      // Flush instance log files after the children have exited
+      for (InstanceInfo instance : instances.values()) {
+        if (instance.getLogWriter() != null) {
+          instance.getLogWriter().close();
+        }
+      }
+
       Logger.info("Shutdown complete");
     }));
   }
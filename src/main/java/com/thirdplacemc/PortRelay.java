@@ -0,0 +1,326 @@
+package com.thirdplacemc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Owns an instance's public port and relays every connection to whichever
+// backend process currently serves it, so a failover is a pointer swap
+// instead of a rebind. One selector thread moves the bytes for all
+// connections; a slow side stops reading from the other until it drains.
+// With an on-demand callback, connections arriving while there is no backend
+// are held instead of refused until one is set.
+public class PortRelay {
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  // One direction of a connection: what was read from channel and still has
+  // to be written to the peer
+  private static class Side {
+    private final SocketChannel channel;
+    private final ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private Side peer;
+    private SelectionKey key;
+
+    Side(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final String name;
+  private final InetSocketAddress listenAddress;
+  private volatile InetSocketAddress backend;
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong failedConnects = new AtomicLong();
+  private volatile int active;
+  private volatile long lastActivity = System.currentTimeMillis();
+  private final Runnable onDemand;
+  // Accepted while there was no backend, only touched by the relay thread
+  private final List<SocketChannel> parked = new ArrayList<>();
+  private volatile int parkedCount;
+  private volatile boolean refuseParked;
+  private Selector selector;
+  private ServerSocketChannel server;
+  private Thread thread;
+
+  public PortRelay(String name, InetSocketAddress listenAddress) {
+    this(name, listenAddress, null);
+  }
+
+  // onDemand runs on the relay thread for every connection that has to wait
+  // for a backend, it must not block
+  public PortRelay(String name, InetSocketAddress listenAddress, Runnable onDemand) {
+    this.name = name;
+    this.listenAddress = listenAddress;
+    this.onDemand = onDemand;
+  }
+
+  public void start() throws IOException {
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    server.bind(listenAddress);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+
+    thread = new Thread(this::run, "Relay-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // New connections go to backend, open ones stay where they are. Held
+  // connections go to it too.
+  public void setBackend(InetSocketAddress backend) {
+    this.backend = backend;
+    if (selector != null && backend != null) {
+      selector.wakeup();
+    }
+  }
+
+  // Closes the held connections, e.g. when the backend failed to start
+  public void refuseParked() {
+    refuseParked = true;
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  public InetSocketAddress getBackend() {
+    return backend;
+  }
+
+  public InetSocketAddress getListenAddress() {
+    return listenAddress;
+  }
+
+  public long getConnections() {
+    return connections.get();
+  }
+
+  public long getFailedConnects() {
+    return failedConnects.get();
+  }
+
+  public int getActive() {
+    return active;
+  }
+
+  public int getParked() {
+    return parkedCount;
+  }
+
+  // When a connection was last opened or closed
+  public long getLastActivity() {
+    return lastActivity;
+  }
+
+  public void close() {
+    try {
+      if (selector != null) {
+        selector.close();
+      }
+      if (server != null) {
+        server.close();
+      }
+    } catch (IOException e) {
+      // Closing anyway
+    }
+  }
+
+  private void run() {
+    try {
+      while (selector.isOpen()) {
+        selector.select();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (!key.isValid()) {
+              continue;
+            }
+            if (key.isAcceptable()) {
+              accept();
+            } else if (key.isConnectable()) {
+              connected((Side) key.attachment());
+            } else {
+              if (key.isValid() && key.isReadable()) {
+                read((Side) key.attachment());
+              }
+              if (key.isValid() && key.isWritable()) {
+                write((Side) key.attachment());
+              }
+            }
+          } catch (IOException | CancelledKeyException e) {
+            // One side went away, the other follows
+            if (key.attachment() instanceof Side) {
+              close((Side) key.attachment());
+            }
+          }
+        }
+        if (refuseParked || !parked.isEmpty()) {
+          releaseParked();
+        }
+      }
+    } catch (ClosedSelectorException e) {
+      // Closed
+    } catch (IOException e) {
+      Logger.error(name, "Port relay on " + listenAddress + " failed: " + e.getMessage());
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel client = server.accept();
+    if (client == null) {
+      return;
+    }
+    connections.incrementAndGet();
+    lastActivity = System.currentTimeMillis();
+    InetSocketAddress target = backend;
+    if (target == null && onDemand != null) {
+      // Not read until there is a backend, what the client sends waits in
+      // the socket buffer
+      client.configureBlocking(false);
+      parked.add(client);
+      parkedCount = parked.size();
+      onDemand.run();
+      return;
+    }
+    if (target == null) {
+      // Nothing serving this port right now, like a refused connection
+      failedConnects.incrementAndGet();
+      client.close();
+      return;
+    }
+    splice(client, target);
+  }
+
+  private void releaseParked() {
+    InetSocketAddress target = backend;
+    if (refuseParked) {
+      refuseParked = false;
+      for (SocketChannel client : parked) {
+        failedConnects.incrementAndGet();
+        closeQuietly(client);
+      }
+    } else if (target != null) {
+      for (SocketChannel client : parked) {
+        try {
+          splice(client, target);
+        } catch (IOException e) {
+          failedConnects.incrementAndGet();
+          closeQuietly(client);
+        }
+      }
+    } else {
+      return;
+    }
+    parked.clear();
+    parkedCount = 0;
+  }
+
+  private void splice(SocketChannel client, InetSocketAddress target) throws IOException {
+    SocketChannel upstream = SocketChannel.open();
+    client.configureBlocking(false);
+    upstream.configureBlocking(false);
+    client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    upstream.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+    Side clientSide = new Side(client);
+    Side backendSide = new Side(upstream);
+    clientSide.peer = backendSide;
+    backendSide.peer = clientSide;
+    // The client is not read until the backend accepted
+    clientSide.key = client.register(selector, 0, clientSide);
+    backendSide.key = upstream.register(selector, SelectionKey.OP_CONNECT, backendSide);
+    active++;
+
+    try {
+      if (upstream.connect(target)) {
+        connected(backendSide);
+      }
+    } catch (IOException e) {
+      failedConnects.incrementAndGet();
+      close(backendSide);
+    }
+  }
+
+  private void connected(Side backendSide) throws IOException {
+    try {
+      backendSide.channel.finishConnect();
+    } catch (IOException e) {
+      failedConnects.incrementAndGet();
+      throw e;
+    }
+    backendSide.key.interestOps(SelectionKey.OP_READ);
+    backendSide.peer.key.interestOps(SelectionKey.OP_READ);
+  }
+
+  private void read(Side from) throws IOException {
+    int read = from.channel.read(from.pending);
+    if (read < 0) {
+      // Pass on what is left, then end both directions
+      from.pending.flip();
+      from.peer.channel.write(from.pending);
+      close(from);
+      return;
+    }
+
+    from.pending.flip();
+    from.peer.channel.write(from.pending);
+    if (from.pending.hasRemaining()) {
+      // Peer is slow, stop reading until it caught up
+      from.key.interestOps(from.key.interestOps() & ~SelectionKey.OP_READ);
+      from.peer.key.interestOps(from.peer.key.interestOps() | SelectionKey.OP_WRITE);
+    } else {
+      from.pending.clear();
+    }
+  }
+
+  private void write(Side to) throws IOException {
+    Side from = to.peer;
+    to.channel.write(from.pending);
+    if (!from.pending.hasRemaining()) {
+      from.pending.clear();
+      to.key.interestOps(to.key.interestOps() & ~SelectionKey.OP_WRITE);
+      from.key.interestOps(from.key.interestOps() | SelectionKey.OP_READ);
+    }
+  }
+
+  private void close(Side side) {
+    if (!side.channel.isOpen() && !side.peer.channel.isOpen()) {
+      return;
+    }
+    closeQuietly(side.channel);
+    closeQuietly(side.peer.channel);
+    active--;
+    lastActivity = System.currentTimeMillis();
+  }
+
+  // A loopback port nothing listens on right now
+  public static int freeLoopbackPort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Already gone
+    }
+  }
+}
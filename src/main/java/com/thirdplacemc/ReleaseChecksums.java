@@ -0,0 +1,123 @@
+package com.thirdplacemc;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// SHA-256 of the PicoLimbo binary of a tag, from a checksum asset published
+// in the GitHub release (checksums.asset, default SHA256SUMS). Patched
+// binaries and binaries from peers are checked against it, as neither the
+// delta nor the peer can vouch for itself. The asset has sha256sum lines
+//   <sha256>  <platform>/<binary>
+// e.g. "9f86d0...  pico_limbo_linux-x86_64-musl/pico_limbo", platform being
+// the release archive name without its extension.
+public class ReleaseChecksums {
+  private static final int MAX_LINES = 1000;
+
+  // The GitHub release JSON of "tags/<tag>"
+  public interface ReleaseLookup {
+    JsonObject fetch(String release) throws IOException;
+  }
+
+  private final ReleaseLookup releases;
+  private final String assetName;
+  private final String entry;
+  // Digests never change once published, misses are asked again
+  private final Map<String, String> digests = new ConcurrentHashMap<>();
+
+  public ReleaseChecksums(ReleaseLookup releases, String assetName, String platform, String binaryName) {
+    this.releases = releases;
+    this.assetName = assetName;
+    this.entry = platform + "/" + binaryName;
+  }
+
+  // Lowercase hex SHA-256 of the binary of tag, null when the release has
+  // no checksum asset or no line for this platform
+  public String binaryDigest(String tag) throws IOException {
+    String digest = digests.get(tag);
+    if (digest != null) {
+      return digest;
+    }
+    String url = assetUrl(releases.fetch("tags/" + tag));
+    if (url == null) {
+      return null;
+    }
+    digest = find(url);
+    if (digest != null) {
+      digests.put(tag, digest);
+    }
+    return digest;
+  }
+
+  public String getAssetName() {
+    return assetName;
+  }
+
+  private String assetUrl(JsonObject release) {
+    JsonArray assets = release.getAsJsonArray("assets");
+    for (int i = 0; assets != null && i < assets.size(); i++) {
+      JsonObject asset = assets.get(i).getAsJsonObject();
+      if (asset.get("name").getAsString().equals(assetName)) {
+        return asset.get("browser_download_url").getAsString();
+      }
+    }
+    return null;
+  }
+
+  private String find(String url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestProperty("User-Agent", "PicoLimboWrapper");
+    connection.setConnectTimeout(10000);
+    connection.setReadTimeout(10000);
+    int responseCode = connection.getResponseCode();
+    if (responseCode != 200) {
+      throw new IOException(assetName + ": response code " + responseCode);
+    }
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      for (int i = 0; i < MAX_LINES && (line = reader.readLine()) != null; i++) {
+        String digest = parseLine(line, entry);
+        if (digest != null) {
+          return digest;
+        }
+      }
+    }
+    return null;
+  }
+
+  // The digest of a "<sha256>  <name>" line for name, "*<name>" (binary
+  // mode) included, null for any other line
+  static String parseLine(String line, String name) {
+    String[] parts = line.trim().split("\\s+", 2);
+    if (parts.length != 2 || !parts[0].matches("[0-9a-fA-F]{64}")) {
+      return null;
+    }
+    String file = parts[1].startsWith("*") ? parts[1].substring(1) : parts[1];
+    return file.equals(name) ? parts[0].toLowerCase(Locale.ROOT) : null;
+  }
+
+  public static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return bytes;
+  }
+
+  public static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,269 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+// Socket activation for instances with lazy=true. The wrapper listens on the
+// instance's port itself and leaves the instance stopped; the first
+// connection launches it on a loopback port and waits in the relay until
+// PicoLimbo is ready, then it and every later connection is spliced through.
+// After lazy.idleMinutes without connections the instance is stopped again.
+public class SocketActivator {
+  private static final long IDLE_CHECK_MS = 5000;
+
+  private static class Lazy {
+    private final String name;
+    private final File config;
+    private final long idleMillis;
+    private PortRelay relay;
+    private volatile int backendPort;
+    private boolean activating;
+    private long activationStartedAt;
+    private int activations;
+    private long lastColdStartMillis = -1;
+    private long totalColdStartMillis;
+    private int idleStops;
+    private long reclaimedBytes;
+
+    Lazy(String name, File config, long idleMillis) {
+      this.name = name;
+      this.config = config;
+      this.idleMillis = idleMillis;
+    }
+  }
+
+  private final Map<String, Lazy> lazies = new LinkedHashMap<>();
+  private final Map<String, InstanceInfo> instances;
+  private final File runDirectory;
+  private final Consumer<String> launcher;
+  private final Consumer<String> stopper;
+  private final BooleanSupplier paused;
+  private final long startTimeoutMillis;
+  private ScheduledExecutorService idleChecker;
+
+  private SocketActivator(WrapperConfig config, Map<String, InstanceInfo> instances, Consumer<String> launcher,
+      Consumer<String> stopper, BooleanSupplier paused) {
+    this.instances = instances;
+    this.runDirectory = new File(config.getDetachedDirectory());
+    this.launcher = launcher;
+    this.stopper = stopper;
+    this.paused = paused;
+    this.startTimeoutMillis = config.getLazyStartTimeoutMillis();
+  }
+
+  // Returns null when no instance is lazy. launcher starts an instance,
+  // stopper stops it; nothing is stopped for idleness while paused.
+  public static SocketActivator create(WrapperConfig config, Map<String, InstanceInfo> instances,
+      Consumer<String> launcher, Consumer<String> stopper, BooleanSupplier paused) {
+    SocketActivator activator = new SocketActivator(config, instances, launcher, stopper, paused);
+    for (InstanceInfo instance : instances.values()) {
+      String name = instance.getName();
+      if (config.isLazy(name)) {
+        activator.lazies.put(name, new Lazy(name, new File(instance.getConfigPath()), config.getLazyIdleMillis(name)));
+      }
+    }
+    return activator.lazies.isEmpty() ? null : activator;
+  }
+
+  // Takes over the public address of every lazy instance
+  public void start() throws IOException {
+    for (Lazy lazy : lazies.values()) {
+      InetSocketAddress address = LimboToml.parseAddress(LimboToml.readBind(lazy.config));
+      PortRelay relay = new PortRelay(lazy.name, address, () -> activate(lazy));
+      try {
+        relay.start();
+      } catch (IOException e) {
+        throw new IOException("Could not listen on " + address + " for instance '" + lazy.name + "': "
+            + e.getMessage(), e);
+      }
+      lazy.relay = relay;
+      Logger.info(lazy.name, "Listening on " + address.getHostString() + ":" + address.getPort()
+          + ", starting on the first connection");
+    }
+
+    idleChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "Lazy-Idle");
+      thread.setDaemon(true);
+      return thread;
+    });
+    idleChecker.scheduleWithFixedDelay(this::stopIdle, IDLE_CHECK_MS, IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  public boolean isLazy(String instanceName) {
+    return lazies.containsKey(instanceName);
+  }
+
+  // Writes the config a lazy instance is launched with: its own, bound to a
+  // fresh loopback port the relay switches to once the instance is ready
+  public String prepareLaunch(String instanceName) throws IOException {
+    Lazy lazy = lazies.get(instanceName);
+    int port = PortRelay.freeLoopbackPort();
+    File runtimeConfig = new File(runDirectory, instanceName + ".toml");
+    LimboToml.writeWithBind(lazy.config, runtimeConfig, "127.0.0.1:" + port);
+    lazy.backendPort = port;
+    return runtimeConfig.getPath();
+  }
+
+  // Connections, held ones first, go to the instance from now on
+  public void onReady(String instanceName) {
+    Lazy lazy = lazies.get(instanceName);
+    if (lazy == null) {
+      return;
+    }
+    int waiting = lazy.relay.getParked();
+    lazy.relay.setBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), lazy.backendPort));
+    synchronized (this) {
+      if (lazy.activating) {
+        lazy.activating = false;
+        long millis = System.currentTimeMillis() - lazy.activationStartedAt;
+        lazy.activations++;
+        lazy.lastColdStartMillis = millis;
+        lazy.totalColdStartMillis += millis;
+        Logger.info(instanceName, "Activated in " + millis + " ms, passing on " + waiting + " waiting connection(s)");
+      }
+    }
+  }
+
+  // The next connection starts the instance again
+  public void onExit(String instanceName) {
+    Lazy lazy = lazies.get(instanceName);
+    if (lazy != null) {
+      lazy.relay.setBackend(null);
+    }
+  }
+
+  public PortRelay getRelay(String instanceName) {
+    Lazy lazy = lazies.get(instanceName);
+    return lazy != null ? lazy.relay : null;
+  }
+
+  public synchronized String describe(String instanceName) {
+    Lazy lazy = lazies.get(instanceName);
+    InstanceInfo instance = instances.get(instanceName);
+    StringBuilder description = new StringBuilder("lazy: ");
+    if (lazy.activating) {
+      description.append("activating, ").append(lazy.relay.getParked()).append(" waiting");
+    } else if (instance.isRunning()) {
+      long idle = System.currentTimeMillis() - Math.max(lazy.relay.getLastActivity(), instance.getLaunchedAt());
+      description.append(lazy.relay.getActive() > 0 ? lazy.relay.getActive() + " open"
+          : "idle " + idle / 1000 + "s of " + lazy.idleMillis / 60_000 + "m");
+    } else {
+      description.append("sleeping on :").append(lazy.relay.getListenAddress().getPort());
+    }
+    description.append(", ").append(lazy.activations).append(" activations");
+    if (lazy.activations > 0) {
+      description.append(" (cold start ").append(lazy.lastColdStartMillis).append(" ms, avg ")
+          .append(lazy.totalColdStartMillis / lazy.activations).append(" ms)");
+    }
+    description.append(", ").append(lazy.idleStops).append(" idle stops");
+    if (lazy.idleStops > 0) {
+      description.append(" reclaimed ").append(lazy.reclaimedBytes / (1024 * 1024)).append(" MB");
+    }
+    return description.toString();
+  }
+
+  public void stop() {
+    if (idleChecker != null) {
+      idleChecker.shutdownNow();
+    }
+    for (Lazy lazy : lazies.values()) {
+      if (lazy.relay != null) {
+        lazy.relay.close();
+      }
+    }
+  }
+
+  // Runs on the relay thread, the launch happens on its own
+  private void activate(Lazy lazy) {
+    synchronized (this) {
+      if (lazy.activating) {
+        return;
+      }
+      lazy.activating = true;
+      lazy.activationStartedAt = System.currentTimeMillis();
+    }
+
+    Thread activation = new Thread(() -> {
+      InstanceInfo instance = instances.get(lazy.name);
+      if (!instance.isRunning()) {
+        Logger.info(lazy.name, "Connection on :" + lazy.relay.getListenAddress().getPort() + ", starting instance");
+        launcher.accept(lazy.name);
+      }
+
+      long deadline = lazy.activationStartedAt + startTimeoutMillis;
+      try {
+        while (System.currentTimeMillis() < deadline && instance.isRunning()) {
+          synchronized (this) {
+            if (!lazy.activating) {
+              return;
+            }
+          }
+          Thread.sleep(20);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+
+      synchronized (this) {
+        if (!lazy.activating) {
+          return;
+        }
+        lazy.activating = false;
+      }
+      Logger.warn(lazy.name, "Not ready within " + startTimeoutMillis / 1000 + "s, refusing "
+          + lazy.relay.getParked() + " waiting connection(s)");
+      lazy.relay.refuseParked();
+    }, "Activate-" + lazy.name);
+    activation.setDaemon(true);
+    activation.start();
+  }
+
+  private void stopIdle() {
+    if (paused.getAsBoolean()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (Lazy lazy : lazies.values()) {
+      // An exception escaping would cancel the scheduled check for good
+      try {
+        stopIfIdle(lazy, now);
+      } catch (RuntimeException e) {
+        Logger.error(lazy.name, "Idle check failed: " + e);
+      }
+    }
+  }
+
+  private void stopIfIdle(Lazy lazy, long now) {
+    InstanceInfo instance = instances.get(lazy.name);
+    synchronized (this) {
+      if (lazy.activating || !instance.isRunning() || !instance.isReady()) {
+        return;
+      }
+    }
+    PortRelay relay = lazy.relay;
+    long idle = now - Math.max(relay.getLastActivity(), instance.getLaunchedAt());
+    if (relay.getActive() > 0 || relay.getParked() > 0 || idle < lazy.idleMillis) {
+      return;
+    }
+
+    // The process may have ended since isRunning()
+    ProcessHandle process = instance.getProcessHandle();
+    long rss = process != null ? MemoryWatchdog.readRss(process.pid()) : -1;
+    Logger.info(lazy.name, "No connections for " + idle / 60_000 + "m, stopping"
+        + (rss > 0 ? " (reclaims " + rss / (1024 * 1024) + " MB)" : ""));
+    stopper.accept(lazy.name);
+    synchronized (this) {
+      lazy.idleStops++;
+      lazy.reclaimedBytes += Math.max(0, rss);
+    }
+  }
+}
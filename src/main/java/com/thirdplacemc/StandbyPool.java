@@ -0,0 +1,477 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// Warm spares for instance groups with standby enabled. Every instance of
+// such a group listens on a loopback port behind a PortRelay that owns its
+// public address, and each group keeps one extra PicoLimbo running and ready
+// on its own port. When an instance crashes its relay is pointed at the spare
+// and the spare takes over the instance's name; a new spare is then started
+// in the background.
+public class StandbyPool {
+  private static final long RESPAWN_DELAY_MS = 5000;
+
+  public static class Spare {
+    private final InstanceInfo info;
+    private final Process process;
+    private final int port;
+    private final File configFile;
+    private final File outputFile;
+    private final File binary;
+    private final FollowingInputStream follower;
+    private Thread reader;
+    private volatile boolean promoted;
+
+    Spare(InstanceInfo info, Process process, int port, File configFile, File outputFile, File binary,
+        FollowingInputStream follower) {
+      this.info = info;
+      this.process = process;
+      this.port = port;
+      this.configFile = configFile;
+      this.outputFile = outputFile;
+      this.binary = binary;
+      this.follower = follower;
+    }
+
+    public Process getProcess() {
+      return process;
+    }
+
+    public long getLaunchedAt() {
+      return info.getLaunchedAt();
+    }
+
+    public File getOutputFile() {
+      return outputFile;
+    }
+
+    public File getBinary() {
+      return binary;
+    }
+
+    // Where the next reader resumes, a line boundary
+    public long getOutputPosition() {
+      return follower.getPosition();
+    }
+
+    public boolean isReady() {
+      return info.isReady() && process.isAlive();
+    }
+
+    private void deleteFiles() {
+      configFile.delete();
+      outputFile.delete();
+    }
+  }
+
+  private static class Group {
+    private final String name;
+    private final String templateInstance;
+    private final String templateConfig;
+    private volatile Spare spare;
+    private boolean spawning;
+    private int failovers;
+    private long lastFailoverMillis = -1;
+    private long totalFailoverMillis;
+
+    Group(String name, String templateInstance, String templateConfig) {
+      this.name = name;
+      this.templateInstance = templateInstance;
+      this.templateConfig = templateConfig;
+    }
+  }
+
+  private final Map<String, Group> groups = new LinkedHashMap<>();
+  private final Map<String, Group> groupOfInstance = new LinkedHashMap<>();
+  private final Map<String, String> instanceConfigs = new LinkedHashMap<>();
+  private final Map<String, PortRelay> relays = new LinkedHashMap<>();
+  // Spares now running as an instance, their files go with the process
+  private final Map<String, Spare> promoted = new LinkedHashMap<>();
+  private final File runDirectory;
+  private final long maxOutputBytes;
+  private final Function<String, File> binary;
+  private final OutputEventMatcher eventMatcher;
+  private final AtomicInteger sequence = new AtomicInteger();
+  private volatile boolean closed;
+
+  private StandbyPool(File runDirectory, long maxOutputBytes, Function<String, File> binary,
+      OutputEventMatcher eventMatcher) {
+    this.runDirectory = runDirectory;
+    this.maxOutputBytes = maxOutputBytes;
+    this.binary = binary;
+    this.eventMatcher = eventMatcher;
+  }
+
+  // Returns null when no group has standby enabled. binary gives the
+  // PicoLimbo binary an instance runs, it changes with updates.
+  public static StandbyPool create(WrapperConfig config, Map<String, InstanceInfo> instances,
+      Function<String, File> binary, OutputEventMatcher eventMatcher) {
+    Map<String, List<InstanceInfo>> members = new LinkedHashMap<>();
+    for (InstanceInfo instance : instances.values()) {
+      String group = config.getInstanceGroup(instance.getName());
+      // Lazy instances have a relay of their own
+      if (!config.isStandbyEnabled(group) || config.isLazy(instance.getName())) {
+        continue;
+      }
+      members.computeIfAbsent(group, name -> new ArrayList<>()).add(instance);
+    }
+
+    StandbyPool pool = new StandbyPool(new File(config.getDetachedDirectory()), config.getDetachedMaxOutputBytes(),
+        binary, eventMatcher);
+    Map<String, String> pins = config.getInstanceVersions();
+    for (Map.Entry<String, List<InstanceInfo>> entry : members.entrySet()) {
+      // The first instance of the group is the template for its spares, so
+      // a spare can only stand in for instances that match it
+      InstanceInfo template = entry.getValue().get(0);
+      String mismatch = findMismatch(template, entry.getValue(), pins);
+      if (mismatch != null) {
+        Logger.warn("Standby disabled for group '" + entry.getKey() + "': " + mismatch);
+        continue;
+      }
+      Group standby = new Group(entry.getKey(), template.getName(), template.getConfigPath());
+      pool.groups.put(entry.getKey(), standby);
+      for (InstanceInfo instance : entry.getValue()) {
+        pool.groupOfInstance.put(instance.getName(), standby);
+        pool.instanceConfigs.put(instance.getName(), instance.getConfigPath());
+      }
+    }
+    return pool.groups.isEmpty() ? null : pool;
+  }
+
+  // Why the group's instances cannot share a spare, null when their configs
+  // differ only in bind and they run the same version
+  private static String findMismatch(InstanceInfo template, List<InstanceInfo> instances, Map<String, String> pins) {
+    List<String> templateLines;
+    try {
+      templateLines = LimboToml.linesWithoutBind(new File(template.getConfigPath()));
+    } catch (IOException e) {
+      return "cannot read " + template.getConfigPath() + ": " + e.getMessage();
+    }
+    String templatePin = pins.get(template.getName());
+    for (InstanceInfo instance : instances) {
+      if (instance == template) {
+        continue;
+      }
+      String pin = pins.get(instance.getName());
+      if (pin == null ? templatePin != null : !pin.equals(templatePin)) {
+        return "'" + instance.getName() + "' runs " + (pin != null ? pin : "the default version") + ", '"
+            + template.getName() + "' " + (templatePin != null ? templatePin : "the default version");
+      }
+      try {
+        if (!LimboToml.linesWithoutBind(new File(instance.getConfigPath())).equals(templateLines)) {
+          return instance.getConfigPath() + " differs from " + template.getConfigPath() + " in more than bind";
+        }
+      } catch (IOException e) {
+        return "cannot read " + instance.getConfigPath() + ": " + e.getMessage();
+      }
+    }
+    return null;
+  }
+
+  // Takes over the public address of every instance in a standby group,
+  // before any of them is launched
+  public void start() throws IOException {
+    deleteStaleFiles();
+    for (String instanceName : groupOfInstance.keySet()) {
+      InetSocketAddress address = LimboToml.parseAddress(LimboToml.readBind(configOf(instanceName)));
+      PortRelay relay = new PortRelay(instanceName, address);
+      try {
+        relay.start();
+      } catch (IOException e) {
+        throw new IOException("Could not listen on " + address + " for instance '" + instanceName + "': "
+            + e.getMessage(), e);
+      }
+      relays.put(instanceName, relay);
+      Logger.info(instanceName, "Relaying " + address.getHostString() + ":" + address.getPort()
+          + " for standby failover");
+    }
+  }
+
+  public boolean isStandbyInstance(String instanceName) {
+    return groupOfInstance.containsKey(instanceName);
+  }
+
+  // Writes the config an instance of a standby group is launched with: its
+  // own, bound to a fresh loopback port the relay now points at. Returns
+  // null for instances outside standby groups.
+  public String prepareLaunch(String instanceName) throws IOException {
+    PortRelay relay = relays.get(instanceName);
+    if (relay == null) {
+      return null;
+    }
+    release(instanceName);
+    int port = PortRelay.freeLoopbackPort();
+    File runtimeConfig = new File(runDirectory, instanceName + ".toml");
+    LimboToml.writeWithBind(configOf(instanceName), runtimeConfig, "127.0.0.1:" + port);
+    relay.setBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    return runtimeConfig.getPath();
+  }
+
+  // Hands the group's ready spare to a crashed instance: its relay switches
+  // to the spare first, then the spare's output reader lets go. Null when
+  // the group has no ready spare, or the spare runs another binary than
+  // the instance would (a canary).
+  public Spare promote(String instanceName, File instanceBinary) {
+    Group group = groupOfInstance.get(instanceName);
+    if (group == null) {
+      return null;
+    }
+    Spare spare;
+    synchronized (this) {
+      spare = group.spare;
+      if (spare == null || !spare.isReady()) {
+        return null;
+      }
+      if (!spare.binary.getAbsoluteFile().equals(instanceBinary.getAbsoluteFile())) {
+        Logger.info(instanceName, "Standby runs " + spare.binary.getParentFile().getName()
+            + ", relaunching instead");
+        return null;
+      }
+      group.spare = null;
+      spare.promoted = true;
+      Spare previous = promoted.put(instanceName, spare);
+      if (previous != null) {
+        previous.deleteFiles();
+      }
+    }
+
+    relays.get(instanceName).setBackend(new InetSocketAddress(InetAddress.getLoopbackAddress(), spare.port));
+    try {
+      spare.follower.close();
+      spare.reader.join(1000);
+    } catch (IOException e) {
+      // Already closed
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return spare;
+  }
+
+  // Deletes the config and output file of the spare an instance was failed
+  // over to, once that process has exited or is replaced by a relaunch
+  public synchronized void release(String instanceName) {
+    Spare spare = promoted.remove(instanceName);
+    if (spare != null) {
+      spare.deleteFiles();
+    }
+  }
+
+  public synchronized void recordFailover(String instanceName, long millis) {
+    Group group = groupOfInstance.get(instanceName);
+    group.failovers++;
+    group.lastFailoverMillis = millis;
+    group.totalFailoverMillis += millis;
+  }
+
+  // Starts a spare for every group that has none, in the background
+  public void fillAll() {
+    for (Group group : groups.values()) {
+      fill(group, 0);
+    }
+  }
+
+  public void fill(String instanceName) {
+    Group group = groupOfInstance.get(instanceName);
+    if (group != null) {
+      fill(group, 0);
+    }
+  }
+
+  private void fill(Group group, long delayMillis) {
+    synchronized (this) {
+      if (closed || group.spawning || group.spare != null) {
+        return;
+      }
+      group.spawning = true;
+    }
+    Thread spawner = new Thread(() -> {
+      try {
+        if (delayMillis > 0) {
+          Thread.sleep(delayMillis);
+        }
+        Spare spare = spawn(group);
+        synchronized (this) {
+          if (closed) {
+            spare.process.destroy();
+          } else {
+            group.spare = spare;
+          }
+        }
+      } catch (IOException e) {
+        Logger.error(spareName(group), "Could not start standby: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        synchronized (this) {
+          group.spawning = false;
+        }
+      }
+    }, "Standby-" + group.name);
+    spawner.setDaemon(true);
+    spawner.start();
+  }
+
+  private Spare spawn(Group group) throws IOException {
+    String name = spareName(group);
+    int id = sequence.incrementAndGet();
+    int port = PortRelay.freeLoopbackPort();
+    File configFile = new File(runDirectory, name + "-" + id + ".toml");
+    File outputFile = new File(runDirectory, name + "-" + id + ".out");
+    LimboToml.writeWithBind(new File(group.templateConfig), configFile, "127.0.0.1:" + port);
+    Files.write(outputFile.toPath(), new byte[0]);
+
+    // Output goes to a file so the reader can be swapped on promotion
+    // without losing or splitting a line
+    File binaryFile = binary.apply(group.templateInstance);
+    ProcessBuilder processBuilder = new ProcessBuilder(binaryFile.getAbsolutePath(), "-c", configFile.getPath());
+    processBuilder.directory(new File(System.getProperty("user.dir")));
+    processBuilder.redirectErrorStream(true);
+    processBuilder.redirectOutput(ProcessBuilder.Redirect.appendTo(outputFile));
+
+    InstanceInfo info = new InstanceInfo(name, configFile.getPath(), false);
+    OutputEventCounter events = new OutputEventCounter(info, eventMatcher);
+    events.addListener((instance, type) -> {
+      if (type == OutputEventType.READY && !instance.isReady()) {
+        instance.setReady(true);
+        Logger.info(name, "Standby ready on port " + port + " after "
+            + (System.currentTimeMillis() - instance.getLaunchedAt()) + " ms");
+      }
+    });
+    info.setEventCounter(events);
+
+    Process process = processBuilder.start();
+    info.setProcess(process);
+    info.setLaunchedAt(System.currentTimeMillis());
+    FollowingInputStream follower = new FollowingInputStream(outputFile, process.toHandle(), 0, maxOutputBytes);
+    Spare spare = new Spare(info, process, port, configFile, outputFile, binaryFile, follower);
+
+    OutputForwarder forwarder = new OutputForwarder(name, info.getOutputSinks(), null);
+    spare.reader = new Thread(() -> {
+      try (FollowingInputStream in = follower) {
+        forwarder.forward(in);
+      } catch (IOException e) {
+        // Closed on promotion, or the process ended
+      }
+      if (spare.promoted) {
+        return;
+      }
+
+      // Died while waiting, replace it after a pause so a broken template
+      // does not spin
+      synchronized (this) {
+        if (group.spare == spare) {
+          group.spare = null;
+        }
+      }
+      spare.deleteFiles();
+      if (!closed) {
+        Logger.warn(name, "Standby exited, starting a new one in " + RESPAWN_DELAY_MS / 1000 + "s");
+        fill(group, RESPAWN_DELAY_MS);
+      }
+    }, "Output-" + name);
+    spare.reader.start();
+    return spare;
+  }
+
+  // Stops the spares, e.g. before an update replaces the binary. fillAll()
+  // starts new ones.
+  public void stopSpares() {
+    List<Spare> spares = new ArrayList<>();
+    synchronized (this) {
+      for (Group group : groups.values()) {
+        if (group.spare != null) {
+          spares.add(group.spare);
+          group.spare = null;
+        }
+      }
+    }
+    for (Spare spare : spares) {
+      spare.promoted = true;
+      spare.process.destroy();
+      try {
+        if (!spare.process.waitFor(5, TimeUnit.SECONDS)) {
+          spare.process.destroyForcibly();
+        }
+        spare.reader.join(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      spare.deleteFiles();
+    }
+  }
+
+  // Called once the instances have stopped
+  public void close() {
+    closed = true;
+    stopSpares();
+    for (PortRelay relay : relays.values()) {
+      relay.close();
+    }
+    synchronized (this) {
+      for (Spare spare : promoted.values()) {
+        spare.deleteFiles();
+      }
+      promoted.clear();
+    }
+  }
+
+  public PortRelay getRelay(String instanceName) {
+    return relays.get(instanceName);
+  }
+
+  public List<String> getGroups() {
+    return new ArrayList<>(groups.keySet());
+  }
+
+  // One status line per group
+  public synchronized String describe(String groupName) {
+    Group group = groups.get(groupName);
+    Spare spare = group.spare;
+    String state;
+    if (spare != null && spare.isReady()) {
+      state = "spare ready (pid " + spare.process.pid() + ", port " + spare.port + ")";
+    } else if (spare != null || group.spawning) {
+      state = "spare starting";
+    } else {
+      state = "no spare";
+    }
+    if (group.failovers == 0) {
+      return state + ", no failovers";
+    }
+    return state + ", " + group.failovers + " failover(s), last " + group.lastFailoverMillis + " ms, avg "
+        + group.totalFailoverMillis / group.failovers + " ms";
+  }
+
+  private File configOf(String instanceName) {
+    return new File(instanceConfigs.get(instanceName));
+  }
+
+  private static String spareName(Group group) {
+    return group.name + "-spare";
+  }
+
+  // Leftovers of spares from a previous run
+  private void deleteStaleFiles() {
+    File[] files = runDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.contains("-spare-") && (name.endsWith(".toml") || name.endsWith(".out"))) {
+        file.delete();
+      }
+    }
+  }
+}
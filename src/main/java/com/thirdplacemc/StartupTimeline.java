@@ -0,0 +1,77 @@
+package com.thirdplacemc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+// Records how long each startup phase of the wrapper takes, from JVM start up
+// to the first instance reporting "Listening on:". Marks are always recorded
+// (a nanoTime per phase); the report is only printed when enabled with
+// --startup-timeline or startup.timeline=true.
+public class StartupTimeline {
+  private static final long mainStarted = System.nanoTime();
+  private static final List<String> phases = new ArrayList<>();
+  private static final List<Long> times = new ArrayList<>();
+  private static volatile boolean enabled = false;
+  private static boolean finished = false;
+
+  public static void setEnabled(boolean enabled) {
+    StartupTimeline.enabled = enabled;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  // Marks the end of a phase that started at the previous mark
+  public static synchronized void mark(String phase) {
+    if (finished) {
+      return;
+    }
+    phases.add(phase);
+    times.add(System.nanoTime());
+  }
+
+  // Called on the first "Listening on:" of any instance, prints the report once
+  public static synchronized void finish(String instanceName) {
+    if (finished) {
+      return;
+    }
+    mark("first listening (" + instanceName + ")");
+    finished = true;
+    if (enabled) {
+      report();
+    }
+  }
+
+  private static void report() {
+    long jvmMillis = jvmStartupMillis();
+    Logger.info("Startup timeline:");
+    if (jvmMillis >= 0) {
+      Logger.info(String.format("  %-34s %6d ms", "jvm start to main", jvmMillis));
+    }
+
+    long previous = mainStarted;
+    for (int i = 0; i < phases.size(); i++) {
+      long time = times.get(i);
+      Logger.info(String.format("  %-34s %6d ms  (at %d ms)", phases.get(i),
+          (time - previous) / 1_000_000, (time - mainStarted) / 1_000_000));
+      previous = time;
+    }
+
+    long total = (previous - mainStarted) / 1_000_000 + Math.max(0, jvmMillis);
+    Logger.info(String.format("  %-34s %6d ms", "total", total));
+  }
+
+  // JVM uptime minus the time spent since main, -1 if unavailable. Only
+  // called for the report, so loading the management classes does not skew
+  // the phases above.
+  private static long jvmStartupMillis() {
+    try {
+      long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+      return Math.max(0, uptime - (System.nanoTime() - mainStarted) / 1_000_000);
+    } catch (Throwable e) {
+      return -1;
+    }
+  }
+}
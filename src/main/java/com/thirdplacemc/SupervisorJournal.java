@@ -0,0 +1,536 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only binary journal of instance lifecycle events. Events are encoded
+// into a pending buffer by the caller and written by a single writer thread
+// once per commit interval with one force() per batch (group commit). On
+// startup the journal is replayed to restore restart counters and crash-loop
+// state; once it grows past its size limit it is rewritten with a summary and
+// the most recent events of each instance.
+//
+// File layout: magic, then records of [int length][int crc32][payload] where
+// the payload is [long time][byte type][name][long value][long extra][detail]
+// and strings are a short length followed by UTF-8 bytes. Replay stops at the
+// first torn or corrupt record and truncates the file there.
+public class SupervisorJournal {
+  public static final long UNKNOWN_EXIT = Long.MIN_VALUE;
+
+  private static final int MAGIC = 0x504C4A31; // "PLJ1"
+  private static final int MAX_RECORD_SIZE = 64 * 1024;
+  private static final int MAX_STRING_BYTES = 1024;
+
+  public static class Event {
+    private final long time;
+    private final JournalEventType type;
+    private final String instance;
+    private final long value;
+    private final long extra;
+    private final String detail;
+
+    public Event(long time, JournalEventType type, String instance, long value, long extra, String detail) {
+      this.time = time;
+      this.type = type;
+      this.instance = instance;
+      this.value = value;
+      this.extra = extra;
+      this.detail = detail != null ? detail : "";
+    }
+
+    public long getTime() {
+      return time;
+    }
+
+    public JournalEventType getType() {
+      return type;
+    }
+
+    public String getInstance() {
+      return instance;
+    }
+
+    public long getValue() {
+      return value;
+    }
+
+    public long getExtra() {
+      return extra;
+    }
+
+    public String getDetail() {
+      return detail;
+    }
+  }
+
+  // State of one instance as of the last event, rebuilt by replay
+  public static class History {
+    private long launches;
+    private long crashes;
+    private int restartAttempts;
+    private boolean gaveUp;
+    private long lastLaunchMillis;
+    private long lastExitMillis;
+    private long lastExitCode = UNKNOWN_EXIT;
+    private String lastFailure = "";
+
+    void apply(Event event) {
+      switch (event.getType()) {
+        case LAUNCH:
+          launches++;
+          lastLaunchMillis = event.getTime();
+          gaveUp = false;
+          if (isUserLaunch(event.getDetail())) {
+            restartAttempts = 0;
+          }
+          break;
+        case ADOPT:
+        case FAILOVER:
+          lastLaunchMillis = event.getTime();
+          break;
+        case EXIT:
+          lastExitMillis = event.getTime();
+          lastExitCode = event.getValue();
+          break;
+        case CRASH:
+          crashes++;
+          lastExitMillis = event.getTime();
+          lastExitCode = event.getValue();
+          lastFailure = event.getDetail();
+          break;
+        case RESTART:
+          restartAttempts = (int) event.getValue();
+          break;
+        case GIVE_UP:
+          gaveUp = true;
+          break;
+        case SUMMARY:
+          launches += event.getValue();
+          crashes += event.getExtra();
+          break;
+        default:
+          break;
+      }
+    }
+
+    public long getLaunches() {
+      return launches;
+    }
+
+    public long getCrashes() {
+      return crashes;
+    }
+
+    public int getRestartAttempts() {
+      return restartAttempts;
+    }
+
+    public boolean hasGivenUp() {
+      return gaveUp;
+    }
+
+    public long getLastLaunchMillis() {
+      return lastLaunchMillis;
+    }
+
+    public long getLastExitMillis() {
+      return lastExitMillis;
+    }
+
+    public long getLastExitCode() {
+      return lastExitCode;
+    }
+
+    public String getLastFailure() {
+      return lastFailure;
+    }
+  }
+
+  private final File file;
+  private final long maxBytes;
+  private final int keepEvents;
+  private final Map<String, History> histories = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "Journal-Writer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  // Guarded by this: callers encode into pending, the writer swaps it out
+  private ByteBuffer pending = ByteBuffer.allocate(16 * 1024);
+  private ByteBuffer writing = ByteBuffer.allocate(16 * 1024);
+  private final CRC32 crc = new CRC32();
+
+  // Only touched by the writer thread
+  private FileChannel channel;
+  // maxBytes, or twice the compacted size when compaction cannot get the
+  // journal below it, so it is not rewritten on every commit
+  private long compactAt;
+
+  private volatile int replayedEvents;
+  private volatile long replayMillis;
+  private volatile int compactions;
+  private volatile int writeErrors;
+
+  // Launches asked for by the user or planned by the watchdog (as opposed to
+  // autostart and crash restarts) start with a fresh restart budget
+  public static boolean isUserLaunch(String reason) {
+    return reason.equals("start") || reason.equals("restart") || reason.equals("update")
+        || reason.equals("memory") || reason.equals("scheduled") || reason.equals("canary")
+        || reason.equals("rollback") || reason.equals("activation") || reason.equals("cluster");
+  }
+
+  public SupervisorJournal(File file, long maxBytes, int keepEvents) {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    this.keepEvents = keepEvents;
+    this.compactAt = maxBytes;
+  }
+
+  // Replays the existing journal and starts the writer
+  public void open(long commitIntervalMillis) throws IOException {
+    long started = System.nanoTime();
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null) {
+      parent.mkdirs();
+    }
+
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    if (channel.size() == 0) {
+      writeHeader(channel);
+    } else {
+      List<Event> events = new ArrayList<>();
+      long validEnd = read(channel, events);
+      if (validEnd < 0) {
+        // Not a journal we understand, keep it aside and start over
+        channel.close();
+        File aside = new File(file.getPath() + ".corrupt");
+        Files.move(file.toPath(), aside.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Logger.warn("Unrecognised journal moved to " + aside.getPath());
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        writeHeader(channel);
+      } else {
+        if (validEnd < channel.size()) {
+          Logger.warn("Journal ends with a torn record, truncating " + (channel.size() - validEnd) + " bytes");
+          channel.truncate(validEnd);
+        }
+        for (Event event : events) {
+          history(event.getInstance()).apply(event);
+        }
+        replayedEvents = events.size();
+      }
+    }
+    channel.position(channel.size());
+    replayMillis = (System.nanoTime() - started) / 1_000_000;
+
+    writer.scheduleWithFixedDelay(this::commit, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void append(JournalEventType type, String instance, long value, long extra, String detail) {
+    Event event = new Event(System.currentTimeMillis(), type, instance, value, extra, detail);
+    synchronized (this) {
+      history(instance).apply(event);
+      pending = encode(pending, event, crc);
+    }
+  }
+
+  public History getHistory(String instance) {
+    return histories.get(instance);
+  }
+
+  // Events of one instance in order, read back from disk after a commit
+  public List<Event> readEvents(String instance) throws IOException {
+    try {
+      return writer.submit(() -> {
+        commit();
+        List<Event> all = new ArrayList<>();
+        read(channel, all);
+        List<Event> matching = new ArrayList<>();
+        for (Event event : all) {
+          if (event.getInstance().equals(instance)) {
+            matching.add(event);
+          }
+        }
+        return matching;
+      }).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading the journal");
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  // Commits everything appended so far and stops the writer
+  public void close() {
+    try {
+      writer.submit(() -> {
+        commit();
+        try {
+          channel.close();
+        } catch (IOException e) {
+          // Closing anyway
+        }
+      }).get(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      Logger.error("Could not close journal: " + e.getMessage());
+    }
+    writer.shutdown();
+  }
+
+  private History history(String instance) {
+    return histories.computeIfAbsent(instance, name -> new History());
+  }
+
+  // Appends the record to buffer, returns the buffer (grown if needed)
+  private static ByteBuffer encode(ByteBuffer buffer, Event event, CRC32 crc) {
+    byte[] name = truncate(event.getInstance());
+    byte[] detail = truncate(event.getDetail());
+    int payloadLength = 8 + 1 + 2 + name.length + 8 + 8 + 2 + detail.length;
+    int recordLength = 8 + payloadLength;
+    if (buffer.remaining() < recordLength) {
+      ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordLength));
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+
+    int start = buffer.position();
+    buffer.putInt(payloadLength);
+    buffer.putInt(0);
+    buffer.putLong(event.getTime());
+    buffer.put((byte) event.getType().getCode());
+    buffer.putShort((short) name.length);
+    buffer.put(name);
+    buffer.putLong(event.getValue());
+    buffer.putLong(event.getExtra());
+    buffer.putShort((short) detail.length);
+    buffer.put(detail);
+
+    crc.reset();
+    crc.update(buffer.array(), start + 8, payloadLength);
+    buffer.putInt(start + 4, (int) crc.getValue());
+    return buffer;
+  }
+
+  private static byte[] truncate(String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length <= MAX_STRING_BYTES) {
+      return bytes;
+    }
+    // Cut on a character boundary
+    int end = MAX_STRING_BYTES;
+    while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+      end--;
+    }
+    byte[] cut = new byte[end];
+    System.arraycopy(bytes, 0, cut, 0, end);
+    return cut;
+  }
+
+  private void commit() {
+    ByteBuffer batch;
+    synchronized (this) {
+      if (pending.position() == 0) {
+        return;
+      }
+      batch = pending;
+      pending = writing;
+      pending.clear();
+    }
+    writing = batch;
+    batch.flip();
+
+    try {
+      while (batch.hasRemaining()) {
+        channel.write(batch);
+      }
+      // One sync for every event in the batch
+      channel.force(false);
+      if (channel.size() > compactAt) {
+        compact();
+      }
+    } catch (IOException e) {
+      if (writeErrors++ == 0) {
+        Logger.error("Could not write journal " + file.getPath() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  // Rewrites the journal as one summary per instance followed by its most
+  // recent keepEvents events
+  private void compact() throws IOException {
+    List<Event> events = new ArrayList<>();
+    read(channel, events);
+
+    Map<String, Deque<Event>> recent = new LinkedHashMap<>();
+    Map<String, long[]> dropped = new LinkedHashMap<>();
+    for (Event event : events) {
+      Deque<Event> kept = recent.computeIfAbsent(event.getInstance(), name -> new ArrayDeque<>());
+      kept.addLast(event);
+      if (kept.size() > keepEvents) {
+        Event oldest = kept.removeFirst();
+        long[] counts = dropped.computeIfAbsent(oldest.getInstance(), name -> new long[2]);
+        if (oldest.getType() == JournalEventType.LAUNCH) {
+          counts[0]++;
+        } else if (oldest.getType() == JournalEventType.CRASH) {
+          counts[1]++;
+        } else if (oldest.getType() == JournalEventType.SUMMARY) {
+          counts[0] += oldest.getValue();
+          counts[1] += oldest.getExtra();
+        }
+      }
+    }
+
+    // Appenders keep using pending meanwhile, their events go to the new file
+    // with the next commit
+    ByteBuffer compacted = ByteBuffer.allocate(64 * 1024);
+    CRC32 checksum = new CRC32();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Deque<Event>> entry : recent.entrySet()) {
+      long[] counts = dropped.get(entry.getKey());
+      if (counts != null) {
+        compacted = encode(compacted,
+            new Event(now, JournalEventType.SUMMARY, entry.getKey(), counts[0], counts[1], ""), checksum);
+      }
+      for (Event event : entry.getValue()) {
+        compacted = encode(compacted, event, checksum);
+      }
+    }
+    compacted.flip();
+
+    File temp = new File(file.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      writeHeader(out);
+      while (compacted.hasRemaining()) {
+        out.write(compacted);
+      }
+      out.force(true);
+    }
+
+    channel.close();
+    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    compactions++;
+
+    long size = channel.size();
+    long next = Math.max(maxBytes, 2 * size);
+    if (next > maxBytes && compactAt == maxBytes) {
+      Logger.warn("Journal is " + size / 1024 + " KB after compaction, over journal.maxSizeKb ("
+          + maxBytes / 1024 + " KB); compacting again at " + next / 1024 + " KB. Lower journal.keepEvents"
+          + " or raise journal.maxSizeKb");
+    }
+    compactAt = next;
+  }
+
+  private static void writeHeader(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(4);
+    header.putInt(MAGIC);
+    header.flip();
+    channel.write(header, 0);
+    channel.position(4);
+  }
+
+  // Reads every valid record into events, returns the end of the last valid
+  // record or -1 if the file is not a journal
+  private static long read(FileChannel channel, List<Event> events) throws IOException {
+    long size = channel.size();
+    if (size < 4) {
+      return -1;
+    }
+    // Compaction keeps the journal small enough to read in one go
+    ByteBuffer map = ByteBuffer.allocate((int) size);
+    while (map.hasRemaining()) {
+      if (channel.read(map, map.position()) < 0) {
+        break;
+      }
+    }
+    map.flip();
+    if (map.getInt() != MAGIC) {
+      return -1;
+    }
+
+    CRC32 checksum = new CRC32();
+    byte[] payload = new byte[256];
+    while (map.remaining() >= 8) {
+      int start = map.position();
+      int length = map.getInt();
+      int expected = map.getInt();
+      if (length < 29 || length > MAX_RECORD_SIZE || length > map.remaining()) {
+        return start;
+      }
+      if (payload.length < length) {
+        payload = new byte[length];
+      }
+      map.get(payload, 0, length);
+      checksum.reset();
+      checksum.update(payload, 0, length);
+      if ((int) checksum.getValue() != expected) {
+        return start;
+      }
+
+      Event event = decode(ByteBuffer.wrap(payload, 0, length));
+      if (event != null) {
+        events.add(event);
+      }
+    }
+    return map.position();
+  }
+
+  private static Event decode(ByteBuffer payload) {
+    long time = payload.getLong();
+    JournalEventType type = JournalEventType.fromCode(payload.get());
+    String instance = readString(payload);
+    long value = payload.getLong();
+    long extra = payload.getLong();
+    String detail = readString(payload);
+    // Records of unknown types come from a newer wrapper and are skipped
+    return type != null ? new Event(time, type, instance, value, extra, detail) : null;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getReplayedEvents() {
+    return replayedEvents;
+  }
+
+  public long getReplayMillis() {
+    return replayMillis;
+  }
+
+  public int getCompactions() {
+    return compactions;
+  }
+}
@@ -4,10 +4,12 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class WrapperConfig {
   private static final String CONFIG_FILE = "wrapper.properties";
   private static final String DEFAULT_GITHUB_REPO = "Quozul/PicoLimbo";
+  private static final String DEFAULT_GITHUB_API_URL = "https://api.github.com";
   private static final String DEFAULT_INSTANCE_NAME = "default";
   private static final String DEFAULT_CONFIG_PATH = "server.toml";
 
@@ -18,6 +20,11 @@ public class WrapperConfig {
     loadConfig();
   }
 
+  // Uses the given properties as-is, without reading or creating wrapper.properties
+  WrapperConfig(Properties properties) {
+    this.properties = properties;
+  }
+
   private void loadConfig() {
     File configFile = new File(CONFIG_FILE);
 
@@ -45,6 +52,7 @@ public class WrapperConfig {
       properties.store(fos, "PicoLimbo Wrapper Configuration\n" +
           "# github.repo - GitHub repository in format 'owner/repo' (default: Quozul/PicoLimbo)\n" +
           "# download.url - Direct download URL for the archive (overrides GitHub releases if set)\n" +
+          "# binary.entry - Glob of the binary inside the archive (default: pico_limbo / pico_limbo.exe)\n" +
           "#\n" +
           "# Multi-instance support:\n" +
           "# instances - Comma-separated list of instance names (e.g., lobby,survival,creative)\n" +
@@ -56,7 +64,92 @@ public class WrapperConfig {
           "# instance.lobby.config=configs/lobby.toml\n" +
           "# instance.lobby.autoStart=true\n" +
           "# instance.survival.config=configs/survival.toml\n" +
-          "# instance.survival.autoStart=true");
+          "# instance.survival.autoStart=true\n" +
+          "#\n" +
+          "# Per-instance log files (optional):\n" +
+          "# logs.enabled - Write each instance's output to <logs.dir>/<name>.log (default: false)\n" +
+          "# logs.dir - Directory for instance log files (default: logs)\n" +
+          "# logs.maxSizeMb / logs.rotateHours - Rotate when either limit is reached, 0 disables a limit (default: 10 / 24)\n" +
+          "# logs.compress - Gzip rotated log files (default: true)\n" +
+          "# instance.<name>.logs.enabled - Override logs.enabled for one instance\n" +
+          "#\n" +
+          "# output.bufferMb - Recent output kept in memory per instance for 'tail'/'grep' and crash dumps (default: 1, 0 disables, at most 512)\n" +
+          "# crash.dir - Directory for crash dumps (default: crashes)\n" +
+          "#\n" +
+          "# events.join / events.leave / events.error / events.warn / events.ready - '|'-separated output\n" +
+          "#   patterns counted per instance and shown in 'status'\n" +
+          "#\n" +
+          "# Console flood protection (per instance override: instance.<name>.output.*):\n" +
+          "# output.linesPerSecond / output.bytesPerSecond - Console rate limit per instance, e.g. 500 / 131072 (default: 0, off)\n" +
+          "# output.collapseRepeats - Collapse consecutive identical lines (default: false)\n" +
+          "# startup.timeline - Log the duration of each startup phase (default: false)\n" +
+          "#\n" +
+          "# detached - Keep instances running across wrapper restarts and re-adopt them on startup (default: false)\n" +
+          "# detached.dir - Directory for instance output files and the state file (default: run)\n" +
+          "# detached.maxOutputMb - Empty an output file once read past this size (default: 8)\n" +
+          "#\n" +
+          "# journal.enabled - Record instance lifecycle events for 'history' and crash-loop state (default: false)\n" +
+          "# journal.file - Journal file (default: wrapper.journal)\n" +
+          "# journal.maxSizeKb / journal.keepEvents - Compact past this size, keeping this many events per instance (default: 512 / 200)\n" +
+          "#\n" +
+          "# history.enabled - Record memory, CPU, restarts and ping of each instance for 'history <instance> <metric>' (default: false)\n" +
+          "# history.dir / history.intervalSeconds / history.retentionDays - Where, how often and how long (default: history / 10 / 7)\n" +
+          "#\n" +
+          "# Resource isolation, Linux only (per instance override: instance.<name>.*):\n" +
+          "# cpus - CPUs to pin an instance to with taskset: 'auto' spreads instances over the allowed cores,\n" +
+          "#   or a list such as 0,2-3 (default: not pinned)\n" +
+          "# cpu.limit - CPU time limit in cores via cgroup v2 cpu.max, e.g. 0.5 (default: 0, unlimited)\n" +
+          "# memory.limitMb - Memory limit via cgroup v2 memory.max (default: 0, unlimited)\n" +
+          "# cgroup.path - Delegated cgroup v2 directory to create instance groups in (default: the wrapper's own cgroup)\n" +
+          "#\n" +
+          "# Proactive restarts (per instance override: instance.<name>.*), one instance of a group at a time:\n" +
+          "# instance.<name>.group - Restart group of the instance (default: default)\n" +
+          "# memory.restartMb - Restart when the resident memory exceeds this (default: 0, disabled)\n" +
+          "# memory.restartGrowthMbPerHour - Restart when memory grows faster than this (default: 0, disabled)\n" +
+          "# restart.everyHours - Scheduled maintenance restart after this much uptime (default: 0, disabled)\n" +
+          "# watchdog.intervalSeconds / watchdog.growthWindowMinutes - Sampling interval and growth window (default: 30 / 60)\n" +
+          "# watchdog.minUptimeMinutes - Uptime before memory can trigger a restart (default: 10)\n" +
+          "# watchdog.readyTimeoutSeconds - How long a restarted instance may take to become ready (default: 120)\n" +
+          "#\n" +
+          "# group.<group>.standby - Keep a warm spare for the group and fail crashed instances over to it (default: false)\n" +
+          "#\n" +
+          "# Versions, installed side by side in binaries/<tag>:\n" +
+          "# instance.<name>.version - Pin the instance to a release tag instead of following 'update' (default: not pinned)\n" +
+          "# canary.minutes / canary.maxErrors - How long a canary is watched and the error lines it may log (default: 10 / 5)\n" +
+          "# rollout.readyTimeoutSeconds - How long update and canary wait for each restarted instance (default: 60)\n" +
+          "# delta.dir / delta.url - Where to look for <platform>-<from>-<to>.delta patches before a full download (default: unset)\n" +
+          "# checksums.asset - Release asset with the SHA-256 of each platform's binary, checked for deltas and peers (default: SHA256SUMS)\n" +
+          "#\n" +
+          "# http.port / http.bind - Embedded HTTP endpoint (default: 0, off / 0.0.0.0)\n" +
+          "# mirror.serve - Serve installed binaries to other wrappers at /mirror/ on http.port (default: false)\n" +
+          "# mirror.peers - Comma-separated wrapper URLs to download from before GitHub, e.g. http://10.0.0.2:8080 (default: none)\n" +
+          "# mirror.latestCacheSeconds - How long a serving wrapper reuses the latest release tag (default: 60)\n" +
+          "# mirror.requireChecksum - Only use peers for versions whose release publishes checksums.asset (default: true)\n" +
+          "# logs.stream - Stream instance output as Server-Sent Events at /logs and /logs/<name> on http.port (default: false)\n" +
+          "# logs.stream.bufferLines / logs.stream.maxClients - Lines queued per slow client and client limit (default: 1000 / 32)\n" +
+          "# logs.stream.token - Token clients must send; without it only clients on this host are served (default: unset)\n" +
+          "#\n" +
+          "# Cluster mode, not with detached, standby groups or lazy instances:\n" +
+          "# cluster.dir - Directory shared by all nodes; auto-start instances run on one node each (default: unset, off)\n" +
+          "# cluster.node - This node's name (default: host name)\n" +
+          "# cluster.capacity - Relative share of the instances this node takes (default: 1)\n" +
+          "# cluster.heartbeatSeconds / cluster.leaseSeconds - Lease renewal and expiry (default: 1 / 5)\n" +
+          "# cluster.rebalanceSeconds - Least time between moves to less loaded nodes, 0 disables (default: 30)\n" +
+          "#\n" +
+          "# Socket activation (per instance override: instance.<name>.*), not in detached mode:\n" +
+          "# lazy - Listen on the instance's port and start it on the first connection (default: false)\n" +
+          "# lazy.idleMinutes - Stop a lazy instance after this long without connections (default: 10)\n" +
+          "# lazy.startTimeoutSeconds - How long connections wait for a lazy instance to be ready, global only (default: 30)\n" +
+          "#\n" +
+          "# Flight recorder ('jfr start|dump|stop'):\n" +
+          "# jfr.record - Start a recording with the wrapper (default: false)\n" +
+          "# jfr.settings - JDK settings of the recording, default or profile (default: default)\n" +
+          "# jfr.dir / jfr.maxAgeMinutes - Where recordings are written and how much they keep (default: jfr / 30)\n" +
+          "#\n" +
+          "# Load test ('loadtest <instance|all> <connections> [seconds] [status|login]'):\n" +
+          "# loadtest.threads - Selector threads opening the connections (default: 2)\n" +
+          "# loadtest.protocol - Protocol version sent in the handshake, 769 is 1.21.4 (default: 769)\n" +
+          "# loadtest.timeoutSeconds - How long a connection waits for its first response (default: 10)");
       Logger.info("Created default configuration file: " + CONFIG_FILE);
     } catch (IOException e) {
       Logger.error("Warning: Could not create " + CONFIG_FILE + ": " + e.getMessage());
@@ -67,6 +160,20 @@ public class WrapperConfig {
     return properties.getProperty("github.repo", DEFAULT_GITHUB_REPO);
   }
 
+  public String getGitHubApiUrl() {
+    String url = properties.getProperty("github.api.url", DEFAULT_GITHUB_API_URL).trim();
+    if (url.isEmpty()) {
+      return DEFAULT_GITHUB_API_URL;
+    }
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  // Glob selecting the binary inside the release archive, e.g. "pico_limbo" or "**/bin/pico_limbo"
+  public String getBinaryEntryGlob(String binaryName) {
+    String glob = properties.getProperty("binary.entry", "").trim();
+    return glob.isEmpty() ? binaryName : glob;
+  }
+
   public String getDownloadUrl() {
     return properties.getProperty("download.url", "").trim();
   }
@@ -76,6 +183,126 @@ public class WrapperConfig {
     return url != null && !url.isEmpty();
   }
 
+  // Base URL delta patches are fetched from, empty when unset
+  public String getDeltaUrl() {
+    return properties.getProperty("delta.url", "").trim();
+  }
+
+  // Local directory searched for delta patches first, empty when unset
+  public String getDeltaDirectory() {
+    return properties.getProperty("delta.dir", "").trim();
+  }
+
+  // Release asset listing "<sha256>  <platform>/<binary>" for each platform
+  public String getChecksumAsset() {
+    return properties.getProperty("checksums.asset", "SHA256SUMS").trim();
+  }
+
+  // Port of the embedded HTTP endpoint, 0 when it is off
+  public int getHttpPort() {
+    return Math.max(0, getInt("http.port", 0));
+  }
+
+  public String getHttpBind() {
+    return properties.getProperty("http.bind", "0.0.0.0").trim();
+  }
+
+  // Serve binaries/ to other wrappers at /mirror/ on http.port
+  public boolean isMirrorServing() {
+    return Boolean.parseBoolean(properties.getProperty("mirror.serve", "false").trim());
+  }
+
+  // Base URLs of other wrappers to download from before GitHub
+  public List<String> getMirrorPeers() {
+    List<String> peers = new ArrayList<>();
+    for (String peer : properties.getProperty("mirror.peers", "").split(",")) {
+      peer = peer.trim();
+      while (peer.endsWith("/")) {
+        peer = peer.substring(0, peer.length() - 1);
+      }
+      if (!peer.isEmpty()) {
+        peers.add(peer);
+      }
+    }
+    return peers;
+  }
+
+  // Only take binaries from peers that match the release's checksum asset
+  public boolean isMirrorChecksumRequired() {
+    return Boolean.parseBoolean(properties.getProperty("mirror.requireChecksum", "true").trim());
+  }
+
+  public long getMirrorLatestCacheMillis() {
+    return Math.max(0, getInt("mirror.latestCacheSeconds", 60)) * 1000L;
+  }
+
+  // Instance output as Server-Sent Events at /logs on http.port
+  public boolean isLogStreamEnabled() {
+    return Boolean.parseBoolean(properties.getProperty("logs.stream", "false").trim());
+  }
+
+  // Lines queued per client before its oldest are dropped
+  public int getLogStreamBufferLines() {
+    return Math.max(16, getInt("logs.stream.bufferLines", 1000));
+  }
+
+  // Required from every log stream client when set, otherwise only
+  // loopback clients are served
+  public String getLogStreamToken() {
+    return properties.getProperty("logs.stream.token", "").trim();
+  }
+
+  public int getLogStreamMaxClients() {
+    return Math.max(1, getInt("logs.stream.maxClients", 32));
+  }
+
+  // Shared directory of the cluster, empty when not clustered
+  public String getClusterDirectory() {
+    return properties.getProperty("cluster.dir", "").trim();
+  }
+
+  // This wrapper's name in the cluster, the host name by default
+  public String getClusterNode() {
+    String node = properties.getProperty("cluster.node", "").trim();
+    if (!node.isEmpty()) {
+      return node;
+    }
+    try {
+      return java.net.InetAddress.getLocalHost().getHostName().replaceAll("[^A-Za-z0-9._-]", "-");
+    } catch (IOException e) {
+      return "node-" + ProcessHandle.current().pid();
+    }
+  }
+
+  // Relative share of the instances this node takes, e.g. 2 for a host twice as big
+  public double getClusterCapacity() {
+    String value = properties.getProperty("cluster.capacity", "1").trim();
+    try {
+      double capacity = Double.parseDouble(value);
+      if (capacity > 0) {
+        return capacity;
+      }
+    } catch (NumberFormatException e) {
+      // Reported below
+    }
+    Logger.warn("Invalid cluster.capacity: " + value + ", using default: 1");
+    return 1;
+  }
+
+  public long getClusterHeartbeatMillis() {
+    return Math.max(1, getInt("cluster.heartbeatSeconds", 1)) * 1000L;
+  }
+
+  // At least three heartbeats, so one slow write does not lose a lease
+  public long getClusterLeaseMillis() {
+    return Math.max(getClusterHeartbeatMillis() * 3, getInt("cluster.leaseSeconds", 5) * 1000L);
+  }
+
+  // 0 disables moving instances to less loaded nodes
+  public long getClusterRebalanceMillis() {
+    return Math.max(0, getInt("cluster.rebalanceSeconds", 30)) * 1000L;
+  }
+
   public List<String> getInstances() {
     String instancesStr = properties.getProperty("instances", "").trim();
     if (instancesStr.isEmpty()) {
@@ -113,11 +340,294 @@ public class WrapperConfig {
     return Boolean.parseBoolean(autoStart.trim());
   }
 
+  public boolean isInstanceLogEnabled(String instanceName) {
+    return getInstanceBoolean(instanceName, "logs.enabled", false);
+  }
+
+  public String getLogDirectory() {
+    return properties.getProperty("logs.dir", "logs").trim();
+  }
+
+  // 0 when the size is not limited
+  public long getLogMaxBytes() {
+    return Math.max(0, getInt("logs.maxSizeMb", 10)) * 1024L * 1024L;
+  }
+
+  public long getLogRotateMillis() {
+    return TimeUnit.HOURS.toMillis(getInt("logs.rotateHours", 24));
+  }
+
+  public int getLogFlushIntervalMillis() {
+    return Math.max(10, getInt("logs.flushIntervalMs", 1000));
+  }
+
+  public int getLogBufferBytes() {
+    return Math.max(4, getInt("logs.bufferKb", 256)) * 1024;
+  }
+
+  public boolean shouldCompressLogs() {
+    return Boolean.parseBoolean(properties.getProperty("logs.compress", "true").trim());
+  }
+
+  // Clamped before multiplying, 2048 MB would not fit in an int
+  public int getOutputBufferBytes(String instanceName) {
+    return Math.max(0, Math.min(512, getInstanceInt(instanceName, "output.bufferMb", 1))) * 1024 * 1024;
+  }
+
+  public int getOutputLinesPerSecond(String instanceName) {
+    return Math.max(0, getInstanceInt(instanceName, "output.linesPerSecond", 0));
+  }
+
+  public int getOutputBytesPerSecond(String instanceName) {
+    return Math.max(0, getInstanceInt(instanceName, "output.bytesPerSecond", 0));
+  }
+
+  public boolean shouldCollapseRepeats(String instanceName) {
+    return getInstanceBoolean(instanceName, "output.collapseRepeats", false);
+  }
+
+  public String getCrashDirectory() {
+    return properties.getProperty("crash.dir", "crashes").trim();
+  }
+
+  public Map<OutputEventType, List<String>> getEventPatterns() {
+    Map<OutputEventType, List<String>> patterns = new EnumMap<>(OutputEventType.class);
+    for (OutputEventType type : OutputEventType.values()) {
+      String value = properties.getProperty("events." + type.getKey(), type.getDefaultPatterns());
+      List<String> list = new ArrayList<>();
+      for (String pattern : value.split("\\|")) {
+        if (!pattern.isEmpty()) {
+          list.add(pattern);
+        }
+      }
+      patterns.put(type, list);
+    }
+    return patterns;
+  }
+
+  public boolean isDetachedMode() {
+    return Boolean.parseBoolean(properties.getProperty("detached", "false").trim());
+  }
+
+  public String getDetachedDirectory() {
+    return properties.getProperty("detached.dir", "run").trim();
+  }
+
+  public long getDetachedMaxOutputBytes() {
+    return Math.max(1, getInt("detached.maxOutputMb", 8)) * 1024L * 1024L;
+  }
+
+  public boolean isJournalEnabled() {
+    return Boolean.parseBoolean(properties.getProperty("journal.enabled", "false").trim());
+  }
+
+  public String getJournalFile() {
+    return properties.getProperty("journal.file", "wrapper.journal").trim();
+  }
+
+  public long getJournalMaxBytes() {
+    return Math.max(16, getInt("journal.maxSizeKb", 512)) * 1024L;
+  }
+
+  public int getJournalKeepEvents() {
+    return Math.max(10, getInt("journal.keepEvents", 200));
+  }
+
+  public int getJournalCommitIntervalMillis() {
+    return Math.max(1, getInt("journal.commitIntervalMs", 50));
+  }
+
+  // Metric history of the instances, see MetricHistory
+  public boolean isHistoryEnabled() {
+    return Boolean.parseBoolean(properties.getProperty("history.enabled", "false").trim());
+  }
+
+  public String getHistoryDirectory() {
+    return properties.getProperty("history.dir", "history").trim();
+  }
+
+  public long getHistoryIntervalMillis() {
+    return Math.max(1, getInt("history.intervalSeconds", 10)) * 1000L;
+  }
+
+  // Whole days, the segment of the current day included
+  public int getHistoryRetentionDays() {
+    return Math.max(1, getInt("history.retentionDays", 7));
+  }
+
+  public boolean isStartupTimelineEnabled() {
+    return Boolean.parseBoolean(properties.getProperty("startup.timeline", "false").trim());
+  }
+
+  // Start a flight recording with the wrapper, as 'jfr start' would
+  public boolean isJfrRecording() {
+    return Boolean.parseBoolean(properties.getProperty("jfr.record", "false").trim());
+  }
+
+  public String getJfrSettings() {
+    return properties.getProperty("jfr.settings", "default").trim();
+  }
+
+  public String getJfrDirectory() {
+    return properties.getProperty("jfr.dir", "jfr").trim();
+  }
+
+  public int getJfrMaxAgeMinutes() {
+    return Math.max(1, getInt("jfr.maxAgeMinutes", 30));
+  }
+
+  public int getLoadTestThreads() {
+    return Math.max(1, getInt("loadtest.threads", 2));
+  }
+
+  // Decides the login start layout too
+  public int getLoadTestProtocol() {
+    return Math.max(0, getInt("loadtest.protocol", 769));
+  }
+
+  public long getLoadTestTimeoutMillis() {
+    return Math.max(1, getInt("loadtest.timeoutSeconds", 10)) * 1000L;
+  }
+
+  public String getCpuAffinity(String instanceName) {
+    return getInstanceString(instanceName, "cpus", "");
+  }
+
+  // CPU time limit in cores, 0 when unlimited
+  public double getCpuLimit(String instanceName) {
+    return getInstanceDouble(instanceName, "cpu.limit");
+  }
+
+  public long getMemoryLimitBytes(String instanceName) {
+    return Math.max(0, getInstanceInt(instanceName, "memory.limitMb", 0)) * 1024L * 1024L;
+  }
+
+  public String getCgroupPath() {
+    return properties.getProperty("cgroup.path", "").trim();
+  }
+
+  public String getInstanceGroup(String instanceName) {
+    String group = properties.getProperty("instance." + instanceName + ".group", "").trim();
+    return group.isEmpty() ? "default" : group;
+  }
+
+  public boolean isStandbyEnabled(String group) {
+    return Boolean.parseBoolean(properties.getProperty("group." + group + ".standby", "false").trim());
+  }
+
+  public long getRestartMemoryBytes(String instanceName) {
+    return Math.max(0, getInstanceInt(instanceName, "memory.restartMb", 0)) * 1024L * 1024L;
+  }
+
+  public double getRestartGrowthMbPerHour(String instanceName) {
+    return getInstanceDouble(instanceName, "memory.restartGrowthMbPerHour");
+  }
+
+  public long getMaintenanceRestartMillis(String instanceName) {
+    return Math.round(getInstanceDouble(instanceName, "restart.everyHours") * 3_600_000);
+  }
+
+  public long getWatchdogIntervalMillis() {
+    return Math.max(1, getInt("watchdog.intervalSeconds", 30)) * 1000L;
+  }
+
+  public long getWatchdogGrowthWindowMillis() {
+    return Math.max(1, getInt("watchdog.growthWindowMinutes", 60)) * 60_000L;
+  }
+
+  public long getWatchdogMinUptimeMillis() {
+    return Math.max(0, getInt("watchdog.minUptimeMinutes", 10)) * 60_000L;
+  }
+
+  public long getWatchdogReadyTimeoutMillis() {
+    return Math.max(1, getInt("watchdog.readyTimeoutSeconds", 120)) * 1000L;
+  }
+
+  // Started by the first connection to its port instead of on startup
+  public boolean isLazy(String instanceName) {
+    return getInstanceBoolean(instanceName, "lazy", false);
+  }
+
+  public long getLazyIdleMillis(String instanceName) {
+    return Math.max(1, getInstanceInt(instanceName, "lazy.idleMinutes", 10)) * 60_000L;
+  }
+
+  public long getLazyStartTimeoutMillis() {
+    return Math.max(1, getInt("lazy.startTimeoutSeconds", 30)) * 1000L;
+  }
+
+  // Versions pinned with instance.<name>.version, instances following the
+  // default version are not in the map
+  public Map<String, String> getInstanceVersions() {
+    Map<String, String> versions = new LinkedHashMap<>();
+    for (String name : getInstances()) {
+      String version = properties.getProperty("instance." + name + ".version", "").trim();
+      if (!version.isEmpty()) {
+        versions.put(name, version);
+      }
+    }
+    return versions;
+  }
+
+  public long getCanaryWatchMillis() {
+    return Math.max(1, getInt("canary.minutes", 10)) * 60_000L;
+  }
+
+  public int getCanaryMaxErrors() {
+    return Math.max(0, getInt("canary.maxErrors", 5));
+  }
+
+  public long getRolloutReadyTimeoutMillis() {
+    return Math.max(1, getInt("rollout.readyTimeoutSeconds", 60)) * 1000L;
+  }
+
   public boolean isLegacyMode() {
     String instancesStr = properties.getProperty("instances", "").trim();
     return instancesStr.isEmpty();
   }
 
+  private int getInt(String key, int defaultValue) {
+    String value = properties.getProperty(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      Logger.warn("Invalid number for " + key + ": " + value + ", using default: " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  // Reads instance.<name>.<key>, falling back to the global <key>
+  private int getInstanceInt(String instanceName, String key, int defaultValue) {
+    return getInt("instance." + instanceName + "." + key, getInt(key, defaultValue));
+  }
+
+  private String getInstanceString(String instanceName, String key, String defaultValue) {
+    String global = properties.getProperty(key, defaultValue);
+    return properties.getProperty("instance." + instanceName + "." + key, global).trim();
+  }
+
+  // Non-negative decimal, 0 when unset or invalid
+  private double getInstanceDouble(String instanceName, String key) {
+    String value = getInstanceString(instanceName, key, "");
+    if (value.isEmpty()) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Double.parseDouble(value));
+    } catch (NumberFormatException e) {
+      Logger.warn(instanceName, "Invalid number for " + key + ": " + value + ", ignoring it");
+      return 0;
+    }
+  }
+
+  private boolean getInstanceBoolean(String instanceName, String key, boolean defaultValue) {
+    String global = properties.getProperty(key, String.valueOf(defaultValue));
+    return Boolean.parseBoolean(properties.getProperty("instance." + instanceName + "." + key, global).trim());
+  }
+
   public void validateInstances() throws IllegalStateException {
     List<String> instances = getInstances();
     List<String> errors = new ArrayList<>();
@@ -0,0 +1,207 @@
+package com.thirdplacemc;
+
+import java.util.Arrays;
+import java.util.List;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Flight recorder events of the wrapper. All are disabled by default, so
+// outside a recording that enables them (see WrapperRecorder) creating and
+// committing one costs next to nothing. Named com.thirdplacemc.* for .jfc
+// files of recordings started with jcmd or -XX:StartFlightRecording.
+public final class WrapperEvents {
+  private static final String CATEGORY = "PicoLimbo Wrapper";
+
+  // Enabled together by WrapperRecorder
+  static final List<Class<? extends Event>> TYPES = Arrays.asList(InstanceLaunch.class, InstanceReady.class,
+      InstanceExit.class, RestartBackoff.class, UpdatePhase.class, DownloadChunk.class, ForwardBatch.class);
+
+  private WrapperEvents() {
+  }
+
+  @Name("com.thirdplacemc.InstanceLaunch")
+  @Label("Instance Launch")
+  @Description("Starting an instance's process, from preparing its config to the process running")
+  @Category({ CATEGORY, "Supervisor" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class InstanceLaunch extends Event {
+    @Label("Instance")
+    String instance;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Version")
+    String version;
+
+    @Label("PID")
+    long pid;
+  }
+
+  @Name("com.thirdplacemc.InstanceReady")
+  @Label("Instance Ready")
+  @Description("An instance logged \"Listening on:\"")
+  @Category({ CATEGORY, "Supervisor" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class InstanceReady extends Event {
+    @Label("Instance")
+    String instance;
+
+    @Label("Startup")
+    @Timespan(Timespan.MILLISECONDS)
+    long startup;
+  }
+
+  @Name("com.thirdplacemc.InstanceExit")
+  @Label("Instance Exit")
+  @Category({ CATEGORY, "Supervisor" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class InstanceExit extends Event {
+    @Label("Instance")
+    String instance;
+
+    @Label("Exit Code")
+    long exitCode;
+
+    @Label("Uptime")
+    @Timespan(Timespan.MILLISECONDS)
+    long uptime;
+
+    @Label("Crashed")
+    @Description("Exited without being stopped, so it is restarted or given up")
+    boolean crashed;
+  }
+
+  @Name("com.thirdplacemc.RestartBackoff")
+  @Label("Restart Backoff")
+  @Description("Wait between a crash and the relaunch")
+  @Category({ CATEGORY, "Supervisor" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class RestartBackoff extends Event {
+    @Label("Instance")
+    String instance;
+
+    @Label("Attempt")
+    int attempt;
+  }
+
+  @Name("com.thirdplacemc.UpdatePhase")
+  @Label("Update Phase")
+  @Description("One step of installing a version or rolling it out: download, extract, verify, swap, stop, relaunch")
+  @Category({ CATEGORY, "Update" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class UpdatePhase extends Event {
+    @Label("Tag")
+    String tag;
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Instance")
+    @Description("Instance stopped or relaunched, empty for the other phases")
+    String instance;
+
+    // Begins timing phase, finish() commits it
+    public static UpdatePhase start(String tag, String phase, String instance) {
+      UpdatePhase event = new UpdatePhase();
+      event.tag = tag;
+      event.phase = phase;
+      event.instance = instance;
+      event.begin();
+      return event;
+    }
+
+    public void finish() {
+      commit();
+    }
+  }
+
+  @Name("com.thirdplacemc.DownloadChunk")
+  @Label("Download Chunk")
+  @Description("Up to 256 KB of a binary, archive or patch download")
+  @Category({ CATEGORY, "Update" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class DownloadChunk extends Event {
+    @Label("Source")
+    String source;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Throughput")
+    @Description("Bytes per second over the chunk")
+    long bytesPerSecond;
+  }
+
+  @Name("com.thirdplacemc.ForwardBatch")
+  @Label("Output Batch")
+  @Description("Forwarding one read of an instance's output to the console and sinks")
+  @Category({ CATEGORY, "Output" })
+  @Enabled(false)
+  @StackTrace(false)
+  public static final class ForwardBatch extends Event {
+    @Label("Instance")
+    String instance;
+
+    @Label("Lines")
+    int lines;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  // Splits a download into DownloadChunk events, feed it every read
+  public static final class DownloadMeter {
+    private static final long CHUNK_BYTES = 256 * 1024;
+
+    private final String source;
+    private DownloadChunk chunk;
+    private long chunkStartedAt;
+
+    public DownloadMeter(String source) {
+      this.source = source;
+    }
+
+    public void add(int bytes) {
+      if (chunk == null) {
+        chunk = new DownloadChunk();
+        chunk.begin();
+        chunkStartedAt = System.nanoTime();
+      }
+      chunk.bytes += bytes;
+      if (chunk.bytes >= CHUNK_BYTES) {
+        finish();
+      }
+    }
+
+    // Commits the partial chunk at the end of the download
+    public void finish() {
+      if (chunk == null) {
+        return;
+      }
+      chunk.end();
+      if (chunk.shouldCommit()) {
+        long nanos = Math.max(1, System.nanoTime() - chunkStartedAt);
+        chunk.source = source;
+        chunk.bytesPerSecond = chunk.bytes * 1_000_000_000L / nanos;
+        chunk.commit();
+      }
+      chunk = null;
+    }
+  }
+}
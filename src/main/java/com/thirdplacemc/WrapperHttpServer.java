@@ -0,0 +1,116 @@
+package com.thirdplacemc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The wrapper's embedded HTTP endpoint on http.port, shared by everything
+// that serves over HTTP. Handlers run on a small pool so one slow client
+// does not hold up the others.
+public class WrapperHttpServer {
+  private static final int THREADS = 4;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  private WrapperHttpServer(HttpServer server, ExecutorService executor) {
+    this.server = server;
+    this.executor = executor;
+  }
+
+  // Returns null when http.port is 0
+  public static WrapperHttpServer create(WrapperConfig config) throws IOException {
+    int port = config.getHttpPort();
+    if (port <= 0) {
+      return null;
+    }
+    InetSocketAddress address = new InetSocketAddress(config.getHttpBind(), port);
+    HttpServer server;
+    try {
+      server = HttpServer.create(address, 0);
+    } catch (IOException e) {
+      throw new IOException("Could not listen on " + config.getHttpBind() + ":" + port + " for HTTP: "
+          + e.getMessage(), e);
+    }
+    AtomicInteger sequence = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "Http-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.setExecutor(executor);
+    return new WrapperHttpServer(server, executor);
+  }
+
+  // path is a prefix, e.g. "/mirror/"
+  public void addHandler(String path, HttpHandler handler) {
+    server.createContext(path, exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        // Client went away
+      } catch (RuntimeException e) {
+        Logger.error("HTTP " + exchange.getRequestURI() + " failed: " + e);
+        sendText(exchange, 500, "internal error");
+      } finally {
+        exchange.close();
+      }
+    });
+  }
+
+  // For responses that outlive the handler, such as event streams: the
+  // handler hands the exchange to a thread of its own, which closes it. The
+  // exchange is only closed here when the handler fails.
+  public void addStreamHandler(String path, HttpHandler handler) {
+    server.createContext(path, exchange -> {
+      try {
+        handler.handle(exchange);
+      } catch (IOException e) {
+        exchange.close();
+      } catch (RuntimeException e) {
+        Logger.error("HTTP " + exchange.getRequestURI() + " failed: " + e);
+        sendText(exchange, 500, "internal error");
+        exchange.close();
+      }
+    });
+  }
+
+  public void start() {
+    server.start();
+    InetSocketAddress address = server.getAddress();
+    Logger.info("HTTP listening on " + address.getHostString() + ":" + address.getPort());
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public static void sendText(HttpExchange exchange, int status, String body) {
+    try {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      if ("HEAD".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(status, -1);
+        return;
+      }
+      exchange.sendResponseHeaders(status, bytes.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(bytes);
+      }
+    } catch (IOException e) {
+      // Client went away
+    }
+  }
+}
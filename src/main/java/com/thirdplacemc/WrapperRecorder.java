@@ -0,0 +1,108 @@
+package com.thirdplacemc;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import jdk.jfr.Configuration;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+// The flight recording behind the 'jfr' command: the JDK's own settings plus
+// every WrapperEvents event, kept for jfr.maxAgeMinutes. Dumps go to jfr.dir,
+// as does the whole recording when it is stopped or the wrapper exits.
+public class WrapperRecorder {
+  private final File directory;
+  private final Duration maxAge;
+  private Recording recording;
+  private String settings;
+
+  public WrapperRecorder(WrapperConfig config) {
+    this.directory = new File(config.getJfrDirectory());
+    this.maxAge = Duration.ofMinutes(config.getJfrMaxAgeMinutes());
+  }
+
+  // settings is a JDK configuration, "default" (about 1% overhead) or "profile"
+  public synchronized void start(String settings) throws IOException {
+    if (recording != null) {
+      Logger.warn("A flight recording is already running (" + this.settings + "), 'jfr stop' first");
+      return;
+    }
+    if (!FlightRecorder.isAvailable()) {
+      throw new IOException("Flight recorder is not available in this Java runtime");
+    }
+    Recording started;
+    try {
+      started = new Recording(Configuration.getConfiguration(settings));
+    } catch (ParseException e) {
+      throw new IOException("Invalid flight recorder settings '" + settings + "': " + e.getMessage(), e);
+    } catch (IOException e) {
+      throw new IOException("Unknown flight recorder settings '" + settings + "', use default or profile", e);
+    }
+    for (Class<? extends Event> type : WrapperEvents.TYPES) {
+      started.enable(type).withThreshold(Duration.ZERO);
+    }
+    // Written there by the JDK when stopped, also when the wrapper exits
+    File file = nextFile("wrapper");
+    started.setName("PicoLimboWrapper");
+    started.setToDisk(true);
+    started.setMaxAge(maxAge);
+    started.setDestination(file.toPath());
+    started.setDumpOnExit(true);
+    started.start();
+    recording = started;
+    this.settings = settings;
+    Logger.info("Flight recording started (" + settings + ", keeping the last " + maxAge.toMinutes()
+        + " minutes), 'jfr dump' to write it");
+  }
+
+  // Writes what the recording holds so far, it keeps running
+  public synchronized File dump() throws IOException {
+    if (recording == null) {
+      Logger.warn("No flight recording is running, 'jfr start' first");
+      return null;
+    }
+    File file = nextFile("dump");
+    recording.dump(file.toPath());
+    Logger.info("Flight recording written to " + file.getPath() + " (" + file.length() / 1024 + " KB)");
+    return file;
+  }
+
+  // Dumps and ends the recording
+  public synchronized File stop() {
+    if (recording == null) {
+      Logger.warn("No flight recording is running");
+      return null;
+    }
+    try {
+      File file = recording.getDestination().toFile();
+      recording.stop();
+      Logger.info("Flight recording stopped, written to " + file.getPath() + " (" + file.length() / 1024 + " KB)");
+      return file;
+    } finally {
+      recording.close();
+      recording = null;
+    }
+  }
+
+  public synchronized String describe() {
+    if (recording == null) {
+      return "No flight recording running";
+    }
+    Duration running = Duration.between(recording.getStartTime(), Instant.now());
+    return "Flight recording running for " + running.toMinutes() + "m (" + settings + "), written to "
+        + recording.getDestination() + " when stopped";
+  }
+
+  private File nextFile(String prefix) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory.getPath());
+    }
+    String stamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    return new File(directory, prefix + "-" + stamp + ".jfr");
+  }
+}
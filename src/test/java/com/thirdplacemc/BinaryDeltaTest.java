@@ -0,0 +1,72 @@
+package com.thirdplacemc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class BinaryDeltaTest {
+  @Test
+  void roundTripsSimilarBinaries() throws IOException {
+    Random random = new Random(42);
+    byte[] oldData = new byte[256 * 1024];
+    random.nextBytes(oldData);
+    byte[] newData = edit(oldData, random);
+
+    byte[] patch = BinaryDelta.diff(oldData, newData);
+    assertArrayEquals(newData, BinaryDelta.apply(oldData, patch));
+    // Mostly shared content compresses to a fraction of the new binary
+    assertTrue(patch.length < newData.length / 10, "patch is " + patch.length + " bytes");
+  }
+
+  @Test
+  void roundTripsEdgeCases() throws IOException {
+    byte[] data = "PicoLimbo".getBytes();
+    assertArrayEquals(data, BinaryDelta.apply(data, BinaryDelta.diff(data, data)));
+    assertArrayEquals(new byte[0], BinaryDelta.apply(data, BinaryDelta.diff(data, new byte[0])));
+    assertArrayEquals(data, BinaryDelta.apply(new byte[0], BinaryDelta.diff(new byte[0], data)));
+  }
+
+  @Test
+  void checksPublishedHash() throws IOException {
+    byte[] oldData = "old binary contents".getBytes();
+    byte[] newData = "new binary contents".getBytes();
+    byte[] patch = BinaryDelta.diff(oldData, newData);
+
+    assertArrayEquals(newData, BinaryDelta.apply(oldData, patch, BinaryDelta.sha256(newData)));
+    assertThrows(BinaryDelta.PatchException.class,
+        () -> BinaryDelta.apply(oldData, patch, BinaryDelta.sha256(oldData)));
+  }
+
+  @Test
+  void rejectsWrongBaseAndCorruptPatches() throws IOException {
+    byte[] oldData = "old binary contents".getBytes();
+    byte[] newData = "new binary contents".getBytes();
+    byte[] patch = BinaryDelta.diff(oldData, newData);
+
+    assertThrows(BinaryDelta.PatchException.class, () -> BinaryDelta.apply(newData, patch));
+    // Truncated inside the compressed blocks
+    assertThrows(IOException.class, () -> BinaryDelta.apply(oldData, Arrays.copyOf(patch, patch.length / 2)));
+    assertThrows(BinaryDelta.PatchException.class, () -> BinaryDelta.apply(oldData, "not a delta".getBytes()));
+  }
+
+  // A new build: a changed region, an insertion and a removal
+  private static byte[] edit(byte[] data, Random random) {
+    byte[] changed = data.clone();
+    for (int i = 1000; i < 1200; i++) {
+      changed[i] = (byte) random.nextInt();
+    }
+    byte[] inserted = new byte[4096];
+    random.nextBytes(inserted);
+    int at = changed.length / 2;
+    byte[] result = new byte[changed.length + inserted.length - 2048];
+    System.arraycopy(changed, 0, result, 0, at);
+    System.arraycopy(inserted, 0, result, at, inserted.length);
+    System.arraycopy(changed, at + 2048, result, at + inserted.length, changed.length - at - 2048);
+    return result;
+  }
+}
@@ -0,0 +1,142 @@
+package com.thirdplacemc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MetricStoreTest {
+  private static final int METRIC = 1;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void roundTripsRegularSamples() throws IOException {
+    Random random = new Random(7);
+    long start = startSecond();
+    List<long[]> points = new ArrayList<>();
+    double memory = 40;
+    for (int i = 0; i < 5000; i++) {
+      // Mostly unchanged, sometimes a few pages more or less
+      if (random.nextInt(20) == 0) {
+        memory += (random.nextInt(9) - 4) * 4 / 1024.0;
+      }
+      points.add(point(start + i * 10L, memory));
+    }
+    assertRoundTrip(points);
+  }
+
+  @Test
+  void roundTripsValueEdgeCases() throws IOException {
+    long start = startSecond();
+    double[] values = {
+        1.0,
+        // XOR of 1, 63 leading zeros: clamped to 31 in the 5-bit field
+        Math.nextUp(1.0),
+        1.0,
+        // XOR with only the top bits set, then one with no leading zeros
+        -1.0,
+        0.0,
+        -Double.MIN_VALUE,
+        // All 64 bits meaningful, stored as length 0
+        Double.longBitsToDouble(0x8000000000000001L),
+        Double.longBitsToDouble(0x0000000000000001L),
+        Double.MAX_VALUE,
+        Double.NaN,
+        Double.POSITIVE_INFINITY,
+        Double.POSITIVE_INFINITY,
+        12.5,
+        Math.nextDown(12.5),
+    };
+    List<long[]> points = new ArrayList<>();
+    for (int i = 0; i < values.length; i++) {
+      points.add(point(start + i, values[i]));
+    }
+    assertRoundTrip(points);
+  }
+
+  @Test
+  void roundTripsIrregularTimestamps() throws IOException {
+    long start = startSecond();
+    // Delta-of-deltas in every bucket, in both directions
+    long[] deltas = {10, 10, 11, 9, 10, 70, 10, 300, 10, 2000, 10, 3000, 10, 60, 1, 1};
+    List<long[]> points = new ArrayList<>();
+    long second = start;
+    for (int i = 0; i < deltas.length; i++) {
+      points.add(point(second, i * 0.25));
+      second += deltas[i];
+    }
+    assertRoundTrip(points);
+  }
+
+  @Test
+  void readsRangesAndReopens() throws IOException {
+    long start = startSecond();
+    File dir = directory.toFile();
+    MetricStore store = new MetricStore(dir, 7);
+    for (int i = 0; i < 100; i++) {
+      store.append("lobby", METRIC, start + i * 10L, i);
+      store.append("lobby", 2, start + i * 10L, -i);
+      store.append("other", METRIC, start + i * 10L, 1000 + i);
+    }
+    store.close();
+
+    MetricStore reopened = new MetricStore(dir, 7);
+    try {
+      List<long[]> range = read(reopened, "lobby", METRIC, start + 200, start + 299);
+      assertEquals(10, range.size());
+      assertEquals(start + 200, range.get(0)[0]);
+      assertEquals(20.0, Double.longBitsToDouble(range.get(0)[1]));
+      assertEquals(100, read(reopened, "other", METRIC, start, start + 1000).size());
+      assertEquals(-99.0, Double.longBitsToDouble(read(reopened, "lobby", 2, start, start + 1000).get(99)[1]));
+    } finally {
+      reopened.close();
+    }
+  }
+
+  private void assertRoundTrip(List<long[]> points) throws IOException {
+    MetricStore store = new MetricStore(directory.toFile(), 7);
+    try {
+      for (long[] point : points) {
+        store.append("lobby", METRIC, point[0], Double.longBitsToDouble(point[1]));
+      }
+      List<long[]> read = read(store, "lobby", METRIC, points.get(0)[0], points.get(points.size() - 1)[0]);
+      assertEquals(points.size(), read.size());
+      for (int i = 0; i < points.size(); i++) {
+        assertArrayEquals(points.get(i), read.get(i), "point " + i);
+      }
+      assertTrue(store.getDiskBytes() > 0);
+    } finally {
+      store.close();
+    }
+  }
+
+  private static List<long[]> read(MetricStore store, String instance, int metric, long from, long to)
+      throws IOException {
+    List<long[]> points = new ArrayList<>();
+    store.read(instance, metric, from, to,
+        (second, value) -> points.add(new long[] {second, Double.doubleToRawLongBits(value)}));
+    return points;
+  }
+
+  // Bit patterns, so NaN compares exactly
+  private static long[] point(long second, double value) {
+    return new long[] {second, Double.doubleToRawLongBits(value)};
+  }
+
+  // Early enough in a recent UTC day that the points stay within one or two
+  // segments inside the retention
+  private static long startSecond() {
+    long now = System.currentTimeMillis() / 1000;
+    return now - now % 86_400 - 86_400;
+  }
+}
@@ -0,0 +1,135 @@
+package com.thirdplacemc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SupervisorJournalTest {
+  private static final long MAX_BYTES = 512 * 1024;
+  private static final int KEEP_EVENTS = 200;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void replaysEventsAcrossReopen() throws IOException {
+    File file = directory.resolve("wrapper.journal").toFile();
+    SupervisorJournal journal = open(file);
+    journal.append(JournalEventType.LAUNCH, "lobby", 100, 0, "autostart");
+    journal.append(JournalEventType.CRASH, "lobby", 1, 5000, "panicked at main.rs");
+    journal.append(JournalEventType.RESTART, "lobby", 1, 0, "");
+    journal.close();
+
+    SupervisorJournal replayed = open(file);
+    try {
+      assertEquals(3, replayed.getReplayedEvents());
+      SupervisorJournal.History history = replayed.getHistory("lobby");
+      assertEquals(1, history.getLaunches());
+      assertEquals(1, history.getCrashes());
+      assertEquals(1, history.getRestartAttempts());
+      assertEquals(1, history.getLastExitCode());
+      assertEquals("panicked at main.rs", history.getLastFailure());
+    } finally {
+      replayed.close();
+    }
+  }
+
+  @Test
+  void truncatesTornRecordAndKeepsEarlierEvents() throws IOException {
+    File file = directory.resolve("wrapper.journal").toFile();
+    SupervisorJournal journal = open(file);
+    journal.append(JournalEventType.LAUNCH, "lobby", 100, 0, "autostart");
+    journal.append(JournalEventType.READY, "lobby", 250, 0, "");
+    journal.close();
+    long intact = file.length();
+
+    journal = open(file);
+    journal.append(JournalEventType.GIVE_UP, "lobby", 5, 0, "");
+    journal.close();
+    long full = file.length();
+    assertTrue(full > intact);
+
+    // A crash in the middle of writing the last record
+    long torn = intact + (full - intact) / 2;
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      channel.truncate(torn);
+    }
+
+    SupervisorJournal replayed = open(file);
+    try {
+      assertEquals(2, replayed.getReplayedEvents());
+      assertEquals(intact, file.length());
+      SupervisorJournal.History history = replayed.getHistory("lobby");
+      assertEquals(1, history.getLaunches());
+      assertFalse(history.hasGivenUp());
+
+      // New records continue after the last valid one
+      replayed.append(JournalEventType.EXIT, "lobby", 0, 1000, "");
+      List<SupervisorJournal.Event> events = replayed.readEvents("lobby");
+      assertEquals(3, events.size());
+      assertEquals(JournalEventType.LAUNCH, events.get(0).getType());
+      assertEquals(JournalEventType.READY, events.get(1).getType());
+      assertEquals(JournalEventType.EXIT, events.get(2).getType());
+    } finally {
+      replayed.close();
+    }
+  }
+
+  @Test
+  void movesUnrecognisedFileAside() throws IOException {
+    File file = directory.resolve("wrapper.journal").toFile();
+    Files.write(file.toPath(), "not a journal".getBytes());
+
+    SupervisorJournal journal = open(file);
+    try {
+      assertEquals(0, journal.getReplayedEvents());
+      assertTrue(new File(file.getPath() + ".corrupt").isFile());
+    } finally {
+      journal.close();
+    }
+  }
+
+  @Test
+  void doesNotCompactOnEveryCommitWhenKeptEventsExceedTheLimit() throws IOException {
+    File file = directory.resolve("wrapper.journal").toFile();
+    // Commits only happen through readEvents
+    SupervisorJournal journal = new SupervisorJournal(file, 16 * 1024, KEEP_EVENTS);
+    journal.open(3_600_000);
+    try {
+      for (int instance = 0; instance < 4; instance++) {
+        for (int i = 0; i < KEEP_EVENTS + 50; i++) {
+          journal.append(JournalEventType.LAUNCH, "lobby-" + instance, 100 + i, 0, "autostart");
+        }
+      }
+      journal.readEvents("lobby-0");
+      assertEquals(1, journal.getCompactions());
+      assertTrue(file.length() > 16 * 1024);
+
+      for (int i = 0; i < 50; i++) {
+        journal.append(JournalEventType.READY, "lobby-0", 250, 0, "");
+        journal.readEvents("lobby-0");
+      }
+      assertEquals(1, journal.getCompactions());
+      // The summary, the kept launches and the new events
+      assertEquals(1 + KEEP_EVENTS + 50, journal.readEvents("lobby-0").size());
+    } finally {
+      journal.close();
+    }
+  }
+
+  private static SupervisorJournal open(File file) throws IOException {
+    SupervisorJournal journal = new SupervisorJournal(file, MAX_BYTES, KEEP_EVENTS);
+    journal.open(10);
+    return journal;
+  }
+}